@@ -0,0 +1,96 @@
+package com.dabsquared.googleldap.benchmarks;
+
+import com.dabsquared.googleldap.util.ConcurrentCacheMap;
+import com.dabsquared.googleldap.util.LRUCacheMap;
+import com.dabsquared.googleldap.util.Weigher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache throughput under contention: many threads reading, and now and then writing,
+ * the entry cache, as concurrent LDAP requests do.
+ *
+ * Compares {@link ConcurrentCacheMap} with a synchronized {@link LRUCacheMap}, the
+ * cache the partition used to have. A quarter of the keys asked for are not in the
+ * cache and get put, evicting others.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = Fixtures.JVM_ARGS)
+@Threads(8)
+public class CacheBenchmark {
+
+    private static final int CAPACITY = 10000;
+
+    /** Keys asked for; a quarter more than fit. */
+    private static final int KEYS = CAPACITY + CAPACITY / 4;
+
+    @Param({"concurrent", "lru"})
+    public String cache;
+
+    private ConcurrentCacheMap<String, Object> concurrent;
+
+    private Map<String, Object> lru;
+
+    private String[] keys;
+
+    @Setup
+    public void setUp() {
+        keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "cn=user" + i + ",ou=users,dc=example,dc=com";
+        }
+
+        concurrent = new ConcurrentCacheMap<String, Object>(CAPACITY, ConcurrentCacheMap.NO_EXPIRY,
+                new Weigher<String, Object>() {
+                    public long weigh(String key, Object value) {
+                        return 1;
+                    }
+                });
+        lru = Collections.synchronizedMap(new LRUCacheMap<String, Object>(CAPACITY));
+        for (int i = 0; i < CAPACITY; i++) {
+            concurrent.put(keys[i], keys[i]);
+            lru.put(keys[i], keys[i]);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        SplittableRandom random = new SplittableRandom(Thread.currentThread().getId());
+    }
+
+    @Benchmark
+    public Object getOrPut(ThreadState state) {
+        String key = keys[state.random.nextInt(KEYS)];
+        if ("concurrent".equals(cache)) {
+            Object value = concurrent.get(key);
+            if (value == null) {
+                concurrent.put(key, key);
+            }
+            return value;
+        }
+        Object value = lru.get(key);
+        if (value == null) {
+            lru.put(key, key);
+        }
+        return value;
+    }
+}
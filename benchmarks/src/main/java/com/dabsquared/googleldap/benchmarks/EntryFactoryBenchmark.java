@@ -0,0 +1,111 @@
+package com.dabsquared.googleldap.benchmarks;
+
+import com.dabsquared.googleldap.EntryFactory;
+import com.dabsquared.googleldap.SyntheticDirectory;
+import com.google.api.services.admin.directory.model.Group;
+import com.google.api.services.admin.directory.model.Member;
+import com.google.api.services.admin.directory.model.User;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building user and group entries from Admin SDK resources, which every cache miss and
+ * every page of a listing pays for.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = Fixtures.JVM_ARGS)
+public class EntryFactoryBenchmark {
+
+    private static final int COUNT = 1000;
+
+    private EntryFactory factory;
+
+    private User[] users;
+
+    private Dn[] userDns;
+
+    private Group[] groups;
+
+    private Dn[] groupDns;
+
+    private List<List<String>> memberUids;
+
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        factory = new EntryFactory(Fixtures.schemaManager(),
+                "ou=users,dc=example,dc=com", "ou=groups,dc=example,dc=com");
+
+        SyntheticDirectory directory = Fixtures.directory(COUNT);
+        users = directory.getUsers().toArray(new User[0]);
+        userDns = new Dn[users.length];
+        for (int i = 0; i < users.length; i++) {
+            userDns[i] = factory.userDn(users[i]);
+        }
+
+        // Groups with members listed one by one, not the whole domain
+        List<Group> g = new ArrayList<Group>();
+        memberUids = new ArrayList<List<String>>();
+        for (Group group : directory.getGroups()) {
+            List<String> uids = new ArrayList<String>();
+            for (Member member : directory.getMembers(group)) {
+                if (member.getEmail() == null) {
+                    uids = null;
+                    break;
+                }
+                uids.add(EntryFactory.localPart(member.getEmail()));
+            }
+            if (uids != null) {
+                g.add(group);
+                memberUids.add(uids);
+            }
+        }
+        groups = g.toArray(new Group[0]);
+        groupDns = new Dn[groups.length];
+        for (int i = 0; i < groups.length; i++) {
+            groupDns[i] = factory.groupDn(groups[i]);
+        }
+    }
+
+    @Benchmark
+    public Entry createUserEntry() throws Exception {
+        int i = next();
+        return factory.createUserEntry(userDns[i], users[i], users[i].getAliases());
+    }
+
+    @Benchmark
+    public Entry createGroupEntry() throws Exception {
+        int i = next() % groups.length;
+        return factory.createGroupEntry(groupDns[i], groups[i], memberUids.get(i));
+    }
+
+    @Benchmark
+    public Dn userDn() throws Exception {
+        return factory.userDn(users[next()]);
+    }
+
+    private int next() {
+        int i = next;
+        next = (i + 1) % COUNT;
+        return i;
+    }
+}
@@ -0,0 +1,91 @@
+package com.dabsquared.googleldap.benchmarks;
+
+import com.dabsquared.googleldap.DirectoryService;
+import com.dabsquared.googleldap.GooglePartition;
+import com.dabsquared.googleldap.SchemaCache;
+import com.dabsquared.googleldap.SyntheticDirectory;
+import com.dabsquared.googleldap.SyntheticTransport;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.FilterParser;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+
+import java.io.File;
+import java.text.ParseException;
+
+/**
+ * What the suites are set up with: the schema, generated directories and partitions
+ * answering from them through a {@link SyntheticTransport}, so runs need no network
+ * and see the same data every time.
+ */
+public final class Fixtures {
+
+    public static final String DOMAIN = "example.com";
+
+    /** The seed every directory is generated with. */
+    public static final long SEED = 42;
+
+    /** Arguments of the forked JVMs: logging set to warnings, as the server runs in production. */
+    public static final String JVM_ARGS = "-Dlog4j.configurationFile=log4j2-benchmarks.xml";
+
+    /** Users per group in the generated directories. */
+    public static final int USERS_PER_GROUP = 20;
+
+    private static SchemaManager schemaManager;
+
+    private Fixtures() {
+    }
+
+    /**
+     * @return the schema manager of the server, loaded once per JVM.
+     */
+    public static synchronized SchemaManager schemaManager() throws Exception {
+        if (schemaManager == null) {
+            File repository = new SchemaCache(new File(System.getProperty("java.io.tmpdir"),
+                    "googleldap-benchmarks-schema")).prepare();
+            SchemaManager sm = new DefaultSchemaManager(new LdifSchemaLoader(repository));
+            sm.loadAllEnabled();
+            if (!sm.getErrors().isEmpty()) {
+                throw new IllegalStateException("Unable to load the schema: " + sm.getErrors());
+            }
+            schemaManager = sm;
+        }
+        return schemaManager;
+    }
+
+    /**
+     * @return the directory of the given number of users, with one group per
+     *         {@link #USERS_PER_GROUP} users.
+     */
+    public static SyntheticDirectory directory(int users) {
+        return new SyntheticDirectory(DOMAIN, users, Math.max(1, users / USERS_PER_GROUP), SEED);
+    }
+
+    /**
+     * @return an initialized partition over the given directory, its cache warmed up
+     *         as at startup.
+     */
+    public static GooglePartition partition(SyntheticDirectory directory) throws Exception {
+        GooglePartition partition = new GooglePartition(DOMAIN,
+                new DirectoryService(new SyntheticTransport(directory)));
+        partition.setId("benchmark");
+        partition.setSchemaManager(schemaManager());
+        // Nothing to protect from quotas; the warm-up should not dominate setup
+        partition.setWarmUpRate(1000000);
+        partition.initialize();
+        return partition;
+    }
+
+    /**
+     * @return the filter, with its attributes resolved against the schema as ApacheDS
+     *         hands filters to partitions.
+     */
+    public static ExprNode filter(String filter) throws Exception {
+        try {
+            return FilterParser.parse(schemaManager(), filter);
+        } catch (ParseException e) {
+            throw new IllegalArgumentException(filter, e);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.dabsquared.googleldap.benchmarks;
+
+import com.dabsquared.googleldap.SyntheticDirectory;
+import com.dabsquared.googleldap.util.LatencyHistogram;
+import com.dabsquared.googleldap.util.NamedThreadFactory;
+import org.apache.directory.api.ldap.model.cursor.EntryCursor;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.ldap.client.api.LdapNetworkConnection;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a running server with concurrent binds and searches over the network, as a
+ * fleet of NSS clients would, and reports the throughput and latency percentiles of
+ * each kind of operation.
+ *
+ * Meant for a server started offline on a synthetic directory, whose users and groups
+ * it asks for by name:
+ * <pre>
+ * java -Dgoogleldap.synthetic.users=10000 -Dgoogleldap.synthetic.latency=lognormal:40,250 \
+ *      -Dgoogleldap.port=10390 -cp target/benchmarks.jar com.dabsquared.googleldap.SyntheticLDAPServer example.com
+ * java -Dload.port=10390 -Dload.users=10000 -Dload.threads=32 \
+ *      -cp target/benchmarks.jar com.dabsquared.googleldap.benchmarks.LoadGenerator
+ * </pre>
+ *
+ * Settings, as system properties: {@code load.host}, {@code load.port}, {@code load.domain},
+ * {@code load.users} and {@code load.groups} (the sizes of the synthetic directory),
+ * {@code load.password}, {@code load.threads} (one connection each), {@code load.warmUp}
+ * and {@code load.duration} in seconds, {@code load.mix} (weights such as
+ * {@code bind:20,getpwnam:40,initgroups:30,getgrnam:10}) and {@code load.rate}.
+ *
+ * Without a rate each thread sends its next operation as soon as the previous one is
+ * answered. With {@code load.rate} operations per second, operations are scheduled at
+ * that rate and their latency counted from when they were due, so a stalled server is
+ * not hidden by the generator waiting on it.
+ */
+public final class LoadGenerator {
+
+    private static final String[] OPERATIONS = {"bind", "getpwnam", "initgroups", "getgrnam"};
+
+    private final String host = System.getProperty("load.host", "localhost");
+
+    private final int port = Integer.getInteger("load.port", 389);
+
+    private final String domain = System.getProperty("load.domain", Fixtures.DOMAIN);
+
+    private final int users = Integer.getInteger("load.users", 10000);
+
+    private final int groups = Integer.getInteger("load.groups", Math.max(1, users / Fixtures.USERS_PER_GROUP));
+
+    private final String password = System.getProperty("load.password", "synthetic");
+
+    private final int threads = Integer.getInteger("load.threads", 16);
+
+    private final long warmUp = Long.getLong("load.warmUp", 10);
+
+    private final long duration = Long.getLong("load.duration", 60);
+
+    private final double rate = Double.parseDouble(System.getProperty("load.rate", "0"));
+
+    private final int[] mix = parseMix(System.getProperty("load.mix", "bind:20,getpwnam:40,initgroups:30,getgrnam:10"));
+
+    private final String base;
+
+    /** Where the operations are counted; replaced once warmed up. */
+    private volatile Stats stats = new Stats();
+
+    private volatile boolean running = true;
+
+    private LoadGenerator() {
+        StringBuilder dn = new StringBuilder();
+        for (String dc : domain.split("\\.")) {
+            dn.append((dn.length() == 0) ? "dc=" : ",dc=").append(dc);
+        }
+        base = dn.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator().run();
+    }
+
+    private void run() throws InterruptedException {
+        System.out.println(String.format("%d threads against %s:%d, %s, mix %s, %ds warm-up, %ds measured",
+                threads, host, port, (rate > 0) ? rate + " ops/s" : "closed loop",
+                System.getProperty("load.mix", "default"), warmUp, duration));
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("load"));
+        final long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    work(start);
+                }
+            });
+        }
+
+        TimeUnit.SECONDS.sleep(warmUp);
+        Stats measured = new Stats();
+        stats = measured;
+        long measureStart = System.nanoTime();
+        TimeUnit.SECONDS.sleep(duration);
+        running = false;
+        long elapsed = System.nanoTime() - measureStart;
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        report(measured, elapsed);
+        executor.shutdownNow();
+    }
+
+    private void work(long start) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // Each thread sends its share of the rate, starting at a random offset
+        long interval = (rate > 0) ? (long) (TimeUnit.SECONDS.toNanos(1) * threads / rate) : 0;
+        long due = start + ((interval > 0) ? random.nextLong(interval) : 0);
+
+        LdapNetworkConnection connection = null;
+        while (running) {
+            if (interval > 0) {
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+            }
+            long opStart = (interval > 0) ? due : System.nanoTime();
+            due += interval;
+
+            int op = pick(random);
+            Stats s = stats;
+            try {
+                if (connection == null || !connection.isConnected()) {
+                    close(connection);
+                    connection = new LdapNetworkConnection(host, port);
+                    connection.setTimeOut(TimeUnit.SECONDS.toMillis(30));
+                    connection.connect();
+                }
+                execute(connection, op, random);
+            } catch (Exception ex) {
+                if (s.errors[op].incrementAndGet() == 1) {
+                    System.err.println(OPERATIONS[op] + " failed: " + ex);
+                }
+                close(connection);
+                connection = null;
+            } finally {
+                s.latencies[op].recordSince(opStart);
+            }
+        }
+        close(connection);
+    }
+
+    private void execute(LdapNetworkConnection connection, int op, ThreadLocalRandom random) throws Exception {
+        String user = SyntheticDirectory.userName(random.nextInt(users));
+        switch (op) {
+            case 0:
+                connection.bind("cn=" + user + ",ou=users," + base, password);
+                break;
+            case 1:
+                search(connection, "(&(objectClass=posixAccount)(uid=" + user + "))");
+                break;
+            case 2:
+                search(connection, "(&(objectClass=posixGroup)(memberUid=" + user + "))");
+                break;
+            default:
+                search(connection, "(&(objectClass=posixGroup)(cn="
+                        + SyntheticDirectory.groupName(random.nextInt(groups)) + "))");
+                break;
+        }
+    }
+
+    private void search(LdapNetworkConnection connection, String filter) throws Exception {
+        EntryCursor cursor = connection.search(base, filter, SearchScope.SUBTREE, "*");
+        try {
+            while (cursor.next()) {
+                cursor.get();
+            }
+            SearchResultDone done = cursor.getSearchResultDone();
+            if (done != null && done.getLdapResult().getResultCode() != ResultCodeEnum.SUCCESS) {
+                throw new IllegalStateException(filter + ": " + done.getLdapResult().getResultCode()
+                        + " " + done.getLdapResult().getDiagnosticMessage());
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int pick(ThreadLocalRandom random) {
+        int r = random.nextInt(mix[mix.length - 1]);
+        int op = 0;
+        while (r >= mix[op]) {
+            op++;
+        }
+        return op;
+    }
+
+    private static void close(LdapNetworkConnection connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (Exception ex) {
+            // Already broken
+        }
+    }
+
+    private void report(Stats s, long elapsedNanos) {
+        double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        long total = 0;
+        long totalErrors = 0;
+        System.out.println(String.format("%-12s %10s %8s %10s %10s %10s %10s %10s",
+                "operation", "count", "errors", "ops/s", "p50", "p99", "p99.9", "max"));
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            LatencyHistogram h = s.latencies[op];
+            if (h.getCount() == 0) {
+                continue;
+            }
+            total += h.getCount();
+            totalErrors += s.errors[op].get();
+            System.out.println(String.format(Locale.ROOT, "%-12s %10d %8d %10.1f %10s %10s %10s %10s",
+                    OPERATIONS[op], h.getCount(), s.errors[op].get(), h.getCount() / seconds,
+                    millis(h.getPercentile(50)), millis(h.getPercentile(99)),
+                    millis(h.getPercentile(99.9)), millis(h.getMax())));
+        }
+        System.out.println(String.format(Locale.ROOT, "%-12s %10d %8d %10.1f",
+                "total", total, totalErrors, total / seconds));
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.2fms", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    /**
+     * @return the cumulative weights of {@link #OPERATIONS}.
+     */
+    private static int[] parseMix(String mix) {
+        Map<String, Integer> weights = new LinkedHashMap<String, Integer>();
+        for (String part : mix.split(",")) {
+            String[] kv = part.trim().split(":");
+            weights.put(kv[0].trim(), Integer.parseInt(kv[1].trim()));
+        }
+        List<String> unknown = new ArrayList<String>(weights.keySet());
+        int[] cumulative = new int[OPERATIONS.length];
+        int sum = 0;
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            Integer w = weights.get(OPERATIONS[op]);
+            unknown.remove(OPERATIONS[op]);
+            sum += (w == null) ? 0 : Math.max(0, w);
+            cumulative[op] = sum;
+        }
+        if (!unknown.isEmpty() || sum == 0) {
+            throw new IllegalArgumentException("Invalid load.mix " + mix + ", the operations are bind, "
+                    + "getpwnam, initgroups and getgrnam");
+        }
+        return cumulative;
+    }
+
+    private static final class Stats {
+        final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+        final AtomicLong[] errors = new AtomicLong[OPERATIONS.length];
+
+        Stats() {
+            for (int op = 0; op < OPERATIONS.length; op++) {
+                latencies[op] = new LatencyHistogram();
+                errors[op] = new AtomicLong();
+            }
+        }
+    }
+}
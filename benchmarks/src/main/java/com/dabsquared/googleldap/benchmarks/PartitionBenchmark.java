@@ -0,0 +1,202 @@
+package com.dabsquared.googleldap.benchmarks;
+
+import com.dabsquared.googleldap.EntryFactory;
+import com.dabsquared.googleldap.GooglePartition;
+import com.dabsquared.googleldap.SyntheticDirectory;
+import com.google.api.services.admin.directory.model.Group;
+import com.google.api.services.admin.directory.model.User;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.context.HasEntryOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The partition operations an NSS client (nslcd, sssd) drives, against a warmed-up
+ * partition over a generated directory.
+ *
+ * Each invocation asks for a different user or group, picked at random from the
+ * directory, so the cache sees a realistic spread of keys; with the larger directories
+ * not everything fits in the cache and some requests go to the synthetic backend.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = Fixtures.JVM_ARGS)
+public class PartitionBenchmark {
+
+    /** Keys prepared per run and cycled through. */
+    private static final int KEYS = 4096;
+
+    @Param({"1000", "10000", "100000"})
+    public int users;
+
+    private SchemaManager schemaManager;
+
+    private GooglePartition partition;
+
+    private Dn base;
+
+    private Dn usersDn;
+
+    private Dn groupsDn;
+
+    private Dn[] userDns;
+
+    private ExprNode[] getpwnam;
+
+    private ExprNode[] getpwuid;
+
+    private ExprNode[] getgrnam;
+
+    private ExprNode[] getgrgid;
+
+    private ExprNode[] initgroups;
+
+    private ExprNode[] uidPrefix;
+
+    private ExprNode getpwent;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        schemaManager = Fixtures.schemaManager();
+        SyntheticDirectory directory = Fixtures.directory(users);
+        partition = Fixtures.partition(directory);
+
+        base = new Dn(schemaManager, "dc=example,dc=com");
+        usersDn = new Dn(schemaManager, "ou=users,dc=example,dc=com");
+        groupsDn = new Dn(schemaManager, "ou=groups,dc=example,dc=com");
+
+        Random random = new Random(Fixtures.SEED);
+        userDns = new Dn[KEYS];
+        getpwnam = new ExprNode[KEYS];
+        getpwuid = new ExprNode[KEYS];
+        getgrnam = new ExprNode[KEYS];
+        getgrgid = new ExprNode[KEYS];
+        initgroups = new ExprNode[KEYS];
+        uidPrefix = new ExprNode[KEYS];
+        List<Group> groups = new ArrayList<Group>(directory.getGroups());
+        for (int i = 0; i < KEYS; i++) {
+            User user = directory.getUsers().get(random.nextInt(directory.getUsers().size()));
+            String uid = EntryFactory.localPart(user.getPrimaryEmail());
+            Group group = groups.get(random.nextInt(groups.size()));
+
+            userDns[i] = new Dn(schemaManager, "cn=" + uid + ",ou=users,dc=example,dc=com");
+            getpwnam[i] = Fixtures.filter("(&(objectClass=posixAccount)(uid=" + uid + "))");
+            getpwuid[i] = Fixtures.filter("(&(objectClass=posixAccount)(uidNumber=" + EntryFactory.uidNumber(user) + "))");
+            getgrnam[i] = Fixtures.filter("(&(objectClass=posixGroup)(cn=" + EntryFactory.localPart(group.getEmail()) + "))");
+            getgrgid[i] = Fixtures.filter("(&(objectClass=posixGroup)(gidNumber=" + EntryFactory.gidNumber(group) + "))");
+            initgroups[i] = Fixtures.filter("(&(objectClass=posixGroup)(memberUid=" + uid + "))");
+            uidPrefix[i] = Fixtures.filter("(&(objectClass=posixAccount)(uid=" + uid.substring(0, 4) + "*))");
+        }
+        getpwent = Fixtures.filter("(objectClass=posixAccount)");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        partition.destroy();
+    }
+
+    @Benchmark
+    public Object lookup() throws Exception {
+        return partition.lookup(new LookupOperationContext(null, userDns[nextKey()]));
+    }
+
+    @Benchmark
+    public boolean hasEntry() throws Exception {
+        return partition.hasEntry(new HasEntryOperationContext(null, userDns[nextKey()]));
+    }
+
+    @Benchmark
+    public void subtreeGetpwnam(Blackhole bh) throws Exception {
+        search(base, SearchScope.SUBTREE, getpwnam[nextKey()], bh);
+    }
+
+    @Benchmark
+    public void subtreeGetpwuid(Blackhole bh) throws Exception {
+        search(base, SearchScope.SUBTREE, getpwuid[nextKey()], bh);
+    }
+
+    @Benchmark
+    public void subtreeGetgrnam(Blackhole bh) throws Exception {
+        search(base, SearchScope.SUBTREE, getgrnam[nextKey()], bh);
+    }
+
+    @Benchmark
+    public void subtreeGetgrgid(Blackhole bh) throws Exception {
+        search(base, SearchScope.SUBTREE, getgrgid[nextKey()], bh);
+    }
+
+    @Benchmark
+    public void subtreeInitgroups(Blackhole bh) throws Exception {
+        search(base, SearchScope.SUBTREE, initgroups[nextKey()], bh);
+    }
+
+    @Benchmark
+    public void oneLevelGetpwnam(Blackhole bh) throws Exception {
+        search(usersDn, SearchScope.ONELEVEL, getpwnam[nextKey()], bh);
+    }
+
+    @Benchmark
+    public void oneLevelInitgroups(Blackhole bh) throws Exception {
+        search(groupsDn, SearchScope.ONELEVEL, initgroups[nextKey()], bh);
+    }
+
+    @Benchmark
+    public void oneLevelUidPrefix(Blackhole bh) throws Exception {
+        search(usersDn, SearchScope.ONELEVEL, uidPrefix[nextKey()], bh);
+    }
+
+    /**
+     * Every user, as getent passwd enumerates them.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void oneLevelGetpwent(Blackhole bh) throws Exception {
+        search(usersDn, SearchScope.ONELEVEL, getpwent, bh);
+    }
+
+    private void search(Dn dn, SearchScope scope, ExprNode filter, Blackhole bh) throws Exception {
+        EntryFilteringCursor cursor = partition.search(new SearchOperationContext(null, dn, scope, filter, "*"));
+        try {
+            while (cursor.next()) {
+                bh.consume(cursor.get());
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int nextKey() {
+        // Racy across threads, which only changes which key is asked for
+        int i = next;
+        next = (i + 1) & (KEYS - 1);
+        return i;
+    }
+}
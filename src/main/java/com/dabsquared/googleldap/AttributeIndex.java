@@ -0,0 +1,290 @@
+package com.dabsquared.googleldap;
+
+import com.dabsquared.googleldap.util.StringTable;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.MatchingRule;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * An immutable index of a set of packed entries on the normalized values of one attribute.
+ *
+ * Equality is answered by looking the value up in the string table; prefix and ordering
+ * filters by a binary search over the sorted values. Values of numeric attributes are
+ * ordered as numbers and cannot be searched by prefix.
+ *
+ * The values are kept as ids in the string table of the entries and the entries having
+ * each value as a run of entry numbers, so the index holds no object per value.
+ */
+public class AttributeIndex {
+
+    private static final int[] NO_ENTRIES = new int[0];
+
+    private final String oid;
+
+    private final boolean numeric;
+
+    private final StringTable strings;
+
+    private final Comparator<String> order;
+
+    /** The string ids of the distinct values, sorted in the order of the values. */
+    private final int[] values;
+
+    /** The positions in {@link #values}, sorted by string id. */
+    private final int[] byId;
+
+    /** The entries having the value at position p are {@code entries[starts[p]]} to {@code entries[starts[p + 1] - 1]}. */
+    private final int[] starts;
+
+    private final int[] entries;
+
+    /**
+     * @param oid the OID of the indexed attribute.
+     * @param numeric true if the values are integers.
+     * @param packed the entries to index; entries without the attribute are left out.
+     *               The normalized values are interned in their string table.
+     */
+    public AttributeIndex(String oid, boolean numeric, PackedEntries packed) {
+        this.oid = oid;
+        this.numeric = numeric;
+        this.strings = packed.getStrings();
+        this.order = numeric ? NUMERIC_ORDER : LEXICOGRAPHIC_ORDER;
+
+        // Every (value, entry) pair, as the string id of the value in the high bits
+        AttributeType attributeType = packed.getAttributeType(oid);
+        long[] pairs = new long[(attributeType == null) ? 0 : packed.size()];
+        int count = 0;
+        for (int entry = 0; attributeType != null && entry < packed.size(); entry++) {
+            String[] values = packed.getNormValues(entry, oid);
+            if (values == null) {
+                continue;
+            }
+            for (String key : values) {
+                if (key == null) {
+                    continue;
+                }
+                if (count == pairs.length) {
+                    pairs = Arrays.copyOf(pairs, count * 2);
+                }
+                pairs[count++] = ((long) strings.intern(key) << 32) | entry;
+            }
+        }
+        Arrays.sort(pairs, 0, count);
+
+        // The distinct values, and the distinct entries of each
+        int[] keys = new int[count];
+        int[] runs = new int[count + 1];
+        int[] all = new int[count];
+        int distinct = 0;
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && pairs[i] == pairs[i - 1]) {
+                continue;
+            }
+            int key = (int) (pairs[i] >>> 32);
+            if (distinct == 0 || keys[distinct - 1] != key) {
+                keys[distinct] = key;
+                runs[distinct++] = n;
+            }
+            all[n++] = (int) pairs[i];
+        }
+        runs[distinct] = n;
+
+        // Laid out again in the order of the values
+        final String[] decoded = new String[distinct];
+        Integer[] sorted = new Integer[distinct];
+        for (int k = 0; k < distinct; k++) {
+            decoded[k] = strings.get(keys[k]);
+            sorted[k] = k;
+        }
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return order.compare(decoded[a], decoded[b]);
+            }
+        });
+
+        this.values = new int[distinct];
+        this.byId = new int[distinct];
+        this.starts = new int[distinct + 1];
+        this.entries = new int[n];
+        int at = 0;
+        for (int p = 0; p < distinct; p++) {
+            int k = sorted[p];
+            values[p] = keys[k];
+            byId[k] = p;
+            starts[p] = at;
+            System.arraycopy(all, runs[k], entries, at, runs[k + 1] - runs[k]);
+            at += runs[k + 1] - runs[k];
+        }
+        starts[distinct] = at;
+    }
+
+    public String getOid() {
+        return oid;
+    }
+
+    public boolean isNumeric() {
+        return numeric;
+    }
+
+    /** @return the number of distinct values. */
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * @param value a normalized value.
+     * @return the numbers of the entries having this value, in ascending order, never null.
+     */
+    public int[] equal(String value) {
+        int id = strings.find(value);
+        if (id < 0) {
+            return NO_ENTRIES;
+        }
+        int lo = 0;
+        int hi = byId.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (values[byId[mid]] < id) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (lo == byId.length || values[byId[lo]] != id) {
+            return NO_ENTRIES;
+        }
+        return Arrays.copyOfRange(entries, starts[byId[lo]], starts[byId[lo] + 1]);
+    }
+
+    /**
+     * @param prefix a normalized prefix.
+     * @return the numbers of the entries having a value starting with the prefix, or null
+     *         for numeric attributes.
+     */
+    public int[] prefix(String prefix) {
+        if (numeric) {
+            return null;
+        }
+        int from = lowerBound(prefix);
+        int to = from;
+        while (to < values.length && strings.get(values[to]).startsWith(prefix)) {
+            to++;
+        }
+        return collect(from, to);
+    }
+
+    /**
+     * @param value a normalized value.
+     * @return the numbers of the entries having a value greater than or equal to the given one.
+     */
+    public int[] greaterOrEqual(String value) {
+        return collect(lowerBound(value), values.length);
+    }
+
+    /**
+     * @param value a normalized value.
+     * @return the numbers of the entries having a value less than or equal to the given one.
+     */
+    public int[] lessOrEqual(String value) {
+        return collect(0, upperBound(value));
+    }
+
+    /**
+     * Normalizes a value the way the values of entries are normalized, with the equality
+     * matching rule of the attribute.
+     *
+     * @return the normalized value, or null if it cannot be normalized.
+     */
+    public static String normalize(AttributeType attributeType, String value) {
+        if (value == null) {
+            return null;
+        }
+        MatchingRule equality = attributeType.getEquality();
+        if (equality == null || equality.getNormalizer() == null) {
+            return value;
+        }
+        try {
+            return equality.getNormalizer().normalize(value);
+        } catch (LdapException ex) {
+            return null;
+        }
+    }
+
+    /** @return the first position whose value is not less than the given one. */
+    private int lowerBound(String value) {
+        int lo = 0;
+        int hi = values.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (order.compare(strings.get(values[mid]), value) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** @return the first position whose value is greater than the given one. */
+    private int upperBound(String value) {
+        int lo = 0;
+        int hi = values.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (order.compare(strings.get(values[mid]), value) <= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return the entries of the values in [from, to), each entry once, in ascending order.
+     */
+    private int[] collect(int from, int to) {
+        if (from >= to) {
+            return NO_ENTRIES;
+        }
+        int[] l = Arrays.copyOfRange(entries, starts[from], starts[to]);
+        if (to - from == 1) {
+            return l;
+        }
+        Arrays.sort(l);
+        return distinct(l, l.length);
+    }
+
+    /**
+     * @return the distinct numbers of a sorted array, in place.
+     */
+    private static int[] distinct(int[] sorted, int length) {
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            if (n == 0 || sorted[n - 1] != sorted[i]) {
+                sorted[n++] = sorted[i];
+            }
+        }
+        return (n == sorted.length) ? sorted : Arrays.copyOf(sorted, n);
+    }
+
+    private static final Comparator<String> LEXICOGRAPHIC_ORDER = new Comparator<String>() {
+        public int compare(String a, String b) {
+            return a.compareTo(b);
+        }
+    };
+
+    private static final Comparator<String> NUMERIC_ORDER = new Comparator<String>() {
+        public int compare(String a, String b) {
+            try {
+                return Long.compare(Long.parseLong(a), Long.parseLong(b));
+            } catch (NumberFormatException ex) {
+                return a.compareTo(b);
+            }
+        }
+    };
+}
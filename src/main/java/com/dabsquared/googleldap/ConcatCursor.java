@@ -0,0 +1,177 @@
+package com.dabsquared.googleldap;
+
+import org.apache.directory.api.ldap.model.cursor.AbstractCursor;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.cursor.InvalidCursorPositionException;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A cursor yielding the elements of several cursors one after the other.
+ *
+ * A cursor is only moved once the ones before it are exhausted, so a cursor that
+ * fetches on its first move, such as a {@link PagedCursor}, costs nothing until the
+ * caller reads that far; a caller that stops early never reaches it. Stepping back
+ * with {@link #previous()} goes as far back as the cursors themselves can.
+ *
+ * The cursors are only ever moved by one element, as few of them can seek, so
+ * {@link #before(Object)} and {@link #after(Object)} read them from the start up to the
+ * element, and {@link #afterLast()} and {@link #last()} move each of them after its last
+ * element.
+ */
+public class ConcatCursor<E> extends AbstractCursor<E> {
+
+    private static final Logger log = LogManager.getLogger(ConcatCursor.class);
+
+    private final List<Cursor<E>> cursors;
+
+    private int index = 0;
+
+    private E current;
+
+    public ConcatCursor(List<Cursor<E>> cursors) {
+        this.cursors = new ArrayList<Cursor<E>>(cursors);
+    }
+
+    public boolean available() {
+        return current != null;
+    }
+
+    public boolean next() throws LdapException, CursorException {
+        checkNotClosed("next()");
+
+        while (index < cursors.size()) {
+            Cursor<E> cursor = cursors.get(index);
+            if (cursor.next()) {
+                current = cursor.get();
+                return true;
+            }
+            index++;
+        }
+        current = null;
+        return false;
+    }
+
+    public E get() throws CursorException {
+        checkNotClosed("get()");
+
+        if (current == null) {
+            throw new InvalidCursorPositionException();
+        }
+        return current;
+    }
+
+    public void beforeFirst() throws LdapException, CursorException {
+        checkNotClosed("beforeFirst()");
+
+        for (int i = 0; i <= index && i < cursors.size(); i++) {
+            cursors.get(i).beforeFirst();
+        }
+        index = 0;
+        current = null;
+    }
+
+    public boolean first() throws LdapException, CursorException {
+        beforeFirst();
+        return next();
+    }
+
+    public boolean previous() throws LdapException, CursorException {
+        checkNotClosed("previous()");
+
+        if (current == null && index < cursors.size() && cursors.get(index).available()) {
+            // Between two elements, after a seek
+            current = cursors.get(index).get();
+            return true;
+        }
+        for (index = Math.min(index, cursors.size() - 1); index >= 0; index--) {
+            Cursor<E> cursor = cursors.get(index);
+            if (cursor.previous()) {
+                current = cursor.get();
+                return true;
+            }
+        }
+        index = 0;
+        current = null;
+        return false;
+    }
+
+    /**
+     * Positions the cursor before the element, or after the last one if no cursor holds it.
+     */
+    public void before(E element) throws LdapException, CursorException {
+        checkNotClosed("before()");
+
+        if (find(element)) {
+            // On the element before it, which previous() returns without moving
+            cursors.get(index).previous();
+        }
+        current = null;
+    }
+
+    /**
+     * Positions the cursor after the element, or after the last one if no cursor holds it.
+     */
+    public void after(E element) throws LdapException, CursorException {
+        checkNotClosed("after()");
+
+        find(element);
+        current = null;
+    }
+
+    public void afterLast() throws LdapException, CursorException {
+        checkNotClosed("afterLast()");
+
+        // The cursors not moved yet too, for previous() to step back through them
+        for (; index < cursors.size(); index++) {
+            cursors.get(index).afterLast();
+        }
+        current = null;
+    }
+
+    public boolean last() throws LdapException, CursorException {
+        afterLast();
+        return previous();
+    }
+
+    public void close() throws IOException {
+        closeAll();
+        super.close();
+    }
+
+    public void close(Exception cause) throws IOException {
+        closeAll();
+        super.close(cause);
+    }
+
+    /**
+     * Reads the cursors from the start up to the element.
+     *
+     * @return true if the cursor is now on it, false if it is after the last element.
+     */
+    private boolean find(E element) throws LdapException, CursorException {
+        beforeFirst();
+        while (next()) {
+            if (current.equals(element)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void closeAll() {
+        for (Cursor<E> cursor : cursors) {
+            try {
+                cursor.close();
+            } catch (IOException ex) {
+                log.debug("close()", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.dabsquared.googleldap;
+
+import com.dabsquared.googleldap.util.ConcurrentCacheMap;
+import com.dabsquared.googleldap.util.Weigher;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Remembers, for a short time, the passwords Google recently accepted for a user.
+ *
+ * Only a salted PBKDF2 hash of each password is kept, and only in memory. A bind whose
+ * password matches the hash is accepted without asking Google again; any bind Google
+ * rejects removes the user from the cache.
+ */
+public class CredentialCache {
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+
+    private static final int ITERATIONS = 10000;
+
+    private static final int SALT_LENGTH = 16;
+
+    private static final int HASH_LENGTH = 256;
+
+    private static class Verified {
+        private final byte[] salt;
+        private final byte[] hash;
+
+        Verified(byte[] salt, byte[] hash) {
+            this.salt = salt;
+            this.hash = hash;
+        }
+    }
+
+    private final ConcurrentCacheMap<String, Verified> verified;
+
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * @param ttl milliseconds a verified password is remembered.
+     * @param maxSize the maximum number of users remembered.
+     */
+    public CredentialCache(long ttl, int maxSize) {
+        verified = new ConcurrentCacheMap<String, Verified>(maxSize, ttl, new Weigher<String, Verified>() {
+            public long weigh(String key, Verified value) {
+                return 1;
+            }
+        });
+    }
+
+    /**
+     * @param user the user, as user@domain.
+     * @param password the password of the bind.
+     * @return true if Google accepted this password for this user within the time to live.
+     */
+    public boolean verify(String user, String password) {
+        Verified v = verified.get(user);
+        if (v == null) {
+            return false;
+        }
+        return MessageDigest.isEqual(v.hash, hash(password, v.salt));
+    }
+
+    /**
+     * Remembers a password Google just accepted.
+     *
+     * @param user the user, as user@domain.
+     * @param password the password Google accepted.
+     */
+    public void remember(String user, String password) {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        verified.put(user, new Verified(salt, hash(password, salt)));
+    }
+
+    /**
+     * @return the users remembered, for the statistics of the cache.
+     */
+    ConcurrentCacheMap<String, ?> getVerified() {
+        return verified;
+    }
+
+    /**
+     * Forgets the password remembered for a user, e.g. because Google rejected a bind.
+     *
+     * @param user the user, as user@domain.
+     */
+    public void invalidate(String user) {
+        verified.remove(user);
+    }
+
+    private static byte[] hash(String password, byte[] salt) {
+        char[] chars = password.toCharArray();
+        PBEKeySpec spec = new PBEKeySpec(chars, salt, ITERATIONS, HASH_LENGTH);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ALGORITHM + " is not available", ex);
+        } finally {
+            spec.clearPassword();
+            Arrays.fill(chars, '\0');
+        }
+    }
+}
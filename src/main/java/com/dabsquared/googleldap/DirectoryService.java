@@ -6,6 +6,11 @@ import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.json.JsonFactory;
@@ -15,13 +20,23 @@ import com.google.api.services.admin.directory.DirectoryScopes;
 import com.google.api.services.admin.directory.model.*;
 import com.google.api.services.admin.directory.Directory;
 
+import com.dabsquared.googleldap.util.NamedThreadFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
 import java.io.*;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 /**
  * Created by daniel on 6/28/16.
  */
 public class DirectoryService {
+
+    private static final Logger log = LogManager.getLogger(DirectoryService.class);
+
     /** Application name. */
     private static final String APPLICATION_NAME =
             "Crowd Google Apps";
@@ -46,6 +61,28 @@ public class DirectoryService {
      */
     private static final List<String> SCOPES = Arrays.asList(DirectoryScopes.ADMIN_DIRECTORY_USER_READONLY, DirectoryScopes.ADMIN_DIRECTORY_GROUP_READONLY, DirectoryScopes.ADMIN_DIRECTORY_GROUP_MEMBER_READONLY);
 
+    /** Seconds before expiry at which the access token is refreshed. */
+    private static final long REFRESH_MARGIN_SECONDS = 300;
+
+    /** Seconds to wait before retrying a failed token refresh, and at least between two refreshes. */
+    private static final long REFRESH_RETRY_SECONDS = 30;
+
+    /** Lifetime assumed for an access token whose expiry is not known; Google's last an hour. */
+    private static final long DEFAULT_EXPIRES_IN_SECONDS = 3600;
+
+    private final File clientSecrets;
+
+    /** The transport of an unauthenticated stand-in for Google, or null for Google itself. */
+    private final HttpTransport transport;
+
+    private Credential credential;
+
+    private volatile Directory directory;
+
+    private ScheduledExecutorService refresher;
+
+    private Metrics metrics;
+
     static {
         try {
             HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
@@ -56,6 +93,20 @@ public class DirectoryService {
         }
     }
 
+    public DirectoryService(File clientSecrets) {
+        this.clientSecrets = clientSecrets;
+        this.transport = null;
+    }
+
+    /**
+     * Talks to a stand-in for the Admin SDK through the given transport, without
+     * authorizing, e.g. to the synthetic transport of the tests and benchmarks.
+     */
+    public DirectoryService(HttpTransport transport) {
+        this.clientSecrets = null;
+        this.transport = transport;
+    }
+
     /**
      * Creates an authorized Credential object.
      * @return an authorized Credential object.
@@ -90,18 +141,175 @@ public class DirectoryService {
         return null;
     }
 
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
     /**
-     * Build and return an authorized Admin SDK Directory client service.
-     * @return an authorized Directory client service
-     * @throws IOException
+     * @param metrics the metrics every call to the Admin SDK is timed in, by method,
+     *                or null. Must be set before {@link #start()}.
      */
-    public static Directory getDirectoryService(File clientJson) throws IOException {
-        Credential credential = authorize(clientJson);
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Authorizes once, builds the shared Directory client and schedules the
+     * background token refresh. Calling it again has no effect.
+     *
+     * @throws IOException if the client secrets cannot be read or authorization fails.
+     */
+    public synchronized void start() throws IOException {
+        if (directory != null) {
+            return;
+        }
 
-        return new Directory.Builder(
+        if (transport != null) {
+            directory = new Directory.Builder(transport, JSON_FACTORY, null)
+                    .setApplicationName(APPLICATION_NAME)
+                    .setHttpRequestInitializer((metrics == null) ? null : timed(null, metrics))
+                    .build();
+            return;
+        }
+
+        credential = authorize(clientSecrets);
+        if (credential == null) {
+            throw new IOException("Unable to authorize with client secrets " + clientSecrets);
+        }
+
+        directory = new Directory.Builder(
                 HTTP_TRANSPORT, JSON_FACTORY, credential)
                 .setApplicationName(APPLICATION_NAME)
+                .setHttpRequestInitializer((metrics == null) ? credential : timed(credential, metrics))
                 .build();
+
+        refresher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("google-token-refresh"));
+        scheduleRefresh();
+    }
+
+    /**
+     * Stops the background token refresh. The client stays usable but its token
+     * will only be refreshed lazily by the credential itself.
+     */
+    public synchronized void stop() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    /**
+     * Returns the shared, pre-authorized Directory client. The client is thread-safe
+     * and must not be rebuilt per request.
+     *
+     * @return the authorized Directory client.
+     * @throws IllegalStateException if {@link #start()} has not been called.
+     */
+    public Directory getDirectory() {
+        Directory d = directory;
+        if (d == null) {
+            throw new IllegalStateException("DirectoryService has not been started");
+        }
+        return d;
+    }
+
+    /**
+     * Wraps the request initializer of the client so that every HTTP exchange with
+     * the Admin SDK, retries included, is timed under {@code google.<method>}, and
+     * every error response counted under {@code google.<method>.errors}.
+     *
+     * @param initializer the initializer to wrap, or null.
+     */
+    private static HttpRequestInitializer timed(final HttpRequestInitializer initializer, final Metrics metrics) {
+        return new HttpRequestInitializer() {
+            public void initialize(HttpRequest request) throws IOException {
+                if (initializer != null) {
+                    initializer.initialize(request);
+                }
+
+                final HttpExecuteInterceptor authorizer = request.getInterceptor();
+                final long[] start = new long[1];
+                request.setInterceptor(new HttpExecuteInterceptor() {
+                    public void intercept(HttpRequest request) throws IOException {
+                        if (authorizer != null) {
+                            authorizer.intercept(request);
+                        }
+                        start[0] = System.nanoTime();
+                    }
+                });
+                request.setResponseInterceptor(new HttpResponseInterceptor() {
+                    public void interceptResponse(HttpResponse response) throws IOException {
+                        String name = "google." + methodName(response.getRequest().getUrl().getPathParts());
+                        metrics.timer(name).recordSince(start[0]);
+                        if (!response.isSuccessStatusCode()) {
+                            metrics.counter(name + ".errors").incrementAndGet();
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Names the Admin SDK method a request path calls, e.g. {@code users.get} for
+     * {@code /admin/directory/v1/users/{userKey}} and {@code members.list} for
+     * {@code /admin/directory/v1/groups/{groupKey}/members}.
+     */
+    static String methodName(List<String> pathParts) {
+        if (pathParts == null) {
+            return "other";
+        }
+        int v1 = pathParts.indexOf("v1");
+        if (pathParts.contains("batch")) {
+            return "batch";
+        } else if (v1 < 0 || v1 == pathParts.size() - 1) {
+            return "other";
+        }
+
+        // Collections and keys alternate after the version
+        List<String> resource = pathParts.subList(v1 + 1, pathParts.size());
+        String collection = resource.get((resource.size() - 1) & ~1);
+        return collection + ((resource.size() % 2 == 0) ? ".get" : ".list");
+    }
+
+    private synchronized void scheduleRefresh() {
+        if (refresher == null) {
+            return;
+        }
+
+        Long expiresIn = credential.getExpiresInSeconds();
+        if (expiresIn == null) {
+            expiresIn = DEFAULT_EXPIRES_IN_SECONDS;
+        }
+        // A token issued with less than the margin left would otherwise be refreshed in a loop
+        scheduleRefresh(Math.max(REFRESH_RETRY_SECONDS, expiresIn - REFRESH_MARGIN_SECONDS));
+    }
+
+    private synchronized void scheduleRefresh(long delaySeconds) {
+        if (refresher == null) {
+            return;
+        }
+
+        log.debug("Next access token refresh in " + delaySeconds + "s");
+        refresher.schedule(new Runnable() {
+            public void run() {
+                refresh();
+            }
+        }, delaySeconds, TimeUnit.SECONDS);
+    }
+
+    private void refresh() {
+        try {
+            if (credential.refreshToken()) {
+                log.debug("Refreshed access token, expires in " + credential.getExpiresInSeconds() + "s");
+                scheduleRefresh();
+                return;
+            }
+            log.warn("Access token refresh was rejected, retrying in " + REFRESH_RETRY_SECONDS + "s");
+        } catch (IOException ex) {
+            log.warn("Access token refresh failed, retrying in " + REFRESH_RETRY_SECONDS + "s", ex);
+        }
+        scheduleRefresh(REFRESH_RETRY_SECONDS);
     }
 
 }
@@ -0,0 +1,263 @@
+package com.dabsquared.googleldap;
+
+import com.dabsquared.googleldap.util.StringTable;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable, in-memory copy of every user and group of the domain.
+ *
+ * A snapshot is never modified once built; a refresh builds a new snapshot
+ * and swaps it in, so readers never need to lock.
+ *
+ * The users and groups are held as {@link PackedEntries}, sharing one table of
+ * strings, and an entry is only built when it is looked up or returned by a search.
+ */
+public class DirectorySnapshot {
+
+    /**
+     * A user or group as it was read from Google.
+     */
+    public static class Item {
+        private final String id;
+        private final String etag;
+        private final Entry entry;
+        private final PackedEntries packed;
+        private final int number;
+
+        public Item(String id, String etag, Entry entry) {
+            this.id = id;
+            this.etag = etag;
+            this.entry = entry;
+            this.packed = null;
+            this.number = -1;
+        }
+
+        private Item(PackedEntries packed, int number) {
+            this.id = packed.getId(number);
+            this.etag = packed.getEtag(number);
+            this.entry = null;
+            this.packed = packed;
+            this.number = number;
+        }
+
+        /** @return the Google id of the user or group. */
+        public String getId() {
+            return id;
+        }
+
+        /** @return the etag of the user or group, used to detect changes. */
+        public String getEtag() {
+            return etag;
+        }
+
+        /** @return the value of the Rdn of the entry, the uid of a user or the cn of a group. */
+        public String getName() {
+            return (packed != null) ? packed.getName(number) : entry.getDn().getRdn(0).getNormValue();
+        }
+
+        /** @return the entry, built anew for an item of a snapshot. */
+        public Entry getEntry() {
+            return (packed != null) ? packed.get(number) : entry;
+        }
+    }
+
+    private final long generation;
+
+    private final long createdAt;
+
+    private final StringTable strings;
+
+    private final PackedEntries users;
+
+    private final PackedEntries groups;
+
+    private final EntryIndexes userIndexes;
+
+    private final EntryIndexes groupIndexes;
+
+    /**
+     * @param schemaManager the schema manager the entries are built against.
+     * @param generation a number incremented by every refresh.
+     * @param users the users of the domain.
+     * @param groups the groups of the domain.
+     */
+    public DirectorySnapshot(SchemaManager schemaManager, long generation, Collection<Item> users,
+                             Collection<Item> groups) {
+        this.generation = generation;
+        this.createdAt = System.currentTimeMillis();
+
+        // About a uid, email, Dn, name and number per user, and their normalized forms
+        this.strings = new StringTable(8 * (users.size() + groups.size()));
+        this.users = pack(schemaManager, strings, users);
+        this.groups = pack(schemaManager, strings, groups);
+
+        this.userIndexes = new EntryIndexes(this.users);
+        this.groupIndexes = new EntryIndexes(this.groups);
+        strings.trim();
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    /** @return when the snapshot was built, in milliseconds since the epoch. */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * @param dn a Dn normalized against the schema.
+     * @return the user or group entry with this Dn, or null.
+     */
+    public Entry lookup(Dn dn) {
+        return lookup(dn, Projection.ALL);
+    }
+
+    /**
+     * @param dn a Dn normalized against the schema.
+     * @param projection the attributes to build.
+     * @return the user or group entry with this Dn, holding the attributes of the projection, or null.
+     */
+    public Entry lookup(Dn dn, Projection projection) {
+        int user = users.find(dn);
+        if (user >= 0) {
+            return users.get(user, projection);
+        }
+        int group = groups.find(dn);
+        return (group >= 0) ? groups.get(group, projection) : null;
+    }
+
+    public boolean contains(Dn dn) {
+        return users.find(dn) >= 0 || groups.find(dn) >= 0;
+    }
+
+    /** @return every user, never modified. */
+    public PackedEntries getUsers() {
+        return users;
+    }
+
+    /** @return every group, never modified. */
+    public PackedEntries getGroups() {
+        return groups;
+    }
+
+    /** @return the secondary indexes over the users. */
+    public EntryIndexes getUserIndexes() {
+        return userIndexes;
+    }
+
+    /** @return the secondary indexes over the groups. */
+    public EntryIndexes getGroupIndexes() {
+        return groupIndexes;
+    }
+
+    /** @return the users keyed by their Google id, in the order they were loaded. */
+    public Map<String, Item> getUserItems() {
+        return new ItemMap(users);
+    }
+
+    /** @return the groups keyed by their Google id, in the order they were loaded. */
+    public Map<String, Item> getGroupItems() {
+        return new ItemMap(groups);
+    }
+
+    public int size() {
+        return users.size() + groups.size();
+    }
+
+    /** @return the approximate heap used by the users, the groups and their indexes' strings. */
+    public long getMemoryUsage() {
+        return strings.getMemoryUsage() + users.getMemoryUsage() + groups.getMemoryUsage();
+    }
+
+    /**
+     * Packs the items, the last one of an id replacing the others.
+     */
+    private static PackedEntries pack(SchemaManager schemaManager, StringTable strings, Collection<Item> items) {
+        Map<String, Item> byId = new LinkedHashMap<String, Item>(items.size() * 2);
+        for (Item item : items) {
+            byId.put(item.getId(), item);
+        }
+
+        PackedEntries.Builder builder = new PackedEntries.Builder(schemaManager, strings, byId.size());
+        for (Item item : byId.values()) {
+            if (item.packed != null) {
+                builder.add(item.packed, item.number);
+            } else {
+                builder.add(item.getId(), item.getEtag(), item.getEntry());
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * The items of packed entries by id, built as they are read.
+     */
+    private static final class ItemMap extends AbstractMap<String, Item> {
+        private final PackedEntries packed;
+
+        ItemMap(PackedEntries packed) {
+            this.packed = packed;
+        }
+
+        @Override
+        public Item get(Object key) {
+            int number = (key instanceof String) ? packed.findById((String) key) : -1;
+            return (number < 0) ? null : new Item(packed, number);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return (key instanceof String) && packed.findById((String) key) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return packed.size();
+        }
+
+        @Override
+        public Set<Map.Entry<String, Item>> entrySet() {
+            return new AbstractSet<Map.Entry<String, Item>>() {
+                @Override
+                public Iterator<Map.Entry<String, Item>> iterator() {
+                    return new Iterator<Map.Entry<String, Item>>() {
+                        private int next = 0;
+
+                        public boolean hasNext() {
+                            return next < packed.size();
+                        }
+
+                        public Map.Entry<String, Item> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            Item item = new Item(packed, next++);
+                            return new SimpleImmutableEntry<String, Item>(item.getId(), item);
+                        }
+
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return packed.size();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package com.dabsquared.googleldap;
+
+import com.dabsquared.googleldap.util.LatencyHistogram;
+import com.google.api.client.util.ArrayMap;
+import com.google.api.services.admin.directory.model.Group;
+import com.google.api.services.admin.directory.model.User;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+
+import java.util.Collection;
+import java.util.List;
+
+import static java.lang.Math.abs;
+
+/**
+ * Turns Admin SDK users and groups into LDAP entries.
+ *
+ * Building an entry never talks to Google; everything the entry needs is passed in.
+ */
+public class EntryFactory {
+
+    /** The fields of a user resource a user entry is built from, for field masks. */
+    public static final String USER_FIELDS = "id,etag,primaryEmail,name,phones,emails,aliases";
+
+    /** The fields of a group resource a group entry is built from, for field masks. */
+    public static final String GROUP_FIELDS = "id,email,description";
+
+    /** The values of the shadow attributes, which Google has no equivalent of. */
+    private static final String[] SHADOW_VALUES = {"1", "0", "999999", "0", "-1", "-1", "0"};
+
+    private final SchemaManager schemaManager;
+
+    private final String usersDn;
+
+    private final String groupsDn;
+
+    private final AttributeType objectClassAt;
+
+    private final AttributeType cnAt;
+
+    private final AttributeType uidAt;
+
+    private final AttributeType emailAt;
+
+    private final AttributeType givenNameAt;
+
+    private final AttributeType snAt;
+
+    private final AttributeType ouAt;
+
+    private final AttributeType uidNumberAt;
+
+    private final AttributeType gidNumberAt;
+
+    private final AttributeType homeDirectoryAt;
+
+    private final AttributeType loginShellAt;
+
+    private final AttributeType gecosAt;
+
+    /** In the order of {@link #SHADOW_VALUES}. */
+    private final AttributeType[] shadowAts;
+
+    private final AttributeType mobileAt;
+
+    private final AttributeType telephoneNumberAt;
+
+    private final AttributeType descriptionAt;
+
+    private final AttributeType memberUidAt;
+
+    private LatencyHistogram userTimer;
+
+    private LatencyHistogram groupTimer;
+
+    /**
+     * @param schemaManager the schema manager entries are built against.
+     * @param usersDn the Dn of the ou=users entry.
+     * @param groupsDn the Dn of the ou=groups entry.
+     */
+    public EntryFactory(SchemaManager schemaManager, String usersDn, String groupsDn) {
+        this.schemaManager = schemaManager;
+        this.usersDn = usersDn;
+        this.groupsDn = groupsDn;
+
+        this.objectClassAt = schemaManager.getAttributeType(SchemaConstants.OBJECT_CLASS_AT);
+        this.cnAt = schemaManager.getAttributeType(SchemaConstants.CN_AT);
+        this.uidAt = schemaManager.getAttributeType(SchemaConstants.UID_AT);
+        this.emailAt = schemaManager.getAttributeType(SchemaConstants.EMAIL_AT);
+        this.givenNameAt = schemaManager.getAttributeType(SchemaConstants.GIVENNAME_AT);
+        this.snAt = schemaManager.getAttributeType(SchemaConstants.SN_AT);
+        this.ouAt = schemaManager.getAttributeType(SchemaConstants.OU_AT);
+        this.uidNumberAt = schemaManager.getAttributeType(SchemaConstants.UID_NUMBER_AT);
+        this.gidNumberAt = schemaManager.getAttributeType(SchemaConstants.GID_NUMBER_AT);
+        this.homeDirectoryAt = schemaManager.getAttributeType(SchemaConstants.HOME_DIRECTORY_AT);
+        this.loginShellAt = schemaManager.getAttributeType(SchemaConstants.LOGIN_SHELL_AT);
+        this.gecosAt = schemaManager.getAttributeType(SchemaConstants.GECOS_AT);
+        this.shadowAts = new AttributeType[] {
+                schemaManager.getAttributeType(SchemaConstants.SHADOW_LAST_CHANGE_AT),
+                schemaManager.getAttributeType(SchemaConstants.SHADOW_MIN_AT),
+                schemaManager.getAttributeType(SchemaConstants.SHADOW_MAX_AT),
+                schemaManager.getAttributeType(SchemaConstants.SHADOW_WARNING_AT),
+                schemaManager.getAttributeType(SchemaConstants.SHADOW_INACTIVE_AT),
+                schemaManager.getAttributeType(SchemaConstants.SHADOW_EXPIRE_AT),
+                schemaManager.getAttributeType(SchemaConstants.SHADOW_FLAG_AT)
+        };
+        this.mobileAt = schemaManager.getAttributeType(SchemaConstants.MOBILE_TELEPHONE_NUMBER_AT);
+        this.telephoneNumberAt = schemaManager.getAttributeType(SchemaConstants.TELEPHONE_NUMBER_AT);
+        this.descriptionAt = schemaManager.getAttributeType(SchemaConstants.DESCRIPTION_AT);
+        this.memberUidAt = schemaManager.getAttributeType(SchemaConstants.MEMBER_UID_AT);
+    }
+
+    public SchemaManager getSchemaManager() {
+        return schemaManager;
+    }
+
+    /**
+     * @param metrics the metrics the building of entries is timed in, as
+     *                {@code build.user} and {@code build.group}.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.userTimer = metrics.timer("build.user");
+        this.groupTimer = metrics.timer("build.group");
+    }
+
+    /**
+     * @return the Dn of the given user, cn being the local part of the primary email.
+     */
+    public Dn userDn(User user) throws LdapInvalidDnException {
+        return new Dn(schemaManager, String.format("cn=%s,%s", localPart(user.getPrimaryEmail()), usersDn));
+    }
+
+    /**
+     * @return the Dn of the given group, cn being the local part of the group email.
+     */
+    public Dn groupDn(Group group) throws LdapInvalidDnException {
+        return new Dn(schemaManager, String.format("cn=%s,%s", localPart(group.getEmail()), groupsDn));
+    }
+
+    /**
+     * Builds a posixAccount/inetOrgPerson entry with every attribute.
+     *
+     * @param dn the Dn of the entry, normalized against the schema.
+     * @param user the user, with all of {@link #USER_FIELDS}.
+     * @param aliases the aliases of the user, may be null.
+     * @return the entry.
+     * @throws LdapException if an attribute cannot be added.
+     */
+    public Entry createUserEntry(Dn dn, User user, Collection<String> aliases) throws LdapException {
+        return createUserEntry(dn, user, aliases, Projection.ALL);
+    }
+
+    /**
+     * Builds a posixAccount/inetOrgPerson entry holding the attributes of the projection,
+     * plus objectClass.
+     *
+     * @param dn the Dn of the entry, normalized against the schema.
+     * @param user the user, with at least the fields of {@link #userFields(Projection)}.
+     * @param aliases the aliases of the user, may be null.
+     * @param projection the attributes to build.
+     * @return the entry.
+     * @throws LdapException if an attribute cannot be added.
+     */
+    public Entry createUserEntry(Dn dn, User user, Collection<String> aliases, Projection projection)
+            throws LdapException {
+        long start = System.nanoTime();
+        String username = dn.getRdn(0).getNormValue();
+
+        Entry userEntry = new DefaultEntry(schemaManager, dn);
+        userEntry.put(objectClassAt, SchemaConstants.TOP_OC, SchemaConstants.ORGANIZATIONAL_PERSON_OC, SchemaConstants.PERSON_OC, SchemaConstants.INET_ORG_PERSON_OC, "posixAccount");
+        if (projection.contains(cnAt)) {
+            userEntry.put(cnAt, user.getName().getFullName());
+        }
+        if (projection.contains(uidAt)) {
+            userEntry.put(uidAt, username);
+        }
+        if (projection.contains(emailAt)) {
+            userEntry.put(emailAt, user.getPrimaryEmail());
+        }
+        if (projection.contains(givenNameAt)) {
+            userEntry.put(givenNameAt, user.getName().getGivenName());
+        }
+        if (projection.contains(snAt)) {
+            userEntry.put(snAt, user.getName().getFamilyName());
+        }
+        if (projection.contains(ouAt)) {
+            userEntry.put(ouAt, "users");
+        }
+        if (projection.contains(uidNumberAt)) {
+            userEntry.put(uidNumberAt, uidNumber(user));
+        }
+        if (projection.contains(gidNumberAt)) {
+            userEntry.put(gidNumberAt, uidNumber(user));
+        }
+        if (projection.contains(homeDirectoryAt)) {
+            userEntry.put(homeDirectoryAt, "/home/"+username);
+        }
+        if (projection.contains(loginShellAt)) {
+            userEntry.put(loginShellAt, "/bin/csh");
+        }
+        if (projection.contains(gecosAt)) {
+            userEntry.put(gecosAt, user.getName().getFullName());
+        }
+        for (int i = 0; i < shadowAts.length; i++) {
+            if (projection.contains(shadowAts[i])) {
+                userEntry.put(shadowAts[i], SHADOW_VALUES[i]);
+            }
+        }
+
+
+        List <ArrayMap> phones = (List<ArrayMap>) user.getPhones();
+        if (phones != null && projection.containsAny(mobileAt, telephoneNumberAt)) {
+            for (ArrayMap phone: phones) {
+                if (phone.get("type").equals("mobile") && projection.contains(mobileAt)) {
+                    userEntry.put(mobileAt, phone.get("value").toString());
+                } else if (phone.get("type").equals("work") && projection.contains(telephoneNumberAt)) {
+                    userEntry.put(telephoneNumberAt, phone.get("value").toString());
+                }
+            }
+        }
+
+        if (projection.contains(emailAt)) {
+            List <ArrayMap> emails = (List<ArrayMap>) user.getEmails();
+            if (emails != null) {
+                for (ArrayMap email: emails) {
+                    userEntry.add(emailAt, email.get("address").toString());
+                }
+            }
+
+            if (aliases != null) {
+                for (String alias : aliases) {
+                    userEntry.add(emailAt, alias);
+                }
+            }
+        }
+
+        if (userTimer != null) {
+            userTimer.recordSince(start);
+        }
+        return userEntry;
+    }
+
+    /**
+     * Builds a posixGroup entry with every attribute.
+     *
+     * @param dn the Dn of the entry, normalized against the schema.
+     * @param group the group.
+     * @param memberUids the uids of the members of the group.
+     * @return the entry.
+     * @throws LdapException if an attribute cannot be added.
+     */
+    public Entry createGroupEntry(Dn dn, Group group, Collection<String> memberUids) throws LdapException {
+        return createGroupEntry(dn, group, memberUids, Projection.ALL);
+    }
+
+    /**
+     * Builds a posixGroup entry holding the attributes of the projection, plus objectClass.
+     *
+     * @param dn the Dn of the entry, normalized against the schema.
+     * @param group the group, with at least the fields of {@link #GROUP_FIELDS}.
+     * @param memberUids the uids of the members of the group, may be null if the projection
+     *                   does not need them, see {@link #needsMembers(Projection)}.
+     * @param projection the attributes to build.
+     * @return the entry.
+     * @throws LdapException if an attribute cannot be added.
+     */
+    public Entry createGroupEntry(Dn dn, Group group, Collection<String> memberUids, Projection projection)
+            throws LdapException {
+        long start = System.nanoTime();
+        String groupname = dn.getRdn(0).getNormValue();
+
+        Entry groupEntry = new DefaultEntry(schemaManager, dn);
+        groupEntry.put(objectClassAt, SchemaConstants.TOP_OC, "posixGroup", "group");
+        if (projection.contains(gidNumberAt)) {
+            groupEntry.put(gidNumberAt, gidNumber(group));
+        }
+        if (projection.contains(cnAt)) {
+            groupEntry.put(cnAt, groupname);
+        }
+
+        if (group.getDescription() != null && !group.getDescription().equals("")
+                && projection.contains(descriptionAt)) {
+            groupEntry.put(descriptionAt, group.getDescription());
+        }
+
+        if (memberUids != null && needsMembers(projection)) {
+            for (String uid : memberUids) {
+                groupEntry.add(memberUidAt, uid);
+            }
+        }
+
+        if (groupTimer != null) {
+            groupTimer.recordSince(start);
+        }
+        return groupEntry;
+    }
+
+    /**
+     * @return the fields of a user resource {@link #createUserEntry(Dn, User, Collection, Projection)}
+     *         reads for the given projection, for field masks.
+     */
+    public String userFields(Projection projection) {
+        if (projection.isAll()) {
+            return USER_FIELDS;
+        }
+        StringBuilder fields = new StringBuilder("id,etag,primaryEmail");
+        if (projection.containsAny(cnAt, givenNameAt, snAt, gecosAt)) {
+            fields.append(",name");
+        }
+        if (projection.containsAny(mobileAt, telephoneNumberAt)) {
+            fields.append(",phones");
+        }
+        if (projection.contains(emailAt)) {
+            fields.append(",emails,aliases");
+        }
+        return fields.toString();
+    }
+
+    /**
+     * @return true if the projection needs the members of groups, which take a listing
+     *         of their own.
+     */
+    public boolean needsMembers(Projection projection) {
+        return projection.contains(memberUidAt);
+    }
+
+    /**
+     * @return the uidNumber of the given user, which is also the gidNumber of its own group.
+     */
+    public static String uidNumber(User user) {
+        return user.getId().substring(0, Math.min(user.getId().length(), 10));
+    }
+
+    /**
+     * @return the gidNumber of the given group.
+     */
+    public static String gidNumber(Group group) {
+        String gid = "" + abs(group.getId().hashCode());
+        return gid.substring(0, Math.min(gid.length(), 10));
+    }
+
+    /**
+     * @return the part of an email address before the @.
+     */
+    public static String localPart(String email) {
+        return email.split("@")[0];
+    }
+}
@@ -0,0 +1,150 @@
+package com.dabsquared.googleldap;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.filter.AndNode;
+import org.apache.directory.api.ldap.model.filter.EqualityNode;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.GreaterEqNode;
+import org.apache.directory.api.ldap.model.filter.LeafNode;
+import org.apache.directory.api.ldap.model.filter.LessEqNode;
+import org.apache.directory.api.ldap.model.filter.OrNode;
+import org.apache.directory.api.ldap.model.filter.SimpleNode;
+import org.apache.directory.api.ldap.model.filter.SubstringNode;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The secondary indexes over one set of entries (the users or the groups), on the
+ * attributes NSS and PAM clients search by.
+ *
+ * {@link #candidates(ExprNode)} narrows a filter down to the entries that may match it,
+ * by their numbers in the {@link PackedEntries}; the filter itself is still evaluated on
+ * every candidate.
+ */
+public class EntryIndexes {
+
+    /** OIDs of the indexed attributes holding strings. */
+    private static final String[] STRING_ATTRIBUTES = {
+            SchemaConstants.UID_AT_OID,
+            SchemaConstants.MAIL_AT_OID,
+            SchemaConstants.EMAIL_AT_OID,
+            SchemaConstants.CN_AT_OID,
+            SchemaConstants.MEMBER_UID_AT_OID
+    };
+
+    /** OIDs of the indexed attributes holding integers. */
+    private static final String[] NUMERIC_ATTRIBUTES = {
+            SchemaConstants.UID_NUMBER_AT_OID,
+            SchemaConstants.GID_NUMBER_AT_OID
+    };
+
+    private final Map<String, AttributeIndex> indexes = new HashMap<String, AttributeIndex>();
+
+    /**
+     * @param entries the entries to index.
+     */
+    public EntryIndexes(PackedEntries entries) {
+        for (String oid : STRING_ATTRIBUTES) {
+            indexes.put(oid, new AttributeIndex(oid, false, entries));
+        }
+        for (String oid : NUMERIC_ATTRIBUTES) {
+            indexes.put(oid, new AttributeIndex(oid, true, entries));
+        }
+    }
+
+    /**
+     * @param attributeType an attribute type.
+     * @return the index on this attribute, or null if it is not indexed.
+     */
+    public AttributeIndex get(AttributeType attributeType) {
+        return (attributeType == null) ? null : indexes.get(attributeType.getOid());
+    }
+
+    /**
+     * Narrows a filter down using the indexes.
+     *
+     * An equality, prefix or ordering assertion on an indexed attribute is answered by
+     * its index; an AND by its most selective indexed child; an OR by the union of its
+     * children, if every child can be answered.
+     *
+     * @param filter a normalized filter.
+     * @return the numbers of the entries that may match the filter, in ascending order,
+     *         or null if the indexes cannot narrow it.
+     */
+    public int[] candidates(ExprNode filter) {
+        if (filter instanceof AndNode) {
+            int[] best = null;
+            for (ExprNode child : ((AndNode) filter).getChildren()) {
+                int[] l = candidates(child);
+                if (l != null && (best == null || l.length < best.length)) {
+                    best = l;
+                }
+            }
+            return best;
+        }
+
+        if (filter instanceof OrNode) {
+            int[] union = new int[0];
+            for (ExprNode child : ((OrNode) filter).getChildren()) {
+                int[] l = candidates(child);
+                if (l == null) {
+                    return null;
+                }
+                union = union(union, l);
+            }
+            return union;
+        }
+
+        if (!(filter instanceof LeafNode)) {
+            return null;
+        }
+
+        AttributeType attributeType = ((LeafNode) filter).getAttributeType();
+        AttributeIndex index = get(attributeType);
+        if (index == null) {
+            return null;
+        }
+
+        if (filter instanceof SubstringNode) {
+            // Normalized like the indexed values, in case the filter reached us unnormalized
+            String initial = AttributeIndex.normalize(attributeType, ((SubstringNode) filter).getInitial());
+            return (initial == null) ? null : index.prefix(initial);
+        }
+
+        if (!(filter instanceof SimpleNode)) {
+            return null;
+        }
+        String value = AttributeIndex.normalize(attributeType, ((SimpleNode<?>) filter).getValue().getString());
+        if (value == null) {
+            return null;
+        }
+        if (filter instanceof EqualityNode) {
+            return index.equal(value);
+        } else if (filter instanceof GreaterEqNode) {
+            return index.greaterOrEqual(value);
+        } else if (filter instanceof LessEqNode) {
+            return index.lessOrEqual(value);
+        }
+        return null;
+    }
+
+    /**
+     * @return the numbers in either of two ascending arrays, in ascending order.
+     */
+    private static int[] union(int[] a, int[] b) {
+        int[] merged = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length || j < b.length) {
+            int next = (j == b.length || i < a.length && a[i] <= b[j]) ? a[i++] : b[j++];
+            if (n == 0 || merged[n - 1] != next) {
+                merged[n++] = next;
+            }
+        }
+        return (n == merged.length) ? merged : Arrays.copyOf(merged, n);
+    }
+}
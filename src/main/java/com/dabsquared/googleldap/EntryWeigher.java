@@ -0,0 +1,32 @@
+package com.dabsquared.googleldap;
+
+import com.dabsquared.googleldap.util.Weigher;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+
+/**
+ * Approximates the heap retained by a cached {@link Entry}: a fixed cost for the entry
+ * and its Dn, one per attribute, and one per value plus its user provided and normalized
+ * string forms.
+ */
+public class EntryWeigher implements Weigher<String, Entry> {
+
+    private static final long ENTRY_OVERHEAD = 512;
+
+    private static final long ATTRIBUTE_OVERHEAD = 160;
+
+    private static final long VALUE_OVERHEAD = 96;
+
+    public long weigh(String key, Entry entry) {
+        long weight = ENTRY_OVERHEAD + key.length() * 4L;
+        for (Attribute attribute : entry) {
+            weight += ATTRIBUTE_OVERHEAD;
+            for (Value<?> value : attribute) {
+                String s = value.getString();
+                weight += VALUE_OVERHEAD + (s == null ? 0 : s.length() * 4L);
+            }
+        }
+        return weight;
+    }
+}
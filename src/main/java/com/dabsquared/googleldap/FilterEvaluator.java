@@ -0,0 +1,80 @@
+package com.dabsquared.googleldap;
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.filter.AndNode;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.NotNode;
+import org.apache.directory.api.ldap.model.filter.ObjectClassNode;
+import org.apache.directory.api.ldap.model.filter.OrNode;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.core.api.event.ExpressionEvaluator;
+import org.apache.directory.server.core.api.filtering.EntryFilter;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Drops the entries the search filter does not match, which nothing after the partition does.
+ *
+ * ApacheDS turns (objectClass=*), which every entry matches, into an {@link ObjectClassNode}
+ * the {@link ExpressionEvaluator} does not know. The branches of the filter are therefore
+ * evaluated here, and only its other leaves by the evaluator.
+ */
+public class FilterEvaluator implements EntryFilter {
+
+    private static final Logger log = LogManager.getLogger(FilterEvaluator.class);
+
+    private final ExpressionEvaluator evaluator;
+
+    public FilterEvaluator(SchemaManager schemaManager) {
+        this.evaluator = new ExpressionEvaluator(schemaManager);
+    }
+
+    public boolean accept(SearchOperationContext ctx, Entry entry) {
+        return matches(ctx.getFilter(), entry);
+    }
+
+    /**
+     * @return true if the entry matches the filter, false if not or if the filter cannot
+     *         be evaluated on it.
+     */
+    public boolean matches(ExprNode filter, Entry entry) {
+        try {
+            return evaluate(filter, entry);
+        } catch (LdapException e) {
+            log.debug("Unable to evaluate " + filter + " on " + entry.getDn(), e);
+            return false;
+        }
+    }
+
+    private boolean evaluate(ExprNode node, Entry entry) throws LdapException {
+        if (node instanceof ObjectClassNode) {
+            return true;
+        }
+        if (node instanceof AndNode) {
+            for (ExprNode child : ((AndNode) node).getChildren()) {
+                if (!evaluate(child, entry)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (node instanceof OrNode) {
+            for (ExprNode child : ((OrNode) node).getChildren()) {
+                if (evaluate(child, entry)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (node instanceof NotNode) {
+            return !evaluate(((NotNode) node).getFirstChild(), entry);
+        }
+        return evaluator.evaluate(node, entry.getDn(), entry);
+    }
+
+    public String toString(String tabs) {
+        return tabs + "FilterEvaluator";
+    }
+}
@@ -10,9 +10,6 @@ import org.apache.directory.server.core.authn.AbstractAuthenticator;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import javax.mail.Session;
-import javax.mail.Store;
-import java.util.Properties;
 
 /**
  * Created by daniel on 7/3/16.
@@ -23,6 +20,12 @@ public class GoogleAuthenticator extends AbstractAuthenticator {
 
     private String domain = null;
 
+    private CredentialCache credentialCache = null;
+
+    private volatile ImapVerifier imapVerifier = null;
+
+    private Metrics metrics = new Metrics();
+
     protected GoogleAuthenticator(String domain) {
         super(AuthenticationLevel.SIMPLE);
         this.domain = domain;
@@ -32,10 +35,90 @@ public class GoogleAuthenticator extends AbstractAuthenticator {
         super(type, baseDn);
     }
 
+    public CredentialCache getCredentialCache() {
+        return credentialCache;
+    }
+
+    /**
+     * @param credentialCache the cache of recently verified passwords, or null to
+     *                        verify every bind with Google.
+     */
+    public void setCredentialCache(CredentialCache credentialCache) {
+        this.credentialCache = credentialCache;
+        registerCredentialCache();
+    }
+
+    /**
+     * @return the verifier checking passwords against Gmail, built with the defaults
+     * when none was set.
+     */
+    public ImapVerifier getImapVerifier() {
+        ImapVerifier verifier = imapVerifier;
+        if (verifier == null) {
+            synchronized (this) {
+                verifier = imapVerifier;
+                if (verifier == null) {
+                    verifier = imapVerifier = new ImapVerifier();
+                }
+            }
+        }
+        return verifier;
+    }
+
+    /**
+     * @param imapVerifier the verifier checking passwords against Gmail. The one it
+     *                     replaces, if any, is shut down.
+     */
+    public synchronized void setImapVerifier(ImapVerifier imapVerifier) {
+        if (this.imapVerifier != null && this.imapVerifier != imapVerifier) {
+            this.imapVerifier.shutdown();
+        }
+        this.imapVerifier = imapVerifier;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param metrics the metrics binds are timed in: {@code bind} for every bind and
+     *                {@code bind.imap} for the ones checked with Gmail, with
+     *                {@code bind.cached} counting the ones the credential cache answered
+     *                and {@code bind.rejected} the ones refused.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        registerCredentialCache();
+    }
+
+    private void registerCredentialCache() {
+        if (credentialCache != null) {
+            metrics.registerCache("credentials", credentialCache.getVerified());
+        }
+    }
+
+    @Override
+    protected void doInit() {
+        getImapVerifier().warmUp();
+    }
+
+    @Override
+    protected synchronized void doDestroy() {
+        if (imapVerifier != null) {
+            imapVerifier.shutdown();
+        }
+    }
+
     public LdapPrincipal authenticate(BindOperationContext bindOperationContext) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return doAuthenticate(bindOperationContext);
+        } finally {
+            metrics.timer("bind").recordSince(start);
+        }
+    }
 
-        Properties props = System.getProperties();
-        props.setProperty("mail.store.protocol", "imaps");
+    private LdapPrincipal doAuthenticate(BindOperationContext bindOperationContext) throws Exception {
 
         String user = bindOperationContext.getDn().getRdn(0).getNormValue();
         String pass = new String(bindOperationContext.getCredentials(),"utf-8");
@@ -49,21 +132,37 @@ public class GoogleAuthenticator extends AbstractAuthenticator {
         }
 
 
-        final Properties properties = new Properties();
-        properties.put("mail.imap.ssl.enable", "true");
-
-        Session imapSession = Session.getInstance(properties, null);
-        imapSession.setDebug(false);
-        Store imapStore = imapSession.getStore("imap");
+        if (credentialCache != null && credentialCache.verify(user, pass)) {
+            log.debug("Authed " + user + " from the credential cache");
+            metrics.counter("bind.cached").incrementAndGet();
+            return new LdapPrincipal(this.getDirectoryService().getSchemaManager(), bindOperationContext.getDn(), AuthenticationLevel.SIMPLE);
+        }
 
-        imapStore.connect("imap.gmail.com", user, pass);
+        boolean works;
+        long verifyStart = System.nanoTime();
+        try {
+            works = getImapVerifier().verify(user, pass);
+        } catch (Exception ex) {
+            if (credentialCache != null) {
+                credentialCache.invalidate(user);
+            }
+            throw ex;
+        } finally {
+            metrics.timer("bind.imap").recordSince(verifyStart);
+        }
 
-        boolean works = imapStore.isConnected();
-        imapStore.close();
+        if (credentialCache != null) {
+            if (works) {
+                credentialCache.remember(user, pass);
+            } else {
+                credentialCache.invalidate(user);
+            }
+        }
 
         try {
             if(!works) {
                 log.debug("()::Authentication failed");
+                metrics.counter("bind.rejected").incrementAndGet();
                 throw new javax.naming.AuthenticationException("Invalid credentials for user: " + user);
             } else {
                 log.debug("Authed " + user);
@@ -7,8 +7,6 @@ import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.ldap.model.schema.registries.SchemaLoader;
-import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
-import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
 import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
 import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
 import org.apache.directory.api.util.Strings;
@@ -40,10 +38,8 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.net.URL;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -52,17 +48,42 @@ import java.util.*;
 public class GoogleLDAPServer {
     private static final Logger log = LogManager.getLogger(GoogleLDAPServer.class);
 
+    private static final String PARTITION_ID = "klinche";
+
     private File workDir = null;
     private File clientSecrets = null;
 
     private DirectoryService service;
+    private GooglePartition googlePartition;
     private LdapServer server;
     private String domain;
+    private final Metrics metrics = new Metrics();
+    private com.dabsquared.googleldap.DirectoryService googleDirectory;
+    private ImapVerifier imapVerifier;
 
     public GoogleLDAPServer(File workDir, String domain, File clientSecrets) {
+        this(workDir, domain, clientSecrets, null, null);
+    }
+
+    /**
+     * Serves the domain from the given directory instead of the one authorized with the
+     * client secrets, e.g. a stand-in for Google in load tests.
+     *
+     * @param googleDirectory the Admin SDK directory the entries are read from.
+     * @param imapVerifier    the verifier binds are checked with, or null for Gmail.
+     */
+    public GoogleLDAPServer(File workDir, String domain, com.dabsquared.googleldap.DirectoryService googleDirectory,
+                            ImapVerifier imapVerifier) {
+        this(workDir, domain, null, googleDirectory, imapVerifier);
+    }
+
+    private GoogleLDAPServer(File workDir, String domain, File clientSecrets,
+                             com.dabsquared.googleldap.DirectoryService googleDirectory, ImapVerifier imapVerifier) {
         this.workDir = workDir;
         this.domain = domain;
         this.clientSecrets = clientSecrets;
+        this.googleDirectory = googleDirectory;
+        this.imapVerifier = imapVerifier;
 
         // Initialize the LDAP service
         try {
@@ -80,34 +101,19 @@ public class GoogleLDAPServer {
     {
         log.debug("Starting to load the schema.");
         service.setInstanceLayout(new InstanceLayout(this.workDir));
-        String workingDirectory = service.getInstanceLayout().getPartitionsDirectory().getPath();
-
-        // Extract the schema on disk (a brand new one) and load the registries
-        File schemaRepository = new File(workingDirectory, "schema");
-        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor(new File(workingDirectory));
-        extractor.extractOrCopy(true);
-
-        File folder = new File("work/partitions/schema/ou=schema");
-        File[] listOfFiles = folder.listFiles();
-
-        ArrayList<File> files = new ArrayList<File>();
-
-        for (int i = 0; i < listOfFiles.length; i++) {
-            if (listOfFiles[i].isFile()) {
-                files.add(listOfFiles[i]);
-            }
-        }
 
-        Charset charset = StandardCharsets.UTF_8;
-        for(File file : files) {
-            String content = new String(Files.readAllBytes(file.toPath()), charset);
-            content = content.replaceAll("m-disabled: TRUE", "m-disabled: FALSE");
-            Files.write(file.toPath(), content.getBytes(charset));
-        }
+        // The schema is extracted and enabled once per ApacheDS version, then reused
+        long start = System.currentTimeMillis();
+        File schemaRepository = new SchemaCache(schemaCacheDir(this.workDir)).prepare();
+        logPhase("Prepared the schema repository", start);
 
+        start = System.currentTimeMillis();
         SchemaLoader loader = new LdifSchemaLoader(schemaRepository);
         SchemaManager schemaManager = new DefaultSchemaManager(loader);
 
+        // We have to load the schema now, otherwise we won't be able
+        // to initialize the Partitions, as we won't be able to parse
+        // and normalize their suffix DN
         schemaManager.loadAllEnabled();
         service.setSchemaManager(schemaManager);
 
@@ -123,18 +129,12 @@ public class GoogleLDAPServer {
         schemaPartition.setWrappedPartition(ldifPartition);
 
 
-        // We have to load the schema now, otherwise we won't be able
-        // to initialize the Partitions, as we won't be able to parse
-        // and normalize their suffix DN
-        schemaManager.loadAllEnabled();
-
-
         List<Throwable> errors = schemaManager.getErrors();
 
         if (errors.size() != 0) {
             throw new Exception(errors.toString());
         }
-        log.debug("Loaded the schema.");
+        logPhase("Loaded the schema", start);
 
         // then the system partition
         // this is a MANDATORY partition
@@ -152,6 +152,11 @@ public class GoogleLDAPServer {
 
     private void loadDirectoryService() throws Exception
     {
+        // Published under the com.dabsquared.googleldap domain, and as cn=monitor in the tree
+        if (Boolean.parseBoolean(System.getProperty("googleldap.metrics.jmx", "true"))) {
+            metrics.exportToJmx();
+        }
+
         // Disable the ChangeLog system
         service.getChangeLog().setEnabled(false);
         service.setDenormalizeOpAttrsEnabled(false);
@@ -168,19 +173,55 @@ public class GoogleLDAPServer {
                 log.debug("" + interceptor.getName());
                 AuthenticationInterceptor ai = (AuthenticationInterceptor) interceptor;
                 Set<Authenticator> auths = new HashSet<Authenticator>();
-                auths.add(new GoogleAuthenticator(this.domain));
+                GoogleAuthenticator authenticator = new GoogleAuthenticator(this.domain);
+                authenticator.setMetrics(metrics);
+                long credentialCacheTtl = Long.getLong("googleldap.bind.cacheTtl", 0);
+                if (credentialCacheTtl > 0) {
+                    authenticator.setCredentialCache(new CredentialCache(credentialCacheTtl,
+                            Integer.getInteger("googleldap.bind.cacheMaxSize", 10000)));
+                }
+                if (imapVerifier == null) {
+                    imapVerifier = new ImapVerifier(ImapVerifier.DEFAULT_HOST, ImapVerifier.DEFAULT_PORT,
+                            bindMaxConcurrent(), bindMaxPending(), bindTimeout());
+                }
+                authenticator.setImapVerifier(imapVerifier);
+                auths.add(authenticator);
                 ai.setAuthenticators(auths);
             }
         }
 
-        GooglePartition googlePartition = new GooglePartition(domain, this.clientSecrets);
-        googlePartition.setId("klinche");
+        if (googleDirectory == null) {
+            googlePartition = new GooglePartition(domain, this.clientSecrets);
+        } else {
+            googlePartition = new GooglePartition(domain, googleDirectory);
+        }
+        googlePartition.setId(PARTITION_ID);
         googlePartition.setSchemaManager(service.getSchemaManager());
+        googlePartition.setMetrics(metrics);
+        googlePartition.setCacheTtl(Long.getLong("googleldap.cache.ttl", googlePartition.getCacheTtl()));
+        googlePartition.setCacheSoftTtl(Long.getLong("googleldap.cache.softTtl", googlePartition.getCacheSoftTtl()));
+        googlePartition.setCacheMaxWeight(Long.getLong("googleldap.cache.maxWeight", googlePartition.getCacheMaxWeight()));
+        googlePartition.setUpstreamMaxConcurrent(Integer.getInteger("googleldap.upstream.maxConcurrent", googlePartition.getUpstreamMaxConcurrent()));
+        googlePartition.setUpstreamTimeout(Long.getLong("googleldap.upstream.timeout", googlePartition.getUpstreamTimeout()));
+        googlePartition.setNegativeCacheTtl(Long.getLong("googleldap.negativeCache.ttl", googlePartition.getNegativeCacheTtl()));
+        googlePartition.setExistenceFilterRefreshInterval(Long.getLong("googleldap.existenceFilter.refreshInterval", googlePartition.getExistenceFilterRefreshInterval()));
+        googlePartition.setSnapshotMode(Boolean.getBoolean("googleldap.snapshot"));
+        googlePartition.setSnapshotRefreshInterval(Long.getLong("googleldap.snapshot.refreshInterval", googlePartition.getSnapshotRefreshInterval()));
+        googlePartition.setSnapshotFullRefreshInterval(Long.getLong("googleldap.snapshot.fullRefreshInterval", googlePartition.getSnapshotFullRefreshInterval()));
+        googlePartition.setSnapshotFile(new File(System.getProperty("googleldap.snapshot.file",
+                snapshotFile(this.workDir).getPath())));
+        googlePartition.setWarmUpParallelism(Integer.getInteger("googleldap.warmUp.parallelism", googlePartition.getWarmUpParallelism()));
+        googlePartition.setWarmUpRate(Integer.getInteger("googleldap.warmUp.rate", googlePartition.getWarmUpRate()));
+        googlePartition.setProgressiveStartup(Boolean.getBoolean("googleldap.progressiveStartup"));
+        long start = System.currentTimeMillis();
         googlePartition.initialize();
+        logPhase("Initialized the Google partition", start);
         service.addPartition(googlePartition);
 
         // And start the service
+        start = System.currentTimeMillis();
         service.startup();
+        logPhase("Started the directory service", start);
     }
 
 
@@ -191,7 +232,7 @@ public class GoogleLDAPServer {
      */
     public void startServer() throws Exception {
         server = new LdapServer();
-        int serverPort = 10389;
+        int serverPort = Integer.getInteger("googleldap.sslAltPort", 10389);
 
         Transport t = new TcpTransport(serverPort);
 
@@ -200,47 +241,197 @@ public class GoogleLDAPServer {
             String password = "changeit";
 
             t.setEnableSSL(true);
-            server.setKeystoreFile(keyStore);
-            server.setCertificatePassword(password);
+            if (new File(keyStore).exists()) {
+                server.setKeystoreFile(keyStore);
+                server.setCertificatePassword(password);
+            } else {
+                // e.g. offline load tests; ApacheDS falls back on its self-signed certificate
+                log.warn("No " + keyStore + ", LDAPS uses a self-signed certificate");
+            }
             server.addExtendedOperationHandler(new StartTlsHandler());
 
-        Transport t2 = new TcpTransport(636);
+        Transport t2 = new TcpTransport(Integer.getInteger("googleldap.sslPort", 636));
 
         t2.setEnableSSL(true);
         
-        Transport t3 = new TcpTransport(389);
+        Transport t3 = new TcpTransport(Integer.getInteger("googleldap.port", 389));
         t3.setEnableSSL(false);
 
 
 
         server.setTransports(t, t2, t3);
         server.setDirectoryService(service);
+
+        long start = System.currentTimeMillis();
         server.start();
+        logPhase("Started the LDAP server", start);
+    }
+
+    /**
+     * Stops the LdapServer, then the directory service and its partitions.
+     *
+     * @throws Exception if the directory service does not shut down cleanly.
+     */
+    public void stopServer() throws Exception {
+        if (server != null) {
+            server.stop();
+        }
+        service.shutdown();
     }
 
 
 
+    /**
+     * Waits for the Google partition to be warmed up, or to have loaded its snapshot,
+     * then creates the ready file if one is configured with -Dgoogleldap.readyFile.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void awaitReady() throws InterruptedException {
+        if (googlePartition == null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        while (!googlePartition.awaitReady(1, TimeUnit.MINUTES)) {
+            log.info("Still warming up after " + (System.currentTimeMillis() - start) / 1000 + "s");
+        }
+        log.info("Ready after " + (System.currentTimeMillis() - start) + "ms");
+
+        String readyFile = System.getProperty("googleldap.readyFile");
+        if (readyFile != null) {
+            try {
+                FileUtils.touch(new File(readyFile));
+            } catch (IOException e) {
+                log.error("Unable to create " + readyFile, e);
+            }
+        }
+    }
+
+    private static void logPhase(String phase, long start) {
+        log.info(phase + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * @return the maximum number of IMAP logins in progress at once, set with
+     *         -Dgoogleldap.bind.maxConcurrent.
+     */
+    static int bindMaxConcurrent() {
+        return Integer.getInteger("googleldap.bind.maxConcurrent", ImapVerifier.DEFAULT_MAX_CONCURRENT);
+    }
+
+    /**
+     * @return the maximum number of IMAP logins waiting for a free slot, set with
+     *         -Dgoogleldap.bind.maxPending.
+     */
+    static int bindMaxPending() {
+        return Integer.getInteger("googleldap.bind.maxPending", ImapVerifier.DEFAULT_MAX_PENDING);
+    }
+
+    /**
+     * @return the milliseconds after which a bind is failed, set with -Dgoogleldap.bind.timeout.
+     */
+    static long bindTimeout() {
+        return Long.getLong("googleldap.bind.timeout", ImapVerifier.DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @return the directory the extracted schema is cached in, which can be moved
+     *         with -Dgoogleldap.schema.cacheDir.
+     */
+    private static File schemaCacheDir(File workDir) {
+        return new File(System.getProperty("googleldap.schema.cacheDir",
+                new File(workDir, "schema-cache").getPath()));
+    }
+
+    /**
+     * @return the default file the snapshot of the Google partition is saved to.
+     */
+    private static File snapshotFile(File workDir) {
+        File partitions = new InstanceLayout(workDir).getPartitionsDirectory();
+        return new File(new File(partitions, PARTITION_ID), "snapshot.bin");
+    }
+
+    /**
+     * Deletes everything under a directory except the given files and directories.
+     */
+    private static void deleteExcept(File dir, File... keep) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            String path = f.getAbsolutePath();
+            boolean kept = false;
+            boolean parent = false;
+            for (File k : keep) {
+                String keepPath = k.getAbsolutePath();
+                kept |= path.equals(keepPath);
+                parent |= keepPath.startsWith(path + File.separator);
+            }
+            if (kept) {
+                continue;
+            }
+            if (parent) {
+                deleteExcept(f, keep);
+            } else {
+                FileUtils.forceDelete(f);
+            }
+        }
+    }
+
+    /**
+     * Clears the work directory left by a previous run, keeping the saved snapshot and the
+     * extracted schema, and the ready file.
+     *
+     * @return the work directory.
+     * @throws IOException if the work directory cannot be cleared.
+     */
+    static File prepareWorkDir() throws IOException {
+        File workDir = new File("work");
+        if(workDir.exists()) {
+            // The saved snapshot and the extracted schema survive restarts
+            deleteExcept(workDir, snapshotFile(workDir), schemaCacheDir(workDir));
+        }
+        workDir.mkdirs();
+
+        String readyFile = System.getProperty("googleldap.readyFile");
+        if (readyFile != null) {
+            FileUtils.deleteQuietly(new File(readyFile));
+        }
+        return workDir;
+    }
+
+    /**
+     * Starts a server created since the given time, and waits for it to be ready.
+     *
+     * @throws Exception if starting the LDAP server does not work.
+     */
+    static void serve(GoogleLDAPServer googleLDAPServer, long start) throws Exception {
+        googleLDAPServer.startServer();
+        logPhase("Started up", start);
+
+        // With -Dgoogleldap.progressiveStartup the server is serving already
+        googleLDAPServer.awaitReady();
+    }
+
     /**
      * Main application method.
      *
-     * @param args not used.
+     * @param args the domain, and the client secrets file.
      */
     public static void main(String[] args) {
         try {
-
-            File workDir = new File("work");
-            if(workDir.exists()) {
-                FileUtils.deleteDirectory(workDir);
-            }
-            workDir.mkdirs();
+            File workDir = prepareWorkDir();
 
             File clientSecret = new File(args[1]);
 
+            long start = System.currentTimeMillis();
+
             // Create the server
             GoogleLDAPServer googleLDAPServer = new GoogleLDAPServer(workDir, args[0], clientSecret);
 
             // Start the server
-            googleLDAPServer.startServer();
+            serve(googleLDAPServer, start);
         } catch (Exception e) {
             log.error("main()", e);
         }
@@ -1,12 +1,23 @@
 package com.dabsquared.googleldap;
 
-import com.dabsquared.googleldap.util.LRUCacheMap;
-import com.google.api.client.util.ArrayMap;
+import com.dabsquared.googleldap.util.BloomFilter;
+import com.dabsquared.googleldap.util.CacheMapExpelHandler;
+import com.dabsquared.googleldap.util.CacheMapRefreshHandler;
+import com.dabsquared.googleldap.util.ConcurrentCacheMap;
+import com.dabsquared.googleldap.util.LatencyHistogram;
+import com.dabsquared.googleldap.util.NamedThreadFactory;
+import com.dabsquared.googleldap.util.SingleFlight;
+import com.dabsquared.googleldap.util.TokenBucket;
+import com.dabsquared.googleldap.util.Weigher;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.admin.directory.Directory;
 import com.google.api.services.admin.directory.model.Group;
+import com.google.api.services.admin.directory.model.Groups;
 import com.google.api.services.admin.directory.model.Member;
 import com.google.api.services.admin.directory.model.User;
 import com.google.api.services.admin.directory.model.Users;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.cursor.EmptyCursor;
 import org.apache.directory.api.ldap.model.cursor.ListCursor;
 import org.apache.directory.api.ldap.model.cursor.SingletonCursor;
@@ -14,8 +25,8 @@ import org.apache.directory.api.ldap.model.entry.DefaultEntry;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
-import org.apache.directory.api.ldap.model.filter.AndNode;
-import org.apache.directory.api.ldap.model.filter.EqualityNode;
+import org.apache.directory.api.ldap.model.exception.LdapServiceUnavailableException;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.name.Rdn;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
@@ -33,15 +44,35 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 
-import static java.lang.Math.abs;
-
 /**
  * Created by daniel on 6/29/16.
  */
@@ -52,8 +83,66 @@ public class GooglePartition implements Partition {
     private String GOOGLE_DN = "";
     private String GOOGLE_GROUPS_DN = "ou=groups,";
     private String GOOGLE_USERS_DN = "ou=users,";
+    private String MONITOR_DN = "cn=monitor,";
     private static final String MODIFICATION_NOT_ALLOWED_MSG = "This simple partition does not allow modification.";
 
+    /** Largest page users.list will return. */
+    private static final int USER_PAGE_SIZE = 500;
+
+    /** Largest page groups.list will return. */
+    private static final int GROUP_PAGE_SIZE = 200;
+
+    /** Default time to live of cached entries, in milliseconds. */
+    public static final long DEFAULT_CACHE_TTL = 15 * 60 * 1000L;
+
+    /**
+     * Default age after which a cached entry is refreshed in the background while still
+     * being served, in milliseconds.
+     */
+    public static final long DEFAULT_CACHE_SOFT_TTL = 5 * 60 * 1000L;
+
+    /** Workers refreshing stale entries. */
+    private static final int REVALIDATION_THREADS = 2;
+
+    /** Stale entries waiting for a refresh; beyond this they are refreshed on a later hit. */
+    private static final int REVALIDATION_QUEUE_SIZE = 1000;
+
+    /** Default number of calls to Google run at once on behalf of LDAP requests. */
+    public static final int DEFAULT_UPSTREAM_MAX_CONCURRENT = 32;
+
+    /** Default time an LDAP request waits for a call to Google, in milliseconds. */
+    public static final long DEFAULT_UPSTREAM_TIMEOUT = 20 * 1000L;
+
+    /** Default memory ceiling of the entry cache, in (approximate) bytes. */
+    public static final long DEFAULT_CACHE_MAX_WEIGHT = 64L * 1024 * 1024;
+
+    /** Default time a Dn found not to exist is remembered, in milliseconds. */
+    public static final long DEFAULT_NEGATIVE_CACHE_TTL = 60 * 1000L;
+
+    /** Default time between two rebuilds of the existence filter, in milliseconds. */
+    public static final long DEFAULT_EXISTENCE_FILTER_REFRESH_INTERVAL = 10 * 60 * 1000L;
+
+    /** Approximate weight of a negative cache entry, beyond its key. */
+    private static final long NEGATIVE_ENTRY_WEIGHT = 64;
+
+    /** Rate of false positives of the existence filter. */
+    private static final double EXISTENCE_FILTER_FPP = 0.01;
+
+    /** Default time between two snapshot refreshes, in milliseconds. */
+    public static final long DEFAULT_SNAPSHOT_REFRESH_INTERVAL = 5 * 60 * 1000L;
+
+    /** Default time between two full snapshot rebuilds, in milliseconds. */
+    public static final long DEFAULT_SNAPSHOT_FULL_REFRESH_INTERVAL = 60 * 60 * 1000L;
+
+    /** Default number of workers warming the cache up. */
+    public static final int DEFAULT_WARM_UP_PARALLELISM = 8;
+
+    /** Default rate of Google requests while warming up, per second; the Admin SDK allows 40. */
+    public static final int DEFAULT_WARM_UP_RATE = 25;
+
+    /** Time between two progress reports of the warm-up, in milliseconds. */
+    private static final long WARM_UP_PROGRESS_INTERVAL = 5 * 1000L;
+
     private SchemaManager schemaManager;
 
     private Dn googleDn;
@@ -62,7 +151,33 @@ public class GooglePartition implements Partition {
     private Entry googleGroupsEntry;
     private Entry googleUsersEntry;
 
-    private LRUCacheMap<String, Entry> entryCache;
+    private Dn monitorDn;
+
+    private Metrics metrics;
+
+    private ConcurrentCacheMap<String, Entry> entryCache;
+
+    private ConcurrentCacheMap<String, Boolean> negativeCache;
+
+    private volatile BloomFilter existenceFilter;
+
+    private volatile IdNumbers idNumbers;
+
+    /**
+     * The emails of the groups having the whole domain as member, which groups.list by
+     * userKey leaves out; kept up to date as group entries are built.
+     */
+    private final Set<String> domainGroups = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** True once every group has been built, so that {@link #domainGroups} is complete. */
+    private volatile boolean domainGroupsKnown = false;
+
+    /** The ids of the groups of the last listing for the existence filter, or null. */
+    private volatile Set<String> listedGroupIds;
+
+    private long existenceFilterRefreshInterval = DEFAULT_EXISTENCE_FILTER_REFRESH_INTERVAL;
+
+    private ScheduledExecutorService maintenance;
 
     private List<Entry> googleOneLevelList;
 
@@ -74,12 +189,90 @@ public class GooglePartition implements Partition {
 
     private String domain = null;
 
-    private File clientSecrets = null;
+    private UpstreamExecutor upstream;
+
+    private int upstreamMaxConcurrent = DEFAULT_UPSTREAM_MAX_CONCURRENT;
+
+    private long upstreamTimeout = DEFAULT_UPSTREAM_TIMEOUT;
+
+    private ExecutorService revalidator;
+
+    private EntryFactory entryFactory;
+
+    private QueryPlanner queryPlanner;
+
+    /** Drops the entries the search filter does not match, which nothing after the partition does. */
+    private FilterEvaluator filterEvaluator;
+
+    private MembershipResolver membership;
+
+    /** Concurrent fetches of the same user or group entry, by normalized Dn. */
+    private final SingleFlight<String, Entry> entryFetches = new SingleFlight<String, Entry>();
+
+    /** Concurrent users.get calls for the same email. */
+    private final SingleFlight<String, User> userFetches = new SingleFlight<String, User>();
+
+    /** Concurrent fetches of the same page of the same users.list or groups.list query. */
+    private final SingleFlight<String, PagedCursor.Page<Entry>> pageFetches =
+            new SingleFlight<String, PagedCursor.Page<Entry>>();
+
+    private boolean snapshotMode = false;
+
+    private long snapshotRefreshInterval = DEFAULT_SNAPSHOT_REFRESH_INTERVAL;
+
+    private long snapshotFullRefreshInterval = DEFAULT_SNAPSHOT_FULL_REFRESH_INTERVAL;
+
+    private SnapshotRefresher snapshots;
+
+    private File snapshotFile;
+
+    private int warmUpParallelism = DEFAULT_WARM_UP_PARALLELISM;
+
+    private int warmUpRate = DEFAULT_WARM_UP_RATE;
+
+    private boolean progressiveStartup = false;
+
+    private final CountDownLatch warmedUp = new CountDownLatch(1);
 
     public GooglePartition(String domain, File clientSecrets)
     {
+        // Build a new authorized API client service, shared by every request.
+        this(domain, new com.dabsquared.googleldap.DirectoryService(clientSecrets));
+    }
+
+    /**
+     * @param service the Admin SDK client, not started yet.
+     */
+    public GooglePartition(String domain, com.dabsquared.googleldap.DirectoryService service)
+    {
+        this.service = service;
         initialized = new AtomicBoolean(false);
-        entryCache = new LRUCacheMap<String, Entry>(300);
+        entryCache = new ConcurrentCacheMap<String, Entry>(DEFAULT_CACHE_MAX_WEIGHT, DEFAULT_CACHE_TTL, new EntryWeigher());
+        entryCache.setExpelHandler(new CacheMapExpelHandler<String, Entry>() {
+            public void expelled(Map.Entry<String, Entry> entry) {
+                log.debug("Expelled " + entry.getKey() + " from the entry cache");
+            }
+        });
+        entryCache.setSoftTtl(DEFAULT_CACHE_SOFT_TTL);
+        entryCache.setRefreshHandler(new CacheMapRefreshHandler<String, Entry>() {
+            public void stale(final String key, Entry value) {
+                try {
+                    revalidator.execute(new Runnable() {
+                        public void run() {
+                            revalidate(key);
+                        }
+                    });
+                } catch (RejectedExecutionException ex) {
+                    // Too many refreshes queued already; the next hit on the entry asks again
+                    entryCache.cancelRefresh(key);
+                }
+            }
+        });
+        negativeCache = new ConcurrentCacheMap<String, Boolean>(DEFAULT_CACHE_MAX_WEIGHT / 8, DEFAULT_NEGATIVE_CACHE_TTL, new Weigher<String, Boolean>() {
+            public long weigh(String key, Boolean value) {
+                return NEGATIVE_ENTRY_WEIGHT + key.length() * 2L;
+            }
+        });
         this.domain = domain;
 
         String[] splits = this.domain.split("\\.");
@@ -87,11 +280,13 @@ public class GooglePartition implements Partition {
 
         GOOGLE_GROUPS_DN = GOOGLE_GROUPS_DN + GOOGLE_DN;
         GOOGLE_USERS_DN = GOOGLE_USERS_DN + GOOGLE_DN;
+        MONITOR_DN = MONITOR_DN + GOOGLE_DN;
 
-        this.clientSecrets = clientSecrets;
+        setMetrics(new Metrics());
 
-        // Build a new authorized API client service.
-        service = new com.dabsquared.googleldap.DirectoryService();
+        revalidator = new ThreadPoolExecutor(REVALIDATION_THREADS, REVALIDATION_THREADS, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(REVALIDATION_QUEUE_SIZE),
+                new NamedThreadFactory("cache-revalidate"), new ThreadPoolExecutor.AbortPolicy());
     }
 
     public String getId() {
@@ -110,6 +305,218 @@ public class GooglePartition implements Partition {
         this.schemaManager = schemaManager;
     }
 
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Partition operations are timed as {@code search.base}, {@code search.onelevel},
+     * {@code search.subtree}, {@code lookup} and {@code hasEntry}; the search timers cover
+     * the work done before the first entry is returned, later pages of a listing showing
+     * up under the Admin SDK methods. The entry and negative caches are published as
+     * {@code entries} and {@code missing}.
+     *
+     * @param metrics the metrics of the server; takes effect at {@link #initialize()} for
+     *                the calls to Google and the building of entries.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        metrics.registerCache("entries", entryCache);
+        metrics.registerCache("missing", negativeCache);
+        service.setMetrics(metrics);
+    }
+
+    public long getCacheTtl() {
+        return entryCache.getDefaultTtl();
+    }
+
+    /**
+     * @param ttl the time to live of cached user and group entries, in milliseconds.
+     */
+    public void setCacheTtl(long ttl) {
+        entryCache.setDefaultTtl(ttl);
+    }
+
+    public long getCacheSoftTtl() {
+        return entryCache.getSoftTtl();
+    }
+
+    /**
+     * A cached entry older than the soft time to live is still served straight away, and
+     * refreshed in the background; one older than the time to live is fetched again
+     * while the request waits.
+     *
+     * @param ttl the soft time to live of cached user and group entries, in milliseconds,
+     *            or 0 to never refresh entries before they expire.
+     */
+    public void setCacheSoftTtl(long ttl) {
+        entryCache.setSoftTtl(ttl);
+    }
+
+    public int getUpstreamMaxConcurrent() {
+        return upstreamMaxConcurrent;
+    }
+
+    /**
+     * @param maxConcurrent the number of calls to Google run at once on behalf of LDAP
+     *                      requests; takes effect at {@link #initialize()}.
+     */
+    public void setUpstreamMaxConcurrent(int maxConcurrent) {
+        this.upstreamMaxConcurrent = maxConcurrent;
+    }
+
+    public long getUpstreamTimeout() {
+        return upstreamTimeout;
+    }
+
+    /**
+     * @param timeout the time an LDAP request waits for a call to Google before failing
+     *                as unavailable, in milliseconds; takes effect at {@link #initialize()}.
+     */
+    public void setUpstreamTimeout(long timeout) {
+        this.upstreamTimeout = timeout;
+    }
+
+    public long getCacheMaxWeight() {
+        return entryCache.getMaxWeight();
+    }
+
+    /**
+     * @param maxWeight the approximate number of bytes the entry cache may retain.
+     */
+    public void setCacheMaxWeight(long maxWeight) {
+        entryCache.setMaxWeight(maxWeight);
+    }
+
+    public long getNegativeCacheTtl() {
+        return negativeCache.getDefaultTtl();
+    }
+
+    /**
+     * @param ttl milliseconds during which a user or group found not to exist is
+     *            answered as missing without asking Google again.
+     */
+    public void setNegativeCacheTtl(long ttl) {
+        negativeCache.setDefaultTtl(ttl);
+    }
+
+    public long getExistenceFilterRefreshInterval() {
+        return existenceFilterRefreshInterval;
+    }
+
+    /**
+     * @param interval milliseconds between two rebuilds of the Bloom filter of known
+     *                 users and groups. Accounts created in Google are only found once
+     *                 the filter has been rebuilt.
+     */
+    public void setExistenceFilterRefreshInterval(long interval) {
+        this.existenceFilterRefreshInterval = interval;
+    }
+
+    public boolean isSnapshotMode() {
+        return snapshotMode;
+    }
+
+    /**
+     * @param snapshotMode if true, the whole domain is held in memory and every
+     *                     search is answered from it without calling Google.
+     */
+    public void setSnapshotMode(boolean snapshotMode) {
+        this.snapshotMode = snapshotMode;
+    }
+
+    public long getSnapshotRefreshInterval() {
+        return snapshotRefreshInterval;
+    }
+
+    /**
+     * @param interval milliseconds between two (incremental) snapshot refreshes.
+     */
+    public void setSnapshotRefreshInterval(long interval) {
+        this.snapshotRefreshInterval = interval;
+    }
+
+    public long getSnapshotFullRefreshInterval() {
+        return snapshotFullRefreshInterval;
+    }
+
+    /**
+     * @param interval milliseconds after which a refresh rebuilds the whole snapshot.
+     */
+    public void setSnapshotFullRefreshInterval(long interval) {
+        this.snapshotFullRefreshInterval = interval;
+    }
+
+    public File getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * @param snapshotFile the file the snapshot is saved to and restored from at start,
+     *                     or null to keep it in memory only.
+     */
+    public void setSnapshotFile(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    public int getWarmUpParallelism() {
+        return warmUpParallelism;
+    }
+
+    /**
+     * @param parallelism the number of workers building entries while warming up.
+     */
+    public void setWarmUpParallelism(int parallelism) {
+        this.warmUpParallelism = parallelism;
+    }
+
+    public int getWarmUpRate() {
+        return warmUpRate;
+    }
+
+    /**
+     * @param rate the maximum number of Google requests per second while warming up.
+     */
+    public void setWarmUpRate(int rate) {
+        this.warmUpRate = rate;
+    }
+
+    public boolean isProgressiveStartup() {
+        return progressiveStartup;
+    }
+
+    /**
+     * @param progressiveStartup if true, {@link #initialize()} returns right away and the
+     *                           cache is warmed up, or the first snapshot loaded, in the
+     *                           background; until then requests are answered from Google.
+     */
+    public void setProgressiveStartup(boolean progressiveStartup) {
+        this.progressiveStartup = progressiveStartup;
+    }
+
+    /**
+     * @return true once the cache is warmed up, or in snapshot mode once a snapshot is loaded.
+     */
+    public boolean isReady() {
+        if (snapshotMode) {
+            return snapshots != null && snapshots.get() != null;
+        }
+        return warmedUp.getCount() == 0;
+    }
+
+    /**
+     * Waits for the partition to be ready, see {@link #isReady()}.
+     *
+     * @return true if the partition is ready, false if the timeout elapsed first.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        if (snapshotMode) {
+            return snapshots != null && snapshots.awaitSnapshot(timeout, unit);
+        }
+        return warmedUp.await(timeout, unit);
+    }
+
     public void initialize() throws LdapException {
         if (!initialized.getAndSet(true)) {
 
@@ -147,15 +554,55 @@ public class GooglePartition implements Partition {
             googleOneLevelList.add(googleUsersEntry);
             googleOneLevelList = Collections.unmodifiableList(googleOneLevelList);
 
-            //Add to cache
-            entryCache.put(googleDn.getName(), googleEntry);
-            entryCache.put(groupDn.getName(), googleGroupsEntry);
-            entryCache.put(usersDn.getName(), googleUsersEntry);
+            monitorDn = new Dn(schemaManager, MONITOR_DN);
+
+            entryFactory = new EntryFactory(schemaManager, GOOGLE_USERS_DN, GOOGLE_GROUPS_DN);
+            entryFactory.setMetrics(metrics);
+            queryPlanner = new QueryPlanner(schemaManager, domain);
+            filterEvaluator = new FilterEvaluator(schemaManager);
+            membership = new MembershipResolver(service);
+            upstream = new UpstreamExecutor(upstreamMaxConcurrent, upstreamTimeout);
 
             try {
-                this.initPartition();
+                service.start();
             } catch (IOException e) {
-                e.printStackTrace();
+                throw new LdapException("Unable to start the Google directory client", e);
+            }
+
+            if (snapshotMode) {
+                snapshots = new SnapshotRefresher(new SnapshotLoader(service, entryFactory),
+                        (snapshotFile == null) ? null : new SnapshotStore(snapshotFile, schemaManager),
+                        snapshotRefreshInterval, snapshotFullRefreshInterval);
+                snapshots.start(!progressiveStartup);
+            } else {
+                Runnable warmUp = new Runnable() {
+                    public void run() {
+                        // Built first, as groups with the whole domain as member are resolved from it
+                        rebuildExistenceFilter();
+
+                        try {
+                            initPartition();
+                            domainGroupsKnown = true;
+                        } catch (IOException e) {
+                            log.error("initPartition()", e);
+                        }
+                        warmedUp.countDown();
+                    }
+                };
+
+                maintenance = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("partition-maintenance"));
+                if (progressiveStartup) {
+                    // Requests find no existence filter and no cached entries meanwhile,
+                    // so they are answered by fetching from Google
+                    maintenance.execute(warmUp);
+                } else {
+                    warmUp.run();
+                }
+                maintenance.scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        rebuildExistenceFilter();
+                    }
+                }, existenceFilterRefreshInterval, existenceFilterRefreshInterval, TimeUnit.MILLISECONDS);
             }
 
             log.debug("<== GooglePartition::init");
@@ -176,7 +623,17 @@ public class GooglePartition implements Partition {
     }
 
     public void destroy() throws Exception {
-
+        if (snapshots != null) {
+            snapshots.stop();
+        }
+        if (maintenance != null) {
+            maintenance.shutdownNow();
+        }
+        service.stop();
+        if (upstream != null) {
+            upstream.shutdown();
+        }
+        revalidator.shutdownNow();
     }
 
     public boolean isInitialized() {
@@ -211,6 +668,23 @@ public class GooglePartition implements Partition {
                     + searchOperationContext.getFilter() + ", scope=" + searchOperationContext.getScope() + ")");
         }
 
+        long start = System.nanoTime();
+        try {
+            EntryFilteringCursor cursor = find(searchOperationContext);
+            // The cursors yield every candidate, e.g. the ous under the domain
+            cursor.addEntryFilter(filterEvaluator);
+            return cursor;
+        } finally {
+            searchTimer(searchOperationContext).recordSince(start);
+        }
+    }
+
+    private EntryFilteringCursor find(SearchOperationContext searchOperationContext) throws LdapException {
+        DirectorySnapshot snapshot = currentSnapshot();
+        if (snapshot != null) {
+            return searchSnapshot(snapshot, searchOperationContext);
+        }
+
         switch (searchOperationContext.getScope()) {
             case OBJECT:
                 return findObject(searchOperationContext);
@@ -231,14 +705,28 @@ public class GooglePartition implements Partition {
           log.debug("lookup(dn=" + lookupOperationContext.getDn() + ")");
         }
 
-        Entry se = entryCache.get(lookupOperationContext.getDn().getName());
-        if (se == null) {
-            //todo
-            log.debug("lookup()::No cached entry found for " + dn.getName());
-            return null;
-        } else {
-            log.debug("lookup()::Cached entry found for " + dn.getName());
-            return new ClonedServerEntry(se);
+        long start = System.nanoTime();
+        try {
+            Projection projection = Projection.of(schemaManager, lookupOperationContext);
+            Entry se = getStructuralEntry(dn);
+            DirectorySnapshot snapshot = currentSnapshot();
+            if (se == null && snapshot != null) {
+                se = snapshot.lookup(dn, projection);
+            } else if (se == null) {
+                se = entryCache.get(dn.getName());
+                if (se == null) {
+                    se = fetchEntry(dn);
+                }
+            }
+            if (se == null) {
+                log.debug("lookup()::No entry found for " + dn.getName());
+                return null;
+            } else {
+                log.debug("lookup()::Cached entry found for " + dn.getName());
+                return new ClonedServerEntry(projection.apply(se));
+            }
+        } finally {
+            metrics.timer("lookup").recordSince(start);
         }
     }
 
@@ -249,58 +737,21 @@ public class GooglePartition implements Partition {
           log.debug("hasEntry(dn=" + hasEntryOperationContext.getDn() + ")");
         }
 
-        if (entryCache.containsKey(hasEntryOperationContext.getDn().getName())) {
-            return true;
-        } else {
-            int dnSize = dn.size();
-
-            if (dnSize == 2) {
-                if (isGoogle(dn)) {
-                    entryCache.put(dn.getName(), googleEntry);
-                    return true;
-                } else {
-                    return false;
-                }
-            } else if (dnSize == 3) {
-                if (isGoogleGroups(dn)) {
-                    entryCache.put(dn.getName(), googleGroupsEntry);
-                    return true;
-                } else if (isGoogleUsers(dn)) {
-                    entryCache.put(dn.getName(), googleUsersEntry);
-                    return true;
-                } else {
-                    return false;
-                }
-            } else if (dnSize == 4) {
-                Dn prefix = dn.getParent();
-                try {
-                    prefix.apply(schemaManager);
-                } catch (Exception ex) {
-                    log.error("hasEntry()", ex);
-                }
-                log.debug("Prefix=" + prefix);
-                if (isGoogleUsers(prefix)) {
-                    Rdn rdn = dn.getRdn(2);
-                    String user = rdn.getNormValue();
-                    log.debug("user=" + user);
-                    Entry userEntry = createUserEntry(dn, null);
-                    return (userEntry != null);
-                } else if(isGoogleGroups(prefix)) {
-                    Rdn rdn = dn.getRdn(2);
-                    String group = rdn.getNormValue();
-                    log.debug("group=" + group);
-                    Entry groupEntry = null;//TODO: createGroupEntry(dn);
-                    return (groupEntry != null);
-                } else {
-                    log.debug("Prefix is neither users nor groups");
-                    log.debug("Google Users = " + googleUsersEntry.getDn());
-                    log.debug("Google Groups = " + googleGroupsEntry.getDn().toString());
-                    return false;
-                }
+        long start = System.nanoTime();
+        try {
+            DirectorySnapshot snapshot = currentSnapshot();
+            if (getStructuralEntry(dn) != null) {
+                return true;
+            } else if (snapshot != null) {
+                return snapshot.contains(dn);
+            } else if (entryCache.containsKey(hasEntryOperationContext.getDn().getName())) {
+                return true;
+            } else {
+                return fetchEntry(dn) != null;
             }
-
+        } finally {
+            metrics.timer("hasEntry").recordSince(start);
         }
-        return false;
     }
 
     public void rename(RenameOperationContext renameOperationContext) throws LdapException {
@@ -340,21 +791,121 @@ public class GooglePartition implements Partition {
     }
 
 
+    private LatencyHistogram searchTimer(SearchOperationContext ctx) {
+        switch (ctx.getScope()) {
+            case OBJECT:
+                return metrics.timer("search.base");
+            case ONELEVEL:
+                return metrics.timer("search.onelevel");
+            default:
+                return metrics.timer("search.subtree");
+        }
+    }
+
+    /**
+     * @return a cursor over the entries cut down to the attributes the search needs, so
+     *         that only those are copied for the result.
+     */
+    private EntryFilteringCursor project(Cursor<Entry> entries, SearchOperationContext ctx) {
+        return new EntryFilteringCursorImpl(new ProjectedCursor(entries, Projection.of(schemaManager, ctx)), ctx,
+                this.schemaManager);
+    }
+
+    /**
+     * @return the snapshot to answer from, or null when not in snapshot mode or none is loaded yet.
+     */
+    private DirectorySnapshot currentSnapshot() {
+        return (snapshots == null) ? null : snapshots.get();
+    }
+
+    /**
+     * Answers a search from the snapshot, without calling Google.
+     */
+    private EntryFilteringCursor searchSnapshot(DirectorySnapshot snapshot, SearchOperationContext ctx) {
+        Dn dn = ctx.getDn();
+        Projection projection = Projection.of(schemaManager, ctx);
+        List<Entry> l = Collections.emptyList();
+
+        switch (ctx.getScope()) {
+            case OBJECT:
+                Entry se = getStructuralEntry(dn);
+                if (se == null) {
+                    se = snapshot.lookup(dn, projection);
+                }
+                if (se != null) {
+                    l = Collections.singletonList(se);
+                }
+                break;
+            case ONELEVEL:
+                if (isGoogle(dn)) {
+                    l = googleOneLevelList;
+                } else if (isGoogleUsers(dn)) {
+                    l = candidates(QueryPlanner.Container.USERS, snapshot.getUserIndexes(), snapshot.getUsers(), ctx, projection);
+                } else if (isGoogleGroups(dn)) {
+                    l = candidates(QueryPlanner.Container.GROUPS, snapshot.getGroupIndexes(), snapshot.getGroups(), ctx, projection);
+                }
+                break;
+            case SUBTREE:
+                Entry base = getStructuralEntry(dn);
+                if (base == null) {
+                    // Users and groups have no children
+                    base = snapshot.lookup(dn, projection);
+                    if (base != null) {
+                        l = Collections.singletonList(base);
+                    }
+                    break;
+                }
+                List<Cursor<Entry>> cursors = new ArrayList<Cursor<Entry>>();
+                cursors.add(new SingletonCursor<Entry>(base));
+                if (isGoogle(dn)) {
+                    cursors.add(new ListCursor<Entry>(googleOneLevelList));
+                }
+                if (isGoogle(dn) || isGoogleUsers(dn)) {
+                    cursors.add(new ListCursor<Entry>(candidates(QueryPlanner.Container.USERS,
+                            snapshot.getUserIndexes(), snapshot.getUsers(), ctx, projection)));
+                }
+                if (isGoogle(dn) || isGoogleGroups(dn)) {
+                    cursors.add(new ListCursor<Entry>(candidates(QueryPlanner.Container.GROUPS,
+                            snapshot.getGroupIndexes(), snapshot.getGroups(), ctx, projection)));
+                }
+                return project(new ConcatCursor<Entry>(cursors), ctx);
+            default:
+                break;
+        }
+
+        return project(new ListCursor<Entry>(l), ctx);
+    }
+
+    /**
+     * @return the entries the indexes narrow the filter down to, or every entry if they cannot,
+     *         each built with the attributes of the projection as it is read.
+     */
+    private List<Entry> candidates(QueryPlanner.Container container, EntryIndexes indexes, PackedEntries all,
+                                   SearchOperationContext ctx, Projection projection) {
+        QueryPlan plan = queryPlanner.plan(container, ctx.getFilter(), indexes, null);
+        if (log.isDebugEnabled()) {
+            log.debug("Plan for " + ctx.getFilter() + " over " + all.size() + " " + container + ": " + plan);
+        }
+        return all.list((plan.getKind() == QueryPlan.Kind.INDEX) ? plan.getCandidates() : null, projection);
+    }
+
     private EntryFilteringCursor findObject(SearchOperationContext ctx) {
         Dn dn = ctx.getDn();
         Entry se = ctx.getEntry();
 
-        //1. Try cache
-        se = entryCache.get(dn.getName());
+        //1. Try the fixed entries, then the cache
+        se = getStructuralEntry(dn);
+        if (se == null) {
+            se = entryCache.get(dn.getName());
+        }
         if (se != null) {
-            return new EntryFilteringCursorImpl(
-                    new SingletonCursor<Entry>(se), ctx, this.schemaManager);
+            return project(new SingletonCursor<Entry>(se), ctx);
         }
         // return an empty result
         return new EntryFilteringCursorImpl(new EmptyCursor<Entry>(), ctx, this.schemaManager);
     }//findObject
 
-    private EntryFilteringCursor findOneLevel(SearchOperationContext ctx) {
+    private EntryFilteringCursor findOneLevel(SearchOperationContext ctx) throws LdapException {
         Dn dn = ctx.getDn();
         Entry se = ctx.getEntry();
 
@@ -367,124 +918,337 @@ public class GooglePartition implements Partition {
 
         //1. Organizational Units
         if (dn.getName().equals(googleEntry.getDn().getName())) {
-            return new EntryFilteringCursorImpl(
-                    new ListCursor<Entry>(googleOneLevelList),
-                    ctx,
-                    this.schemaManager
-            );
+            return project(new ListCursor<Entry>(googleOneLevelList), ctx);
         }
         //2. Groups
         if (dn.equals(googleGroupsEntry.getDn())) {
-
-            List<Entry> l = new ArrayList<Entry>();
-            try {
-                List<Group> groups = service.getDirectoryService(this.clientSecrets).groups().list().setCustomer("my_customer").execute().getGroups();
-
-                for (Group group : groups) {
-                    String groupname = group.getEmail().split("@")[0];
-                    Dn gdn = new Dn(this.schemaManager, String.format("cn=%s,%s", groupname, GOOGLE_GROUPS_DN));
-                    l.add(createGroupEntry(gdn, group));
-                }
-            } catch (Exception ex) {
-                log.error("findOneLevel()", ex);
-            }
-            return new EntryFilteringCursorImpl(
-                    new ListCursor<Entry>(l),
-                    ctx,
-                    this.schemaManager
-            );
+            return execute(QueryPlanner.Container.GROUPS, ctx);
         }
 
         //3. Users
         if (dn.equals(googleUsersEntry.getDn())) {
-            List<Entry> l = new ArrayList<Entry>();
-            try {
+            return execute(QueryPlanner.Container.USERS, ctx);
+        }
 
-                List<User> users = new ArrayList<User>();
+        log.debug("Empty list for " + ctx.getFilter().toString());
 
-                if (ctx.getFilter() != null && ctx.getFilter() instanceof EqualityNode) {
-                    EqualityNode node = (EqualityNode) ctx.getFilter();
-                    if (node.getAttribute().equals("uid") && node.getValue().getString().equals("*")) {
-                        users = this.service.getDirectoryService(this.clientSecrets).users().list().setCustomer("my_customer").execute().getUsers();
-                    } else if (node.getAttribute().equals("uid")) {
-                        String uid = node.getValue().getString();
-                        if (uid.split("@").length == 1) {
-                            uid = uid + "@" + this.domain;
-                        }
+        // return an empty result
+        return new EntryFilteringCursorImpl(new EmptyCursor<Entry>(), ctx, this.schemaManager);
+    }
 
-                        log.debug("Looking for: " + uid);
-                        User user = null;
-                        try {
+    /**
+     * Plans a one level search of the users or groups and runs the plan against Google.
+     */
+    private EntryFilteringCursor execute(QueryPlanner.Container container, SearchOperationContext ctx)
+            throws LdapException {
+        return project(plannedCursor(container, ctx), ctx);
+    }
 
-                            user = this.service.getDirectoryService(this.clientSecrets).users().get(uid).setProjection("full").execute();
-                        }  catch (com.google.api.client.googleapis.json.GoogleJsonResponseException ex) {
-                            return new EntryFilteringCursorImpl(new EmptyCursor<Entry>(), ctx, this.schemaManager);
-                        }
-                        if (user != null) {
-                            users.add(user);
+    /**
+     * Plans a search of the users or groups.
+     *
+     * @return a cursor running the plan against Google, which fetches nothing before it is
+     *         first moved.
+     */
+    private Cursor<Entry> plannedCursor(QueryPlanner.Container container, SearchOperationContext ctx)
+            throws LdapException {
+        QueryPlan plan = queryPlanner.plan(container, ctx.getFilter(), null, idNumbers);
+        if (plan.getUserKey() != null && !domainGroupsKnown) {
+            plan = QueryPlan.fullScan("the groups of the whole domain are not known yet");
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Plan for " + ctx.getFilter() + " under " + ctx.getDn() + ": " + plan);
+        }
+
+        boolean users = container == QueryPlanner.Container.USERS;
+        Projection projection = Projection.of(schemaManager, ctx);
+        switch (plan.getKind()) {
+            case EMPTY:
+                return new EmptyCursor<Entry>();
+            case POINT_LOOKUP:
+                List<Entry> l = new ArrayList<Entry>();
+                for (String email : plan.getEmails()) {
+                    try {
+                        Entry entry = users ? lookupUser(email) : lookupGroup(email);
+                        if (entry != null) {
+                            l.add(entry);
                         }
+                    } catch (UpstreamExecutor.UnavailableException ex) {
+                        throw new LdapServiceUnavailableException(ResultCodeEnum.UNAVAILABLE, ex.getMessage());
+                    } catch (LdapServiceUnavailableException ex) {
+                        throw ex;
+                    } catch (Exception ex) {
+                        log.error("plannedCursor()", ex);
                     }
-                }else if ((ctx.getFilter() != null && (ctx.getFilter().toString().contains("uid=*") && !ctx.getFilter().toString().contains("&(uid=")) || !ctx.getFilter().toString().contains("&(uid=") ) || ctx.getFilter() == null) {
-                    users = this.service.getDirectoryService(this.clientSecrets).users().list().setCustomer("my_customer").execute().getUsers();
-                } else if(ctx.getFilter() != null && ctx.getFilter().toString().contains("operator)")) {
-                    return new EntryFilteringCursorImpl(new EmptyCursor<Entry>(), ctx, this.schemaManager);
-                } else {
-                    AndNode node = (AndNode) ctx.getFilter();
+                }
+                return new ListCursor<Entry>(l);
+            case PUSHDOWN:
+                return pagedCursor(users
+                        ? userPages(plan.getQuery(), plan.getOrderBy(), projection, pageSize(USER_PAGE_SIZE, ctx))
+                        : groupPages(plan.getUserKey(), projection, pageSize(GROUP_PAGE_SIZE, ctx)), ctx);
+            default:
+                return pagedCursor(users
+                        ? userPages(null, null, projection, pageSize(USER_PAGE_SIZE, ctx))
+                        : groupPages(null, projection, pageSize(GROUP_PAGE_SIZE, ctx)), ctx);
+        }
+    }
 
-                    EqualityNode node1 = (EqualityNode) node.getFirstChild();
-                    String uid = node1.getValue().getString();
-                    if (uid.split("@").length == 1) {
-                        uid = uid + "@" + this.domain;
-                    }
+    /**
+     * @return a cursor over the pages that fetches no page beyond the size limit of the
+     *         search unless the caller reads on, and gives up at its time limit.
+     */
+    private PagedCursor<Entry> pagedCursor(PagedCursor.PageFetcher<Entry> pages, SearchOperationContext ctx) {
+        PagedCursor<Entry> cursor = new PagedCursor<Entry>(pages, upstream);
+        cursor.setSizeLimit(ctx.getSizeLimit());
+        if (ctx.getTimeLimit() > 0) {
+            cursor.setDeadline(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ctx.getTimeLimit()));
+        }
+        return cursor;
+    }
 
-                    log.debug("Looking for: " + uid);
-                    User user = null;
-                    try {
+    /**
+     * @return the page size to list with: the largest one, or just enough to reach the size
+     *         limit of the search and tell whether there is more.
+     */
+    private static int pageSize(int max, SearchOperationContext ctx) {
+        long sizeLimit = ctx.getSizeLimit();
+        return (sizeLimit > 0 && sizeLimit < max) ? (int) sizeLimit + 1 : max;
+    }
+
+    /**
+     * @param email the primary email or an alias of a user.
+     * @return the entry of the user, from the cache or Google, or null if it does not exist.
+     */
+    private Entry lookupUser(String email) throws IOException, LdapInvalidDnException {
+        String[] tokens = email.split("@");
+        if (tokens.length == 2 && tokens[1].equalsIgnoreCase(this.domain)) {
+            Entry cached = entryCache.get(String.format("cn=%s,%s", tokens[0], GOOGLE_USERS_DN));
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        log.debug("Looking for: " + email);
+        User user = fetchUser(email);
+        return (user == null) ? null : createUserEntry(entryFactory.userDn(user), user);
+    }
+
+    /**
+     * @param email the email of a group of the domain.
+     * @return the entry of the group, from the cache or Google, or null if it does not exist.
+     */
+    private Entry lookupGroup(String email) throws LdapException {
+        String[] tokens = email.split("@");
+        if (tokens.length != 2 || !tokens[1].equalsIgnoreCase(this.domain)) {
+            return null;
+        }
+        Dn gdn = new Dn(this.schemaManager, String.format("cn=%s,%s", tokens[0], GOOGLE_GROUPS_DN));
+        Entry cached = entryCache.get(gdn.getName());
+        return (cached != null) ? cached : fetchEntry(gdn);
+    }
+
+    /**
+     * Pages through users.list, turning each page into entries.
+     */
+    private PagedCursor.PageFetcher<Entry> userPages() {
+        return userPages(null, null, Projection.ALL, USER_PAGE_SIZE);
+    }
 
-                        user = this.service.getDirectoryService(this.clientSecrets).users().get(uid).setProjection("full").execute();
-                    }  catch (com.google.api.client.googleapis.json.GoogleJsonResponseException ex) {
-                        return new EntryFilteringCursorImpl(new EmptyCursor<Entry>(), ctx, this.schemaManager);
+    /**
+     * Pages through users.list, turning each page into entries.
+     *
+     * @param query a users.list query, or null to list every user.
+     * @param orderBy the field to order by, or null.
+     * @param projection the attributes to build; only the fields of the users they are
+     *                   built from are listed, and the entries are not cached unless the
+     *                   projection is all of them.
+     * @param pageSize the number of users per page, at most {@link #USER_PAGE_SIZE}.
+     */
+    private PagedCursor.PageFetcher<Entry> userPages(final String query, final String orderBy,
+                                                     final Projection projection, final int pageSize) {
+        return new PagedCursor.PageFetcher<Entry>() {
+            public PagedCursor.Page<Entry> fetch(final String pageToken) throws IOException {
+                String key = "users.list " + query + " " + orderBy + " " + projection + " " + pageSize + " " + pageToken;
+                return coalesce(pageFetches, key, new Callable<PagedCursor.Page<Entry>>() {
+                    public PagedCursor.Page<Entry> call() throws IOException {
+                        return fetchUserPage(query, orderBy, projection, pageSize, pageToken);
                     }
-                    if (user != null) {
-                        users.add(user);
+                });
+            }
+        };
+    }
+
+    /**
+     * Fetches one page of users.list, with the parameters of {@link #userPages(String, String, Projection, int)}.
+     */
+    private PagedCursor.Page<Entry> fetchUserPage(String query, String orderBy, Projection projection, int pageSize,
+                                                  String pageToken) throws IOException {
+        Directory.Users.List request = service.getDirectory().users().list()
+                .setCustomer("my_customer")
+                .setMaxResults(pageSize)
+                .setFields("nextPageToken,users(" + entryFactory.userFields(projection) + ")")
+                .setPageToken(pageToken);
+        if (query != null) {
+            request.setQuery(query);
+        }
+        if (orderBy != null) {
+            request.setOrderBy(orderBy);
+        }
+        Users users = request.execute();
+
+        List<Entry> l = new ArrayList<Entry>();
+        if (users.getUsers() != null) {
+            for (User un : users.getUsers()) {
+                String email = un.getPrimaryEmail();
+                String[] tokens = email.split("@");
+                try {
+                    Dn udn = new Dn(schemaManager, String.format("cn=%s,%s", tokens[0], GOOGLE_USERS_DN));
+                    Entry entry = createUserEntry(udn, un, projection);
+                    if (entry != null) {
+                        l.add(entry);
                     }
+                } catch (LdapInvalidDnException ex) {
+                    log.debug("userPages()", ex);
                 }
+            }
+        }
+        return new PagedCursor.Page<Entry>(l, users.getNextPageToken());
+    }
 
-                for (User un : users) {
-                    String email = un.getPrimaryEmail();
-                    String[] tokens = email.split("@");
+    /**
+     * Pages through groups.list, turning each page into entries.
+     */
+    private PagedCursor.PageFetcher<Entry> groupPages() {
+        return groupPages(null, Projection.ALL, GROUP_PAGE_SIZE);
+    }
 
-                    Dn udn = new Dn(this.schemaManager, String.format("cn=%s,%s", tokens[0], GOOGLE_USERS_DN));
-                    l.add(createUserEntry(udn, un));
-                }
+    /**
+     * Pages through groups.list, turning each page into entries.
+     *
+     * @param userKey the email of a user to list the groups of, or null to list every group.
+     * @param projection the attributes to build; the members of the groups are only listed
+     *                   if they are part of it, and the entries are not cached unless the
+     *                   projection is all of them.
+     * @param pageSize the number of groups per page, at most {@link #GROUP_PAGE_SIZE}.
+     */
+    private PagedCursor.PageFetcher<Entry> groupPages(final String userKey, final Projection projection,
+                                                      final int pageSize) {
+        // Taken once, so that every page of the listing leaves out the same groups
+        final Set<String> wholeDomain = (userKey == null)
+                ? Collections.<String>emptySet() : new TreeSet<String>(domainGroups);
+        return new PagedCursor.PageFetcher<Entry>() {
+            public PagedCursor.Page<Entry> fetch(final String pageToken) throws IOException {
+                String key = "groups.list " + userKey + " " + projection + " " + pageSize + " " + pageToken;
+                return coalesce(pageFetches, key, new Callable<PagedCursor.Page<Entry>>() {
+                    public PagedCursor.Page<Entry> call() throws IOException {
+                        return fetchGroupPage(userKey, wholeDomain, projection, pageSize, pageToken);
+                    }
+                });
+            }
+        };
+    }
 
-            } catch (Exception ex) {
-                log.error("findOneLevel()", ex);
+    /**
+     * Fetches one page of groups.list, with the parameters of {@link #groupPages(String, Projection, int)}.
+     *
+     * groups.list by userKey does not return the groups the user is in as one of the whole
+     * domain, so these are left out of every page and added after the last one.
+     *
+     * @param wholeDomain the emails of the groups having the whole domain as member.
+     */
+    private PagedCursor.Page<Entry> fetchGroupPage(String userKey, Set<String> wholeDomain, Projection projection,
+                                                   int pageSize, String pageToken) throws IOException {
+        Directory.Groups.List request = service.getDirectory().groups().list()
+                .setMaxResults(pageSize)
+                .setFields("nextPageToken,groups(" + EntryFactory.GROUP_FIELDS + ")")
+                .setPageToken(pageToken);
+        // groups.list takes either a customer or a user, not both
+        if (userKey != null) {
+            request.setUserKey(userKey);
+        } else {
+            request.setCustomer("my_customer");
+        }
+        Groups groups;
+        try {
+            groups = request.execute();
+        } catch (IOException ex) {
+            if (userKey != null && isNotFound(ex)) {
+                // Not a user of the domain, e.g. root or a local account: a member of no group
+                log.debug("fetchGroupPage()::" + userKey + " is not a user of the domain");
+                return new PagedCursor.Page<Entry>(Collections.<Entry>emptyList(), null);
             }
-            return new EntryFilteringCursorImpl(
-                    new ListCursor<Entry>(l),
-                    ctx,
-                    this.schemaManager
-            );
+            throw ex;
         }
 
-        log.debug("Empty list for " + ctx.getFilter().toString());
-
-        // return an empty result
-        return new EntryFilteringCursorImpl(new EmptyCursor<Entry>(), ctx, this.schemaManager);
+        List<Group> listed = new ArrayList<Group>();
+        if (groups.getGroups() != null) {
+            for (Group group : groups.getGroups()) {
+                if (!wholeDomain.contains(group.getEmail().toLowerCase(Locale.ROOT))) {
+                    listed.add(group);
+                }
+            }
+        }
+        List<Entry> l = createGroupEntries(listed, projection, null);
+        if (userKey != null && groups.getNextPageToken() == null) {
+            for (String email : wholeDomain) {
+                try {
+                    Entry entry = lookupGroup(email);
+                    if (entry != null) {
+                        l.add(entry);
+                    }
+                } catch (LdapException ex) {
+                    log.debug("fetchGroupPage()", ex);
+                }
+            }
+        }
+        return new PagedCursor.Page<Entry>(l, groups.getNextPageToken());
     }
 
-    private EntryFilteringCursor findSubTree(SearchOperationContext ctx) {
+    /**
+     * Walks the tree under the base: the domain holds the two ous, which hold the users
+     * and the groups. The ous the filter cannot match in are never listed, and the rest
+     * are listed one after the other as the caller reads on.
+     */
+    private EntryFilteringCursor findSubTree(SearchOperationContext ctx) throws LdapException {
         Dn dn = ctx.getDn();
 
         log.debug("findSubTree()::dn=" + dn.getName());
-        //Will only search at one level
-        return findOneLevel(ctx);
+        Entry base = getStructuralEntry(dn);
+        if (base == null) {
+            // Users and groups have no children
+            base = entryCache.get(dn.getName());
+            if (base == null) {
+                base = fetchEntry(dn);
+            }
+            Cursor<Entry> cursor = (base == null) ? new EmptyCursor<Entry>() : new SingletonCursor<Entry>(base);
+            return project(cursor, ctx);
+        }
+
+        List<Cursor<Entry>> cursors = new ArrayList<Cursor<Entry>>();
+        cursors.add(new SingletonCursor<Entry>(base));
+        if (isGoogle(dn)) {
+            cursors.add(new ListCursor<Entry>(googleOneLevelList));
+        }
+        if (isGoogle(dn) || isGoogleUsers(dn)) {
+            cursors.add(plannedCursor(QueryPlanner.Container.USERS, ctx));
+        }
+        if (isGoogle(dn) || isGoogleGroups(dn)) {
+            cursors.add(plannedCursor(QueryPlanner.Container.GROUPS, ctx));
+        }
+        return project(new ConcatCursor<Entry>(cursors), ctx);
     }
 
 
 
     private Entry createUserEntry(Dn dn, User user) {
+        return createUserEntry(dn, user, Projection.ALL);
+    }
+
+    /**
+     * @param projection the attributes to build, and the fields the user was read with;
+     *                   the entry is not cached unless the projection is all of them.
+     */
+    private Entry createUserEntry(Dn dn, User user, Projection projection) {
         Entry userEntry = entryCache.get(dn.getName());
         try {
             dn.apply(this.schemaManager);
@@ -503,71 +1267,22 @@ public class GooglePartition implements Partition {
                 }
 
                 if (user == null) {
-                    user = service.getDirectoryService(this.clientSecrets).users().get(userToCheck).execute();
-                }
-
-                //2. Create entry
-                userEntry = new DefaultEntry(schemaManager, dn);
-                userEntry.put("objectClass", SchemaConstants.INET_ORG_PERSON_OC);
-                userEntry.put(SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.TOP_OC, SchemaConstants.ORGANIZATIONAL_PERSON_OC, SchemaConstants.PERSON_OC, SchemaConstants.INET_ORG_PERSON_OC, "posixAccount");
-                userEntry.put(SchemaConstants.CN_AT, username);
-                userEntry.put(SchemaConstants.CN_AT, user.getName().getFullName());
-                userEntry.put(SchemaConstants.UID_AT, username);
-                userEntry.put(SchemaConstants.EMAIL_AT, user.getPrimaryEmail());
-                userEntry.put(SchemaConstants.GIVENNAME_AT, user.getName().getGivenName());
-                userEntry.put(SchemaConstants.SN_AT, user.getName().getFamilyName());
-                userEntry.put(SchemaConstants.OU_AT, "users");
-                userEntry.put(SchemaConstants.UID_NUMBER_AT, user.getId().substring(0, Math.min(user.getId().length(), 10)));
-                userEntry.put(SchemaConstants.GID_NUMBER_AT, user.getId().substring(0, Math.min(user.getId().length(), 10)));
-                userEntry.put(SchemaConstants.HOME_DIRECTORY_AT, "/home/"+username);
-                userEntry.put(SchemaConstants.LOGIN_SHELL_AT, "/bin/csh");
-                userEntry.put(SchemaConstants.GECOS_AT, user.getName().getFullName());
-                userEntry.put(SchemaConstants.SHADOW_LAST_CHANGE_AT, "1");
-                userEntry.put(SchemaConstants.SHADOW_MIN_AT, "0");
-                userEntry.put(SchemaConstants.SHADOW_MAX_AT, "999999");
-                userEntry.put(SchemaConstants.SHADOW_WARNING_AT, "0");
-                userEntry.put(SchemaConstants.SHADOW_INACTIVE_AT, "-1");
-                userEntry.put(SchemaConstants.SHADOW_EXPIRE_AT, "-1");
-                userEntry.put(SchemaConstants.SHADOW_FLAG_AT, "0");
-
-
-                List <ArrayMap> phones = (List<ArrayMap>) user.getPhones();
-                if (phones != null) {
-                    for (ArrayMap phone: phones) {
-                        if (phone.get("type").equals("mobile")) {
-                            userEntry.put(SchemaConstants.MOBILE_TELEPHONE_NUMBER_AT, phone.get("value").toString());
-                        } else if (phone.get("type").equals("work")) {
-                            userEntry.put(SchemaConstants.TELEPHONE_NUMBER_AT, phone.get("value").toString());
-                        }
-                    }
+                    user = service.getDirectory().users().get(userToCheck)
+                            .setFields(EntryFactory.USER_FIELDS)
+                            .execute();
+                    projection = Projection.ALL;
                 }
 
+                //2. Create entry, the aliases coming with the user
+                userEntry = entryFactory.createUserEntry(dn, user, user.getAliases(), projection);
 
-                List <ArrayMap> emails = (List<ArrayMap>) user.getEmails();
-                if (emails != null) {
-                    for (ArrayMap email: emails) {
-                        userEntry.add(SchemaConstants.EMAIL_AT, email.get("address").toString());
-                    }
-                }
-
-                // Print the first 10 users in the domain.
-                List<ArrayMap> aliases = null;
-                try {
-                    aliases = (List<ArrayMap>)(Object) service.getDirectoryService(this.clientSecrets).users().aliases().list(user.getPrimaryEmail()).execute().getAliases();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                if (projection.isAll()) {
+                    entryCache.put(dn.getName(), userEntry);
                 }
-
-                if (aliases != null) {
-                    for (ArrayMap alias : aliases) {
-                        userEntry.add(SchemaConstants.EMAIL_AT, alias.get("alias").toString());
-                    }
-                }
-
-
-
-                entryCache.put(dn.getName(), userEntry);
             } catch (Exception ex) {
+                if (isNotFound(ex)) {
+                    rememberMissing(dn);
+                }
                 log.debug("createUserEntry()", ex);
             }
         }
@@ -593,51 +1308,446 @@ public class GooglePartition implements Partition {
                 }
 
                 if (group == null) {
-                    group = service.getDirectoryService(this.clientSecrets).groups().get(groupToCheck).execute();
+                    group = service.getDirectory().groups().get(groupToCheck).execute();
                 }
 
-                String gid = "" + abs(group.getId().hashCode());
-                gid = gid.substring(0, Math.min(gid.length(), 10));
+                Map<String, List<Member>> members = membership.members(Collections.singletonList(group.getId()));
+                if (!members.containsKey(group.getId())) {
+                    rememberMissing(dn);
+                    return null;
+                }
 
                 //2. Create entry
-                groupEntry = new DefaultEntry(schemaManager, dn);
-                groupEntry.put(SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.TOP_OC, "posixGroup", "group");
-                groupEntry.put(SchemaConstants.GID_NUMBER_AT, gid);
-                groupEntry.put(SchemaConstants.CN_AT, groupname);
+                groupEntry = buildGroupEntry(dn, group, members.get(group.getId()));
+            } catch (Exception ex) {
+                if (isNotFound(ex)) {
+                    rememberMissing(dn);
+                }
+                log.debug("createGroupEntry()", ex);
+            }
+        }
+        return groupEntry;
+    }
 
-                if (group.getDescription() != null && !group.getDescription().equals("")) {
-                    groupEntry.put(SchemaConstants.DESCRIPTION_AT, group.getDescription());
+    /**
+     * Builds the entries of a page of groups, listing the members of every group that
+     * is not cached in batches rather than one group at a time.
+     *
+     * @param projection the attributes to build; unless it has the members, they are not
+     *                   listed and the entries built are not cached.
+     * @param limiter the rate limiter the member listings take permits from, or null.
+     */
+    private List<Entry> createGroupEntries(List<Group> groups, Projection projection, TokenBucket limiter)
+            throws IOException {
+        List<Dn> dns = new ArrayList<Dn>(groups.size());
+        List<Entry> entries = new ArrayList<Entry>(groups.size());
+        List<String> missing = new ArrayList<String>();
+        for (Group group : groups) {
+            Dn gdn = null;
+            Entry cached = null;
+            try {
+                gdn = entryFactory.groupDn(group);
+                cached = entryCache.get(gdn.getName());
+                if (cached == null) {
+                    missing.add(group.getId());
                 }
+            } catch (LdapInvalidDnException ex) {
+                log.debug("createGroupEntries()", ex);
+            }
+            dns.add(gdn);
+            entries.add(cached);
+        }
 
-                // Print the first 10 users in the domain.
-                List<Member> members = null;
-                try {
-                    members = service.getDirectoryService(this.clientSecrets).members().list(group.getId()).execute().getMembers();
-                } catch (IOException e) {
-                    e.printStackTrace();
+        boolean withMembers = entryFactory.needsMembers(projection);
+        Map<String, List<Member>> members = (missing.isEmpty() || !withMembers)
+                ? Collections.<String, List<Member>>emptyMap() : membership.members(missing, limiter);
+
+        List<Entry> l = new ArrayList<Entry>(groups.size());
+        for (int i = 0; i < groups.size(); i++) {
+            Group group = groups.get(i);
+            Entry entry = entries.get(i);
+            try {
+                if (entry == null && !withMembers && dns.get(i) != null) {
+                    entry = entryFactory.createGroupEntry(dns.get(i), group, null, projection);
+                } else if (entry == null && members.containsKey(group.getId())) {
+                    entry = buildGroupEntry(dns.get(i), group, members.get(group.getId()));
                 }
+            } catch (LdapException ex) {
+                log.debug("createGroupEntries()", ex);
+            }
+            if (entry != null) {
+                l.add(entry);
+            }
+        }
+        return l;
+    }
 
-                for (Member member: members) {
-                    if (member.getEmail() == null) {
-                        List<User> users = this.service.getDirectoryService(this.clientSecrets).users().list().setCustomer("my_customer").execute().getUsers();
-                        for (User user : users) {
-                            String uuid = user.getPrimaryEmail().split("@")[0];
-                            groupEntry.add(SchemaConstants.MEMBER_UID_AT, uuid);
+    /**
+     * Fetches a fresh copy of a stale user or group entry and puts it in the cache, or
+     * drops it if it no longer exists. If Google cannot be reached the stale entry is
+     * served until it expires.
+     *
+     * @param key the cache key, the Dn of the entry.
+     */
+    private void revalidate(String key) {
+        Dn dn = null;
+        try {
+            dn = new Dn(this.schemaManager, key);
+            Dn prefix = dn.getParent();
+            String email = dn.getRdn().getNormValue() + "@" + this.domain;
+
+            if (isGoogleUsers(prefix)) {
+                User user = service.getDirectory().users().get(email)
+                        .setFields(EntryFactory.USER_FIELDS)
+                        .execute();
+                entryCache.put(key, entryFactory.createUserEntry(dn, user, user.getAliases()));
+            } else if (isGoogleGroups(prefix)) {
+                Group group = service.getDirectory().groups().get(email).execute();
+                Map<String, List<Member>> members = membership.members(Collections.singletonList(group.getId()));
+                if (!members.containsKey(group.getId())) {
+                    entryCache.remove(key);
+                    rememberDomainGroup(email, false);
+                    rememberMissing(dn);
+                    return;
+                }
+                buildGroupEntry(dn, group, members.get(group.getId()));
+            }
+            log.debug("Revalidated " + key);
+        } catch (Exception ex) {
+            if (dn != null && isNotFound(ex)) {
+                entryCache.remove(key);
+                if (isGoogleGroups(dn.getParent())) {
+                    rememberDomainGroup(dn.getRdn().getNormValue() + "@" + this.domain, false);
+                }
+                rememberMissing(dn);
+            } else {
+                log.warn("Unable to refresh " + key + ", serving it until it expires", ex);
+            }
+        }
+    }
+
+    /**
+     * Builds a group entry from its members and caches it.
+     */
+    private Entry buildGroupEntry(Dn dn, Group group, List<Member> members) throws LdapException {
+        Set<String> memberUids = new LinkedHashSet<String>();
+        boolean wholeDomain = false;
+        for (Member member : members) {
+            if (member.getEmail() == null) {
+                // The whole domain is a member
+                memberUids.addAll(domainUids());
+                wholeDomain = true;
+            } else {
+                memberUids.add(EntryFactory.localPart(member.getEmail()));
+            }
+        }
+        rememberDomainGroup(group.getEmail(), wholeDomain);
+
+        Entry groupEntry = entryFactory.createGroupEntry(dn, group, memberUids);
+        entryCache.put(dn.getName(), groupEntry);
+        return groupEntry;
+    }
+
+    /**
+     * Records whether a group has the whole domain as member.
+     */
+    private void rememberDomainGroup(String email, boolean wholeDomain) {
+        if (wholeDomain) {
+            domainGroups.add(email.toLowerCase(Locale.ROOT));
+        } else {
+            domainGroups.remove(email.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * @return the uid of every user of the domain, taken from the names last listed for
+     *         the existence filter rather than from a new listing.
+     */
+    private List<String> domainUids() {
+        IdNumbers ids = idNumbers;
+        if (ids == null) {
+            rebuildExistenceFilter();
+            ids = idNumbers;
+        }
+        if (ids == null) {
+            log.warn("The users of the domain are not known, leaving them out of a group");
+            return Collections.emptyList();
+        }
+
+        List<String> uids = new ArrayList<String>();
+        for (String email : ids.getUserEmails()) {
+            uids.add(EntryFactory.localPart(email));
+        }
+        return uids;
+    }
+
+    /**
+     * Fetches a user or group entry from Google, unless it is known not to exist.
+     *
+     * @param dn the Dn of the entry.
+     * @return the entry, or null if the Dn is not a user or group or does not exist.
+     * @throws LdapServiceUnavailableException if Google did not answer in time.
+     */
+    private Entry fetchEntry(Dn dn) throws LdapException {
+        // The domain and its ous are never fetched
+        if (dn.size() != 4) {
+            return null;
+        }
+
+        Dn prefix = dn.getParent();
+        try {
+            prefix.apply(schemaManager);
+            dn.apply(schemaManager);
+        } catch (Exception ex) {
+            log.error("fetchEntry()", ex);
+        }
+        log.debug("Prefix=" + prefix);
+
+        if (!isGoogleUsers(prefix) && !isGoogleGroups(prefix)) {
+            log.debug("Prefix is neither users nor groups");
+            log.debug("Google Users = " + googleUsersEntry.getDn());
+            log.debug("Google Groups = " + googleGroupsEntry.getDn().toString());
+            return null;
+        }
+
+        if (isKnownMissing(dn)) {
+            log.debug("fetchEntry()::" + dn.getName() + " is known not to exist");
+            return null;
+        }
+
+        // Clients asking for the same entry at once share a single fetch, run away from
+        // the request thread
+        final Dn target = dn;
+        final boolean user = isGoogleUsers(prefix);
+        try {
+            return coalesce(entryFetches, dn.getNormName(), new Callable<Entry>() {
+                public Entry call() throws IOException {
+                    return upstream.call(new Callable<Entry>() {
+                        public Entry call() {
+                            return user ? createUserEntry(target, null) : createGroupEntry(target, null);
+                        }
+                    });
+                }
+            });
+        } catch (UpstreamExecutor.UnavailableException ex) {
+            throw new LdapServiceUnavailableException(ResultCodeEnum.UNAVAILABLE, ex.getMessage());
+        } catch (IOException ex) {
+            log.error("fetchEntry()", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Fetches a user by email.
+     *
+     * The existence filter and the negative cache are not consulted: they hold the Dns
+     * of primary emails, and an alias resolves to a user with another Dn.
+     *
+     * @param email the primary email or an alias of the user.
+     * @return the user, or null if it does not exist.
+     */
+    private User fetchUser(final String email) throws IOException {
+        try {
+            return coalesce(userFetches, email.toLowerCase(), new Callable<User>() {
+                public User call() throws IOException {
+                    return upstream.call(new Callable<User>() {
+                        public User call() throws IOException {
+                            return service.getDirectory().users().get(email)
+                                    .setFields(EntryFactory.USER_FIELDS)
+                                    .execute();
                         }
-                    } else {
-                        String uuid = member.getEmail().split("@")[0];
-                        groupEntry.add(SchemaConstants.MEMBER_UID_AT, uuid);
+                    });
+                }
+            });
+        } catch (GoogleJsonResponseException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Tests the negative cache and the existence filter. A Dn rejected by the filter
+     * is added to the negative cache.
+     *
+     * @param dn a user or group Dn, normalized against the schema.
+     * @return true if the Dn definitely does not exist.
+     */
+    private boolean isKnownMissing(Dn dn) {
+        String key = dn.getNormName();
+        if (negativeCache.containsKey(key)) {
+            return true;
+        }
+
+        BloomFilter filter = existenceFilter;
+        if (filter != null && !filter.mightContain(key)) {
+            negativeCache.put(key, Boolean.TRUE);
+            return true;
+        }
+        return false;
+    }
+
+    private void rememberMissing(Dn dn) {
+        negativeCache.put(dn.getNormName(), Boolean.TRUE);
+    }
+
+    /**
+     * Runs a call through a single-flight table, so concurrent identical calls to Google
+     * collapse into one.
+     *
+     * @throws IOException the exception thrown by the call, or an InterruptedIOException
+     *         if interrupted while waiting for another caller's call.
+     */
+    private static <V> V coalesce(SingleFlight<String, V> flights, String key, Callable<V> call) throws IOException {
+        try {
+            return flights.execute(key, call);
+        } catch (IOException ex) {
+            throw ex;
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + key);
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static boolean isNotFound(Exception ex) {
+        return ex instanceof GoogleJsonResponseException
+                && ((GoogleJsonResponseException) ex).getStatusCode() == 404;
+    }
+
+    /**
+     * Lists the emails and ids of every user and group and replaces the existence filter
+     * with one built from their Dns, and the known uid and gid numbers.
+     */
+    private void rebuildExistenceFilter() {
+        try {
+            List<String> keys = new ArrayList<String>();
+            Map<String, String> usersByUidNumber = new HashMap<String, String>();
+            Map<String, String> groupsByGidNumber = new HashMap<String, String>();
+            List<String> userEmails = new ArrayList<String>();
+            Map<String, String> groupEmails = new HashMap<String, String>();
+
+            String pageToken = null;
+            do {
+                Users users = service.getDirectory().users().list()
+                        .setCustomer("my_customer")
+                        .setMaxResults(USER_PAGE_SIZE)
+                        .setFields("nextPageToken,users(id,primaryEmail)")
+                        .setPageToken(pageToken)
+                        .execute();
+                if (users.getUsers() != null) {
+                    for (User user : users.getUsers()) {
+                        keys.add(entryFactory.userDn(user).getNormName());
+                        usersByUidNumber.put(EntryFactory.uidNumber(user), user.getPrimaryEmail());
+                        userEmails.add(user.getPrimaryEmail());
+                    }
+                }
+                pageToken = users.getNextPageToken();
+            } while (pageToken != null);
+
+            do {
+                Groups groups = service.getDirectory().groups().list()
+                        .setCustomer("my_customer")
+                        .setMaxResults(GROUP_PAGE_SIZE)
+                        .setFields("nextPageToken,groups(id,email)")
+                        .setPageToken(pageToken)
+                        .execute();
+                if (groups.getGroups() != null) {
+                    for (Group group : groups.getGroups()) {
+                        keys.add(entryFactory.groupDn(group).getNormName());
+                        groupsByGidNumber.put(EntryFactory.gidNumber(group), group.getEmail());
+                        groupEmails.put(group.getId(), group.getEmail());
                     }
                 }
+                pageToken = groups.getNextPageToken();
+            } while (pageToken != null);
 
+            BloomFilter filter = new BloomFilter(keys.size(), EXISTENCE_FILTER_FPP);
+            for (String key : keys) {
+                filter.put(key);
+            }
+            existenceFilter = filter;
+            idNumbers = new IdNumbers(usersByUidNumber, groupsByGidNumber, userEmails);
+            log.debug("Rebuilt the existence filter with " + keys.size() + " users and groups");
 
+            updateDomainGroups(groupEmails);
+        } catch (Exception ex) {
+            log.error("Unable to rebuild the existence filter", ex);
+        }
+    }
 
-                entryCache.put(dn.getName(), groupEntry);
-            } catch (Exception ex) {
-                log.debug("createUserEntry()", ex);
+    /**
+     * Drops the deleted groups from the groups having the whole domain as member, and
+     * lists the members of the groups created since the last listing to add theirs.
+     *
+     * @param groupEmails the email of every group, by id.
+     */
+    private void updateDomainGroups(Map<String, String> groupEmails) throws IOException {
+        Set<String> emails = new HashSet<String>();
+        for (String email : groupEmails.values()) {
+            emails.add(email.toLowerCase(Locale.ROOT));
+        }
+        domainGroups.retainAll(emails);
+
+        Set<String> previous = listedGroupIds;
+        listedGroupIds = new HashSet<String>(groupEmails.keySet());
+        if (previous == null) {
+            // The warm-up builds every group
+            return;
+        }
+        List<String> created = new ArrayList<String>();
+        for (String groupId : groupEmails.keySet()) {
+            if (!previous.contains(groupId)) {
+                created.add(groupId);
             }
         }
-        return groupEntry;
+        if (created.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, List<Member>> group : membership.members(created).entrySet()) {
+            boolean wholeDomain = false;
+            for (Member member : group.getValue()) {
+                wholeDomain |= member.getEmail() == null;
+            }
+            rememberDomainGroup(groupEmails.get(group.getKey()), wholeDomain);
+        }
+    }
+
+    /**
+     * Returns the domain, ou=users, ou=groups or cn=monitor entry for the given Dn. These
+     * entries are kept out of the cache so they can never be evicted.
+     */
+    private Entry getStructuralEntry(Dn dn) {
+        if (isGoogle(dn)) {
+            return googleEntry;
+        } else if (isGoogleUsers(dn)) {
+            return googleUsersEntry;
+        } else if (isGoogleGroups(dn)) {
+            return googleGroupsEntry;
+        } else if (monitorDn.equals(dn)) {
+            return createMonitorEntry();
+        }
+        return null;
+    }
+
+    /**
+     * Builds the cn=monitor entry, with a description value per metric as they stand
+     * now. It is not listed under the domain; it is read with a base search, e.g.
+     * {@code ldapsearch -b cn=monitor,dc=example,dc=com -s base}.
+     */
+    private Entry createMonitorEntry() {
+        Entry entry = new DefaultEntry(schemaManager, monitorDn);
+        try {
+            entry.put(SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.TOP_OC, SchemaConstants.APPLICATION_PROCESS_OC);
+            entry.put(SchemaConstants.CN_AT, "monitor");
+            for (String line : metrics.describe()) {
+                entry.add(SchemaConstants.DESCRIPTION_AT, line);
+            }
+        } catch (LdapException e) {
+            log.warn("Unable to build the monitor entry", e);
+        }
+        return entry;
     }
 
     private boolean isGoogle(Dn dn) {
@@ -653,26 +1763,102 @@ public class GooglePartition implements Partition {
     }
 
 
-    private void initPartition() throws IOException, LdapInvalidDnException {
-        List<User> users = users = this.service.getDirectoryService(this.clientSecrets).users().list().setCustomer("my_customer").execute().getUsers();
-        for (User un : users) {
-            String email = un.getPrimaryEmail();
-            String[] tokens = email.split("@");
+    /**
+     * Warms the entry cache up with every user and group.
+     *
+     * The users are listed on one worker while the groups are listed on the calling
+     * thread; the members of each page of groups are resolved on the other workers as
+     * soon as the page arrives. Every request to Google first takes a permit from a
+     * token bucket, so the warm-up stays within the Admin SDK quotas however many
+     * workers it has.
+     */
+    private void initPartition() throws IOException {
+        final long start = System.currentTimeMillis();
+        final TokenBucket limiter = new TokenBucket(warmUpRate, warmUpRate);
+        final AtomicInteger users = new AtomicInteger();
+        final AtomicInteger groups = new AtomicInteger();
+        final AtomicLong lastReport = new AtomicLong(start);
+
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(2, warmUpParallelism),
+                new NamedThreadFactory("partition-warm-up"));
+        try {
+            List<Future<?>> tasks = new ArrayList<Future<?>>();
+            tasks.add(workers.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    // Building the entries of a page is what caches them
+                    PagedCursor.PageFetcher<Entry> pages = userPages();
+                    String pageToken = null;
+                    do {
+                        acquire(limiter);
+                        PagedCursor.Page<Entry> page = pages.fetch(pageToken);
+                        users.addAndGet(page.getItems().size());
+                        reportProgress(start, lastReport, users, groups);
+                        pageToken = page.getNextPageToken();
+                    } while (pageToken != null);
+                    return null;
+                }
+            }));
+
+            try {
+                String pageToken = null;
+                do {
+                    acquire(limiter);
+                    final Groups page = service.getDirectory().groups().list()
+                            .setCustomer("my_customer")
+                            .setMaxResults(GROUP_PAGE_SIZE)
+                            .setPageToken(pageToken)
+                            .execute();
+                    if (page.getGroups() != null) {
+                        tasks.add(workers.submit(new Callable<Void>() {
+                            public Void call() throws IOException {
+                                groups.addAndGet(createGroupEntries(page.getGroups(), Projection.ALL, limiter).size());
+                                reportProgress(start, lastReport, users, groups);
+                                return null;
+                            }
+                        }));
+                    }
+                    pageToken = page.getNextPageToken();
+                } while (pageToken != null);
+            } catch (IOException ex) {
+                log.error("initPartition()", ex);
+            }
+
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException ex) {
+                    log.error("initPartition()", ex.getCause());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while warming up");
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
 
-            Dn udn = new Dn(this.schemaManager, String.format("cn=%s,%s", tokens[0], GOOGLE_USERS_DN));
-            createUserEntry(udn, un);
+        log.info(String.format("Warmed up %d users and %d groups in %dms",
+                users.get(), groups.get(), System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Logs how far the warm-up got, at most once every {@link #WARM_UP_PROGRESS_INTERVAL}.
+     */
+    private static void reportProgress(long start, AtomicLong lastReport, AtomicInteger users, AtomicInteger groups) {
+        long now = System.currentTimeMillis();
+        long last = lastReport.get();
+        if (now - last >= WARM_UP_PROGRESS_INTERVAL && lastReport.compareAndSet(last, now)) {
+            log.info(String.format("Warming up: %d users and %d groups after %ds",
+                    users.get(), groups.get(), (now - start) / 1000));
         }
+    }
 
+    private static void acquire(TokenBucket limiter) throws InterruptedIOException {
         try {
-            List<Group> groups = service.getDirectoryService(this.clientSecrets).groups().list().setCustomer("my_customer").execute().getGroups();
-
-            for (Group group : groups) {
-                String groupname = group.getEmail().split("@")[0];
-                Dn gdn = new Dn(this.schemaManager, String.format("cn=%s,%s", groupname, GOOGLE_GROUPS_DN));
-                createGroupEntry(gdn, group);
-            }
-        } catch (Exception ex) {
-            log.error("findOneLevel()", ex);
+            limiter.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the rate limiter");
         }
     }
 
@@ -0,0 +1,54 @@
+package com.dabsquared.googleldap;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The uidNumbers of every user and the gidNumbers of every group, mapped to the email
+ * of their owner, so a search by number can be answered by fetching a single account.
+ *
+ * Built in the background together with the existence filter and replaced as a whole.
+ */
+public class IdNumbers {
+
+    private final Map<String, String> usersByUidNumber;
+
+    private final Map<String, String> groupsByGidNumber;
+
+    private final List<String> userEmails;
+
+    /**
+     * @param usersByUidNumber the primary email of each user, by uidNumber.
+     * @param groupsByGidNumber the email of each group, by gidNumber.
+     * @param userEmails the primary email of every user; uidNumbers are truncated ids
+     *                   and may collide, so they cannot be told from the first map.
+     */
+    public IdNumbers(Map<String, String> usersByUidNumber, Map<String, String> groupsByGidNumber,
+                     List<String> userEmails) {
+        this.usersByUidNumber = Collections.unmodifiableMap(usersByUidNumber);
+        this.groupsByGidNumber = Collections.unmodifiableMap(groupsByGidNumber);
+        this.userEmails = Collections.unmodifiableList(userEmails);
+    }
+
+    /**
+     * @param uidNumber a uidNumber, which is also the gidNumber of the user's own group.
+     * @return the primary email of the user, or null if no user has this number.
+     */
+    public String userEmail(String uidNumber) {
+        return usersByUidNumber.get(uidNumber);
+    }
+
+    /** @return the primary email of every user. */
+    public List<String> getUserEmails() {
+        return userEmails;
+    }
+
+    /**
+     * @param gidNumber a gidNumber.
+     * @return the email of the group, or null if no group has this number.
+     */
+    public String groupEmail(String gidNumber) {
+        return groupsByGidNumber.get(gidNumber);
+    }
+}
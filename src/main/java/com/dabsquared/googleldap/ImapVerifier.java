@@ -0,0 +1,164 @@
+package com.dabsquared.googleldap;
+
+import com.dabsquared.googleldap.util.NamedThreadFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Verifies passwords by logging into Gmail over IMAPS.
+ *
+ * Logins run on a dedicated, bounded pool so a burst of binds can neither tie up the
+ * LDAP worker threads nor open an unbounded number of IMAP connections: a bind that
+ * finds the pool and its queue full, or that is not answered within the timeout,
+ * fails right away. The mail Session is built once and shared.
+ */
+public class ImapVerifier {
+
+    private static final Logger log = LogManager.getLogger(ImapVerifier.class);
+
+    public static final String DEFAULT_HOST = "imap.gmail.com";
+
+    public static final int DEFAULT_PORT = 993;
+
+    public static final int DEFAULT_MAX_CONCURRENT = 16;
+
+    public static final int DEFAULT_MAX_PENDING = 256;
+
+    public static final long DEFAULT_TIMEOUT = 10 * 1000L;
+
+    private final String host;
+
+    private final int port;
+
+    private final long timeout;
+
+    private final Session session;
+
+    private final ThreadPoolExecutor executor;
+
+    public ImapVerifier() {
+        this(DEFAULT_HOST, DEFAULT_PORT, DEFAULT_MAX_CONCURRENT, DEFAULT_MAX_PENDING, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param host the IMAPS host.
+     * @param port the IMAPS port.
+     * @param maxConcurrent the maximum number of logins in progress at once.
+     * @param maxPending the maximum number of logins waiting for a free slot.
+     * @param timeout milliseconds after which a bind is failed.
+     */
+    public ImapVerifier(String host, int port, int maxConcurrent, int maxPending, long timeout) {
+        this.host = host;
+        this.port = port;
+        this.timeout = timeout;
+
+        Properties properties = new Properties();
+        properties.put("mail.store.protocol", "imaps");
+        properties.put("mail.imap.ssl.enable", "true");
+        properties.put("mail.imap.port", String.valueOf(port));
+        properties.put("mail.imap.connectiontimeout", String.valueOf(timeout));
+        properties.put("mail.imap.timeout", String.valueOf(timeout));
+
+        session = Session.getInstance(properties, null);
+        session.setDebug(false);
+
+        executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(maxPending), new NamedThreadFactory("imap-bind"));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Resolves the IMAP host and completes one TLS handshake with it in the background,
+     * so the first binds find the address and a resumable TLS session already cached.
+     */
+    public void warmUp() {
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    long start = System.currentTimeMillis();
+                    try {
+                        InetAddress address = InetAddress.getByName(host);
+                        SSLSocket socket = (SSLSocket) SSLSocketFactory.getDefault().createSocket();
+                        try {
+                            socket.connect(new InetSocketAddress(address, port), (int) timeout);
+                            socket.startHandshake();
+                        } finally {
+                            socket.close();
+                        }
+                        log.debug("Warmed up " + host + " in " + (System.currentTimeMillis() - start) + "ms");
+                    } catch (Exception ex) {
+                        log.warn("Unable to warm up " + host, ex);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            log.debug("Skipping warm up of " + host, ex);
+        }
+    }
+
+    /**
+     * @param user the user, as user@domain.
+     * @param password the password.
+     * @return true if Gmail accepted the login.
+     * @throws javax.naming.AuthenticationException if too many binds are in progress or the login timed out.
+     * @throws Exception if the login failed, e.g. with a {@link javax.mail.AuthenticationFailedException}.
+     */
+    public boolean verify(final String user, final String password) throws Exception {
+        Future<Boolean> result;
+        try {
+            result = executor.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    return login(user, password);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            throw new javax.naming.AuthenticationException("Too many binds in progress, rejecting " + user);
+        }
+
+        try {
+            return result.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            result.cancel(true);
+            throw new javax.naming.AuthenticationException("Timed out verifying credentials for user: " + user);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) {
+                throw (Exception) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Logs in, on a thread of the pool.
+     *
+     * @return true if the login was accepted.
+     */
+    protected boolean login(String user, String password) throws Exception {
+        Store imapStore = session.getStore("imap");
+        imapStore.connect(host, port, user, password);
+
+        boolean works = imapStore.isConnected();
+        imapStore.close();
+        return works;
+    }
+}
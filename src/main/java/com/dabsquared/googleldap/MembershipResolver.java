@@ -0,0 +1,205 @@
+package com.dabsquared.googleldap;
+
+import com.dabsquared.googleldap.util.TokenBucket;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.admin.directory.model.Member;
+import com.google.api.services.admin.directory.model.Members;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lists the members of many groups at once through the Admin SDK batch endpoint.
+ *
+ * One members.list per group is queued, up to {@link #MAX_BATCH_SIZE} of them per HTTP
+ * round trip. A group with more members than fit in a page has its next page queued
+ * in the following round, so the number of round trips grows with the size of the
+ * largest group rather than with the number of groups.
+ *
+ * Sub-requests failing with a rate limit, a quota or a server error are sent again in a
+ * later round, after an exponential back-off; other errors fail at once.
+ */
+public class MembershipResolver {
+
+    private static final Logger log = LogManager.getLogger(MembershipResolver.class);
+
+    /** The Directory API batch endpoint; the global one the client defaults to is gone. */
+    private static final String BATCH_URL = "https://www.googleapis.com/batch/admin/directory_v1";
+
+    /** Sub-requests sent per round trip. */
+    public static final int MAX_BATCH_SIZE = 50;
+
+    private static final int MEMBER_PAGE_SIZE = 200;
+
+    private static final String MEMBER_FIELDS = "nextPageToken,members(email,type)";
+
+    /** Times a failing sub-request is sent before giving up. */
+    private static final int MAX_ATTEMPTS = 3;
+
+    /** Wait before the first retry of failed sub-requests, doubled at every further attempt. */
+    private static final long RETRY_BACKOFF_MILLIS = 1000;
+
+    private final DirectoryService service;
+
+    public MembershipResolver(DirectoryService service) {
+        this.service = service;
+    }
+
+    /**
+     * @param groupIds the ids of the groups.
+     * @return the members of each group, by group id. Groups that no longer exist are
+     *         left out. A member without an email stands for every user of the domain.
+     * @throws IOException if the members of a group could not be listed.
+     */
+    public Map<String, List<Member>> members(Collection<String> groupIds) throws IOException {
+        return members(groupIds, null);
+    }
+
+    /**
+     * @param groupIds the ids of the groups.
+     * @param limiter the rate limiter each sub-request takes a permit from, or null.
+     * @return the members of each group, by group id, as for {@link #members(Collection)}.
+     * @throws IOException if the members of a group could not be listed.
+     */
+    public Map<String, List<Member>> members(Collection<String> groupIds, TokenBucket limiter) throws IOException {
+        long start = System.currentTimeMillis();
+
+        final Map<String, List<Member>> members = new LinkedHashMap<String, List<Member>>(groupIds.size() * 2);
+        final Map<String, Integer> attempts = new HashMap<String, Integer>();
+        final int[] maxAttempt = new int[1];
+
+        // Group id -> token of the page to fetch next, null for the first page
+        Map<String, String> pending = new LinkedHashMap<String, String>();
+        for (String groupId : groupIds) {
+            members.put(groupId, new ArrayList<Member>());
+            pending.put(groupId, null);
+        }
+
+        int roundTrips = 0;
+        while (!pending.isEmpty()) {
+            final Map<String, String> next = new LinkedHashMap<String, String>();
+            final Map<String, String> retries = new LinkedHashMap<String, String>();
+            maxAttempt[0] = 0;
+
+            BatchRequest batch = newBatch();
+            for (Map.Entry<String, String> page : pending.entrySet()) {
+                final String groupId = page.getKey();
+                final String pageToken = page.getValue();
+
+                service.getDirectory().members().list(groupId)
+                        .setMaxResults(MEMBER_PAGE_SIZE)
+                        .setFields(MEMBER_FIELDS)
+                        .setPageToken(pageToken)
+                        .queue(batch, new JsonBatchCallback<Members>() {
+                            public void onSuccess(Members result, HttpHeaders headers) {
+                                if (result.getMembers() != null) {
+                                    members.get(groupId).addAll(result.getMembers());
+                                }
+                                if (result.getNextPageToken() != null) {
+                                    next.put(groupId, result.getNextPageToken());
+                                }
+                            }
+
+                            public void onFailure(GoogleJsonError error, HttpHeaders headers) throws IOException {
+                                if (error.getCode() == 404) {
+                                    log.debug("Group " + groupId + " no longer exists");
+                                    members.remove(groupId);
+                                    return;
+                                }
+                                Integer n = attempts.get(groupId);
+                                n = (n == null) ? 1 : n + 1;
+                                if (!isRetryable(error) || n >= MAX_ATTEMPTS) {
+                                    throw new IOException("Unable to list the members of group " + groupId
+                                            + ": " + error.getCode() + " " + error.getMessage());
+                                }
+                                attempts.put(groupId, n);
+                                maxAttempt[0] = Math.max(maxAttempt[0], n);
+                                retries.put(groupId, pageToken);
+                            }
+                        });
+
+                if (batch.size() == MAX_BATCH_SIZE) {
+                    execute(batch, limiter);
+                    roundTrips++;
+                    batch = newBatch();
+                }
+            }
+            if (batch.size() > 0) {
+                execute(batch, limiter);
+                roundTrips++;
+            }
+            if (!retries.isEmpty()) {
+                // Sent again at once, rate limited or failing sub-requests would fail again
+                backOff(RETRY_BACKOFF_MILLIS << (maxAttempt[0] - 1));
+                next.putAll(retries);
+            }
+            pending = next;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Listed the members of %d groups in %d round trips, %dms",
+                    groupIds.size(), roundTrips, System.currentTimeMillis() - start));
+        }
+        return members;
+    }
+
+    /**
+     * @return true for errors that may go away when the sub-request is sent again: rate
+     *         limits and quotas, and errors of the server.
+     */
+    private static boolean isRetryable(GoogleJsonError error) {
+        int code = error.getCode();
+        if (code == 429 || code >= 500) {
+            return true;
+        }
+        if (code == 403 && error.getErrors() != null) {
+            for (GoogleJsonError.ErrorInfo info : error.getErrors()) {
+                String reason = info.getReason();
+                if ("rateLimitExceeded".equals(reason) || "userRateLimitExceeded".equals(reason)
+                        || "quotaExceeded".equals(reason)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void backOff(long millis) throws IOException {
+        log.debug("Retrying failed sub-requests in " + millis + "ms");
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to retry");
+        }
+    }
+
+    private static void execute(BatchRequest batch, TokenBucket limiter) throws IOException {
+        if (limiter != null) {
+            try {
+                // Quotas count every sub-request
+                limiter.acquire(batch.size());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the rate limiter");
+            }
+        }
+        batch.execute();
+    }
+
+    private BatchRequest newBatch() {
+        return service.getDirectory().batch().setBatchUrl(new GenericUrl(BATCH_URL));
+    }
+}
@@ -0,0 +1,305 @@
+package com.dabsquared.googleldap;
+
+import com.dabsquared.googleldap.util.ConcurrentCacheMap;
+import com.dabsquared.googleldap.util.LatencyHistogram;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histograms, counters and cache statistics of the server, by name.
+ *
+ * Timers and counters are created the first time they are used, so callers just
+ * record under a name; nothing is locked on the way. Once {@link #exportToJmx()} is
+ * called every metric, including those created later, is also published as an MBean
+ * of the {@value #JMX_DOMAIN} domain. {@link #describe()} renders them all as text,
+ * which is what the monitor entry of the partition shows.
+ */
+public class Metrics {
+
+    private static final Logger log = LogManager.getLogger(Metrics.class);
+
+    public static final String JMX_DOMAIN = "com.dabsquared.googleldap";
+
+    /** Percentiles published for every timer. */
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private final ConcurrentMap<String, LatencyHistogram> timers = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final ConcurrentMap<String, ConcurrentCacheMap<?, ?>> caches = new ConcurrentHashMap<String, ConcurrentCacheMap<?, ?>>();
+
+    private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+    private MBeanServer mbeanServer;
+
+    /**
+     * @return the timer of the given name.
+     */
+    public LatencyHistogram timer(String name) {
+        LatencyHistogram timer = timers.get(name);
+        if (timer == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            timer = timers.putIfAbsent(name, created);
+            if (timer == null) {
+                timer = created;
+                export("Timer", name, new TimerView(timer), TimerMBean.class);
+            }
+        }
+        return timer;
+    }
+
+    /**
+     * @return the counter of the given name.
+     */
+    public AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+                export("Counter", name, new CounterView(counter), CounterMBean.class);
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Publishes the statistics of a cache, which keeps counting them itself.
+     */
+    public void registerCache(String name, ConcurrentCacheMap<?, ?> cache) {
+        if (caches.putIfAbsent(name, cache) == null) {
+            export("Cache", name, new CacheView(cache), CacheMBean.class);
+        }
+    }
+
+    /**
+     * Publishes every metric, now and from now on, on the platform MBean server.
+     */
+    public void exportToJmx() {
+        synchronized (registered) {
+            if (mbeanServer != null) {
+                return;
+            }
+            mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        }
+        for (Map.Entry<String, LatencyHistogram> e : timers.entrySet()) {
+            export("Timer", e.getKey(), new TimerView(e.getValue()), TimerMBean.class);
+        }
+        for (Map.Entry<String, AtomicLong> e : counters.entrySet()) {
+            export("Counter", e.getKey(), new CounterView(e.getValue()), CounterMBean.class);
+        }
+        for (Map.Entry<String, ConcurrentCacheMap<?, ?>> e : caches.entrySet()) {
+            export("Cache", e.getKey(), new CacheView(e.getValue()), CacheMBean.class);
+        }
+    }
+
+    /**
+     * Removes the MBeans published so far.
+     */
+    public void unexportFromJmx() {
+        synchronized (registered) {
+            for (ObjectName name : registered) {
+                try {
+                    mbeanServer.unregisterMBean(name);
+                } catch (JMException ex) {
+                    log.debug("Unable to unregister " + name, ex);
+                }
+            }
+            registered.clear();
+            mbeanServer = null;
+        }
+    }
+
+    /**
+     * @return one line per metric, sorted by name, e.g.
+     *         {@code timer lookup: count=12 mean=0.41ms p50=0.12ms p90=1.2ms p99=3.1ms p99.9=3.1ms max=3.1ms}.
+     */
+    public List<String> describe() {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, LatencyHistogram> e : new TreeMap<String, LatencyHistogram>(timers).entrySet()) {
+            LatencyHistogram h = e.getValue();
+            StringBuilder sb = new StringBuilder("timer ").append(e.getKey())
+                    .append(": count=").append(h.getCount())
+                    .append(" mean=").append(millis(h.getMean()));
+            for (double p : PERCENTILES) {
+                sb.append(" p").append(percentileName(p)).append('=').append(millis(h.getPercentile(p)));
+            }
+            sb.append(" max=").append(millis(h.getMax()));
+            lines.add(sb.toString());
+        }
+        for (Map.Entry<String, AtomicLong> e : new TreeMap<String, AtomicLong>(counters).entrySet()) {
+            lines.add("counter " + e.getKey() + ": " + e.getValue().get());
+        }
+        for (Map.Entry<String, ConcurrentCacheMap<?, ?>> e : new TreeMap<String, ConcurrentCacheMap<?, ?>>(caches).entrySet()) {
+            CacheView c = new CacheView(e.getValue());
+            lines.add("cache " + e.getKey() + ": size=" + c.getSize() + " weight=" + c.getWeight()
+                    + " hits=" + c.getHitCount() + " misses=" + c.getMissCount()
+                    + String.format(" hitRatio=%.3f", c.getHitRatio())
+                    + " staleHits=" + c.getStaleHitCount() + " evictions=" + c.getEvictionCount()
+                    + " expirations=" + c.getExpirationCount());
+        }
+        return lines;
+    }
+
+    private <T> void export(String type, String name, T view, Class<T> mbeanInterface) {
+        synchronized (registered) {
+            if (mbeanServer == null) {
+                return;
+            }
+            try {
+                ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+                if (mbeanServer.isRegistered(objectName)) {
+                    log.debug(objectName + " is already registered");
+                    return;
+                }
+                mbeanServer.registerMBean(new StandardMBean(view, mbeanInterface), objectName);
+                registered.add(objectName);
+            } catch (JMException ex) {
+                log.warn("Unable to publish the " + name + " metric over JMX", ex);
+            }
+        }
+    }
+
+    private static String millis(double nanos) {
+        return String.format("%.3fms", nanos / TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    private static String percentileName(double p) {
+        return (p == Math.rint(p)) ? String.valueOf((long) p) : String.valueOf(p);
+    }
+
+    public interface TimerMBean {
+        long getCount();
+        double getMeanMillis();
+        double getP50Millis();
+        double getP90Millis();
+        double getP99Millis();
+        double getP999Millis();
+        double getMaxMillis();
+    }
+
+    public interface CounterMBean {
+        long getCount();
+    }
+
+    public interface CacheMBean {
+        int getSize();
+        long getWeight();
+        long getHitCount();
+        long getMissCount();
+        double getHitRatio();
+        long getStaleHitCount();
+        long getEvictionCount();
+        long getExpirationCount();
+    }
+
+    private static class TimerView implements TimerMBean {
+        private final LatencyHistogram histogram;
+
+        TimerView(LatencyHistogram histogram) {
+            this.histogram = histogram;
+        }
+
+        public long getCount() {
+            return histogram.getCount();
+        }
+
+        public double getMeanMillis() {
+            return toMillis(histogram.getMean());
+        }
+
+        public double getP50Millis() {
+            return toMillis(histogram.getPercentile(50));
+        }
+
+        public double getP90Millis() {
+            return toMillis(histogram.getPercentile(90));
+        }
+
+        public double getP99Millis() {
+            return toMillis(histogram.getPercentile(99));
+        }
+
+        public double getP999Millis() {
+            return toMillis(histogram.getPercentile(99.9));
+        }
+
+        public double getMaxMillis() {
+            return toMillis(histogram.getMax());
+        }
+
+        private static double toMillis(double nanos) {
+            return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+
+    private static class CounterView implements CounterMBean {
+        private final AtomicLong counter;
+
+        CounterView(AtomicLong counter) {
+            this.counter = counter;
+        }
+
+        public long getCount() {
+            return counter.get();
+        }
+    }
+
+    private static class CacheView implements CacheMBean {
+        private final ConcurrentCacheMap<?, ?> cache;
+
+        CacheView(ConcurrentCacheMap<?, ?> cache) {
+            this.cache = cache;
+        }
+
+        public int getSize() {
+            return cache.size();
+        }
+
+        public long getWeight() {
+            return cache.getWeight();
+        }
+
+        public long getHitCount() {
+            return cache.getHitCount();
+        }
+
+        public long getMissCount() {
+            return cache.getMissCount();
+        }
+
+        public double getHitRatio() {
+            long hits = cache.getHitCount();
+            long lookups = hits + cache.getMissCount();
+            return (lookups == 0) ? 0 : (double) hits / lookups;
+        }
+
+        public long getStaleHitCount() {
+            return cache.getStaleHitCount();
+        }
+
+        public long getEvictionCount() {
+            return cache.getEvictionCount();
+        }
+
+        public long getExpirationCount() {
+            return cache.getExpirationCount();
+        }
+    }
+}
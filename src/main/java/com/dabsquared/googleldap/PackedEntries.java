@@ -0,0 +1,593 @@
+package com.dabsquared.googleldap;
+
+import com.dabsquared.googleldap.util.StringTable;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.StringValue;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The users or the groups of a snapshot, packed into columns, out of which an
+ * {@link Entry} is only built when it is returned.
+ *
+ * Every attribute type gets a column holding one int per entry: the id in a
+ * {@link StringTable} of its value, or the offset of its values when it has several.
+ * The string table is shared by the users and the groups, so a uid is stored once
+ * for the user and every group listing it as a member. A column whose values are the
+ * same for every entry, such as the object classes or the shadow attributes, is stored
+ * once.
+ *
+ * The normalized form of the values is kept next to them, in a second set of cells
+ * where it differs, and an entry's Dn is its Rdn under the already parsed Dn of its
+ * parent, so building an entry, and indexing the entries, normalize nothing.
+ *
+ * Entries are numbered from 0 in the order they were added; the indexes and the
+ * snapshot refer to them by that number.
+ */
+public class PackedEntries {
+
+    /** The cell of an entry without the attribute. */
+    private static final int NONE = -1;
+
+    /** Cells below this one are {@code MULTI - offset} of a list of values. */
+    private static final int MULTI = -2;
+
+    private final SchemaManager schemaManager;
+
+    private final StringTable strings;
+
+    private final int size;
+
+    /** Per entry, the Google id, etag, user provided Rdn, normalized Rdn value and normalized parent Dn. */
+    private final int[] ids;
+
+    private final int[] etags;
+
+    private final int[] rdns;
+
+    private final int[] names;
+
+    private final int[] parents;
+
+    /** The parent Dns, by the string id of their normalized name. */
+    private final Map<Integer, Dn> parentDns;
+
+    /** The entries ordered by the string ids of their Google id, and of their name. */
+    private final int[] byId;
+
+    private final int[] byName;
+
+    private final Column[] columns;
+
+    /** The lists of values: a count followed by that many string ids. */
+    private final int[] lists;
+
+    private PackedEntries(Builder builder) {
+        this.schemaManager = builder.schemaManager;
+        this.strings = builder.strings;
+        this.size = builder.size;
+        this.ids = Arrays.copyOf(builder.ids, size);
+        this.etags = Arrays.copyOf(builder.etags, size);
+        this.rdns = Arrays.copyOf(builder.rdns, size);
+        this.names = Arrays.copyOf(builder.names, size);
+        this.parents = Arrays.copyOf(builder.parents, size);
+        this.parentDns = new HashMap<Integer, Dn>(builder.parentDns);
+        this.byId = order(ids);
+        this.byName = order(names);
+        this.lists = Arrays.copyOf(builder.lists, builder.listsLength);
+
+        this.columns = new Column[builder.columns.size()];
+        for (int c = 0; c < columns.length; c++) {
+            Column column = builder.columns.get(c);
+            column.trim(size);
+            column.fold(lists, size);
+            columns[c] = column;
+        }
+    }
+
+    /** @return the number of entries. */
+    public int size() {
+        return size;
+    }
+
+    /** @return the table the strings of the entries are interned in. */
+    public StringTable getStrings() {
+        return strings;
+    }
+
+    /** @return the Google id of an entry. */
+    public String getId(int entry) {
+        return strings.get(ids[entry]);
+    }
+
+    /** @return the etag of an entry, may be null. */
+    public String getEtag(int entry) {
+        return (etags[entry] == NONE) ? null : strings.get(etags[entry]);
+    }
+
+    /** @return the normalized value of the Rdn of an entry, the uid of a user or the cn of a group. */
+    public String getName(int entry) {
+        return strings.get(names[entry]);
+    }
+
+    /**
+     * @param id a Google id.
+     * @return the entry of that id, or -1.
+     */
+    public int findById(String id) {
+        return find(byId, ids, strings.find(id));
+    }
+
+    /**
+     * @param dn a Dn normalized against the schema.
+     * @return the entry of that Dn, or -1.
+     */
+    public int find(Dn dn) {
+        if (dn.size() == 0) {
+            return -1;
+        }
+        int parent = strings.find(dn.getParent().getNormName());
+        int name = strings.find(dn.getRdn(0).getNormValue());
+        if (parent < 0 || name < 0) {
+            return -1;
+        }
+        // Entries of the same name under other parents sit next to each other
+        for (int at = lowerBound(byName, names, name); at < size && names[byName[at]] == name; at++) {
+            if (parents[byName[at]] == parent) {
+                return byName[at];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param oid the OID of an attribute type.
+     * @return the type of the attribute if an entry has it, otherwise null.
+     */
+    public AttributeType getAttributeType(String oid) {
+        Column column = column(oid);
+        return (column == null) ? null : column.attributeType;
+    }
+
+    /**
+     * @param entry an entry.
+     * @param oid the OID of an attribute type.
+     * @return the user provided values of the attribute of the entry, or null if it has none.
+     */
+    public String[] getValues(int entry, String oid) {
+        Column column = column(oid);
+        return (column == null) ? null : column.values(column.cell(entry), lists, strings);
+    }
+
+    /**
+     * @param entry an entry.
+     * @param oid the OID of an attribute type.
+     * @return the normalized values of the attribute of the entry, in the order of the
+     *         user provided ones, or null if it has none.
+     */
+    public String[] getNormValues(int entry, String oid) {
+        Column column = column(oid);
+        return (column == null) ? null : column.values(column.normCell(entry), lists, strings);
+    }
+
+    /**
+     * @return the whole entry.
+     */
+    public Entry get(int entry) {
+        return get(entry, Projection.ALL);
+    }
+
+    /**
+     * @param entry an entry.
+     * @param projection the attributes to build.
+     * @return a new entry holding the attributes of the projection.
+     */
+    public Entry get(int entry, Projection projection) {
+        try {
+            Entry e = new DefaultEntry(schemaManager, getDn(entry));
+            for (Column column : columns) {
+                if (!projection.contains(column.attributeType)) {
+                    continue;
+                }
+                String[] values = column.values(column.cell(entry), lists, strings);
+                if (values == null) {
+                    continue;
+                }
+                if (!column.attributeType.getSyntax().isHumanReadable()) {
+                    e.add(column.upId, column.attributeType, values);
+                    continue;
+                }
+                String[] norms = column.normalized ? values : column.values(column.normCell(entry), lists, strings);
+                Value<?>[] normalized = new Value<?>[values.length];
+                for (int v = 0; v < values.length; v++) {
+                    normalized[v] = new NormalizedValue(column.attributeType, values[v], norms[v]);
+                }
+                e.add(column.upId, column.attributeType, normalized);
+            }
+            return e;
+        } catch (LdapException ex) {
+            // Cannot happen, the Dn and the values come from an entry of the same schema
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @param entry an entry.
+     * @return its Dn, built from its Rdn and the Dn of its parent, which are normalized already.
+     */
+    public Dn getDn(int entry) throws LdapException {
+        return new Dn(new Rdn(schemaManager, strings.get(rdns[entry])), parentDns.get(parents[entry]));
+    }
+
+    /**
+     * @param projection the attributes to build.
+     * @return every entry, each built when it is read.
+     */
+    public List<Entry> list(Projection projection) {
+        return list(null, projection);
+    }
+
+    /**
+     * @param entries entry numbers, or null for all of them.
+     * @param projection the attributes to build.
+     * @return the entries, each built when it is read.
+     */
+    public List<Entry> list(final int[] entries, final Projection projection) {
+        return new AbstractList<Entry>() {
+            @Override
+            public Entry get(int index) {
+                return PackedEntries.this.get((entries == null) ? index : entries[index], projection);
+            }
+
+            @Override
+            public int size() {
+                return (entries == null) ? size : entries.length;
+            }
+        };
+    }
+
+    /**
+     * @return the approximate heap used by the entries, without the string table.
+     */
+    public long getMemoryUsage() {
+        long bytes = 4L * (7 * size + lists.length);
+        for (Column column : columns) {
+            bytes += (column.cells == null) ? 0 : 4L * column.cells.length;
+            bytes += (column.normCells == null) ? 0 : 4L * column.normCells.length;
+        }
+        return bytes;
+    }
+
+    private Column column(String oid) {
+        for (Column column : columns) {
+            if (column.attributeType.getOid().equals(oid)) {
+                return column;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the entry whose key is the given string id, through the order of the keys, or -1.
+     */
+    private static int find(int[] order, int[] keys, int key) {
+        if (key < 0) {
+            return -1;
+        }
+        int at = lowerBound(order, keys, key);
+        return (at < order.length && keys[order[at]] == key) ? order[at] : -1;
+    }
+
+    /**
+     * @return the first position in the order whose key is not less than the given one.
+     */
+    private static int lowerBound(int[] order, int[] keys, int key) {
+        int lo = 0;
+        int hi = order.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[order[mid]] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return the entry numbers, ordered by their keys.
+     */
+    private static int[] order(int[] keys) {
+        long[] pairs = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            pairs[i] = ((long) keys[i] << 32) | i;
+        }
+        Arrays.sort(pairs);
+        int[] order = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            order[i] = (int) pairs[i];
+        }
+        return order;
+    }
+
+    /**
+     * The values of one attribute type.
+     */
+    private static final class Column {
+        final AttributeType attributeType;
+        final String upId;
+        /** Per entry, {@link #NONE}, the string id of its value, or {@code MULTI - offset} of its values. */
+        int[] cells;
+        /** The cell of every entry, for a column whose cells were all the same. */
+        int constant;
+        /** The cells of the normalized values, laid out as {@link #cells}; null if they are the same. */
+        int[] normCells;
+        int normConstant;
+        /** True if every value is its own normalized form, so it need not be normalized again. */
+        boolean normalized = true;
+
+        Column(AttributeType attributeType, String upId, int capacity) {
+            this.attributeType = attributeType;
+            this.upId = upId;
+            this.cells = new int[capacity];
+            this.normCells = new int[capacity];
+            Arrays.fill(cells, NONE);
+            Arrays.fill(normCells, NONE);
+        }
+
+        int cell(int entry) {
+            return (cells == null) ? constant : cells[entry];
+        }
+
+        int normCell(int entry) {
+            if (normalized) {
+                return cell(entry);
+            }
+            return (normCells == null) ? normConstant : normCells[entry];
+        }
+
+        String[] values(int cell, int[] lists, StringTable strings) {
+            if (cell == NONE) {
+                return null;
+            }
+            if (cell >= 0) {
+                return new String[] {strings.get(cell)};
+            }
+            int offset = MULTI - cell;
+            String[] values = new String[lists[offset]];
+            for (int v = 0; v < values.length; v++) {
+                values[v] = strings.get(lists[offset + 1 + v]);
+            }
+            return values;
+        }
+
+        void grow(int capacity) {
+            int from = cells.length;
+            cells = Arrays.copyOf(cells, capacity);
+            normCells = Arrays.copyOf(normCells, capacity);
+            Arrays.fill(cells, from, capacity, NONE);
+            Arrays.fill(normCells, from, capacity, NONE);
+        }
+
+        /**
+         * Cuts the cells down to the number of entries, dropping the normalized ones if
+         * every value is normalized already.
+         */
+        void trim(int size) {
+            cells = Arrays.copyOf(cells, size);
+            normCells = normalized ? null : Arrays.copyOf(normCells, size);
+        }
+
+        /**
+         * Drops the cells if they all hold the same values, which then have the same
+         * normalized values too.
+         */
+        void fold(int[] lists, int size) {
+            if (size == 0) {
+                return;
+            }
+            for (int entry = 1; entry < size; entry++) {
+                if (!sameValues(lists, cells[0], cells[entry])) {
+                    return;
+                }
+            }
+            constant = cells[0];
+            cells = null;
+            if (normCells != null) {
+                normConstant = normCells[0];
+                normCells = null;
+            }
+        }
+
+        private static boolean sameValues(int[] lists, int a, int b) {
+            if (a == b) {
+                return true;
+            }
+            if (a > MULTI || b > MULTI) {
+                return false;
+            }
+            int offsetA = MULTI - a;
+            int offsetB = MULTI - b;
+            return Arrays.equals(Arrays.copyOfRange(lists, offsetA, offsetA + 1 + lists[offsetA]),
+                    Arrays.copyOfRange(lists, offsetB, offsetB + 1 + lists[offsetB]));
+        }
+    }
+
+    /**
+     * A value built with its normalized form.
+     *
+     * Building an entry with strings normalizes every value again, which for a group of
+     * thousands of members costs more than the rest of the search.
+     */
+    private static final class NormalizedValue extends StringValue {
+        private static final long serialVersionUID = 1L;
+
+        NormalizedValue(AttributeType attributeType, String value, String normValue) {
+            super(value, normValue);
+            this.attributeType = attributeType;
+        }
+    }
+
+    /**
+     * Packs entries one at a time. Not thread-safe.
+     */
+    public static class Builder {
+
+        private final SchemaManager schemaManager;
+
+        private final StringTable strings;
+
+        private final List<Column> columns = new ArrayList<Column>();
+
+        private final Map<String, Column> columnsByOid = new HashMap<String, Column>();
+
+        private int size;
+
+        private int[] ids;
+
+        private int[] etags;
+
+        private int[] rdns;
+
+        private int[] names;
+
+        private int[] parents;
+
+        private final Map<Integer, Dn> parentDns = new HashMap<Integer, Dn>();
+
+        private int[] lists = new int[1024];
+
+        private int listsLength;
+
+        /**
+         * @param schemaManager the schema manager the entries are built against.
+         * @param strings the table to intern the strings of the entries in.
+         * @param capacity the number of entries expected.
+         */
+        public Builder(SchemaManager schemaManager, StringTable strings, int capacity) {
+            this.schemaManager = schemaManager;
+            this.strings = strings;
+            int n = Math.max(16, capacity);
+            this.ids = new int[n];
+            this.etags = new int[n];
+            this.rdns = new int[n];
+            this.names = new int[n];
+            this.parents = new int[n];
+        }
+
+        /**
+         * @param id the Google id of the user or group.
+         * @param etag its etag, may be null.
+         * @param entry its entry.
+         */
+        public void add(String id, String etag, Entry entry) {
+            Dn dn = entry.getDn();
+            int n = next(id, etag, dn.getRdn().getName(), dn.getRdn().getNormValue(), dn.getParent());
+            for (Attribute attribute : entry) {
+                String[] values = new String[attribute.size()];
+                String[] norms = new String[values.length];
+                int v = 0;
+                for (Value<?> value : attribute) {
+                    values[v] = value.getString();
+                    Object norm = attribute.isHumanReadable() ? value.getNormValue() : null;
+                    norms[v++] = (norm instanceof String) ? (String) norm : value.getString();
+                }
+                put(n, attribute.getAttributeType(), attribute.getUpId(), values, norms);
+            }
+        }
+
+        /**
+         * Copies an entry without building it.
+         *
+         * @param from the entries to copy from, whose string table may be another one.
+         * @param entry the entry to copy.
+         */
+        public void add(PackedEntries from, int entry) {
+            StringTable s = from.strings;
+            int n = next(s.get(from.ids[entry]), from.getEtag(entry), s.get(from.rdns[entry]),
+                    s.get(from.names[entry]), from.parentDns.get(from.parents[entry]));
+            for (Column column : from.columns) {
+                String[] values = column.values(column.cell(entry), from.lists, s);
+                if (values != null) {
+                    put(n, column.attributeType, column.upId, values,
+                            column.normalized ? values : column.values(column.normCell(entry), from.lists, s));
+                }
+            }
+        }
+
+        public PackedEntries build() {
+            return new PackedEntries(this);
+        }
+
+        private int next(String id, String etag, String rdn, String name, Dn parent) {
+            if (size == ids.length) {
+                int n = size * 2;
+                ids = Arrays.copyOf(ids, n);
+                etags = Arrays.copyOf(etags, n);
+                rdns = Arrays.copyOf(rdns, n);
+                names = Arrays.copyOf(names, n);
+                parents = Arrays.copyOf(parents, n);
+                for (Column column : columns) {
+                    column.grow(n);
+                }
+            }
+            ids[size] = strings.intern(id);
+            etags[size] = (etag == null) ? NONE : strings.intern(etag);
+            rdns[size] = strings.intern(rdn);
+            names[size] = strings.intern(name);
+            parents[size] = strings.intern(parent.getNormName());
+            if (!parentDns.containsKey(parents[size])) {
+                parentDns.put(parents[size], parent);
+            }
+            return size++;
+        }
+
+        private void put(int entry, AttributeType attributeType, String upId, String[] values, String[] norms) {
+            Column column = columnsByOid.get(attributeType.getOid());
+            if (column == null) {
+                column = new Column(attributeType, upId, ids.length);
+                columns.add(column);
+                columnsByOid.put(attributeType.getOid(), column);
+            }
+            if (values.length == 0) {
+                return;
+            }
+            column.cells[entry] = cell(values);
+            column.normCells[entry] = Arrays.equals(values, norms) ? column.cells[entry] : cell(norms);
+            column.normalized &= column.normCells[entry] == column.cells[entry];
+        }
+
+        /**
+         * @return the cell of the values: the string id of a single value, or
+         *         {@code MULTI - offset} of the list of several.
+         */
+        private int cell(String[] values) {
+            if (values.length == 1) {
+                return strings.intern(values[0]);
+            }
+            if (listsLength + 1 + values.length > lists.length) {
+                lists = Arrays.copyOf(lists, Math.max(listsLength + 1 + values.length, lists.length * 2));
+            }
+            int cell = MULTI - listsLength;
+            lists[listsLength++] = values.length;
+            for (String value : values) {
+                lists[listsLength++] = strings.intern(value);
+            }
+            return cell;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package com.dabsquared.googleldap;
+
+import org.apache.directory.api.ldap.model.cursor.AbstractCursor;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.cursor.InvalidCursorPositionException;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapServiceUnavailableException;
+import org.apache.directory.api.ldap.model.exception.LdapTimeLimitExceededException;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A cursor over a paginated Admin SDK listing.
+ *
+ * The first page is fetched on the first call to {@link #next()}; as soon as a page
+ * arrives the next one is requested in the background, so the caller consumes one
+ * page while the following one is in flight. Only two pages are ever held in memory:
+ * the current one and the one before it, which {@link #previous()} can step back
+ * into. This is what the paged results and size limit handling of the LDAP server
+ * needs, as it reads one entry beyond the page or limit and then steps back.
+ *
+ * Seeking works on the same window: {@link #before(Object)} and {@link #after(Object)}
+ * look for the element in it and then read on through the listing until they find it,
+ * and {@link #afterLast()} and {@link #last()} read the listing to its end.
+ *
+ * Pages are fetched through an {@link UpstreamExecutor}, never on the calling thread,
+ * and waiting for one fails with an unavailable error after the timeout of the
+ * executor. The cursor can also be given a size limit, past which no page is
+ * prefetched, and a deadline, past which waiting for a page fails with a time limit
+ * exceeded error.
+ */
+public class PagedCursor<E> extends AbstractCursor<E> {
+
+    private static final Logger log = LogManager.getLogger(PagedCursor.class);
+
+    /**
+     * Fetches a single page of a listing.
+     */
+    public interface PageFetcher<E> {
+        /**
+         * @param pageToken the token of the page to fetch, or null for the first page.
+         * @return the page, never null.
+         * @throws IOException if the page cannot be fetched.
+         */
+        Page<E> fetch(String pageToken) throws IOException;
+    }
+
+    /**
+     * One page of a listing and the token of the page after it.
+     */
+    public static class Page<E> {
+        private final List<E> items;
+        private final String nextPageToken;
+
+        public Page(List<E> items, String nextPageToken) {
+            this.items = items == null ? Collections.<E>emptyList() : items;
+            this.nextPageToken = nextPageToken;
+        }
+
+        public List<E> getItems() {
+            return items;
+        }
+
+        public String getNextPageToken() {
+            return nextPageToken;
+        }
+    }
+
+    private final PageFetcher<E> fetcher;
+
+    private final UpstreamExecutor upstream;
+
+    /** The previous page followed by the current one. */
+    private List<E> window = Collections.emptyList();
+
+    /** Index in the window of the first element of the current page. */
+    private int pageStart = 0;
+
+    /**
+     * Position in the window; -1 before the first element, window.size() after the last.
+     * Between two elements, after a seek, it is the position of the first one.
+     */
+    private int index = -1;
+
+    /** Position in the whole listing of the first element of the window. */
+    private long offset = 0;
+
+    private boolean started = false;
+
+    private Future<Page<E>> pending;
+
+    /** The token of the page after the last one loaded, when it was not prefetched. */
+    private String nextPageToken;
+
+    private E current;
+
+    private long sizeLimit = 0;
+
+    private long deadline = 0;
+
+    public PagedCursor(PageFetcher<E> fetcher, UpstreamExecutor upstream) {
+        this.fetcher = fetcher;
+        this.upstream = upstream;
+    }
+
+    /**
+     * @param sizeLimit the number of elements the caller will read, or 0 if unknown.
+     *                  Once the pages fetched hold more than that, no page is prefetched;
+     *                  a caller reading on still gets the next page, fetched on demand.
+     */
+    public void setSizeLimit(long sizeLimit) {
+        this.sizeLimit = sizeLimit;
+    }
+
+    /**
+     * @param deadline the time after which waiting for a page fails, in milliseconds since
+     *                 the epoch, or 0 to only bound each page by the timeout of the executor.
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public boolean available() {
+        return current != null;
+    }
+
+    public boolean next() throws LdapException, CursorException {
+        checkNotClosed("next()");
+
+        while (true) {
+            if (index + 1 < window.size()) {
+                index++;
+                current = window.get(index);
+                return true;
+            }
+            if (!loadNextPage()) {
+                index = window.size();
+                current = null;
+                return false;
+            }
+        }
+    }
+
+    public boolean previous() throws LdapException, CursorException {
+        checkNotClosed("previous()");
+
+        if (current == null && index >= 0 && index < window.size()) {
+            // Between two elements
+            current = window.get(index);
+            return true;
+        }
+        if (index > 0) {
+            index--;
+            current = window.get(index);
+            return true;
+        }
+        index = -1;
+        current = null;
+        return false;
+    }
+
+    public E get() throws CursorException {
+        checkNotClosed("get()");
+
+        if (current == null) {
+            throw new InvalidCursorPositionException();
+        }
+        return current;
+    }
+
+    public void beforeFirst() throws LdapException, CursorException {
+        checkNotClosed("beforeFirst()");
+
+        if (!started) {
+            return;
+        }
+        cancelPending();
+        window = Collections.emptyList();
+        pageStart = 0;
+        index = -1;
+        offset = 0;
+        started = false;
+        nextPageToken = null;
+        current = null;
+    }
+
+    public boolean first() throws LdapException, CursorException {
+        beforeFirst();
+        return next();
+    }
+
+    /**
+     * Positions the cursor before the element, or after the last one if the listing does
+     * not hold it.
+     */
+    public void before(E element) throws LdapException, CursorException {
+        checkNotClosed("before()");
+
+        int i = find(element);
+        index = (i < 0) ? window.size() : i - 1;
+        current = null;
+    }
+
+    /**
+     * Positions the cursor after the element, or after the last one if the listing does
+     * not hold it.
+     */
+    public void after(E element) throws LdapException, CursorException {
+        checkNotClosed("after()");
+
+        int i = find(element);
+        index = (i < 0) ? window.size() : i;
+        current = null;
+    }
+
+    public void afterLast() throws LdapException, CursorException {
+        checkNotClosed("afterLast()");
+
+        while (loadNextPage()) {
+            // Only the last two pages are kept
+        }
+        index = window.size();
+        current = null;
+    }
+
+    public boolean last() throws LdapException, CursorException {
+        afterLast();
+        return previous();
+    }
+
+    public void close() throws IOException {
+        cancelPending();
+        super.close();
+    }
+
+    public void close(Exception cause) throws IOException {
+        cancelPending();
+        super.close(cause);
+    }
+
+    /**
+     * Loads the page after the window, waiting for it if it was prefetched.
+     *
+     * @return false if there is none.
+     */
+    private boolean loadNextPage() throws LdapException, CursorException {
+        if (!started) {
+            started = true;
+            load(fetch(null));
+        } else if (pending != null) {
+            load(await(pending));
+        } else if (nextPageToken != null) {
+            // Not prefetched because of the size limit
+            load(fetch(nextPageToken));
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the position in the window of the element, after loading the pages up to
+     *         the one holding it, or -1 if no page does.
+     */
+    private int find(E element) throws LdapException, CursorException {
+        int i = window.indexOf(element);
+        while (i < 0 && loadNextPage()) {
+            i = window.indexOf(element);
+        }
+        return i;
+    }
+
+    private void load(Page<E> p) {
+        // Keep the current page to step back into, and drop the one before it
+        List<E> items = p.getItems();
+        List<E> page = window.subList(pageStart, window.size());
+        List<E> w = new ArrayList<E>(page.size() + items.size());
+        w.addAll(page);
+        w.addAll(items);
+        index -= pageStart;
+        offset += pageStart;
+        pageStart = page.size();
+        window = w;
+
+        String token = p.getNextPageToken();
+        pending = null;
+        nextPageToken = null;
+        if (token == null) {
+            return;
+        }
+        if (sizeLimit > 0 && offset + window.size() > sizeLimit) {
+            log.debug("Not prefetching the next page, beyond the size limit");
+            nextPageToken = token;
+        } else {
+            try {
+                pending = upstream.submit(fetchTask(token));
+            } catch (UpstreamExecutor.UnavailableException ex) {
+                // Fetched on demand instead
+                nextPageToken = token;
+            }
+        }
+    }
+
+    private Page<E> fetch(String token) throws LdapException, CursorException {
+        try {
+            return await(upstream.submit(fetchTask(token)));
+        } catch (UpstreamExecutor.UnavailableException ex) {
+            throw new LdapServiceUnavailableException(ResultCodeEnum.UNAVAILABLE, ex.getMessage());
+        }
+    }
+
+    private Callable<Page<E>> fetchTask(final String token) {
+        return new Callable<Page<E>>() {
+            public Page<E> call() throws Exception {
+                return fetcher.fetch(token);
+            }
+        };
+    }
+
+    private Page<E> await(Future<Page<E>> future) throws LdapException, CursorException {
+        long timeout = upstream.getTimeout();
+        boolean limited = false;
+        if (deadline != 0 && deadline - System.currentTimeMillis() < timeout) {
+            timeout = deadline - System.currentTimeMillis();
+            limited = true;
+        }
+        try {
+            if (timeout <= 0) {
+                throw new TimeoutException();
+            }
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            future.cancel(true);
+            if (limited) {
+                throw new LdapTimeLimitExceededException("Time limit exceeded waiting for the next page");
+            }
+            throw new LdapServiceUnavailableException(ResultCodeEnum.UNAVAILABLE,
+                    "Google did not return the next page within " + upstream.getTimeout() + "ms");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CursorException("Interrupted while waiting for the next page", ex);
+        } catch (ExecutionException ex) {
+            throw new CursorException("Unable to fetch page", ex.getCause());
+        }
+    }
+
+    private void cancelPending() {
+        if (pending != null) {
+            log.debug("Cancelling prefetch of the next page");
+            pending.cancel(true);
+            pending = null;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.dabsquared.googleldap;
+
+import org.apache.directory.api.ldap.model.cursor.AbstractCursor;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.cursor.InvalidCursorPositionException;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+
+import java.io.IOException;
+
+/**
+ * A cursor yielding the entries of another cursor cut down to a {@link Projection}.
+ *
+ * An entry is only projected once it is moved to, so entries the caller never reads
+ * cost nothing.
+ *
+ * The entries given to {@link #before(Entry)} and {@link #after(Entry)} are projected
+ * ones the other cursor does not hold, so these read it from the start up to the entry
+ * they are equal to.
+ */
+public class ProjectedCursor extends AbstractCursor<Entry> {
+
+    private final Cursor<Entry> cursor;
+
+    private final Projection projection;
+
+    private Entry current;
+
+    public ProjectedCursor(Cursor<Entry> cursor, Projection projection) {
+        this.cursor = cursor;
+        this.projection = projection;
+    }
+
+    public boolean available() {
+        return current != null;
+    }
+
+    public boolean next() throws LdapException, CursorException {
+        checkNotClosed("next()");
+        return moved(cursor.next());
+    }
+
+    public boolean previous() throws LdapException, CursorException {
+        checkNotClosed("previous()");
+
+        if (current == null && cursor.available()) {
+            // Between two entries, after a seek
+            return moved(true);
+        }
+        return moved(cursor.previous());
+    }
+
+    public boolean first() throws LdapException, CursorException {
+        checkNotClosed("first()");
+        return moved(cursor.first());
+    }
+
+    public boolean last() throws LdapException, CursorException {
+        checkNotClosed("last()");
+        return moved(cursor.last());
+    }
+
+    public Entry get() throws CursorException {
+        checkNotClosed("get()");
+
+        if (current == null) {
+            throw new InvalidCursorPositionException();
+        }
+        return current;
+    }
+
+    public void beforeFirst() throws LdapException, CursorException {
+        checkNotClosed("beforeFirst()");
+        cursor.beforeFirst();
+        current = null;
+    }
+
+    public void afterLast() throws LdapException, CursorException {
+        checkNotClosed("afterLast()");
+        cursor.afterLast();
+        current = null;
+    }
+
+    /**
+     * Positions the cursor before the entry, or after the last one if there is none equal to it.
+     */
+    public void before(Entry element) throws LdapException, CursorException {
+        checkNotClosed("before()");
+
+        if (find(element)) {
+            // On the entry before it, which previous() returns without moving
+            cursor.previous();
+        }
+        current = null;
+    }
+
+    /**
+     * Positions the cursor after the entry, or after the last one if there is none equal to it.
+     */
+    public void after(Entry element) throws LdapException, CursorException {
+        checkNotClosed("after()");
+
+        find(element);
+        current = null;
+    }
+
+    public void close() throws IOException {
+        cursor.close();
+        super.close();
+    }
+
+    public void close(Exception cause) throws IOException {
+        cursor.close(cause);
+        super.close(cause);
+    }
+
+    /**
+     * Reads the other cursor from the start up to the entry whose projection is equal to
+     * the given one.
+     *
+     * @return true if the other cursor is now on it, false if it is after its last entry.
+     */
+    private boolean find(Entry element) throws LdapException, CursorException {
+        cursor.beforeFirst();
+        while (moved(cursor.next())) {
+            if (current.equals(element)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean moved(boolean moved) throws CursorException {
+        current = moved ? projection.apply(cursor.get()) : null;
+        return moved;
+    }
+}
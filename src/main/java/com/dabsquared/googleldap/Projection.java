@@ -0,0 +1,145 @@
+package com.dabsquared.googleldap;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.filter.BranchNode;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.LeafNode;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.AttributeTypeOptions;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.core.api.interceptor.context.FilteringOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The attributes an operation needs of the entries it reads: the ones it returns, the
+ * ones its filter tests, and objectClass.
+ *
+ * Entries are built with, and cached entries cut down to, only these attributes, so the
+ * copy ApacheDS makes of every entry it returns, before dropping the attributes that were
+ * not asked for, only copies what is sent. NSS clients ask for a handful of the 25 or so
+ * attributes of a user.
+ */
+public class Projection {
+
+    /** Every attribute, for operations that return all user attributes. */
+    public static final Projection ALL = new Projection(null, null);
+
+    private final SchemaManager schemaManager;
+
+    /** The OIDs of the attributes, or null for all of them. */
+    private final Set<String> oids;
+
+    private Projection(SchemaManager schemaManager, Set<String> oids) {
+        this.schemaManager = schemaManager;
+        this.oids = oids;
+    }
+
+    /**
+     * @param schemaManager the schema manager the entries are built against.
+     * @param ctx the search or lookup.
+     * @return the attributes the operation needs, taking the filter of a search into account.
+     */
+    public static Projection of(SchemaManager schemaManager, FilteringOperationContext ctx) {
+        if (ctx.isAllUserAttributes()) {
+            return ALL;
+        }
+        Set<AttributeTypeOptions> returning = ctx.getReturningAttributes();
+        if (!ctx.isNoAttributes() && !ctx.isAllOperationalAttributes() && (returning == null || returning.isEmpty())) {
+            // Nothing asked for at all means every user attribute
+            return ALL;
+        }
+
+        Set<String> oids = new HashSet<String>();
+        oids.add(SchemaConstants.OBJECT_CLASS_AT_OID);
+        if (returning != null) {
+            for (AttributeTypeOptions options : returning) {
+                oids.add(options.getAttributeType().getOid());
+            }
+        }
+        if (ctx instanceof SearchOperationContext) {
+            addFilterAttributes(((SearchOperationContext) ctx).getFilter(), oids);
+        }
+        return new Projection(schemaManager, oids);
+    }
+
+    private static void addFilterAttributes(ExprNode filter, Set<String> oids) {
+        if (filter instanceof BranchNode) {
+            for (ExprNode child : ((BranchNode) filter).getChildren()) {
+                addFilterAttributes(child, oids);
+            }
+        } else if (filter instanceof LeafNode && ((LeafNode) filter).getAttributeType() != null) {
+            oids.add(((LeafNode) filter).getAttributeType().getOid());
+        }
+    }
+
+    /**
+     * @return true if every attribute is needed.
+     */
+    public boolean isAll() {
+        return oids == null;
+    }
+
+    /**
+     * @param attributeType an attribute type.
+     * @return true if the attribute, or one of its supertypes, is needed.
+     */
+    public boolean contains(AttributeType attributeType) {
+        if (oids == null) {
+            return true;
+        }
+        for (AttributeType at = attributeType; at != null; at = at.getSuperior()) {
+            if (oids.contains(at.getOid())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param attributeTypes attribute types.
+     * @return true if any of the attributes is needed.
+     */
+    public boolean containsAny(AttributeType... attributeTypes) {
+        for (AttributeType at : attributeTypes) {
+            if (contains(at)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param entry an entry, which is not modified.
+     * @return the entry itself if every attribute is needed, otherwise an entry holding
+     *         the needed attributes of the given one; the attributes are shared, not copied.
+     */
+    public Entry apply(Entry entry) {
+        if (oids == null || entry == null) {
+            return entry;
+        }
+        Entry projected = new DefaultEntry(schemaManager, entry.getDn());
+        for (Attribute attribute : entry) {
+            if (contains(attribute.getAttributeType())) {
+                try {
+                    projected.put(attribute);
+                } catch (LdapException e) {
+                    // Cannot happen, the attribute comes from an entry of the same schema
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return projected;
+    }
+
+    @Override
+    public String toString() {
+        return (oids == null) ? "*" : oids.toString();
+    }
+}
@@ -0,0 +1,153 @@
+package com.dabsquared.googleldap;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * How a search under ou=users or ou=groups is answered, as chosen by {@link QueryPlanner}.
+ *
+ * Whatever the plan, the search filter is still evaluated on every entry it yields;
+ * a plan only decides which entries are fetched.
+ */
+public class QueryPlan {
+
+    /**
+     * The kinds of plan, from the cheapest to the most expensive.
+     */
+    public enum Kind {
+        /** The filter cannot match anything; nothing is fetched. */
+        EMPTY,
+        /** A few accounts are fetched by email. */
+        POINT_LOOKUP,
+        /** The candidates come from the snapshot indexes. */
+        INDEX,
+        /** A listing narrowed by Google, with users.list query= or groups.list userKey=. */
+        PUSHDOWN,
+        /** Every account is listed. */
+        FULL_SCAN
+    }
+
+    private final Kind kind;
+
+    private final List<String> emails;
+
+    private final int[] candidates;
+
+    private final String query;
+
+    private final String orderBy;
+
+    private final String userKey;
+
+    private final String reason;
+
+    private QueryPlan(Kind kind, List<String> emails, int[] candidates,
+                      String query, String orderBy, String userKey, String reason) {
+        this.kind = kind;
+        this.emails = emails;
+        this.candidates = candidates;
+        this.query = query;
+        this.orderBy = orderBy;
+        this.userKey = userKey;
+        this.reason = reason;
+    }
+
+    /**
+     * @param reason why the filter cannot match, for the logs.
+     */
+    public static QueryPlan empty(String reason) {
+        return new QueryPlan(Kind.EMPTY, null, null, null, null, null, reason);
+    }
+
+    /**
+     * @param emails the emails of the accounts to fetch.
+     */
+    public static QueryPlan pointLookup(List<String> emails) {
+        return new QueryPlan(Kind.POINT_LOOKUP, Collections.unmodifiableList(emails), null, null, null, null, null);
+    }
+
+    /**
+     * @param candidates the numbers of the entries the indexes narrowed the filter down to.
+     */
+    public static QueryPlan index(int[] candidates) {
+        return new QueryPlan(Kind.INDEX, null, candidates, null, null, null, null);
+    }
+
+    /**
+     * @param query a users.list query.
+     * @param orderBy the users.list orderBy, or null.
+     */
+    public static QueryPlan userQuery(String query, String orderBy) {
+        return new QueryPlan(Kind.PUSHDOWN, null, null, query, orderBy, null, null);
+    }
+
+    /**
+     * @param userKey the email of a user whose groups are listed.
+     */
+    public static QueryPlan groupsOf(String userKey) {
+        return new QueryPlan(Kind.PUSHDOWN, null, null, null, null, userKey, null);
+    }
+
+    /**
+     * @param reason why nothing narrower could be used, for the logs.
+     */
+    public static QueryPlan fullScan(String reason) {
+        return new QueryPlan(Kind.FULL_SCAN, null, null, null, null, null, reason);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /** @return the emails to fetch, for a {@link Kind#POINT_LOOKUP}. */
+    public List<String> getEmails() {
+        return emails;
+    }
+
+    /** @return the numbers of the candidate entries in the snapshot, for a {@link Kind#INDEX}. */
+    public int[] getCandidates() {
+        return candidates;
+    }
+
+    /** @return the users.list query of a {@link Kind#PUSHDOWN}, or null. */
+    public String getQuery() {
+        return query;
+    }
+
+    /** @return the users.list orderBy of a {@link Kind#PUSHDOWN}, or null. */
+    public String getOrderBy() {
+        return orderBy;
+    }
+
+    /** @return the groups.list userKey of a {@link Kind#PUSHDOWN}, or null. */
+    public String getUserKey() {
+        return userKey;
+    }
+
+    /**
+     * @return true if this plan is cheaper to run than the given one.
+     */
+    public boolean isCheaperThan(QueryPlan other) {
+        if (kind != other.kind) {
+            return kind.ordinal() < other.kind.ordinal();
+        }
+        return kind == Kind.POINT_LOOKUP && emails.size() < other.emails.size()
+                || kind == Kind.INDEX && candidates.length < other.candidates.length;
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+            case POINT_LOOKUP:
+                return kind + " " + emails;
+            case INDEX:
+                return kind + " (" + candidates.length + " candidates)";
+            case PUSHDOWN:
+                return (userKey != null)
+                        ? kind + " groups.list userKey=" + userKey
+                        : kind + " users.list query=" + query + (orderBy == null ? "" : " orderBy=" + orderBy);
+            default:
+                return kind + (reason == null ? "" : " (" + reason + ")");
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package com.dabsquared.googleldap;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.filter.AndNode;
+import org.apache.directory.api.ldap.model.filter.BranchNode;
+import org.apache.directory.api.ldap.model.filter.EqualityNode;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.LeafNode;
+import org.apache.directory.api.ldap.model.filter.OrNode;
+import org.apache.directory.api.ldap.model.filter.SubstringNode;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.ObjectClass;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Chooses how a one level search under ou=users or ou=groups is answered.
+ *
+ * The filter tree is walked once. Each assertion is classified as a point lookup
+ * (uid, email, cn of a group, or a uid/gid number known from {@link IdNumbers}), a
+ * pushdown to Google (a users.list query on names and email prefixes, or a groups.list
+ * by member), an assertion that can never match (an objectClass the entries do not
+ * have), or a full scan. An AND takes its cheapest child, merging users.list queries;
+ * an OR is only narrowed if every branch is a point lookup. When the snapshot indexes
+ * are given they answer the filter instead.
+ */
+public class QueryPlanner {
+
+    /**
+     * The containers a search can be planned for.
+     */
+    public enum Container {
+        USERS,
+        GROUPS
+    }
+
+    private static final String[] USER_OBJECT_CLASSES = {
+            SchemaConstants.TOP_OC,
+            SchemaConstants.PERSON_OC,
+            SchemaConstants.ORGANIZATIONAL_PERSON_OC,
+            SchemaConstants.INET_ORG_PERSON_OC,
+            // SchemaConstants.POSIX_ACCOUNT_OC is misspelled
+            "posixAccount"
+    };
+
+    private static final String[] GROUP_OBJECT_CLASSES = {
+            SchemaConstants.TOP_OC,
+            SchemaConstants.POSIX_GROUP_OC,
+            "group"
+    };
+
+    private final SchemaManager schemaManager;
+
+    private final String domain;
+
+    private final Set<String> userObjectClasses;
+
+    private final Set<String> groupObjectClasses;
+
+    /**
+     * @param schemaManager the schema manager the filters are normalized against.
+     * @param domain the Google domain, appended to uids and group names.
+     */
+    public QueryPlanner(SchemaManager schemaManager, String domain) {
+        this.schemaManager = schemaManager;
+        this.domain = domain;
+        this.userObjectClasses = objectClassNames(USER_OBJECT_CLASSES);
+        this.groupObjectClasses = objectClassNames(GROUP_OBJECT_CLASSES);
+    }
+
+    /**
+     * @param container the container searched.
+     * @param filter the search filter, may be null.
+     * @param indexes the snapshot indexes over the container, or null when answering from Google.
+     * @param ids the known uid and gid numbers, or null if they are not loaded yet.
+     * @return the cheapest plan found, never null.
+     */
+    public QueryPlan plan(Container container, ExprNode filter, EntryIndexes indexes, IdNumbers ids) {
+        if (filter == null) {
+            return QueryPlan.fullScan("no filter");
+        }
+        if (indexes != null) {
+            int[] l = indexes.candidates(filter);
+            return (l == null) ? QueryPlan.fullScan("no index narrows the filter") : QueryPlan.index(l);
+        }
+        return plan(container, filter, ids);
+    }
+
+    /**
+     * @param filter a filter, may be null.
+     * @param oids attribute OIDs.
+     * @return true if the filter asserts anything on one of the attributes.
+     */
+    public boolean references(ExprNode filter, String... oids) {
+        if (filter instanceof BranchNode) {
+            for (ExprNode child : ((BranchNode) filter).getChildren()) {
+                if (references(child, oids)) {
+                    return true;
+                }
+            }
+        } else if (filter instanceof LeafNode) {
+            String oid = oid((LeafNode) filter);
+            for (String o : oids) {
+                if (o.equals(oid)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private QueryPlan plan(Container container, ExprNode filter, IdNumbers ids) {
+        if (filter instanceof AndNode) {
+            return planAnd(container, ((AndNode) filter).getChildren(), ids);
+        }
+        if (filter instanceof OrNode) {
+            return planOr(container, ((OrNode) filter).getChildren(), ids);
+        }
+
+        if (filter instanceof EqualityNode) {
+            String oid = oid((LeafNode) filter);
+            String value = ((EqualityNode<?>) filter).getValue().getString();
+            if (oid != null && value != null) {
+                return (container == Container.USERS) ? userEquality(oid, value, ids) : groupEquality(oid, value, ids);
+            }
+        }
+
+        if (filter instanceof SubstringNode && container == Container.USERS) {
+            String oid = oid((LeafNode) filter);
+            String initial = ((SubstringNode) filter).getInitial();
+            if (oid != null && initial != null) {
+                return userPrefix(oid, initial);
+            }
+        }
+
+        return QueryPlan.fullScan(filter + " cannot be narrowed");
+    }
+
+    private QueryPlan planAnd(Container container, List<ExprNode> children, IdNumbers ids) {
+        QueryPlan best = null;
+        List<String> queries = new ArrayList<String>();
+        for (ExprNode child : children) {
+            QueryPlan p = plan(container, child, ids);
+            if (p.getKind() == QueryPlan.Kind.EMPTY) {
+                return p;
+            }
+            if (p.getQuery() != null) {
+                queries.add(p.getQuery());
+            }
+            if (best == null || p.isCheaperThan(best)) {
+                best = p;
+            }
+        }
+        if (best == null) {
+            return QueryPlan.fullScan("empty AND");
+        }
+        // users.list ANDs the terms of its query
+        if (best.getQuery() != null && queries.size() > 1) {
+            best = QueryPlan.userQuery(join(queries), best.getOrderBy());
+        }
+        return best;
+    }
+
+    private QueryPlan planOr(Container container, List<ExprNode> children, IdNumbers ids) {
+        List<QueryPlan> plans = new ArrayList<QueryPlan>();
+        for (ExprNode child : children) {
+            QueryPlan p = plan(container, child, ids);
+            if (p.getKind() != QueryPlan.Kind.EMPTY) {
+                plans.add(p);
+            }
+        }
+        if (plans.isEmpty()) {
+            return QueryPlan.empty("no branch of the OR can match");
+        }
+        if (plans.size() == 1) {
+            return plans.get(0);
+        }
+
+        Set<String> emails = new LinkedHashSet<String>();
+        for (QueryPlan p : plans) {
+            if (p.getKind() != QueryPlan.Kind.POINT_LOOKUP) {
+                return QueryPlan.fullScan("an OR branch needs " + p);
+            }
+            emails.addAll(p.getEmails());
+        }
+        return QueryPlan.pointLookup(new ArrayList<String>(emails));
+    }
+
+    private QueryPlan userEquality(String oid, String value, IdNumbers ids) {
+        if (oid.equals(SchemaConstants.UID_AT_OID)) {
+            return QueryPlan.pointLookup(Collections.singletonList(email(value)));
+        } else if (oid.equals(SchemaConstants.EMAIL_AT_OID) || oid.equals(SchemaConstants.MAIL_AT_OID)) {
+            if (value.indexOf('@') < 0) {
+                return QueryPlan.empty(value + " is not an email address");
+            }
+            return QueryPlan.pointLookup(Collections.singletonList(value));
+        } else if (oid.equals(SchemaConstants.UID_NUMBER_AT_OID) || oid.equals(SchemaConstants.GID_NUMBER_AT_OID)) {
+            return byNumber(ids, (ids == null) ? null : ids.userEmail(value), value);
+        } else if (oid.equals(SchemaConstants.GIVENNAME_AT_OID)) {
+            return exactQuery("givenName", value);
+        } else if (oid.equals(SchemaConstants.SN_AT_OID)) {
+            return exactQuery("familyName", value);
+        } else if (oid.equals(SchemaConstants.OBJECT_CLASS_AT_OID)) {
+            return objectClass(userObjectClasses, value);
+        }
+        return QueryPlan.fullScan(oid + " is not searchable in Google");
+    }
+
+    private QueryPlan groupEquality(String oid, String value, IdNumbers ids) {
+        if (oid.equals(SchemaConstants.CN_AT_OID)) {
+            return QueryPlan.pointLookup(Collections.singletonList(email(value)));
+        } else if (oid.equals(SchemaConstants.GID_NUMBER_AT_OID)) {
+            return byNumber(ids, (ids == null) ? null : ids.groupEmail(value), value);
+        } else if (oid.equals(SchemaConstants.MEMBER_UID_AT_OID)) {
+            return QueryPlan.groupsOf(email(value));
+        } else if (oid.equals(SchemaConstants.OBJECT_CLASS_AT_OID)) {
+            return objectClass(groupObjectClasses, value);
+        }
+        return QueryPlan.fullScan(oid + " is not searchable in Google");
+    }
+
+    private QueryPlan userPrefix(String oid, String initial) {
+        if (!isQueryable(initial)) {
+            return QueryPlan.fullScan("'" + initial + "' cannot be put in a query");
+        }
+        if (oid.equals(SchemaConstants.UID_AT_OID)
+                || oid.equals(SchemaConstants.EMAIL_AT_OID) || oid.equals(SchemaConstants.MAIL_AT_OID)) {
+            return QueryPlan.userQuery("email:" + initial + "*", "email");
+        } else if (oid.equals(SchemaConstants.GIVENNAME_AT_OID)) {
+            return QueryPlan.userQuery("givenName:" + initial + "*", "givenName");
+        } else if (oid.equals(SchemaConstants.SN_AT_OID)) {
+            return QueryPlan.userQuery("familyName:" + initial + "*", "familyName");
+        }
+        return QueryPlan.fullScan(oid + " is not searchable in Google");
+    }
+
+    private static QueryPlan exactQuery(String field, String value) {
+        if (value.indexOf('\'') >= 0) {
+            return QueryPlan.fullScan("'" + value + "' cannot be put in a query");
+        }
+        return QueryPlan.userQuery(field + "='" + value + "'", field);
+    }
+
+    private static QueryPlan byNumber(IdNumbers ids, String email, String number) {
+        if (ids == null) {
+            return QueryPlan.fullScan("uid and gid numbers are not loaded yet");
+        }
+        if (email == null) {
+            return QueryPlan.empty("no account has number " + number);
+        }
+        return QueryPlan.pointLookup(Collections.singletonList(email));
+    }
+
+    private static QueryPlan objectClass(Set<String> objectClasses, String value) {
+        if (objectClasses.contains(value.trim().toLowerCase(Locale.ROOT))) {
+            return QueryPlan.fullScan("every entry is a " + value);
+        }
+        return QueryPlan.empty("no entry is a " + value);
+    }
+
+    /**
+     * @return the value as an email address, in the domain unless it already has one.
+     */
+    private String email(String value) {
+        return (value.indexOf('@') < 0) ? value + "@" + domain : value;
+    }
+
+    /**
+     * @return the OID of the attribute of an assertion, or null if it is unknown.
+     */
+    private String oid(LeafNode node) {
+        AttributeType attributeType = node.getAttributeType();
+        if (attributeType != null) {
+            return attributeType.getOid();
+        }
+        try {
+            return schemaManager.lookupAttributeTypeRegistry(node.getAttribute()).getOid();
+        } catch (LdapException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the lower cased names and OIDs of the given object classes, as they may
+     *         appear in a normalized filter.
+     */
+    private Set<String> objectClassNames(String[] names) {
+        Set<String> s = new HashSet<String>();
+        for (String name : names) {
+            s.add(name.toLowerCase(Locale.ROOT));
+            try {
+                ObjectClass objectClass = schemaManager.lookupObjectClassRegistry(name);
+                s.add(objectClass.getOid());
+                for (String alias : objectClass.getNames()) {
+                    s.add(alias.toLowerCase(Locale.ROOT));
+                }
+            } catch (LdapException ex) {
+                // Not in the schema; only its name can match
+            }
+        }
+        return s;
+    }
+
+    private static boolean isQueryable(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (Character.isWhitespace(c) || c == '\'' || c == '"' || c == '*') {
+                return false;
+            }
+        }
+        return !value.isEmpty();
+    }
+
+    private static String join(List<String> queries) {
+        StringBuilder sb = new StringBuilder();
+        for (String query : queries) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(query);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,153 @@
+package com.dabsquared.googleldap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.server.core.DefaultDirectoryService;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * The LDIF schema shipped with ApacheDS, extracted once with every schema enabled and
+ * kept across restarts.
+ *
+ * Each ApacheDS version gets its own directory under the cache directory, so an upgrade
+ * extracts the schema again. A directory is prepared under a temporary name and renamed
+ * once complete, so an interrupted extraction is never mistaken for a finished one.
+ */
+public class SchemaCache {
+
+    private static final Logger log = LogManager.getLogger(SchemaCache.class);
+
+    private final File cacheDir;
+
+    /**
+     * @param cacheDir the directory the extracted schemas are kept in.
+     */
+    public SchemaCache(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * The Maven metadata of the ApacheDS artifacts the schema may come from, most likely
+     * first; a shaded jar keeps them, but loses the implementation version of the packages.
+     */
+    private static final String[] APACHEDS_POM_PROPERTIES = {
+            "META-INF/maven/org.apache.directory.server/apacheds-all/pom.properties",
+            "META-INF/maven/org.apache.directory.server/apacheds-core/pom.properties"
+    };
+
+    /**
+     * @return the version of ApacheDS on the classpath, or "unknown".
+     */
+    public static String apacheDsVersion() {
+        ClassLoader loader = DefaultDirectoryService.class.getClassLoader();
+        for (String resource : APACHEDS_POM_PROPERTIES) {
+            InputStream in = (loader != null) ? loader.getResourceAsStream(resource)
+                    : ClassLoader.getSystemResourceAsStream(resource);
+            if (in == null) {
+                continue;
+            }
+            try {
+                try {
+                    Properties properties = new Properties();
+                    properties.load(in);
+                    String version = properties.getProperty("version");
+                    if (version != null && !version.trim().isEmpty()) {
+                        return version.trim();
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException ex) {
+                log.debug("Unable to read " + resource, ex);
+            }
+        }
+
+        Package p = DefaultDirectoryService.class.getPackage();
+        String version = (p != null) ? p.getImplementationVersion() : null;
+        return (version != null) ? version : "unknown";
+    }
+
+    /**
+     * Extracts the schema unless this version of ApacheDS has been extracted already.
+     *
+     * @return the schema repository, the directory holding ou=schema.
+     * @throws IOException if the schema cannot be extracted.
+     */
+    public File prepare() throws IOException {
+        String version = apacheDsVersion();
+        File versionDir = new File(cacheDir, version);
+        File repository = new File(versionDir, "schema");
+        if (repository.isDirectory() && !"unknown".equals(version)) {
+            log.debug("Using the cached schema in " + repository);
+            return repository;
+        }
+
+        long start = System.currentTimeMillis();
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            throw new IOException("Unable to create " + cacheDir);
+        }
+        File tmp = Files.createTempDirectory(cacheDir.toPath(), version + ".").toFile();
+        try {
+            SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor(tmp);
+            extractor.extractOrCopy(true);
+            int enabled = enableAll(new File(new File(tmp, "schema"), "ou=schema"));
+
+            FileUtils.deleteDirectory(versionDir);
+            try {
+                Files.move(tmp.toPath(), versionDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), versionDir.toPath());
+            }
+            log.info(String.format("Extracted the ApacheDS %s schema to %s, enabling %d schemas, in %dms",
+                    version, repository, enabled, System.currentTimeMillis() - start));
+        } catch (IOException ex) {
+            if (repository.isDirectory()) {
+                // Another server extracted it at the same time
+                log.debug("Using the schema extracted concurrently in " + repository);
+            } else {
+                throw ex;
+            }
+        } finally {
+            FileUtils.deleteQuietly(tmp);
+        }
+        return repository;
+    }
+
+    /**
+     * Enables every schema, most of which ApacheDS ships disabled.
+     *
+     * @param schemaDir the ou=schema directory.
+     * @return the number of schemas enabled.
+     */
+    private static int enableAll(File schemaDir) throws IOException {
+        File[] files = schemaDir.listFiles();
+        if (files == null) {
+            throw new IOException("No schema was extracted to " + schemaDir);
+        }
+
+        int enabled = 0;
+        for (File file : files) {
+            if (!file.isFile()) {
+                continue;
+            }
+            String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            if (content.contains("m-disabled: TRUE")) {
+                content = content.replace("m-disabled: TRUE", "m-disabled: FALSE");
+                Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+                enabled++;
+            }
+        }
+        return enabled;
+    }
+}
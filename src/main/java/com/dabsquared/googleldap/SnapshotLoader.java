@@ -0,0 +1,369 @@
+package com.dabsquared.googleldap;
+
+import com.google.api.services.admin.directory.model.Group;
+import com.google.api.services.admin.directory.model.Groups;
+import com.google.api.services.admin.directory.model.Member;
+import com.google.api.services.admin.directory.model.User;
+import com.google.api.services.admin.directory.model.Users;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads the whole domain from the Admin SDK into a {@link DirectorySnapshot}.
+ *
+ * A full load lists every user and group and the members of every group. A delta pass
+ * only lists the ids and etags of users and groups and refetches the ones whose etag
+ * changed, copying the packed entries of the previous snapshot for everything else.
+ * A user added, removed or renamed changes groups whose etag does not, so it makes the
+ * delta pass fall back to a full load. The users are listed with their primary email to
+ * find those before any of them is fetched.
+ */
+public class SnapshotLoader {
+
+    private static final Logger log = LogManager.getLogger(SnapshotLoader.class);
+
+    private static final int USER_PAGE_SIZE = 500;
+
+    private static final int GROUP_PAGE_SIZE = 200;
+
+    private static final String USER_ETAG_FIELDS = "nextPageToken,users(id,etag,primaryEmail)";
+
+    private static final String GROUP_ETAG_FIELDS = "nextPageToken,groups(id,etag)";
+
+    /** A delta pass that finds more changes than this falls back to a full load. */
+    private static final int MAX_DELTA_CHANGES = 500;
+
+    private final DirectoryService service;
+
+    private final EntryFactory entryFactory;
+
+    private final MembershipResolver membership;
+
+    /** The etags of the users left out of the last snapshot, by id, not to be taken for added users. */
+    private Map<String, String> skippedUsers = new HashMap<String, String>();
+
+    /** When the last full load started, 0 if none did. */
+    private volatile long lastLoadTime;
+
+    public SnapshotLoader(DirectoryService service, EntryFactory entryFactory) {
+        this.service = service;
+        this.entryFactory = entryFactory;
+        this.membership = new MembershipResolver(service);
+    }
+
+    /**
+     * Loads every user, group and membership of the domain.
+     *
+     * @param generation the generation of the new snapshot.
+     * @return the new snapshot.
+     * @throws IOException if Google cannot be reached.
+     */
+    public DirectorySnapshot load(long generation) throws IOException {
+        long start = System.currentTimeMillis();
+
+        skippedUsers = new HashMap<String, String>();
+        List<DirectorySnapshot.Item> users = new ArrayList<DirectorySnapshot.Item>();
+        for (User user : listUsers()) {
+            DirectorySnapshot.Item item = userItem(user);
+            if (item != null) {
+                users.add(item);
+            }
+        }
+
+        Set<String> allUids = uids(users);
+        List<DirectorySnapshot.Item> groups = groupItems(listGroups(), allUids);
+
+        DirectorySnapshot snapshot = new DirectorySnapshot(entryFactory.getSchemaManager(), generation, users, groups);
+        log.info(String.format("Loaded snapshot %d with %d users and %d groups (%dKB packed) in %dms",
+                generation, snapshot.getUsers().size(), snapshot.getGroups().size(),
+                snapshot.getMemoryUsage() / 1024, System.currentTimeMillis() - start));
+        lastLoadTime = start;
+        return snapshot;
+    }
+
+    /**
+     * @return when the last full load started, including one a delta pass fell back to,
+     *         or 0 if none did.
+     */
+    public long getLastLoadTime() {
+        return lastLoadTime;
+    }
+
+    /**
+     * Brings a snapshot up to date, fetching only users and groups whose etag changed.
+     *
+     * @param previous the snapshot to update.
+     * @return the previous snapshot if nothing changed, a new one otherwise.
+     * @throws IOException if Google cannot be reached.
+     */
+    public DirectorySnapshot refresh(DirectorySnapshot previous) throws IOException {
+        long start = System.currentTimeMillis();
+
+        Map<String, String> userUids = new HashMap<String, String>();
+        Map<String, String> userEtags = listUserEtags(userUids);
+        Map<String, String> groupEtags = listGroupEtags();
+        Map<String, DirectorySnapshot.Item> previousUsers = previous.getUserItems();
+        Map<String, DirectorySnapshot.Item> previousGroups = previous.getGroupItems();
+
+        int changes = changes(previousUsers, userEtags) + changes(previousGroups, groupEtags);
+        if (changes == 0) {
+            log.debug("Snapshot " + previous.getGeneration() + " is up to date");
+            return previous;
+        }
+        if (changes > MAX_DELTA_CHANGES) {
+            log.info(changes + " changes since snapshot " + previous.getGeneration() + ", reloading it");
+            return load(previous.getGeneration() + 1);
+        }
+
+        // The memberUids of the groups having the whole domain as member, and of those
+        // listing a renamed user, change without their etag
+        if (!listedUids(userEtags, userUids).equals(uids(previousUsers.values()))) {
+            log.info("Users were added, removed or renamed since snapshot " + previous.getGeneration()
+                    + ", reloading it");
+            return load(previous.getGeneration() + 1);
+        }
+
+        skippedUsers = new HashMap<String, String>();
+        List<DirectorySnapshot.Item> users = new ArrayList<DirectorySnapshot.Item>(userEtags.size());
+        for (Map.Entry<String, String> etag : userEtags.entrySet()) {
+            DirectorySnapshot.Item item = previousUsers.get(etag.getKey());
+            if (changed(item, etag.getValue())) {
+                item = userItem(service.getDirectory().users().get(etag.getKey())
+                        .setFields(EntryFactory.USER_FIELDS)
+                        .execute());
+            }
+            if (item != null) {
+                users.add(item);
+            }
+        }
+
+        // Differs from the listed uids if a user was renamed while it was fetched
+        Set<String> allUids = uids(users);
+        if (!allUids.equals(uids(previousUsers.values()))) {
+            log.info("Users were renamed since snapshot " + previous.getGeneration() + ", reloading it");
+            return load(previous.getGeneration() + 1);
+        }
+
+        List<Group> changedGroups = new ArrayList<Group>();
+        for (Map.Entry<String, String> etag : groupEtags.entrySet()) {
+            if (changed(previousGroups.get(etag.getKey()), etag.getValue())) {
+                changedGroups.add(service.getDirectory().groups().get(etag.getKey()).execute());
+            }
+        }
+        Map<String, DirectorySnapshot.Item> refetched = new HashMap<String, DirectorySnapshot.Item>();
+        for (DirectorySnapshot.Item item : groupItems(changedGroups, allUids)) {
+            refetched.put(item.getId(), item);
+        }
+
+        List<DirectorySnapshot.Item> groups = new ArrayList<DirectorySnapshot.Item>(groupEtags.size());
+        for (Map.Entry<String, String> etag : groupEtags.entrySet()) {
+            DirectorySnapshot.Item item = previousGroups.get(etag.getKey());
+            if (changed(item, etag.getValue())) {
+                item = refetched.get(etag.getKey());
+            }
+            if (item != null) {
+                groups.add(item);
+            }
+        }
+
+        long generation = previous.getGeneration() + 1;
+        log.info(String.format("Refreshed snapshot %d with %d changes in %dms",
+                generation, changes, System.currentTimeMillis() - start));
+        return new DirectorySnapshot(entryFactory.getSchemaManager(), generation, users, groups);
+    }
+
+    private DirectorySnapshot.Item userItem(User user) {
+        try {
+            return new DirectorySnapshot.Item(user.getId(), user.getEtag(),
+                    entryFactory.createUserEntry(entryFactory.userDn(user), user, user.getAliases()));
+        } catch (LdapException ex) {
+            log.warn("Skipping user " + user.getPrimaryEmail(), ex);
+            skippedUsers.put(user.getId(), user.getEtag());
+            return null;
+        }
+    }
+
+    /**
+     * Builds the items of the given groups, listing their members in batches.
+     */
+    private List<DirectorySnapshot.Item> groupItems(List<Group> groups, Set<String> allUids) throws IOException {
+        List<String> ids = new ArrayList<String>(groups.size());
+        for (Group group : groups) {
+            ids.add(group.getId());
+        }
+        Map<String, List<Member>> members = membership.members(ids);
+
+        List<DirectorySnapshot.Item> items = new ArrayList<DirectorySnapshot.Item>(groups.size());
+        for (Group group : groups) {
+            // Left out when the group was deleted since it was listed
+            if (members.containsKey(group.getId())) {
+                DirectorySnapshot.Item item = groupItem(group, members.get(group.getId()), allUids);
+                if (item != null) {
+                    items.add(item);
+                }
+            }
+        }
+        return items;
+    }
+
+    private DirectorySnapshot.Item groupItem(Group group, List<Member> members, Set<String> allUids) {
+        Set<String> memberUids = new LinkedHashSet<String>();
+        for (Member member : members) {
+            if (member.getEmail() == null) {
+                // The whole domain is a member
+                memberUids.addAll(allUids);
+            } else {
+                memberUids.add(EntryFactory.localPart(member.getEmail()));
+            }
+        }
+
+        try {
+            return new DirectorySnapshot.Item(group.getId(), group.getEtag(),
+                    entryFactory.createGroupEntry(entryFactory.groupDn(group), group, memberUids));
+        } catch (LdapException ex) {
+            log.warn("Skipping group " + group.getEmail(), ex);
+            return null;
+        }
+    }
+
+    private List<User> listUsers() throws IOException {
+        List<User> l = new ArrayList<User>();
+        String pageToken = null;
+        do {
+            Users users = service.getDirectory().users().list()
+                    .setCustomer("my_customer")
+                    .setMaxResults(USER_PAGE_SIZE)
+                    .setFields("nextPageToken,users(" + EntryFactory.USER_FIELDS + ")")
+                    .setPageToken(pageToken)
+                    .execute();
+            if (users.getUsers() != null) {
+                l.addAll(users.getUsers());
+            }
+            pageToken = users.getNextPageToken();
+        } while (pageToken != null);
+        return l;
+    }
+
+    private List<Group> listGroups() throws IOException {
+        List<Group> l = new ArrayList<Group>();
+        String pageToken = null;
+        do {
+            Groups groups = service.getDirectory().groups().list()
+                    .setCustomer("my_customer")
+                    .setMaxResults(GROUP_PAGE_SIZE)
+                    .setPageToken(pageToken)
+                    .execute();
+            if (groups.getGroups() != null) {
+                l.addAll(groups.getGroups());
+            }
+            pageToken = groups.getNextPageToken();
+        } while (pageToken != null);
+        return l;
+    }
+
+    /**
+     * @param uids filled with the uid of every user, by id.
+     * @return the etag of every user, by id.
+     */
+    private Map<String, String> listUserEtags(Map<String, String> uids) throws IOException {
+        Map<String, String> etags = new LinkedHashMap<String, String>();
+        String pageToken = null;
+        do {
+            Users users = service.getDirectory().users().list()
+                    .setCustomer("my_customer")
+                    .setMaxResults(USER_PAGE_SIZE)
+                    .setFields(USER_ETAG_FIELDS)
+                    .setPageToken(pageToken)
+                    .execute();
+            if (users.getUsers() != null) {
+                for (User user : users.getUsers()) {
+                    etags.put(user.getId(), user.getEtag());
+                    uids.put(user.getId(), EntryFactory.localPart(user.getPrimaryEmail()));
+                }
+            }
+            pageToken = users.getNextPageToken();
+        } while (pageToken != null);
+        return etags;
+    }
+
+    private Map<String, String> listGroupEtags() throws IOException {
+        Map<String, String> etags = new LinkedHashMap<String, String>();
+        String pageToken = null;
+        do {
+            Groups groups = service.getDirectory().groups().list()
+                    .setCustomer("my_customer")
+                    .setMaxResults(GROUP_PAGE_SIZE)
+                    .setFields(GROUP_ETAG_FIELDS)
+                    .setPageToken(pageToken)
+                    .execute();
+            if (groups.getGroups() != null) {
+                for (Group group : groups.getGroups()) {
+                    etags.put(group.getId(), group.getEtag());
+                }
+            }
+            pageToken = groups.getNextPageToken();
+        } while (pageToken != null);
+        return etags;
+    }
+
+    /**
+     * @return the number of items added, changed or removed.
+     */
+    private static int changes(Map<String, DirectorySnapshot.Item> previous, Map<String, String> etags) {
+        int changes = 0;
+        for (Map.Entry<String, String> etag : etags.entrySet()) {
+            DirectorySnapshot.Item item = previous.get(etag.getKey());
+            if (changed(item, etag.getValue())) {
+                changes++;
+            }
+        }
+        for (String id : previous.keySet()) {
+            if (!etags.containsKey(id)) {
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    private static boolean changed(DirectorySnapshot.Item item, String etag) {
+        return item == null || etag == null || !etag.equals(item.getEtag());
+    }
+
+    /**
+     * @return the uids of the listed users, but for those left out of the last snapshot
+     *         which did not change since.
+     */
+    private Set<String> listedUids(Map<String, String> etags, Map<String, String> uids) {
+        // Normalized as the names of the items are
+        AttributeType cn = entryFactory.getSchemaManager().getAttributeType(SchemaConstants.CN_AT);
+        Set<String> listed = new LinkedHashSet<String>();
+        for (Map.Entry<String, String> etag : etags.entrySet()) {
+            String skipped = skippedUsers.get(etag.getKey());
+            if (skipped == null || !skipped.equals(etag.getValue())) {
+                listed.add(AttributeIndex.normalize(cn, uids.get(etag.getKey())));
+            }
+        }
+        return listed;
+    }
+
+    private static Set<String> uids(Collection<DirectorySnapshot.Item> users) {
+        Set<String> uids = new LinkedHashSet<String>();
+        for (DirectorySnapshot.Item item : users) {
+            uids.add(item.getName());
+        }
+        return uids;
+    }
+}
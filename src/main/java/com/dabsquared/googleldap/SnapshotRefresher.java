@@ -0,0 +1,156 @@
+package com.dabsquared.googleldap;
+
+import com.dabsquared.googleldap.util.NamedThreadFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the current {@link DirectorySnapshot} up to date in the background.
+ *
+ * Every refresh interval a delta pass is run; once the full refresh interval has
+ * elapsed since the last full load, the snapshot is rebuilt from scratch instead.
+ *
+ * With a {@link SnapshotStore}, every new snapshot is saved to disk, and the saved one
+ * is served at start while it is reconciled with Google in the background.
+ */
+public class SnapshotRefresher {
+
+    private static final Logger log = LogManager.getLogger(SnapshotRefresher.class);
+
+    private final SnapshotLoader loader;
+
+    private final SnapshotStore store;
+
+    private final long refreshInterval;
+
+    private final long fullRefreshInterval;
+
+    private volatile DirectorySnapshot snapshot;
+
+    private long lastFullLoad;
+
+    private ScheduledExecutorService scheduler;
+
+    private final CountDownLatch loaded = new CountDownLatch(1);
+
+    /**
+     * @param loader the loader reading the domain from Google.
+     * @param refreshInterval milliseconds between two refreshes.
+     * @param fullRefreshInterval milliseconds after which a refresh rebuilds the snapshot instead of updating it.
+     */
+    public SnapshotRefresher(SnapshotLoader loader, long refreshInterval, long fullRefreshInterval) {
+        this(loader, null, refreshInterval, fullRefreshInterval);
+    }
+
+    /**
+     * @param loader the loader reading the domain from Google.
+     * @param store where snapshots are saved and restored from, or null.
+     * @param refreshInterval milliseconds between two refreshes.
+     * @param fullRefreshInterval milliseconds after which a refresh rebuilds the snapshot instead of updating it.
+     */
+    public SnapshotRefresher(SnapshotLoader loader, SnapshotStore store, long refreshInterval, long fullRefreshInterval) {
+        this.loader = loader;
+        this.store = store;
+        this.refreshInterval = refreshInterval;
+        this.fullRefreshInterval = fullRefreshInterval;
+    }
+
+    /**
+     * Loads the first snapshot and schedules the refreshes. If the first load fails,
+     * {@link #get()} returns null until a later refresh succeeds.
+     */
+    public void start() {
+        start(true);
+    }
+
+    /**
+     * Restores the saved snapshot, if any, and schedules the refreshes.
+     *
+     * @param wait true to load the first snapshot before returning, false to load it
+     *             in the background; {@link #get()} returns null until it is loaded.
+     *             A restored snapshot is always reconciled in the background.
+     */
+    public synchronized void start(boolean wait) {
+        if (scheduler != null) {
+            return;
+        }
+
+        if (store != null) {
+            SnapshotStore.Stored stored = store.load();
+            if (stored != null) {
+                snapshot = stored.getSnapshot();
+                lastFullLoad = stored.getFullLoadAt();
+                loaded.countDown();
+            }
+        }
+
+        wait = wait && snapshot == null;
+        if (wait) {
+            refresh();
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("snapshot-refresh"));
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                refresh();
+            }
+        }, wait ? refreshInterval : 0, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * @return the current snapshot, or null if none could be loaded yet.
+     */
+    public DirectorySnapshot get() {
+        return snapshot;
+    }
+
+    /**
+     * Waits for the first snapshot to be loaded.
+     *
+     * @return true if a snapshot is loaded, false if the timeout elapsed first.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitSnapshot(long timeout, TimeUnit unit) throws InterruptedException {
+        return loaded.await(timeout, unit);
+    }
+
+    private void refresh() {
+        DirectorySnapshot current = snapshot;
+        long now = System.currentTimeMillis();
+        try {
+            if (current == null || now - lastFullLoad >= fullRefreshInterval) {
+                snapshot = loader.load(current == null ? 1 : current.getGeneration() + 1);
+                lastFullLoad = now;
+            } else {
+                snapshot = loader.refresh(current);
+                // Unless it fell back to a full load
+                lastFullLoad = Math.max(lastFullLoad, loader.getLastLoadTime());
+            }
+            loaded.countDown();
+        } catch (Exception ex) {
+            log.error("Unable to refresh the directory snapshot", ex);
+            return;
+        }
+
+        if (store != null && snapshot != current) {
+            try {
+                store.save(snapshot, lastFullLoad);
+            } catch (IOException ex) {
+                log.warn("Unable to save the directory snapshot to " + store.getFile(), ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.dabsquared.googleldap;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Saves a {@link DirectorySnapshot} to a binary file and loads it back, so a restart
+ * can serve the directory before Google has been asked anything.
+ *
+ * The file is a fixed header followed by a body:
+ * <pre>
+ * int   magic ("GLDS")
+ * int   format version
+ * long  generation of the snapshot
+ * long  time of the last full load, in milliseconds since the epoch
+ * long  length of the body
+ * long  CRC-32 of the body
+ * body: the users then the groups, each as a count followed by the items; an item is
+ *       its id, etag and Dn, then its attributes as an up id and a list of values.
+ *       Strings are an int length followed by UTF-8 bytes.
+ * </pre>
+ * A file is written next to the previous one and renamed over it, so a crash never
+ * leaves a partial file behind. A file of another format version, or whose checksum
+ * does not match, is ignored.
+ */
+public class SnapshotStore {
+
+    private static final Logger log = LogManager.getLogger(SnapshotStore.class);
+
+    private static final int MAGIC = 0x474C4453;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_LENGTH = 4 + 4 + 8 + 8 + 8 + 8;
+
+    /**
+     * A snapshot read back from disk.
+     */
+    public static class Stored {
+        private final DirectorySnapshot snapshot;
+        private final long fullLoadAt;
+
+        public Stored(DirectorySnapshot snapshot, long fullLoadAt) {
+            this.snapshot = snapshot;
+            this.fullLoadAt = fullLoadAt;
+        }
+
+        public DirectorySnapshot getSnapshot() {
+            return snapshot;
+        }
+
+        /** @return when the snapshot, or the one it was refreshed from, was fully loaded. */
+        public long getFullLoadAt() {
+            return fullLoadAt;
+        }
+    }
+
+    private final File file;
+
+    private final SchemaManager schemaManager;
+
+    /**
+     * @param file the snapshot file; its directory is created if needed.
+     * @param schemaManager the schema manager entries are rebuilt against.
+     */
+    public SnapshotStore(File file, SchemaManager schemaManager) {
+        this.file = file;
+        this.schemaManager = schemaManager;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @param snapshot the snapshot to save.
+     * @param fullLoadAt when the snapshot, or the one it was refreshed from, was fully loaded.
+     * @throws IOException if the file cannot be written.
+     */
+    public void save(DirectorySnapshot snapshot, long fullLoadAt) throws IOException {
+        long start = System.currentTimeMillis();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        DataOutputStream body = new DataOutputStream(bytes);
+        writeItems(body, snapshot.getUserItems().values());
+        writeItems(body, snapshot.getGroupItems().values());
+        body.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray(), 0, bytes.size());
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        File tmp = new File(dir, file.getName() + ".tmp");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+        try {
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeLong(snapshot.getGeneration());
+            header.writeLong(fullLoadAt);
+            header.writeLong(bytes.size());
+            header.writeLong(crc.getValue());
+            bytes.writeTo(out);
+        } finally {
+            out.close();
+        }
+
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        log.debug(String.format("Saved snapshot %d (%d bytes) to %s in %dms", snapshot.getGeneration(),
+                HEADER_LENGTH + bytes.size(), file, System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Maps the snapshot file into memory and rebuilds the snapshot from it.
+     *
+     * @return the snapshot, or null if there is no usable file.
+     */
+    public Stored load() {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        long start = System.currentTimeMillis();
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            long size = channel.size();
+            if (size < HEADER_LENGTH) {
+                log.warn("Ignoring truncated snapshot file " + file);
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            if (buffer.getInt() != MAGIC) {
+                log.warn("Ignoring " + file + ", which is not a snapshot file");
+                return null;
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                log.info("Ignoring snapshot file " + file + " of format version " + version);
+                return null;
+            }
+            long generation = buffer.getLong();
+            long fullLoadAt = buffer.getLong();
+            long length = buffer.getLong();
+            long checksum = buffer.getLong();
+            if (length != size - HEADER_LENGTH) {
+                log.warn("Ignoring truncated snapshot file " + file);
+                return null;
+            }
+
+            // Through ByteBuffer, as MappedByteBuffer.slice() only exists from Java 13
+            ByteBuffer body = ((ByteBuffer) buffer).slice();
+            CRC32 crc = new CRC32();
+            crc.update(body.duplicate());
+            if (crc.getValue() != checksum) {
+                log.warn("Ignoring snapshot file " + file + " whose checksum does not match");
+                return null;
+            }
+
+            List<DirectorySnapshot.Item> users = readItems(body);
+            List<DirectorySnapshot.Item> groups = readItems(body);
+
+            log.info(String.format("Loaded snapshot %d with %d users and %d groups from %s in %dms",
+                    generation, users.size(), groups.size(), file, System.currentTimeMillis() - start));
+            return new Stored(new DirectorySnapshot(schemaManager, generation, users, groups), fullLoadAt);
+        } catch (Exception ex) {
+            log.warn("Unable to load the snapshot file " + file, ex);
+            return null;
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    log.debug("load()", ex);
+                }
+            }
+        }
+    }
+
+    private static void writeItems(DataOutputStream out, Collection<DirectorySnapshot.Item> items) throws IOException {
+        out.writeInt(items.size());
+        for (DirectorySnapshot.Item item : items) {
+            Entry entry = item.getEntry();
+            writeString(out, item.getId());
+            writeString(out, item.getEtag());
+            writeString(out, entry.getDn().getName());
+
+            out.writeInt(entry.size());
+            for (Attribute attribute : entry) {
+                writeString(out, attribute.getUpId());
+                out.writeInt(attribute.size());
+                for (Value<?> value : attribute) {
+                    writeString(out, value.getString());
+                }
+            }
+        }
+    }
+
+    private List<DirectorySnapshot.Item> readItems(ByteBuffer in) throws LdapException {
+        int count = in.getInt();
+        List<DirectorySnapshot.Item> items = new ArrayList<DirectorySnapshot.Item>(count);
+        for (int i = 0; i < count; i++) {
+            String id = readString(in);
+            String etag = readString(in);
+            Entry entry = new DefaultEntry(schemaManager, new Dn(schemaManager, readString(in)));
+
+            int attributes = in.getInt();
+            for (int a = 0; a < attributes; a++) {
+                String upId = readString(in);
+                String[] values = new String[in.getInt()];
+                for (int v = 0; v < values.length; v++) {
+                    values[v] = readString(in);
+                }
+                entry.add(upId, values);
+            }
+            items.add(new DirectorySnapshot.Item(id, etag, entry));
+        }
+        return items;
+    }
+
+    /** Writes a string as its length, -1 for null, followed by its UTF-8 bytes. */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,198 @@
+package com.dabsquared.googleldap;
+
+import com.dabsquared.googleldap.util.NamedThreadFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the calls to Google made on behalf of LDAP requests away from the threads
+ * ApacheDS processes requests on, and waits for them no longer than a timeout.
+ *
+ * On a JVM with virtual threads each call gets its own virtual thread, and at most
+ * {@code maxConcurrent} of them talk to Google at once. Otherwise calls run on a
+ * pool of {@code maxConcurrent} threads with a bounded queue, and a call that finds
+ * the queue full fails straight away rather than piling up. Either way a slow
+ * Google holds on to a bounded number of threads, and requests answered from the
+ * cache never wait behind it.
+ *
+ * A call made from within another, e.g. a page of a listing fetching the entries it
+ * refers to, runs on the thread of the outer call: waiting for another thread there
+ * could hold every thread, or permit, in outer calls waiting for inner ones.
+ */
+public class UpstreamExecutor {
+
+    private static final Logger log = LogManager.getLogger(UpstreamExecutor.class);
+
+    /** Calls waiting for a thread of the pool, per thread. */
+    private static final int QUEUE_SIZE_PER_THREAD = 8;
+
+    private final ExecutorService executor;
+
+    /** Limits concurrent calls on virtual threads; null when the pool does. */
+    private final Semaphore permits;
+
+    private final long timeout;
+
+    /** Set while a thread runs a call. */
+    private final ThreadLocal<Boolean> inCall = new ThreadLocal<Boolean>();
+
+    /**
+     * @param maxConcurrent the number of calls run at once.
+     * @param timeout the time a caller waits for a call, in milliseconds.
+     */
+    public UpstreamExecutor(int maxConcurrent, long timeout) {
+        this.timeout = timeout;
+
+        ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+        if (virtual != null) {
+            log.info("Calling Google on virtual threads, " + maxConcurrent + " at a time");
+            this.executor = virtual;
+            this.permits = new Semaphore(maxConcurrent, true);
+        } else {
+            log.info("Calling Google on a pool of " + maxConcurrent + " threads");
+            this.executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(maxConcurrent * QUEUE_SIZE_PER_THREAD),
+                    new NamedThreadFactory("google-call"), new ThreadPoolExecutor.AbortPolicy());
+            ((ThreadPoolExecutor) this.executor).allowCoreThreadTimeOut(true);
+            this.permits = null;
+        }
+    }
+
+    /**
+     * @return the time a caller waits for a call, in milliseconds.
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Runs a call and waits for it for at most the timeout. A call that times out is
+     * cancelled. Called from within another call, it runs straight away on the same
+     * thread, under the timeout of the outer call.
+     *
+     * @return the result of the call.
+     * @throws IOException the exception thrown by the call, or an {@link UnavailableException}
+     *         if it timed out or there are too many calls already.
+     */
+    public <V> V call(Callable<V> call) throws IOException {
+        if (inCall.get() != null) {
+            return callHere(call);
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        Future<V> future = submit(call, deadline);
+        try {
+            return future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            future.cancel(true);
+            throw new UnavailableException("Google did not answer within " + timeout + "ms");
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for Google");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Submits a call without waiting for it, for callers that wait on their own terms.
+     *
+     * @throws UnavailableException if there are too many calls already.
+     */
+    public <V> Future<V> submit(Callable<V> call) throws UnavailableException {
+        return submit(call, System.currentTimeMillis() + timeout);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private <V> Future<V> submit(final Callable<V> call, final long deadline) throws UnavailableException {
+        try {
+            return executor.submit(new Callable<V>() {
+                public V call() throws Exception {
+                    // Waiting here only parks a virtual thread
+                    if (permits != null && !permits.tryAcquire(Math.max(0, deadline - System.currentTimeMillis()),
+                            TimeUnit.MILLISECONDS)) {
+                        throw new UnavailableException("Too many calls to Google in progress");
+                    }
+                    inCall.set(Boolean.TRUE);
+                    try {
+                        return call.call();
+                    } finally {
+                        inCall.remove();
+                        if (permits != null) {
+                            permits.release();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            throw new UnavailableException("Too many calls to Google in progress");
+        }
+    }
+
+    private static <V> V callHere(Callable<V> call) throws IOException {
+        try {
+            return call.call();
+        } catch (IOException ex) {
+            throw ex;
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * @return an executor starting a virtual thread per task, or null if the JVM has none.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method m = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (NoSuchMethodException ex) {
+            return null;
+        } catch (Exception ex) {
+            // Preview releases have the method but refuse to run it
+            log.debug("Virtual threads are not available", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Google could not be asked in time.
+     */
+    public static class UnavailableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public UnavailableException(String message) {
+            super(message);
+        }
+    }
+}
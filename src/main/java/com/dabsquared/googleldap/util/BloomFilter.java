@@ -0,0 +1,102 @@
+package com.dabsquared.googleldap.util;
+
+/**
+ * Provides a simple Bloom filter over strings.
+ * <p/>
+ * A Bloom filter answers whether a string might have been added,
+ * with no false negatives and a configurable rate of false positives,
+ * using a small fixed number of bits per element.
+ * <p/>
+ * Adding is not thread-safe; fill the filter on one thread and
+ * publish it safely (e.g. through a volatile field), after which
+ * any number of threads may query it.
+ * </p>
+ */
+public class BloomFilter {
+
+  protected final long[] m_Bits;
+  protected final long m_NumBits;
+  protected final int m_NumHashes;
+  protected int m_Count;
+
+  /**
+   * Creates a new filter.
+   *
+   * @param expectedInsertions the number of strings expected to be added.
+   * @param fpp                the desired rate of false positives, e.g. 0.01.
+   */
+  public BloomFilter(int expectedInsertions, double fpp) {
+    int n = Math.max(1, expectedInsertions);
+    long bits = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+    bits = Math.max(64, bits);
+    m_Bits = new long[(int) ((bits + 63) >>> 6)];
+    m_NumBits = (long) m_Bits.length << 6;
+    m_NumHashes = Math.max(1, (int) Math.round((double) m_NumBits / n * Math.log(2)));
+  }//constructor
+
+  /**
+   * Adds the given string.
+   *
+   * @param s the string.
+   */
+  public void put(String s) {
+    long hash = hash(s);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 1; i <= m_NumHashes; i++) {
+      long bit = index(h1 + i * h2);
+      m_Bits[(int) (bit >>> 6)] |= 1L << bit;
+    }
+    m_Count++;
+  }//put
+
+  /**
+   * Tests if the given string might have been added.
+   *
+   * @param s the string.
+   * @return false if the string was definitely never added, true otherwise.
+   */
+  public boolean mightContain(String s) {
+    long hash = hash(s);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 1; i <= m_NumHashes; i++) {
+      long bit = index(h1 + i * h2);
+      if ((m_Bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }//mightContain
+
+  /**
+   * Returns the number of strings added.
+   *
+   * @return the number of strings added.
+   */
+  public int getCount() {
+    return m_Count;
+  }//getCount
+
+  private long index(int combined) {
+    return (combined & Integer.MAX_VALUE) % m_NumBits;
+  }//index
+
+  /**
+   * 64 bit FNV-1a over the chars, finished with the MurmurHash3 mixer.
+   */
+  private static long hash(String s) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < s.length(); i++) {
+      h ^= s.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= (h >>> 33);
+    h *= 0xff51afd7ed558ccdL;
+    h ^= (h >>> 33);
+    h *= 0xc4ceb93fe66aec53L;
+    h ^= (h >>> 33);
+    return h;
+  }//hash
+
+}//class BloomFilter
@@ -0,0 +1,26 @@
+package com.dabsquared.googleldap.util;
+
+/**
+ * Provides the means for refreshing entries
+ * once they have gone stale in the cache.
+ * <p/>
+ * A stale entry is still served until it expires; the handler is
+ * called once per entry, on the thread that found it stale, and is
+ * expected to hand the refresh off rather than run it there. The
+ * refreshed value is put back into the cache by the handler; if the
+ * refresh cannot be handed off, the handler calls
+ * {@link ConcurrentCacheMap#cancelRefresh(Object)} so the entry is
+ * reported again.
+ * </p>
+ */
+public interface CacheMapRefreshHandler<T1, T2> {
+
+  /**
+   * Called when a stale entry is accessed.
+   *
+   * @param key   the key of the entry.
+   * @param value the stale value.
+   */
+  public void stale(T1 key, T2 value);
+
+}//interface CacheMapRefreshHandler
@@ -0,0 +1,444 @@
+package com.dabsquared.googleldap.util;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Provides a thread-safe cache map with per-entry expiry
+ * and a weight based ceiling.
+ * <p/>
+ * The keys are spread over a number of segments, each an access ordered
+ * {@link LinkedHashMap} guarded by its own lock, so threads working
+ * on different keys rarely contend. Every segment gets an equal share
+ * of the maximum weight; when a segment exceeds its share, the
+ * entries accessed longest ago are removed from it.
+ * <p/>
+ * Entries expire once their time to live has elapsed; expired entries
+ * are dropped lazily when they are next accessed. Both evicted and
+ * expired entries are passed to the {@link CacheMapExpelHandler}, if set.
+ * <p/>
+ * Entries may also go stale before they expire, once a shorter soft
+ * time to live has elapsed. A stale entry is still returned, and the
+ * first access to it is reported to the {@link CacheMapRefreshHandler},
+ * if set, so a fresh value can be fetched in the background.
+ * </p>
+ */
+public class ConcurrentCacheMap<T1, T2> {
+
+  /**
+   * Time to live of entries that never expire.
+   */
+  public static final long NO_EXPIRY = 0;
+
+  protected final Segment<T1, T2>[] m_Segments;
+  protected final Weigher<T1, T2> m_Weigher;
+  protected volatile long m_MaxWeight;
+  protected volatile long m_DefaultTtl;
+  protected volatile long m_SoftTtl = NO_EXPIRY;
+  protected volatile CacheMapExpelHandler<T1, T2> m_ExpelHandler;
+  protected volatile CacheMapRefreshHandler<T1, T2> m_RefreshHandler;
+
+  private final AtomicLong m_Hits = new AtomicLong();
+  private final AtomicLong m_Misses = new AtomicLong();
+  private final AtomicLong m_Evictions = new AtomicLong();
+  private final AtomicLong m_Expirations = new AtomicLong();
+  private final AtomicLong m_StaleHits = new AtomicLong();
+
+  /**
+   * Creates a new cache.
+   *
+   * @param maxWeight  the maximum total weight of all entries.
+   * @param defaultTtl the time to live in milliseconds of entries put without one,
+   *                   or {@link #NO_EXPIRY}.
+   * @param weigher    the weigher used to weigh entries.
+   */
+  public ConcurrentCacheMap(long maxWeight, long defaultTtl, Weigher<T1, T2> weigher) {
+    int n = 1;
+    while (n < Runtime.getRuntime().availableProcessors() * 4) {
+      n <<= 1;
+    }
+    @SuppressWarnings("unchecked")
+    Segment<T1, T2>[] segments = (Segment<T1, T2>[]) new Segment<?, ?>[n];
+    m_Segments = segments;
+    for (int i = 0; i < n; i++) {
+      m_Segments[i] = new Segment<T1, T2>();
+    }
+    m_MaxWeight = maxWeight;
+    m_DefaultTtl = defaultTtl;
+    m_Weigher = weigher;
+  }//constructor
+
+  public void setExpelHandler(CacheMapExpelHandler<T1, T2> expelHandler) {
+    m_ExpelHandler = expelHandler;
+  }//setExpelHandler
+
+  public void setRefreshHandler(CacheMapRefreshHandler<T1, T2> refreshHandler) {
+    m_RefreshHandler = refreshHandler;
+  }//setRefreshHandler
+
+  /**
+   * Returns the value mapped to the given key, if present and not expired.
+   *
+   * @param key the key.
+   * @return the value, or null.
+   */
+  public T2 get(T1 key) {
+    T2 value = lookup(key);
+    if (value == null) {
+      m_Misses.incrementAndGet();
+    } else {
+      m_Hits.incrementAndGet();
+    }
+    return value;
+  }//get
+
+  /**
+   * Tests if a value that has not expired is mapped to the given key.
+   * Does not count as a hit or miss.
+   *
+   * @param key the key.
+   * @return true if present, false otherwise.
+   */
+  public boolean containsKey(T1 key) {
+    return lookup(key) != null;
+  }//containsKey
+
+  /**
+   * Maps the value to the given key, using the default time to live.
+   *
+   * @param key   the key.
+   * @param value the value.
+   * @return the value previously mapped to the key, or null.
+   */
+  public T2 put(T1 key, T2 value) {
+    return put(key, value, m_DefaultTtl);
+  }//put
+
+  /**
+   * Maps the value to the given key.
+   *
+   * @param key   the key.
+   * @param value the value.
+   * @param ttl   the time to live in milliseconds, or {@link #NO_EXPIRY}.
+   * @return the value previously mapped to the key, or null.
+   */
+  public T2 put(T1 key, T2 value, long ttl) {
+    long now = System.currentTimeMillis();
+    long softTtl = m_SoftTtl;
+    Node<T2> node = new Node<T2>(value, m_Weigher.weigh(key, value),
+        (ttl == NO_EXPIRY) ? NO_EXPIRY : now + ttl,
+        (softTtl == NO_EXPIRY) ? NO_EXPIRY : now + softTtl);
+    Segment<T1, T2> seg = segmentFor(key);
+    List<Map.Entry<T1, T2>> evicted = null;
+    Node<T2> old;
+    synchronized (seg) {
+      old = seg.m_Map.put(key, node);
+      seg.m_Weight += node.m_Weight;
+      if (old != null) {
+        seg.m_Weight -= old.m_Weight;
+      }
+      evicted = trim(seg, segmentCeiling());
+    }
+    notifyExpelled(evicted);
+    return (old == null) ? null : old.m_Value;
+  }//put
+
+  /**
+   * Removes the value mapped to the given key.
+   * The {@link CacheMapExpelHandler} is not informed.
+   *
+   * @param key the key.
+   * @return the removed value, or null.
+   */
+  public T2 remove(T1 key) {
+    Segment<T1, T2> seg = segmentFor(key);
+    synchronized (seg) {
+      Node<T2> old = seg.m_Map.remove(key);
+      if (old == null) {
+        return null;
+      }
+      seg.m_Weight -= old.m_Weight;
+      return old.m_Value;
+    }
+  }//remove
+
+  /**
+   * Lets the next access to the entry, if still stale, report it to the
+   * {@link CacheMapRefreshHandler} again, for when the handler could not
+   * hand the refresh off.
+   *
+   * @param key the key.
+   */
+  public void cancelRefresh(T1 key) {
+    Segment<T1, T2> seg = segmentFor(key);
+    synchronized (seg) {
+      Node<T2> node = seg.m_Map.get(key);
+      if (node != null) {
+        node.m_Refreshing = false;
+      }
+    }
+  }//cancelRefresh
+
+  /**
+   * Clears this <tt>ConcurrentCacheMap</tt>.
+   *
+   * @param b if true, inform the {@link CacheMapExpelHandler}.
+   */
+  public void clear(boolean b) {
+    for (Segment<T1, T2> seg : m_Segments) {
+      List<Map.Entry<T1, T2>> removed = new ArrayList<Map.Entry<T1, T2>>();
+      synchronized (seg) {
+        for (Map.Entry<T1, Node<T2>> entry : seg.m_Map.entrySet()) {
+          removed.add(new AbstractMap.SimpleImmutableEntry<T1, T2>(entry.getKey(), entry.getValue().m_Value));
+        }
+        seg.m_Map.clear();
+        seg.m_Weight = 0;
+      }
+      if (b) {
+        notifyExpelled(removed);
+      }
+    }
+  }//clear
+
+  /**
+   * Returns the number of entries, including expired entries
+   * that have not been dropped yet.
+   *
+   * @return the number of entries.
+   */
+  public int size() {
+    int size = 0;
+    for (Segment<T1, T2> seg : m_Segments) {
+      synchronized (seg) {
+        size += seg.m_Map.size();
+      }
+    }
+    return size;
+  }//size
+
+  /**
+   * Returns the total weight of all entries.
+   *
+   * @return the total weight.
+   */
+  public long getWeight() {
+    long weight = 0;
+    for (Segment<T1, T2> seg : m_Segments) {
+      synchronized (seg) {
+        weight += seg.m_Weight;
+      }
+    }
+    return weight;
+  }//getWeight
+
+  /**
+   * Returns the maximum total weight this cache can hold.
+   *
+   * @return the maximum weight.
+   */
+  public long getMaxWeight() {
+    return m_MaxWeight;
+  }//getMaxWeight
+
+  /**
+   * Sets the maximum total weight this cache can hold,
+   * discarding the eldest entries if it shrinks.
+   *
+   * @param maxWeight the maximum weight.
+   */
+  public void setMaxWeight(long maxWeight) {
+    m_MaxWeight = maxWeight;
+    long ceiling = segmentCeiling();
+    for (Segment<T1, T2> seg : m_Segments) {
+      List<Map.Entry<T1, T2>> evicted;
+      synchronized (seg) {
+        evicted = trim(seg, ceiling);
+      }
+      notifyExpelled(evicted);
+    }
+  }//setMaxWeight
+
+  public long getDefaultTtl() {
+    return m_DefaultTtl;
+  }//getDefaultTtl
+
+  /**
+   * Sets the time to live of entries put from now on without one.
+   *
+   * @param ttl the time to live in milliseconds, or {@link #NO_EXPIRY}.
+   */
+  public void setDefaultTtl(long ttl) {
+    m_DefaultTtl = ttl;
+  }//setDefaultTtl
+
+  public long getSoftTtl() {
+    return m_SoftTtl;
+  }//getSoftTtl
+
+  /**
+   * Sets the time after which entries put from now on go stale.
+   *
+   * @param ttl the soft time to live in milliseconds, or {@link #NO_EXPIRY}.
+   */
+  public void setSoftTtl(long ttl) {
+    m_SoftTtl = ttl;
+  }//setSoftTtl
+
+  public long getHitCount() {
+    return m_Hits.get();
+  }//getHitCount
+
+  public long getMissCount() {
+    return m_Misses.get();
+  }//getMissCount
+
+  public long getEvictionCount() {
+    return m_Evictions.get();
+  }//getEvictionCount
+
+  public long getExpirationCount() {
+    return m_Expirations.get();
+  }//getExpirationCount
+
+  /**
+   * Returns the number of hits on stale entries.
+   *
+   * @return the number of hits.
+   */
+  public long getStaleHitCount() {
+    return m_StaleHits.get();
+  }//getStaleHitCount
+
+  public String toString() {
+    final StringBuilder sbuf = new StringBuilder();
+    for (Segment<T1, T2> seg : m_Segments) {
+      synchronized (seg) {
+        for (Map.Entry<T1, Node<T2>> entry : seg.m_Map.entrySet()) {
+          sbuf.append(entry.getKey());
+          sbuf.append(" = ");
+          sbuf.append(entry.getValue().m_Value);
+          sbuf.append("\n");
+        }
+      }
+    }
+    return sbuf.toString();
+  }//toString
+
+  private T2 lookup(T1 key) {
+    Segment<T1, T2> seg = segmentFor(key);
+    CacheMapRefreshHandler<T1, T2> refresher = m_RefreshHandler;
+    Map.Entry<T1, T2> expired;
+    Node<T2> stale;
+    synchronized (seg) {
+      Node<T2> node = seg.m_Map.get(key);
+      if (node == null) {
+        return null;
+      }
+      long now = System.currentTimeMillis();
+      if (node.isExpired(now)) {
+        seg.m_Map.remove(key);
+        seg.m_Weight -= node.m_Weight;
+        expired = new AbstractMap.SimpleImmutableEntry<T1, T2>(key, node.m_Value);
+        stale = null;
+      } else if (!node.isStale(now)) {
+        return node.m_Value;
+      } else {
+        m_StaleHits.incrementAndGet();
+        if (refresher == null || node.m_Refreshing) {
+          return node.m_Value;
+        }
+        // Only the first access to a stale entry asks for a refresh
+        node.m_Refreshing = true;
+        expired = null;
+        stale = node;
+      }
+    }
+    if (stale != null) {
+      refresher.stale(key, stale.m_Value);
+      return stale.m_Value;
+    }
+
+    m_Expirations.incrementAndGet();
+    CacheMapExpelHandler<T1, T2> handler = m_ExpelHandler;
+    if (handler != null) {
+      handler.expelled(expired);
+    }
+    return null;
+  }//lookup
+
+  /**
+   * Removes the eldest entries of the segment until it fits the ceiling.
+   * The most recently used entry is always kept. Must hold the segment lock.
+   */
+  private List<Map.Entry<T1, T2>> trim(Segment<T1, T2> seg, long ceiling) {
+    List<Map.Entry<T1, T2>> evicted = null;
+    for (Iterator<Map.Entry<T1, Node<T2>>> iterator = seg.m_Map.entrySet().iterator();
+         seg.m_Weight > ceiling && seg.m_Map.size() > 1 && iterator.hasNext(); ) {
+      Map.Entry<T1, Node<T2>> entry = iterator.next();
+      iterator.remove();
+      seg.m_Weight -= entry.getValue().m_Weight;
+      if (evicted == null) {
+        evicted = new ArrayList<Map.Entry<T1, T2>>();
+      }
+      evicted.add(new AbstractMap.SimpleImmutableEntry<T1, T2>(entry.getKey(), entry.getValue().m_Value));
+    }
+    if (evicted != null) {
+      m_Evictions.addAndGet(evicted.size());
+    }
+    return evicted;
+  }//trim
+
+  private void notifyExpelled(List<Map.Entry<T1, T2>> entries) {
+    CacheMapExpelHandler<T1, T2> handler = m_ExpelHandler;
+    if (handler == null || entries == null) {
+      return;
+    }
+    for (Map.Entry<T1, T2> entry : entries) {
+      handler.expelled(entry);
+    }
+  }//notifyExpelled
+
+  private long segmentCeiling() {
+    return Math.max(1, m_MaxWeight / m_Segments.length);
+  }//segmentCeiling
+
+  private Segment<T1, T2> segmentFor(T1 key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return m_Segments[h & (m_Segments.length - 1)];
+  }//segmentFor
+
+  private static class Segment<T1, T2> {
+    final LinkedHashMap<T1, Node<T2>> m_Map = new LinkedHashMap<T1, Node<T2>>(16, 0.75f, true);
+    long m_Weight;
+  }//class Segment
+
+  private static class Node<T2> {
+    final T2 m_Value;
+    final long m_Weight;
+    final long m_ExpiresAt;
+    final long m_StaleAt;
+    boolean m_Refreshing;
+
+    Node(T2 value, long weight, long expiresAt, long staleAt) {
+      m_Value = value;
+      m_Weight = weight;
+      m_ExpiresAt = expiresAt;
+      m_StaleAt = staleAt;
+    }
+
+    boolean isExpired(long now) {
+      return m_ExpiresAt != NO_EXPIRY && now >= m_ExpiresAt;
+    }
+
+    boolean isStale(long now) {
+      return m_StaleAt != NO_EXPIRY && now >= m_StaleAt;
+    }
+  }//class Node
+
+}//class ConcurrentCacheMap
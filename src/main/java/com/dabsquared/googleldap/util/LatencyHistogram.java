@@ -0,0 +1,155 @@
+package com.dabsquared.googleldap.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Provides a latency histogram with a fixed relative precision.
+ * <p/>
+ * Like an HDR histogram, values are counted in buckets whose width grows
+ * with the value: every power of two is split into 16 buckets, so any
+ * percentile is reported within 1/16 of its true value, from nanoseconds
+ * to hours, in a fixed 960 counters. Recording a value touches a few
+ * atomic counters and never locks or allocates, so it is cheap enough to
+ * do on every operation.
+ * <p/>
+ * This class is thread-safe. Readings taken while values are recorded
+ * are not an atomic snapshot, but never miss a completed recording.
+ * </p>
+ */
+public class LatencyHistogram {
+
+  /** Bits of precision kept below the highest bit of a value. */
+  protected static final int SUB_BUCKET_BITS = 4;
+  protected static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  protected static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  protected final AtomicLongArray m_Buckets;
+  protected final LongAdder m_Count;
+  protected final LongAdder m_Sum;
+  protected final AtomicLong m_Max;
+
+  /**
+   * Creates a new, empty histogram.
+   */
+  public LatencyHistogram() {
+    m_Buckets = new AtomicLongArray(BUCKETS);
+    m_Count = new LongAdder();
+    m_Sum = new LongAdder();
+    m_Max = new AtomicLong();
+  }//constructor
+
+  /**
+   * Records a value.
+   *
+   * @param nanos the value, in nanoseconds; negative values count as 0.
+   */
+  public void record(long nanos) {
+    long value = Math.max(0, nanos);
+    m_Buckets.incrementAndGet(bucket(value));
+    m_Count.increment();
+    m_Sum.add(value);
+
+    long max = m_Max.get();
+    while (value > max && !m_Max.compareAndSet(max, value)) {
+      max = m_Max.get();
+    }
+  }//record
+
+  /**
+   * Records the time elapsed since the given start.
+   *
+   * @param startNanos the start, as returned by {@link System#nanoTime()}.
+   */
+  public void recordSince(long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }//recordSince
+
+  /**
+   * Returns the number of recorded values.
+   *
+   * @return the count.
+   */
+  public long getCount() {
+    return m_Count.sum();
+  }//getCount
+
+  /**
+   * Returns the mean of the recorded values.
+   *
+   * @return the mean in nanoseconds, or 0 if none were recorded.
+   */
+  public double getMean() {
+    long count = m_Count.sum();
+    return (count == 0) ? 0 : (double) m_Sum.sum() / count;
+  }//getMean
+
+  /**
+   * Returns the largest recorded value.
+   *
+   * @return the value in nanoseconds, or 0 if none were recorded.
+   */
+  public long getMax() {
+    return m_Max.get();
+  }//getMax
+
+  /**
+   * Returns the value below which the given percentage of the recorded
+   * values fall.
+   *
+   * @param percentile the percentage, between 0 and 100.
+   * @return the value in nanoseconds, or 0 if none were recorded.
+   */
+  public long getPercentile(double percentile) {
+    long[] counts = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = m_Buckets.get(i);
+      total += counts[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(highestValue(i), getMax());
+      }
+    }
+    return getMax();
+  }//getPercentile
+
+  /**
+   * Returns the bucket counting the given value.
+   *
+   * @param value the value, not negative.
+   * @return the index of the bucket.
+   */
+  protected static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+  }//bucket
+
+  /**
+   * Returns the largest value counted by the given bucket.
+   *
+   * @param bucket the index of the bucket.
+   * @return the value.
+   */
+  protected static long highestValue(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }//highestValue
+
+}//class LatencyHistogram
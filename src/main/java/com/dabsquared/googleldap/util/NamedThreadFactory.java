@@ -0,0 +1,25 @@
+package com.dabsquared.googleldap.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads with a recognizable name prefix,
+ * so background work shows up clearly in thread dumps.
+ */
+public class NamedThreadFactory implements ThreadFactory {
+
+  private final String m_Prefix;
+  private final AtomicInteger m_Counter = new AtomicInteger();
+
+  public NamedThreadFactory(String prefix) {
+    m_Prefix = prefix;
+  }//constructor
+
+  public Thread newThread(Runnable r) {
+    Thread t = new Thread(r, m_Prefix + "-" + m_Counter.incrementAndGet());
+    t.setDaemon(true);
+    return t;
+  }//newThread
+
+}//class NamedThreadFactory
@@ -0,0 +1,102 @@
+package com.dabsquared.googleldap.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses concurrent calls for the same key into a single call.
+ * <p/>
+ * The first caller for a key runs the call on its own thread; callers
+ * asking for the same key while it is in flight wait for it and get
+ * the same result, or the same exception. Nothing is remembered once
+ * the call completes, so this is not a cache: the next caller for the
+ * key starts a new call.
+ * <p/>
+ * This class is thread-safe.
+ * </p>
+ */
+public class SingleFlight<K, V> {
+
+  protected final ConcurrentHashMap<K, FutureTask<V>> m_InFlight;
+  protected final AtomicLong m_Calls;
+  protected final AtomicLong m_Shared;
+
+  /**
+   * Creates a new instance.
+   */
+  public SingleFlight() {
+    m_InFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+    m_Calls = new AtomicLong();
+    m_Shared = new AtomicLong();
+  }//constructor
+
+  /**
+   * Runs the given call, unless a call for the same key is in flight,
+   * in which case its result is awaited instead.
+   *
+   * @param key  the key identifying the call.
+   * @param call the call.
+   * @return the result of the call.
+   * @throws Exception the exception thrown by the call, or an
+   *                   InterruptedException if interrupted while waiting.
+   */
+  public V execute(K key, Callable<V> call) throws Exception {
+    FutureTask<V> task = new FutureTask<V>(call);
+    FutureTask<V> inFlight = m_InFlight.putIfAbsent(key, task);
+    if (inFlight == null) {
+      m_Calls.incrementAndGet();
+      try {
+        task.run();
+      } finally {
+        m_InFlight.remove(key, task);
+      }
+    } else {
+      m_Shared.incrementAndGet();
+      task = inFlight;
+    }
+
+    try {
+      return task.get();
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw ex;
+    }
+  }//execute
+
+  /**
+   * Returns the number of calls in flight.
+   *
+   * @return the number of calls.
+   */
+  public int getInFlightCount() {
+    return m_InFlight.size();
+  }//getInFlightCount
+
+  /**
+   * Returns the number of calls actually run.
+   *
+   * @return the number of calls.
+   */
+  public long getCallCount() {
+    return m_Calls.get();
+  }//getCallCount
+
+  /**
+   * Returns the number of callers served by a call another caller started.
+   *
+   * @return the number of callers.
+   */
+  public long getSharedCount() {
+    return m_Shared.get();
+  }//getSharedCount
+
+}//class SingleFlight
@@ -0,0 +1,180 @@
+package com.dabsquared.googleldap.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Provides a table of interned strings, packed as UTF-8 into a single byte array.
+ * <p/>
+ * Each distinct string is stored once and referred to by an int id, so that
+ * records can hold their strings as ints. A string costs its UTF-8 length
+ * plus four bytes of offset and about eight of hash slots, instead of the
+ * forty bytes or more of a String object; {@link #get(int)} decodes a new
+ * String every time it is called.
+ * <p/>
+ * Adding is not thread-safe; fill the table on one thread and publish it
+ * safely (e.g. through a volatile field), after which any number of threads
+ * may read it.
+ * </p>
+ */
+public class StringTable {
+
+  protected byte[] m_Data;
+  protected int m_Length;
+  protected int[] m_Offsets;
+  protected int m_Count;
+  protected int[] m_Slots;
+
+  /**
+   * Creates a new table.
+   *
+   * @param expectedStrings the number of distinct strings expected.
+   */
+  public StringTable(int expectedStrings) {
+    int n = Math.max(16, expectedStrings);
+    m_Data = new byte[n * 16];
+    m_Offsets = new int[n + 1];
+    m_Slots = new int[slotsFor(n)];
+  }//constructor
+
+  /**
+   * Adds the given string unless it is already in the table.
+   *
+   * @param s the string.
+   * @return the id of the string.
+   */
+  public int intern(String s) {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    int slot = slot(bytes);
+    if (m_Slots[slot] != 0) {
+      return m_Slots[slot] - 1;
+    }
+
+    if (m_Length + bytes.length > m_Data.length) {
+      m_Data = Arrays.copyOf(m_Data, Math.max(m_Length + bytes.length, m_Data.length * 2));
+    }
+    if (m_Count + 2 > m_Offsets.length) {
+      m_Offsets = Arrays.copyOf(m_Offsets, m_Offsets.length * 2);
+    }
+    System.arraycopy(bytes, 0, m_Data, m_Length, bytes.length);
+    m_Offsets[m_Count] = m_Length;
+    m_Length += bytes.length;
+    m_Offsets[m_Count + 1] = m_Length;
+    m_Slots[slot] = ++m_Count;
+
+    if (m_Count * 2 > m_Slots.length) {
+      rehash(m_Slots.length * 2);
+    }
+    return m_Count - 1;
+  }//intern
+
+  /**
+   * Returns the id of the given string.
+   *
+   * @param s the string.
+   * @return the id of the string, or -1 if it is not in the table.
+   */
+  public int find(String s) {
+    return m_Slots[slot(s.getBytes(StandardCharsets.UTF_8))] - 1;
+  }//find
+
+  /**
+   * Returns the string of the given id.
+   *
+   * @param id the id of a string of the table.
+   * @return the string.
+   */
+  public String get(int id) {
+    return new String(m_Data, m_Offsets[id], m_Offsets[id + 1] - m_Offsets[id], StandardCharsets.UTF_8);
+  }//get
+
+  /**
+   * Returns the number of distinct strings.
+   *
+   * @return the number of strings.
+   */
+  public int size() {
+    return m_Count;
+  }//size
+
+  /**
+   * Returns the approximate heap used by the table.
+   *
+   * @return the size of the arrays, in bytes.
+   */
+  public long getMemoryUsage() {
+    return m_Data.length + 4L * m_Offsets.length + 4L * m_Slots.length;
+  }//getMemoryUsage
+
+  /**
+   * Shrinks the arrays to what the strings added so far need, once the table
+   * is filled.
+   */
+  public void trim() {
+    m_Data = Arrays.copyOf(m_Data, m_Length);
+    m_Offsets = Arrays.copyOf(m_Offsets, m_Count + 1);
+    rehash(slotsFor(m_Count));
+  }//trim
+
+  /**
+   * Finds the slot holding the given string, or the empty slot where it would go.
+   */
+  private int slot(byte[] bytes) {
+    int mask = m_Slots.length - 1;
+    int slot = hash(bytes, 0, bytes.length) & mask;
+    while (m_Slots[slot] != 0 && !matches(m_Slots[slot] - 1, bytes)) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }//slot
+
+  private boolean matches(int id, byte[] bytes) {
+    int offset = m_Offsets[id];
+    if (m_Offsets[id + 1] - offset != bytes.length) {
+      return false;
+    }
+    for (int i = 0; i < bytes.length; i++) {
+      if (m_Data[offset + i] != bytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }//matches
+
+  private void rehash(int slots) {
+    m_Slots = new int[slots];
+    int mask = slots - 1;
+    for (int id = 0; id < m_Count; id++) {
+      int slot = hash(m_Data, m_Offsets[id], m_Offsets[id + 1] - m_Offsets[id]) & mask;
+      while (m_Slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      m_Slots[slot] = id + 1;
+    }
+  }//rehash
+
+  /**
+   * Returns a power of two at least twice the given number of strings.
+   */
+  private static int slotsFor(int strings) {
+    return Integer.highestOneBit(Math.max(8, strings) * 2 - 1) << 1;
+  }//slotsFor
+
+  /**
+   * 32 bit FNV-1a over the bytes, finished with the MurmurHash3 mixer.
+   */
+  private static int hash(byte[] bytes, int offset, int length) {
+    int h = 0x811c9dc5;
+    for (int i = offset; i < offset + length; i++) {
+      h ^= bytes[i];
+      h *= 0x01000193;
+    }
+    h ^= (h >>> 16);
+    h *= 0x85ebca6b;
+    h ^= (h >>> 13);
+    h *= 0xc2b2ae35;
+    h ^= (h >>> 16);
+    return h;
+  }//hash
+
+}//class StringTable
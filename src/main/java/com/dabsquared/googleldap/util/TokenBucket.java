@@ -0,0 +1,95 @@
+package com.dabsquared.googleldap.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provides a token bucket rate limiter.
+ * <p/>
+ * Tokens are added at a fixed rate up to a maximum burst. A caller
+ * asking for more tokens than are available takes them anyway, leaving
+ * the bucket in debt, and sleeps until the debt would have been paid
+ * off; callers are therefore served in the order they asked, and the
+ * long term rate never exceeds the configured one.
+ * <p/>
+ * This class is thread-safe.
+ * </p>
+ */
+public class TokenBucket {
+
+  protected final double m_PermitsPerNano;
+  protected final double m_Burst;
+  protected double m_Tokens;
+  protected long m_LastRefill;
+
+  /**
+   * Creates a new bucket, initially full.
+   *
+   * @param permitsPerSecond the sustained rate.
+   * @param burst            the number of permits that may be taken at once
+   *                         after the bucket has been idle.
+   */
+  public TokenBucket(double permitsPerSecond, int burst) {
+    if (permitsPerSecond <= 0) {
+      throw new IllegalArgumentException("permitsPerSecond must be positive");
+    }
+    m_PermitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+    m_Burst = Math.max(1, burst);
+    m_Tokens = m_Burst;
+    m_LastRefill = System.nanoTime();
+  }//constructor
+
+  /**
+   * Takes one permit, waiting for it if needed.
+   *
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public void acquire() throws InterruptedException {
+    acquire(1);
+  }//acquire
+
+  /**
+   * Takes the given number of permits, waiting for them if needed.
+   *
+   * @param permits the number of permits.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public void acquire(int permits) throws InterruptedException {
+    long wait = reserve(permits);
+    if (wait > 0) {
+      TimeUnit.NANOSECONDS.sleep(wait);
+    }
+  }//acquire
+
+  /**
+   * Takes one permit if one is available now.
+   *
+   * @return true if the permit was taken, false if the bucket is empty.
+   */
+  public synchronized boolean tryAcquire() {
+    long now = System.nanoTime();
+    m_Tokens = Math.min(m_Burst, m_Tokens + (now - m_LastRefill) * m_PermitsPerNano);
+    m_LastRefill = now;
+
+    if (m_Tokens < 1) {
+      return false;
+    }
+    m_Tokens -= 1;
+    return true;
+  }//tryAcquire
+
+  /**
+   * Takes the given number of permits without waiting.
+   *
+   * @param permits the number of permits.
+   * @return the nanoseconds to wait before using them.
+   */
+  protected synchronized long reserve(int permits) {
+    long now = System.nanoTime();
+    m_Tokens = Math.min(m_Burst, m_Tokens + (now - m_LastRefill) * m_PermitsPerNano);
+    m_LastRefill = now;
+
+    m_Tokens -= permits;
+    return (m_Tokens >= 0) ? 0 : (long) Math.ceil(-m_Tokens / m_PermitsPerNano);
+  }//reserve
+
+}//class TokenBucket
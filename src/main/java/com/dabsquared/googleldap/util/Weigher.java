@@ -0,0 +1,18 @@
+package com.dabsquared.googleldap.util;
+
+/**
+ * Computes the weight of a cache entry, used by
+ * {@link ConcurrentCacheMap} to enforce its memory ceiling.
+ */
+public interface Weigher<T1, T2> {
+
+  /**
+   * Returns the weight of the given entry.
+   *
+   * @param key   the key of the entry.
+   * @param value the value of the entry.
+   * @return the weight, an approximation of the bytes retained; must not be negative.
+   */
+  public long weigh(T1 key, T2 value);
+
+}//interface Weigher
@@ -0,0 +1,99 @@
+package com.dabsquared.googleldap;
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.EmptyCursor;
+import org.apache.directory.api.ldap.model.cursor.ListCursor;
+import org.apache.directory.api.ldap.model.cursor.SingletonCursor;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads the elements 1 to 6 out of cursors as the partition builds them, none of which
+ * can seek.
+ */
+public class ConcatCursorTest {
+
+    private ConcatCursor<Integer> cursor;
+
+    @Before
+    public void createCursor() {
+        List<Cursor<Integer>> cursors = new ArrayList<Cursor<Integer>>();
+        cursors.add(new SingletonCursor<Integer>(1));
+        cursors.add(new ListCursor<Integer>(Arrays.asList(2, 3)));
+        cursors.add(new EmptyCursor<Integer>());
+        cursors.add(new ListCursor<Integer>(Arrays.asList(4, 5, 6)));
+        cursor = new ConcatCursor<Integer>(cursors);
+    }
+
+    @Test
+    public void readsEveryCursorForwardAndBack() throws Exception {
+        for (int i = 1; i <= 6; i++) {
+            assertTrue(cursor.next());
+            assertEquals(i, (int) cursor.get());
+        }
+        assertFalse(cursor.next());
+        for (int i = 6; i >= 1; i--) {
+            assertTrue(cursor.previous());
+            assertEquals(i, (int) cursor.get());
+        }
+        assertFalse(cursor.previous());
+    }
+
+    @Test
+    public void seeksBeforeAndAfterAnElement() throws Exception {
+        cursor.before(4);
+        assertFalse(cursor.available());
+        assertTrue(cursor.next());
+        assertEquals(4, (int) cursor.get());
+
+        cursor.before(4);
+        assertTrue(cursor.previous());
+        assertEquals(3, (int) cursor.get());
+
+        cursor.before(5);
+        assertTrue(cursor.previous());
+        assertEquals(4, (int) cursor.get());
+
+        cursor.after(3);
+        assertTrue(cursor.next());
+        assertEquals(4, (int) cursor.get());
+
+        cursor.after(3);
+        assertTrue(cursor.previous());
+        assertEquals(3, (int) cursor.get());
+        assertTrue(cursor.previous());
+        assertEquals(2, (int) cursor.get());
+    }
+
+    @Test
+    public void seeksAfterTheLastElementWhenTheElementIsMissing() throws Exception {
+        cursor.after(42);
+        assertFalse(cursor.next());
+        assertTrue(cursor.previous());
+        assertEquals(6, (int) cursor.get());
+    }
+
+    @Test
+    public void movesToTheLastElementOfEveryCursor() throws Exception {
+        assertTrue(cursor.next());
+
+        assertTrue(cursor.last());
+        assertEquals(6, (int) cursor.get());
+        for (int i = 5; i >= 1; i--) {
+            assertTrue(cursor.previous());
+            assertEquals(i, (int) cursor.get());
+        }
+
+        cursor.afterLast();
+        assertFalse(cursor.available());
+        assertFalse(cursor.next());
+    }
+}
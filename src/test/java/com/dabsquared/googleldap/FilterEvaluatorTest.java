@@ -0,0 +1,80 @@
+package com.dabsquared.googleldap;
+
+import com.google.api.services.admin.directory.model.Group;
+import com.google.api.services.admin.directory.model.User;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.filter.AndNode;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.NotNode;
+import org.apache.directory.api.ldap.model.filter.ObjectClassNode;
+import org.apache.directory.api.ldap.model.filter.OrNode;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Evaluates filters as ApacheDS hands them to the partition, (objectClass=*) and
+ * (objectClass=top) having been turned into an {@link ObjectClassNode}.
+ */
+public class FilterEvaluatorTest {
+
+    private static FilterEvaluator evaluator;
+
+    private static String uid;
+
+    private static Entry user;
+
+    private static Entry group;
+
+    @BeforeClass
+    public static void buildEntries() throws Exception {
+        evaluator = new FilterEvaluator(TestSchema.schemaManager());
+        EntryFactory factory = new EntryFactory(TestSchema.schemaManager(),
+                "ou=users," + OfflineServer.BASE, "ou=groups," + OfflineServer.BASE);
+        SyntheticDirectory directory = new SyntheticDirectory(OfflineServer.DOMAIN, 10, 2, 42);
+        User u = directory.getUsers().get(0);
+        uid = EntryFactory.localPart(u.getPrimaryEmail());
+        user = factory.createUserEntry(factory.userDn(u), u, Collections.<String>emptyList());
+        Group g = directory.getGroups().get(1);
+        group = factory.createGroupEntry(factory.groupDn(g), g, Collections.singletonList(uid));
+    }
+
+    @Test
+    public void matchesEveryEntryOnObjectClassPresence() {
+        assertTrue(evaluator.matches(ObjectClassNode.OBJECT_CLASS_NODE, user));
+        assertTrue(evaluator.matches(ObjectClassNode.OBJECT_CLASS_NODE, group));
+        assertFalse(evaluator.matches(new NotNode(ObjectClassNode.OBJECT_CLASS_NODE), user));
+    }
+
+    @Test
+    public void matchesNoEntryOnAnAttributeTheyLack() throws Exception {
+        ExprNode filter = TestSchema.filter("(administrativeRole=*)");
+        assertFalse(evaluator.matches(filter, user));
+        assertFalse(evaluator.matches(filter, group));
+        assertTrue(evaluator.matches(new NotNode(filter), user));
+    }
+
+    @Test
+    public void evaluatesObjectClassPresenceWithinBranches() throws Exception {
+        ExprNode posixAccount = TestSchema.filter("(objectClass=posixAccount)");
+        ExprNode nobody = TestSchema.filter("(uid=nobody)");
+
+        ExprNode users = new AndNode(new OrNode(ObjectClassNode.OBJECT_CLASS_NODE, nobody), posixAccount);
+        assertTrue(evaluator.matches(users, user));
+        assertFalse(evaluator.matches(users, group));
+
+        ExprNode any = new OrNode(nobody, new AndNode(ObjectClassNode.OBJECT_CLASS_NODE, ObjectClassNode.OBJECT_CLASS_NODE));
+        assertTrue(evaluator.matches(any, user));
+        assertTrue(evaluator.matches(any, group));
+
+        ExprNode none = new AndNode(ObjectClassNode.OBJECT_CLASS_NODE, nobody);
+        assertFalse(evaluator.matches(none, user));
+
+        ExprNode named = new AndNode(ObjectClassNode.OBJECT_CLASS_NODE, TestSchema.filter("(uid=" + uid + ")"));
+        assertTrue(evaluator.matches(named, user));
+    }
+}
@@ -0,0 +1,88 @@
+package com.dabsquared.googleldap;
+
+import com.google.api.services.admin.directory.model.Group;
+import com.google.api.services.admin.directory.model.User;
+import org.apache.directory.api.ldap.model.cursor.EntryCursor;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.ldap.client.api.LdapNetworkConnection;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Searches groups by memberUid, as initgroups() does, against a server answering from a
+ * synthetic directory, where group000000 has the whole domain as member.
+ */
+public class MemberUidSearchTest {
+
+    @ClassRule
+    public static final OfflineServer server = new OfflineServer(200, 10, 42);
+
+    private static SyntheticDirectory directory;
+
+    private static LdapNetworkConnection connection;
+
+    @BeforeClass
+    public static void connect() throws Exception {
+        directory = server.directory();
+        connection = server.connect();
+    }
+
+    @AfterClass
+    public static void disconnect() throws IOException {
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void returnsTheGroupsOfTheWholeDomain() throws Exception {
+        int withoutGroups = 0;
+        for (User user : directory.getUsers()) {
+            Set<String> expected = new TreeSet<String>();
+            expected.add(SyntheticDirectory.groupName(0));
+            for (Group group : directory.getGroupsOf(user)) {
+                expected.add(EntryFactory.localPart(group.getEmail()));
+            }
+            if (expected.size() == 1) {
+                withoutGroups++;
+            }
+
+            String uid = EntryFactory.localPart(user.getPrimaryEmail());
+            assertEquals(uid, expected, groupsOf("(&(objectClass=posixGroup)(memberUid=" + uid + "))"));
+        }
+        // Otherwise every user would be found through groups.list by userKey alone
+        assertTrue(withoutGroups > 0);
+    }
+
+    @Test
+    public void findsNoGroupOfAnUnknownUser() throws Exception {
+        assertEquals(new TreeSet<String>(), groupsOf("(&(objectClass=posixGroup)(memberUid=root))"));
+    }
+
+    /**
+     * @return the cn of the groups the filter finds, which must be found without error.
+     */
+    private static Set<String> groupsOf(String filter) throws Exception {
+        Set<String> cns = new TreeSet<String>();
+        EntryCursor cursor = connection.search(OfflineServer.BASE, filter, SearchScope.SUBTREE, "cn");
+        try {
+            while (cursor.next()) {
+                cns.add(cursor.get().get("cn").getString());
+            }
+            assertEquals(filter, ResultCodeEnum.SUCCESS, cursor.getSearchResultDone().getLdapResult().getResultCode());
+        } finally {
+            cursor.close();
+        }
+        return cns;
+    }
+}
@@ -0,0 +1,91 @@
+package com.dabsquared.googleldap;
+
+import org.apache.directory.api.ldap.model.cursor.EntryCursor;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.ldap.client.api.LdapNetworkConnection;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Searches with (objectClass=*), as LdapConnection.lookup(), health checks and most
+ * clients do, against a server answering from Google and one answering from a snapshot.
+ */
+public class ObjectClassSearchTest {
+
+    @ClassRule
+    public static final OfflineServer onDemand = new OfflineServer(50, 5, 42);
+
+    @ClassRule
+    public static final OfflineServer snapshot = new OfflineServer(50, 5, 42)
+            .with("googleldap.snapshot", "true");
+
+    private static final String USER = "cn=" + SyntheticDirectory.userName(7) + ",ou=users," + OfflineServer.BASE;
+
+    private static final String GROUP = "cn=" + SyntheticDirectory.groupName(3) + ",ou=groups," + OfflineServer.BASE;
+
+    @Test
+    public void looksEntriesUp() throws Exception {
+        for (OfflineServer server : new OfflineServer[] { onDemand, snapshot }) {
+            LdapNetworkConnection connection = server.connect();
+            try {
+                assertNotNull(USER, connection.lookup(USER));
+                assertNotNull(GROUP, connection.lookup(GROUP));
+                assertNotNull(OfflineServer.BASE, connection.lookup(OfflineServer.BASE));
+            } finally {
+                connection.close();
+            }
+        }
+    }
+
+    @Test
+    public void findsEveryEntryWithAnObjectClass() throws Exception {
+        for (OfflineServer server : new OfflineServer[] { onDemand, snapshot }) {
+            assertEquals(1, count(server, USER, SearchScope.OBJECT, "(objectClass=*)"));
+            assertEquals(1, count(server, GROUP, SearchScope.OBJECT, "(objectClass=top)"));
+            // The domain, the two ous, the users and the groups
+            assertEquals(1 + 2 + 50 + 5, count(server, OfflineServer.BASE, SearchScope.SUBTREE, "(objectClass=*)"));
+        }
+    }
+
+    @Test
+    public void findsNoAdministrativePoint() throws Exception {
+        for (OfflineServer server : new OfflineServer[] { onDemand, snapshot }) {
+            assertEquals(0, count(server, OfflineServer.BASE, SearchScope.SUBTREE, "(administrativeRole=*)"));
+        }
+    }
+
+    @Test
+    public void combinesObjectClassPresenceWithOtherTerms() throws Exception {
+        for (OfflineServer server : new OfflineServer[] { onDemand, snapshot }) {
+            assertEquals(1, count(server, USER, SearchScope.OBJECT,
+                    "(&(|(objectClass=*)(uid=nobody))(objectClass=posixAccount))"));
+            assertEquals(0, count(server, USER, SearchScope.OBJECT,
+                    "(&(objectClass=*)(objectClass=posixGroup))"));
+            assertEquals(50, count(server, OfflineServer.BASE, SearchScope.SUBTREE,
+                    "(&(objectClass=*)(|(objectClass=posixAccount)(uid=nobody)))"));
+        }
+    }
+
+    /**
+     * @return the number of entries found, the search having to succeed.
+     */
+    private static int count(OfflineServer server, String base, SearchScope scope, String filter) throws Exception {
+        LdapNetworkConnection connection = server.connect();
+        try {
+            EntryCursor cursor = connection.search(base, filter, scope, "1.1");
+            int count = 0;
+            while (cursor.next()) {
+                count++;
+            }
+            assertEquals(filter, ResultCodeEnum.SUCCESS, cursor.getSearchResultDone().getLdapResult().getResultCode());
+            cursor.close();
+            return count;
+        } finally {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.dabsquared.googleldap;
+
+import org.apache.directory.ldap.client.api.LdapNetworkConnection;
+import org.junit.rules.ExternalResource;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A server started on free ports, answering from a synthetic directory, for the tests of
+ * a class. It is stopped, and the system properties it is configured with are put back,
+ * once the class has run.
+ */
+public class OfflineServer extends ExternalResource {
+
+    public static final String DOMAIN = "example.com";
+
+    public static final String BASE = "dc=example,dc=com";
+
+    private final int users;
+
+    private final int groups;
+
+    private final long seed;
+
+    /** The googleldap.* properties the server is started with. */
+    private final Map<String, String> properties = new HashMap<String, String>();
+
+    /** The values the properties had before, null for the ones that were not set. */
+    private final Map<String, String> saved = new HashMap<String, String>();
+
+    private final TemporaryFolder workDir = new TemporaryFolder();
+
+    private GoogleLDAPServer server;
+
+    private int port;
+
+    public OfflineServer(int users, int groups, long seed) {
+        this.users = users;
+        this.groups = groups;
+        this.seed = seed;
+    }
+
+    /**
+     * @param name a system property read by the server, such as googleldap.snapshot.
+     * @return this server, which is started with the property set.
+     */
+    public OfflineServer with(String name, String value) {
+        properties.put(name, value);
+        return this;
+    }
+
+    @Override
+    protected void before() throws Throwable {
+        workDir.create();
+        port = freePort();
+        Map<String, String> all = new HashMap<String, String>(properties);
+        all.put("googleldap.synthetic.groups", Integer.toString(groups));
+        all.put("googleldap.synthetic.seed", Long.toString(seed));
+        all.put("googleldap.metrics.jmx", "false");
+        all.put("googleldap.port", Integer.toString(port));
+        all.put("googleldap.sslPort", Integer.toString(freePort()));
+        all.put("googleldap.sslAltPort", Integer.toString(freePort()));
+        for (Map.Entry<String, String> property : all.entrySet()) {
+            saved.put(property.getKey(), System.setProperty(property.getKey(), property.getValue()));
+        }
+
+        server = SyntheticLDAPServer.create(workDir.getRoot(), DOMAIN, users);
+        server.startServer();
+        server.awaitReady();
+    }
+
+    @Override
+    protected void after() {
+        try {
+            if (server != null) {
+                server.stopServer();
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to stop the server", e);
+        } finally {
+            for (Map.Entry<String, String> property : saved.entrySet()) {
+                if (property.getValue() == null) {
+                    System.clearProperty(property.getKey());
+                } else {
+                    System.setProperty(property.getKey(), property.getValue());
+                }
+            }
+            saved.clear();
+            workDir.delete();
+        }
+    }
+
+    /**
+     * @return the directory the server answers from, generated again with the same seed.
+     */
+    public SyntheticDirectory directory() {
+        return new SyntheticDirectory(DOMAIN, users, groups, seed);
+    }
+
+    /**
+     * @return a new connection to the plain LDAP port, to be closed by the caller.
+     */
+    public LdapNetworkConnection connect() throws Exception {
+        LdapNetworkConnection connection = new LdapNetworkConnection("localhost", port);
+        connection.connect();
+        return connection;
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
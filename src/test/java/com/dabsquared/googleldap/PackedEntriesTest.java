@@ -0,0 +1,157 @@
+package com.dabsquared.googleldap;
+
+import com.dabsquared.googleldap.util.StringTable;
+import com.google.api.services.admin.directory.model.Group;
+import com.google.api.services.admin.directory.model.Member;
+import com.google.api.services.admin.directory.model.User;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Packs the entries of a synthetic directory and builds them back.
+ */
+public class PackedEntriesTest {
+
+    private static final List<Entry> entries = new ArrayList<Entry>();
+
+    private static final List<String> ids = new ArrayList<String>();
+
+    private static PackedEntries packed;
+
+    @BeforeClass
+    public static void packEntries() throws Exception {
+        EntryFactory factory = new EntryFactory(TestSchema.schemaManager(),
+                "ou=users," + OfflineServer.BASE, "ou=groups," + OfflineServer.BASE);
+        SyntheticDirectory directory = new SyntheticDirectory(OfflineServer.DOMAIN, 200, 20, 42);
+        for (User user : directory.getUsers()) {
+            entries.add(factory.createUserEntry(factory.userDn(user), user, user.getAliases()));
+            ids.add(user.getId());
+        }
+        for (Group group : directory.getGroups()) {
+            Set<String> memberUids = new LinkedHashSet<String>();
+            for (Member member : directory.getMembers(group)) {
+                if (member.getEmail() != null) {
+                    memberUids.add(EntryFactory.localPart(member.getEmail()));
+                }
+            }
+            entries.add(factory.createGroupEntry(factory.groupDn(group), group, memberUids));
+            ids.add(group.getId());
+        }
+
+        PackedEntries.Builder builder = new PackedEntries.Builder(TestSchema.schemaManager(), new StringTable(16), 1);
+        for (int i = 0; i < entries.size(); i++) {
+            builder.add(ids.get(i), "\"etag" + i + "\"", entries.get(i));
+        }
+        packed = builder.build();
+    }
+
+    @Test
+    public void buildsBackTheEntriesItPacked() throws Exception {
+        assertEquals(entries.size(), packed.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertSameEntry(entries.get(i), packed.get(i));
+            assertEquals(ids.get(i), packed.getId(i));
+            assertEquals("\"etag" + i + "\"", packed.getEtag(i));
+            assertEquals(entries.get(i).getDn().getRdn().getNormValue(), packed.getName(i));
+        }
+    }
+
+    @Test
+    public void findsTheEntriesByIdAndDn() throws Exception {
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(i, packed.findById(ids.get(i)));
+            assertEquals(i, packed.find(entries.get(i).getDn()));
+        }
+        assertEquals(-1, packed.findById("nobody"));
+        assertEquals(-1, packed.find(new Dn(TestSchema.schemaManager(), "cn=nobody,ou=users," + OfflineServer.BASE)));
+        // A user's name under the groups
+        Dn user = entries.get(0).getDn();
+        assertEquals(-1, packed.find(new Dn(TestSchema.schemaManager(), user.getRdn().getName() + ",ou=groups,"
+                + OfflineServer.BASE)));
+    }
+
+    @Test
+    public void keepsTheNormalizedValuesNextToTheUserProvidedOnes() throws Exception {
+        String oid = TestSchema.schemaManager().getAttributeType(SchemaConstants.SN_AT).getOid();
+        int differing = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            Attribute attribute = entries.get(i).get(oid);
+            if (attribute == null) {
+                assertNull(packed.getValues(i, oid));
+                assertNull(packed.getNormValues(i, oid));
+                continue;
+            }
+            List<String> values = new ArrayList<String>();
+            List<String> norms = new ArrayList<String>();
+            for (Value<?> value : attribute) {
+                values.add(value.getString());
+                norms.add((String) value.getNormValue());
+            }
+            assertArrayEquals(values.toArray(), packed.getValues(i, oid));
+            assertArrayEquals(norms.toArray(), packed.getNormValues(i, oid));
+            if (!values.equals(norms)) {
+                differing++;
+            }
+        }
+        assertTrue(differing > 0);
+    }
+
+    @Test
+    public void copiesEntriesIntoAnotherTable() throws Exception {
+        PackedEntries.Builder builder = new PackedEntries.Builder(TestSchema.schemaManager(), new StringTable(16), 1);
+        for (int i = packed.size() - 1; i >= 0; i--) {
+            builder.add(packed, i);
+        }
+        PackedEntries copy = builder.build();
+        for (int i = 0; i < copy.size(); i++) {
+            int from = packed.size() - 1 - i;
+            assertSameEntry(entries.get(from), copy.get(i));
+            assertEquals(packed.getEtag(from), copy.getEtag(i));
+        }
+    }
+
+    @Test
+    public void listsEveryEntry() throws Exception {
+        List<Entry> list = packed.list(Projection.ALL);
+        assertEquals(entries.size(), list.size());
+        assertSameEntry(entries.get(3), list.get(3));
+    }
+
+    /**
+     * Asserts the entries have the same Dn, as given, and the same attributes and values,
+     * normalized alike.
+     */
+    private static void assertSameEntry(Entry expected, Entry actual) {
+        assertEquals(expected.getDn().getName(), actual.getDn().getName());
+        assertEquals(expected.getDn().getNormName(), actual.getDn().getNormName());
+        assertEquals(expected.size(), actual.size());
+        for (Attribute attribute : expected) {
+            Attribute other = actual.get(attribute.getAttributeType());
+            assertEquals(attribute.getUpId(), other.getUpId());
+            assertEquals(attribute.size(), other.size());
+            Iterator<Value<?>> values = other.iterator();
+            for (Value<?> value : attribute) {
+                Value<?> v = values.next();
+                assertEquals(value.getString(), v.getString());
+                assertEquals(value.getNormValue(), v.getNormValue());
+            }
+        }
+        assertEquals(expected, actual);
+    }
+}
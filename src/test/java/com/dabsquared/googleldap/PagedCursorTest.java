@@ -0,0 +1,214 @@
+package com.dabsquared.googleldap;
+
+import org.apache.directory.api.ldap.model.exception.LdapTimeLimitExceededException;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Reads listings of three pages of three elements, 0 to 8.
+ */
+public class PagedCursorTest {
+
+    private static final int PAGES = 3;
+
+    private static final int PAGE_SIZE = 3;
+
+    private final UpstreamExecutor upstream = new UpstreamExecutor(4, 2000);
+
+    /** The tokens of the pages fetched, "0" for the first one. */
+    private final List<String> fetched = Collections.synchronizedList(new ArrayList<String>());
+
+    @After
+    public void shutdown() {
+        upstream.shutdown();
+    }
+
+    @Test
+    public void readsEveryPage() throws Exception {
+        PagedCursor<Integer> cursor = cursor(0);
+        for (int i = 0; i < PAGES * PAGE_SIZE; i++) {
+            assertTrue(cursor.next());
+            assertEquals(i, (int) cursor.get());
+        }
+        assertFalse(cursor.next());
+        assertFalse(cursor.available());
+        assertEquals(PAGES, fetched.size());
+    }
+
+    @Test
+    public void stepsBackIntoThePreviousPageOnly() throws Exception {
+        PagedCursor<Integer> cursor = cursor(0);
+        next(cursor, 4);
+        assertEquals(3, (int) cursor.get());
+
+        for (int i = 2; i >= 0; i--) {
+            assertTrue(cursor.previous());
+            assertEquals(i, (int) cursor.get());
+        }
+        assertFalse(cursor.previous());
+        assertTrue(cursor.next());
+        assertEquals(0, (int) cursor.get());
+
+        // The first page is dropped once the third one is read
+        next(cursor, 6);
+        assertEquals(6, (int) cursor.get());
+        for (int i = 5; i >= 3; i--) {
+            assertTrue(cursor.previous());
+            assertEquals(i, (int) cursor.get());
+        }
+        assertFalse(cursor.previous());
+    }
+
+    @Test
+    public void prefetchesTheNextPage() throws Exception {
+        PagedCursor<Integer> cursor = cursor(0);
+        assertTrue(cursor.next());
+        awaitFetches(2);
+        assertEquals("1", fetched.get(1));
+    }
+
+    @Test
+    public void doesNotPrefetchPastTheSizeLimit() throws Exception {
+        PagedCursor<Integer> cursor = cursor(0);
+        cursor.setSizeLimit(2);
+        next(cursor, 3);
+        Thread.sleep(100);
+        assertEquals(1, fetched.size());
+
+        // Reading past the limit fetches the next page on demand
+        assertTrue(cursor.next());
+        assertEquals(3, (int) cursor.get());
+        assertEquals(2, fetched.size());
+    }
+
+    @Test
+    public void stopsWaitingForAPageAtTheDeadline() throws Exception {
+        PagedCursor<Integer> cursor = cursor(1000);
+        cursor.setDeadline(System.currentTimeMillis() + 200);
+        next(cursor, PAGE_SIZE);
+        long start = System.currentTimeMillis();
+        try {
+            cursor.next();
+            fail("Expected the time limit to be exceeded");
+        } catch (LdapTimeLimitExceededException ex) {
+            assertTrue(System.currentTimeMillis() - start < 1000);
+        }
+    }
+
+    @Test
+    public void startsOverFromTheFirstPage() throws Exception {
+        PagedCursor<Integer> cursor = cursor(0);
+        next(cursor, 7);
+        assertTrue(cursor.first());
+        assertEquals(0, (int) cursor.get());
+        assertTrue(fetched.lastIndexOf("0") > 0);
+    }
+
+    @Test
+    public void seeksBeforeAndAfterAnElement() throws Exception {
+        PagedCursor<Integer> cursor = cursor(0);
+
+        cursor.before(4);
+        assertFalse(cursor.available());
+        assertTrue(cursor.next());
+        assertEquals(4, (int) cursor.get());
+
+        cursor.before(4);
+        assertTrue(cursor.previous());
+        assertEquals(3, (int) cursor.get());
+
+        cursor.after(4);
+        assertTrue(cursor.previous());
+        assertEquals(4, (int) cursor.get());
+
+        cursor.after(4);
+        assertTrue(cursor.next());
+        assertEquals(5, (int) cursor.get());
+    }
+
+    @Test
+    public void seeksAnElementOfALaterPage() throws Exception {
+        PagedCursor<Integer> cursor = cursor(0);
+        assertTrue(cursor.next());
+
+        cursor.after(7);
+        assertTrue(cursor.next());
+        assertEquals(8, (int) cursor.get());
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void seeksAfterTheLastElementWhenTheElementIsMissing() throws Exception {
+        PagedCursor<Integer> cursor = cursor(0);
+
+        cursor.before(42);
+        assertFalse(cursor.next());
+        assertTrue(cursor.previous());
+        assertEquals(8, (int) cursor.get());
+    }
+
+    @Test
+    public void readsTheListingToItsEndForTheLastElement() throws Exception {
+        PagedCursor<Integer> cursor = cursor(0);
+
+        assertTrue(cursor.last());
+        assertEquals(8, (int) cursor.get());
+        assertEquals(PAGES, fetched.size());
+
+        cursor.afterLast();
+        assertFalse(cursor.available());
+        assertFalse(cursor.next());
+        assertTrue(cursor.previous());
+        assertEquals(8, (int) cursor.get());
+    }
+
+    private static void next(PagedCursor<Integer> cursor, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            assertTrue(cursor.next());
+        }
+    }
+
+    private void awaitFetches(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (fetched.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, fetched.size());
+    }
+
+    /**
+     * @return a cursor over the listing whose fetches of pages after the first take the
+     *         given time.
+     */
+    private PagedCursor<Integer> cursor(final long delay) {
+        return new PagedCursor<Integer>(new PagedCursor.PageFetcher<Integer>() {
+            public PagedCursor.Page<Integer> fetch(String pageToken) throws IOException {
+                int page = (pageToken == null) ? 0 : Integer.parseInt(pageToken);
+                fetched.add(Integer.toString(page));
+                if (page > 0 && delay > 0) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException ex) {
+                        throw new IOException(ex);
+                    }
+                }
+                List<Integer> items = new ArrayList<Integer>();
+                for (int i = 0; i < PAGE_SIZE; i++) {
+                    items.add(page * PAGE_SIZE + i);
+                }
+                return new PagedCursor.Page<Integer>(items,
+                        (page + 1 < PAGES) ? Integer.toString(page + 1) : null);
+            }
+        }, upstream);
+    }
+}
@@ -0,0 +1,86 @@
+package com.dabsquared.googleldap;
+
+import org.apache.directory.api.ldap.model.cursor.ListCursor;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads users 1 to 4 cut down to their cn.
+ */
+public class ProjectedCursorTest {
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    private ProjectedCursor cursor;
+
+    @Before
+    public void createCursor() throws Exception {
+        SchemaManager schemaManager = TestSchema.schemaManager();
+        for (int i = 1; i <= 4; i++) {
+            entries.add(new DefaultEntry(schemaManager, "cn=user" + i + ",ou=users," + OfflineServer.BASE,
+                    "objectClass: top", "objectClass: person",
+                    "cn: user" + i, "sn: User " + i, "description: the user " + i));
+        }
+        SearchOperationContext search = new SearchOperationContext(TestSchema.session());
+        search.setFilter(TestSchema.filter("(cn=*)"));
+        // Set by default, as for a search asking for nothing
+        search.setAllUserAttributes(false);
+        search.setReturningAttributes("cn");
+        cursor = new ProjectedCursor(new ListCursor<Entry>(entries), Projection.of(schemaManager, search));
+    }
+
+    @Test
+    public void projectsTheEntriesItMovesTo() throws Exception {
+        assertTrue(cursor.next());
+        assertEquals("user1", cursor.get().get("cn").getString());
+        assertNull(cursor.get().get("description"));
+        assertTrue(cursor.last());
+        assertEquals("user4", cursor.get().get("cn").getString());
+    }
+
+    @Test
+    public void seeksBeforeAndAfterAProjectedEntry() throws Exception {
+        assertTrue(cursor.next());
+        assertTrue(cursor.next());
+        Entry second = cursor.get();
+        assertTrue(cursor.next());
+        Entry third = cursor.get();
+
+        cursor.before(third);
+        assertFalse(cursor.available());
+        assertTrue(cursor.next());
+        assertEquals(third, cursor.get());
+
+        cursor.before(third);
+        assertTrue(cursor.previous());
+        assertEquals(second, cursor.get());
+
+        cursor.after(second);
+        assertTrue(cursor.next());
+        assertEquals(third, cursor.get());
+
+        cursor.after(second);
+        assertTrue(cursor.previous());
+        assertEquals(second, cursor.get());
+    }
+
+    @Test
+    public void seeksAfterTheLastEntryWhenTheEntryIsMissing() throws Exception {
+        cursor.before(entries.get(0));
+        assertFalse(cursor.next());
+        assertTrue(cursor.previous());
+        assertEquals("user4", cursor.get().get("cn").getString());
+    }
+}
@@ -0,0 +1,116 @@
+package com.dabsquared.googleldap;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Plans the searches NSS clients make under ou=users and ou=groups, without the snapshot
+ * indexes.
+ */
+public class QueryPlannerTest {
+
+    private static QueryPlanner planner;
+
+    private static IdNumbers ids;
+
+    @BeforeClass
+    public static void createPlanner() throws Exception {
+        planner = new QueryPlanner(TestSchema.schemaManager(), OfflineServer.DOMAIN);
+        Map<String, String> users = new HashMap<String, String>();
+        users.put("1001", "alice@example.com");
+        Map<String, String> groups = new HashMap<String, String>();
+        groups.put("2001", "staff@example.com");
+        ids = new IdNumbers(users, groups, Collections.singletonList("alice@example.com"));
+    }
+
+    @Test
+    public void looksUpAUserByUid() throws Exception {
+        QueryPlan plan = plan(QueryPlanner.Container.USERS, "(uid=alice)", null);
+        assertEquals(QueryPlan.Kind.POINT_LOOKUP, plan.getKind());
+        assertEquals(Collections.singletonList("alice@example.com"), plan.getEmails());
+    }
+
+    @Test
+    public void looksUpAnAccountByNumberOnceTheNumbersAreLoaded() throws Exception {
+        QueryPlan user = plan(QueryPlanner.Container.USERS, "(uidNumber=1001)", ids);
+        assertEquals(QueryPlan.Kind.POINT_LOOKUP, user.getKind());
+        assertEquals(Collections.singletonList("alice@example.com"), user.getEmails());
+
+        QueryPlan group = plan(QueryPlanner.Container.GROUPS, "(gidNumber=2001)", ids);
+        assertEquals(Collections.singletonList("staff@example.com"), group.getEmails());
+
+        assertEquals(QueryPlan.Kind.EMPTY, plan(QueryPlanner.Container.USERS, "(uidNumber=4242)", ids).getKind());
+        assertEquals(QueryPlan.Kind.FULL_SCAN, plan(QueryPlanner.Container.USERS, "(uidNumber=1001)", null).getKind());
+    }
+
+    @Test
+    public void rulesOutObjectClassesTheEntriesDoNotHave() throws Exception {
+        assertEquals(QueryPlan.Kind.EMPTY, plan(QueryPlanner.Container.USERS, "(objectClass=posixGroup)", null).getKind());
+        assertEquals(QueryPlan.Kind.EMPTY, plan(QueryPlanner.Container.GROUPS, "(objectClass=posixAccount)", null).getKind());
+        assertEquals(QueryPlan.Kind.FULL_SCAN,
+                plan(QueryPlanner.Container.USERS, "(objectClass=posixAccount)", null).getKind());
+        assertEquals(QueryPlan.Kind.FULL_SCAN,
+                plan(QueryPlanner.Container.GROUPS, "(objectClass=posixGroup)", null).getKind());
+    }
+
+    @Test
+    public void takesTheCheapestChildOfAnAnd() throws Exception {
+        QueryPlan lookup = plan(QueryPlanner.Container.USERS, "(&(objectClass=posixAccount)(uid=alice))", null);
+        assertEquals(QueryPlan.Kind.POINT_LOOKUP, lookup.getKind());
+        assertEquals(Collections.singletonList("alice@example.com"), lookup.getEmails());
+
+        QueryPlan none = plan(QueryPlanner.Container.GROUPS, "(&(objectClass=posixAccount)(cn=staff))", null);
+        assertEquals(QueryPlan.Kind.EMPTY, none.getKind());
+
+        QueryPlan groupsOf = plan(QueryPlanner.Container.GROUPS, "(&(objectClass=posixGroup)(memberUid=alice))", null);
+        assertEquals(QueryPlan.Kind.PUSHDOWN, groupsOf.getKind());
+        assertEquals("alice@example.com", groupsOf.getUserKey());
+    }
+
+    @Test
+    public void mergesTheQueriesOfAnAnd() throws Exception {
+        QueryPlan plan = plan(QueryPlanner.Container.USERS, "(&(givenName=Ada)(sn=Lovelace))", null);
+        assertEquals(QueryPlan.Kind.PUSHDOWN, plan.getKind());
+        assertEquals("givenName='Ada' familyName='Lovelace'", plan.getQuery());
+    }
+
+    @Test
+    public void looksUpEveryBranchOfAnOrOfLookups() throws Exception {
+        QueryPlan plan = plan(QueryPlanner.Container.USERS,
+                "(|(uid=alice)(mail=bob@example.com)(uidNumber=1001)(objectClass=posixGroup))", ids);
+        assertEquals(QueryPlan.Kind.POINT_LOOKUP, plan.getKind());
+        assertEquals(Arrays.asList("alice@example.com", "bob@example.com"), plan.getEmails());
+    }
+
+    @Test
+    public void scansForAnOrOfAnythingElse() throws Exception {
+        QueryPlan plan = plan(QueryPlanner.Container.USERS, "(|(uid=alice)(givenName=Ada))", null);
+        assertEquals(QueryPlan.Kind.FULL_SCAN, plan.getKind());
+        assertNull(plan.getQuery());
+
+        assertEquals(QueryPlan.Kind.EMPTY,
+                plan(QueryPlanner.Container.USERS, "(|(objectClass=posixGroup)(mail=nobody))", null).getKind());
+    }
+
+    @Test
+    public void pushesPrefixesDownToUsersList() throws Exception {
+        QueryPlan plan = plan(QueryPlanner.Container.USERS, "(uid=ali*)", null);
+        assertEquals(QueryPlan.Kind.PUSHDOWN, plan.getKind());
+        assertEquals("email:ali*", plan.getQuery());
+        assertEquals("email", plan.getOrderBy());
+
+        assertEquals(QueryPlan.Kind.FULL_SCAN, plan(QueryPlanner.Container.USERS, "(uid=*ice)", null).getKind());
+    }
+
+    private static QueryPlan plan(QueryPlanner.Container container, String filter, IdNumbers ids) throws Exception {
+        return planner.plan(container, TestSchema.filter(filter), null, ids);
+    }
+}
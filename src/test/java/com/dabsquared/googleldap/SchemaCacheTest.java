@@ -0,0 +1,35 @@
+package com.dabsquared.googleldap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SchemaCacheTest {
+
+    @Rule
+    public final TemporaryFolder cacheDir = new TemporaryFolder();
+
+    @Test
+    public void knowsTheVersionOfApacheDs() {
+        assertNotEquals("unknown", SchemaCache.apacheDsVersion());
+    }
+
+    @Test
+    public void extractsTheSchemaOnce() throws Exception {
+        SchemaCache cache = new SchemaCache(cacheDir.getRoot());
+        File repository = cache.prepare();
+        assertTrue(new File(repository, "ou=schema").isDirectory());
+
+        // Left alone if the schema is not extracted again
+        File marker = new File(repository, "marker");
+        assertTrue(marker.createNewFile());
+        assertEquals(repository, cache.prepare());
+        assertTrue(marker.exists());
+    }
+}
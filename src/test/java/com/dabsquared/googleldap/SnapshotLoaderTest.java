@@ -0,0 +1,90 @@
+package com.dabsquared.googleldap;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.services.admin.directory.model.User;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Refreshes snapshots of a synthetic directory whose users are changed in place.
+ */
+public class SnapshotLoaderTest {
+
+    private SyntheticDirectory directory;
+
+    /** The users fetched one by one. */
+    private final List<String> fetched = new ArrayList<String>();
+
+    private SnapshotLoader loader;
+
+    @Before
+    public void createLoader() throws Exception {
+        directory = new SyntheticDirectory(OfflineServer.DOMAIN, 50, 5, 42);
+        SyntheticTransport transport = new SyntheticTransport(directory) {
+            @Override
+            protected LowLevelHttpRequest buildRequest(String method, String url) {
+                if (url.matches(".*/users/[^/?]+(\\?.*)?")) {
+                    fetched.add(url);
+                }
+                return super.buildRequest(method, url);
+            }
+        };
+        EntryFactory factory = new EntryFactory(TestSchema.schemaManager(),
+                "ou=users," + OfflineServer.BASE, "ou=groups," + OfflineServer.BASE);
+        DirectoryService service = new DirectoryService(transport);
+        service.start();
+        loader = new SnapshotLoader(service, factory);
+    }
+
+    @Test
+    public void keepsASnapshotNothingChangedIn() throws Exception {
+        DirectorySnapshot snapshot = loader.load(1);
+        long loadedAt = loader.getLastLoadTime();
+        assertTrue(loadedAt > 0);
+
+        assertSame(snapshot, loader.refresh(snapshot));
+        assertEquals(loadedAt, loader.getLastLoadTime());
+    }
+
+    @Test
+    public void fetchesTheChangedUsersOnly() throws Exception {
+        DirectorySnapshot snapshot = loader.load(1);
+        long loadedAt = loader.getLastLoadTime();
+        User user = directory.getUsers().get(3);
+        user.setEtag("\"changed\"");
+        user.getName().setFamilyName("Changed");
+
+        DirectorySnapshot refreshed = loader.refresh(snapshot);
+        assertEquals(2, refreshed.getGeneration());
+        assertEquals(1, fetched.size());
+        assertEquals(loadedAt, loader.getLastLoadTime());
+        assertNotNull(refreshed.getUserItems().get(user.getId()));
+        assertEquals("\"changed\"", refreshed.getUserItems().get(user.getId()).getEtag());
+    }
+
+    @Test
+    public void reloadsARenamedUserWithoutFetchingTheChangedOnes() throws Exception {
+        DirectorySnapshot snapshot = loader.load(1);
+        long loadedAt = loader.getLastLoadTime();
+        for (int i = 0; i < 5; i++) {
+            directory.getUsers().get(i).setEtag("\"changed\"");
+        }
+        User renamed = directory.getUsers().get(10);
+        renamed.setPrimaryEmail("renamed@" + OfflineServer.DOMAIN);
+        renamed.setEtag("\"renamed\"");
+
+        DirectorySnapshot refreshed = loader.refresh(snapshot);
+        assertEquals(2, refreshed.getGeneration());
+        assertTrue(fetched.isEmpty());
+        assertTrue(loader.getLastLoadTime() >= loadedAt);
+        assertEquals("renamed", refreshed.getUserItems().get(renamed.getId()).getName());
+    }
+}
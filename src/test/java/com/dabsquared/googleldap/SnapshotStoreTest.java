@@ -0,0 +1,142 @@
+package com.dabsquared.googleldap;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Saves a snapshot of a synthetic directory and loads it back, whole or damaged.
+ */
+public class SnapshotStoreTest {
+
+    /** The offsets in the file of the format version and of the body. */
+    private static final int VERSION_OFFSET = 4;
+
+    private static final int BODY_OFFSET = 40;
+
+    private static DirectorySnapshot snapshot;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void loadSnapshot() throws Exception {
+        DirectoryService service = new DirectoryService(
+                new SyntheticTransport(new SyntheticDirectory(OfflineServer.DOMAIN, 100, 10, 42)));
+        service.start();
+        EntryFactory factory = new EntryFactory(TestSchema.schemaManager(),
+                "ou=users," + OfflineServer.BASE, "ou=groups," + OfflineServer.BASE);
+        snapshot = new SnapshotLoader(service, factory).load(7);
+    }
+
+    @Test
+    public void loadsBackTheSnapshotItSaved() throws Exception {
+        SnapshotStore store = store();
+        store.save(snapshot, 1234L);
+
+        SnapshotStore.Stored stored = store.load();
+        assertNotNull(stored);
+        assertEquals(1234L, stored.getFullLoadAt());
+        DirectorySnapshot loaded = stored.getSnapshot();
+        assertEquals(7, loaded.getGeneration());
+        assertSameItems(snapshot.getUserItems(), loaded.getUserItems());
+        assertSameItems(snapshot.getGroupItems(), loaded.getGroupItems());
+    }
+
+    @Test
+    public void replacesTheFileItSavedBefore() throws Exception {
+        SnapshotStore store = store();
+        store.save(snapshot, 1L);
+        store.save(snapshot, 2L);
+        assertEquals(2L, store.load().getFullLoadAt());
+        assertEquals(Arrays.asList(store.getFile().getName()), Arrays.asList(folder.getRoot().list()));
+    }
+
+    @Test
+    public void ignoresAFileWhoseChecksumDoesNotMatch() throws Exception {
+        SnapshotStore store = store();
+        store.save(snapshot, 1L);
+        RandomAccessFile file = new RandomAccessFile(store.getFile(), "rw");
+        try {
+            long position = BODY_OFFSET + (file.length() - BODY_OFFSET) / 2;
+            file.seek(position);
+            int b = file.read();
+            file.seek(position);
+            file.write(b ^ 0x01);
+        } finally {
+            file.close();
+        }
+        assertNull(store.load());
+    }
+
+    @Test
+    public void ignoresAFileOfAnotherVersion() throws Exception {
+        SnapshotStore store = store();
+        store.save(snapshot, 1L);
+        RandomAccessFile file = new RandomAccessFile(store.getFile(), "rw");
+        try {
+            file.seek(VERSION_OFFSET);
+            file.writeInt(2);
+        } finally {
+            file.close();
+        }
+        assertNull(store.load());
+    }
+
+    @Test
+    public void ignoresATruncatedFile() throws Exception {
+        SnapshotStore store = store();
+        store.save(snapshot, 1L);
+        RandomAccessFile file = new RandomAccessFile(store.getFile(), "rw");
+        try {
+            file.setLength(file.length() - 1);
+        } finally {
+            file.close();
+        }
+        assertNull(store.load());
+
+        file = new RandomAccessFile(store.getFile(), "rw");
+        try {
+            file.setLength(BODY_OFFSET - 1);
+        } finally {
+            file.close();
+        }
+        assertNull(store.load());
+    }
+
+    @Test
+    public void ignoresAMissingFileOrAnotherKind() throws Exception {
+        SnapshotStore store = store();
+        assertNull(store.load());
+
+        Files.write(store.getFile().toPath(), new byte[100]);
+        assertNull(store.load());
+    }
+
+    private SnapshotStore store() throws Exception {
+        return new SnapshotStore(new File(folder.getRoot(), "snapshot.bin"), TestSchema.schemaManager());
+    }
+
+    private static void assertSameItems(Map<String, DirectorySnapshot.Item> expected,
+                                        Map<String, DirectorySnapshot.Item> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        for (DirectorySnapshot.Item item : expected.values()) {
+            DirectorySnapshot.Item loaded = actual.get(item.getId());
+            assertEquals(item.getEtag(), loaded.getEtag());
+            assertEquals(item.getName(), loaded.getName());
+            assertEquals(item.getEntry().getDn().getName(), loaded.getEntry().getDn().getName());
+            assertEquals(item.getEntry(), loaded.getEntry());
+        }
+    }
+}
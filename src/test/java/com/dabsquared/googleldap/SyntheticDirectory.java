@@ -0,0 +1,253 @@
+package com.dabsquared.googleldap;
+
+import com.google.api.client.util.ArrayMap;
+import com.google.api.services.admin.directory.model.Group;
+import com.google.api.services.admin.directory.model.Member;
+import com.google.api.services.admin.directory.model.User;
+import com.google.api.services.admin.directory.model.UserName;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A generated Google Apps domain: users with names, phones, secondary emails and
+ * aliases, and groups of various sizes, one of which has the whole domain as member.
+ *
+ * The same domain, user count, group count and seed always generate the same
+ * directory, so runs against it can be compared. Users and groups are listed in the
+ * order of their emails, as users.list and groups.list return them.
+ */
+public class SyntheticDirectory {
+
+    private static final String[] GIVEN_NAMES = {
+            "Ada", "Alan", "Barbara", "Brian", "Claude", "Donald", "Edsger", "Frances", "Grace", "John",
+            "Ken", "Leslie", "Linus", "Margaret", "Niklaus", "Radia", "Robin", "Shafi", "Tim", "Whitfield"
+    };
+
+    private static final String[] FAMILY_NAMES = {
+            "Allen", "Backus", "Cerf", "Dijkstra", "Engelbart", "Floyd", "Hamilton", "Hopper", "Kahn", "Knuth",
+            "Lamport", "Liskov", "Lovelace", "McCarthy", "Milner", "Perlman", "Ritchie", "Shannon", "Thompson", "Wirth"
+    };
+
+    /** One user in this many has an alias. */
+    private static final int ALIAS_EVERY = 10;
+
+    /** Most groups have up to this many members... */
+    private static final int SMALL_GROUP_MAX = 20;
+
+    /** ...and one in this many has up to {@link #LARGE_GROUP_MAX}. */
+    private static final int LARGE_GROUP_EVERY = 50;
+
+    private static final int LARGE_GROUP_MAX = 1000;
+
+    private final String domain;
+
+    private final List<User> users;
+
+    private final List<Group> groups;
+
+    private final Map<String, User> usersByKey = new HashMap<String, User>();
+
+    private final Map<String, Group> groupsByKey = new HashMap<String, Group>();
+
+    private final Map<String, List<Member>> members = new HashMap<String, List<Member>>();
+
+    private final Map<String, List<Group>> groupsOfUser = new HashMap<String, List<Group>>();
+
+    /**
+     * @param domain the domain, e.g. example.com.
+     * @param userCount the number of users.
+     * @param groupCount the number of groups.
+     * @param seed the seed of the generator.
+     */
+    public SyntheticDirectory(String domain, int userCount, int groupCount, long seed) {
+        this.domain = domain;
+        Random random = new Random(seed);
+
+        List<User> u = new ArrayList<User>(userCount);
+        for (int i = 0; i < userCount; i++) {
+            User user = user(i, random);
+            u.add(user);
+            usersByKey.put(user.getId(), user);
+            usersByKey.put(key(user.getPrimaryEmail()), user);
+            if (user.getAliases() != null) {
+                for (String alias : user.getAliases()) {
+                    usersByKey.put(key(alias), user);
+                }
+            }
+            groupsOfUser.put(user.getId(), new ArrayList<Group>());
+        }
+        Collections.sort(u, new Comparator<User>() {
+            public int compare(User a, User b) {
+                return a.getPrimaryEmail().compareTo(b.getPrimaryEmail());
+            }
+        });
+        this.users = Collections.unmodifiableList(u);
+
+        List<Group> g = new ArrayList<Group>(groupCount);
+        for (int i = 0; i < groupCount; i++) {
+            Group group = group(i, random);
+            List<Member> m = members(i, random);
+            group.setDirectMembersCount((long) m.size());
+            g.add(group);
+            groupsByKey.put(group.getId(), group);
+            groupsByKey.put(key(group.getEmail()), group);
+            members.put(group.getId(), Collections.unmodifiableList(m));
+            for (Member member : m) {
+                if (member.getEmail() != null) {
+                    groupsOfUser.get(member.getId()).add(group);
+                }
+            }
+        }
+        this.groups = Collections.unmodifiableList(g);
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    /**
+     * @return every user, in the order of their primary emails.
+     */
+    public List<User> getUsers() {
+        return users;
+    }
+
+    /**
+     * @return every group, in the order of their emails.
+     */
+    public List<Group> getGroups() {
+        return groups;
+    }
+
+    /**
+     * @param key the id, primary email or alias of a user.
+     * @return the user, or null if there is none.
+     */
+    public User getUser(String key) {
+        return usersByKey.get(key(key));
+    }
+
+    /**
+     * @param key the id or email of a group.
+     * @return the group, or null if there is none.
+     */
+    public Group getGroup(String key) {
+        return groupsByKey.get(key(key));
+    }
+
+    /**
+     * @param group the group.
+     * @return the direct members of the group; a member without an email is the whole domain.
+     */
+    public List<Member> getMembers(Group group) {
+        return members.get(group.getId());
+    }
+
+    /**
+     * @param user the user.
+     * @return the groups the user is a direct member of.
+     */
+    public List<Group> getGroupsOf(User user) {
+        return Collections.unmodifiableList(groupsOfUser.get(user.getId()));
+    }
+
+    /**
+     * @return the local part of the primary email of the i-th user, also its uid.
+     */
+    public static String userName(int i) {
+        return String.format("%s.%s%06d", GIVEN_NAMES[i % GIVEN_NAMES.length],
+                FAMILY_NAMES[(i / GIVEN_NAMES.length) % FAMILY_NAMES.length], i).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return the local part of the email of the i-th group, also its cn.
+     */
+    public static String groupName(int i) {
+        return String.format("group%06d", i);
+    }
+
+    private User user(int i, Random random) {
+        String local = userName(i);
+
+        User user = new User();
+        // Numeric like Google's, the first ten digits, the uidNumber, unique
+        user.setId(String.format("1%09d%011d", i, random.nextInt(Integer.MAX_VALUE)));
+        user.setEtag("\"synthetic-user-" + i + "\"");
+        user.setPrimaryEmail(local + "@" + domain);
+        user.setName(new UserName()
+                .setGivenName(GIVEN_NAMES[i % GIVEN_NAMES.length])
+                .setFamilyName(FAMILY_NAMES[(i / GIVEN_NAMES.length) % FAMILY_NAMES.length])
+                .setFullName(GIVEN_NAMES[i % GIVEN_NAMES.length] + " "
+                        + FAMILY_NAMES[(i / GIVEN_NAMES.length) % FAMILY_NAMES.length]));
+
+        List<ArrayMap<String, Object>> emails = new ArrayList<ArrayMap<String, Object>>();
+        emails.add(ArrayMap.<String, Object>of("address", user.getPrimaryEmail(), "primary", true));
+        if (i % ALIAS_EVERY == 0) {
+            String alias = "alias." + local + "@" + domain;
+            user.setAliases(Collections.singletonList(alias));
+            emails.add(ArrayMap.<String, Object>of("address", alias));
+        }
+        user.setEmails(emails);
+
+        List<ArrayMap<String, Object>> phones = new ArrayList<ArrayMap<String, Object>>();
+        if (i % 3 == 0) {
+            phones.add(ArrayMap.<String, Object>of("type", "work", "value", String.format("+1 555 %07d", i)));
+        }
+        if (i % 5 == 0) {
+            phones.add(ArrayMap.<String, Object>of("type", "mobile", "value", String.format("+1 556 %07d", i)));
+        }
+        if (!phones.isEmpty()) {
+            user.setPhones(phones);
+        }
+        return user;
+    }
+
+    private Group group(int i, Random random) {
+        Group group = new Group();
+        group.setId(String.format("0%09d%06d", i, random.nextInt(1000000)));
+        group.setEtag("\"synthetic-group-" + i + "\"");
+        group.setEmail(groupName(i) + "@" + domain);
+        group.setName("Group " + i);
+        if (i % 2 == 0) {
+            group.setDescription("Synthetic group " + i);
+        }
+        return group;
+    }
+
+    private List<Member> members(int i, Random random) {
+        List<Member> m = new ArrayList<Member>();
+        if (i == 0) {
+            // The whole domain is a member
+            m.add(new Member().setId("C00000000").setType("CUSTOMER").setRole("MEMBER"));
+            return m;
+        }
+        if (users.isEmpty()) {
+            return m;
+        }
+
+        int max = (i % LARGE_GROUP_EVERY == 0) ? LARGE_GROUP_MAX : SMALL_GROUP_MAX;
+        int count = Math.min(users.size(), 1 + random.nextInt(max));
+        Set<User> picked = new LinkedHashSet<User>();
+        while (picked.size() < count) {
+            picked.add(users.get(random.nextInt(users.size())));
+        }
+        for (User user : picked) {
+            m.add(new Member().setId(user.getId()).setEmail(user.getPrimaryEmail())
+                    .setType("USER").setRole("MEMBER"));
+        }
+        return m;
+    }
+
+    private static String key(String key) {
+        return key.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,90 @@
+package com.dabsquared.googleldap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+
+/**
+ * Runs the server offline, answering from a {@link SyntheticDirectory} instead of Google,
+ * for load tests. It is not part of the server jar but of the test jar, which the
+ * benchmarks jar bundles:
+ * <pre>
+ * java -Dgoogleldap.synthetic.users=10000 -Dgoogleldap.port=10390 \
+ *      -cp benchmarks/target/benchmarks.jar com.dabsquared.googleldap.SyntheticLDAPServer example.com
+ * </pre>
+ *
+ * Besides the googleldap.* properties of the server, the directory is set with
+ * {@code googleldap.synthetic.users}, {@code .groups} and {@code .seed}; the latency,
+ * errors and quota of Google with {@code googleldap.synthetic.latency}, {@code .errorRate},
+ * {@code .quotaErrorRate}, {@code .quota} and {@code .quotaBurst}; and binds with
+ * {@code googleldap.synthetic.password} and {@code .bindLatency}.
+ */
+public final class SyntheticLDAPServer {
+
+    private static final Logger log = LogManager.getLogger(SyntheticLDAPServer.class);
+
+    private SyntheticLDAPServer() {
+    }
+
+    /**
+     * @param workDir the work directory of the server.
+     * @param domain  the domain of the synthetic directory.
+     * @param users   the number of users of the synthetic directory.
+     * @return a server answering from a synthetic directory of the given number of users,
+     *         set up with the -Dgoogleldap.synthetic.* properties.
+     */
+    public static GoogleLDAPServer create(File workDir, String domain, int users) {
+        int groups = Integer.getInteger("googleldap.synthetic.groups", Math.max(1, users / 20));
+        long start = System.currentTimeMillis();
+        SyntheticDirectory directory = new SyntheticDirectory(domain, users, groups,
+                Long.getLong("googleldap.synthetic.seed", 42));
+        log.info("Generated a synthetic directory of " + users + " users and " + groups + " groups in "
+                + (System.currentTimeMillis() - start) + "ms");
+        log.warn("Serving the synthetic directory instead of Google; binds take the password in "
+                + "-Dgoogleldap.synthetic.password");
+
+        SyntheticVerifier verifier = new SyntheticVerifier(directory,
+                System.getProperty("googleldap.synthetic.password", "synthetic"),
+                SyntheticLatency.parse(System.getProperty("googleldap.synthetic.bindLatency")),
+                GoogleLDAPServer.bindMaxConcurrent(), GoogleLDAPServer.bindMaxPending(),
+                GoogleLDAPServer.bindTimeout());
+        return new GoogleLDAPServer(workDir, domain, new DirectoryService(transport(directory)), verifier);
+    }
+
+    /**
+     * @return the transport answering for Google from the synthetic directory, with the
+     *         latency, errors and quota set with -Dgoogleldap.synthetic.*.
+     */
+    private static SyntheticTransport transport(SyntheticDirectory directory) {
+        SyntheticTransport transport = new SyntheticTransport(directory);
+        transport.setLatency(SyntheticLatency.parse(System.getProperty("googleldap.synthetic.latency")));
+        transport.setErrorRate(Double.parseDouble(System.getProperty("googleldap.synthetic.errorRate", "0")));
+        transport.setQuotaErrorRate(Double.parseDouble(System.getProperty("googleldap.synthetic.quotaErrorRate", "0")));
+        transport.setQuota(Double.parseDouble(System.getProperty("googleldap.synthetic.quota", "0")),
+                Integer.getInteger("googleldap.synthetic.quotaBurst", 100));
+        log.info("Synthetic Google latency " + transport.getLatency() + ", error rate " + transport.getErrorRate()
+                + ", quota error rate " + transport.getQuotaErrorRate());
+        return transport;
+    }
+
+    /**
+     * Main application method.
+     *
+     * @param args the domain of the synthetic directory.
+     */
+    public static void main(String[] args) {
+        try {
+            File workDir = GoogleLDAPServer.prepareWorkDir();
+
+            long start = System.currentTimeMillis();
+
+            GoogleLDAPServer googleLDAPServer = create(workDir, args[0],
+                    Integer.getInteger("googleldap.synthetic.users", 10000));
+
+            GoogleLDAPServer.serve(googleLDAPServer, start);
+        } catch (Exception e) {
+            log.error("main()", e);
+        }
+    }
+}
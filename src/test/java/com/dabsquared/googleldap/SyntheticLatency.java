@@ -0,0 +1,144 @@
+package com.dabsquared.googleldap;
+
+import java.io.InterruptedIOException;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A distribution of delays, added by the synthetic stand-ins for Google to each call
+ * so that load tests see the round trips of the real services.
+ *
+ * Distributions are written as {@code none}, {@code fixed:<ms>}, {@code uniform:<min>-<max>}
+ * or {@code lognormal:<median>,<p99>}, in milliseconds; the log-normal one has the long
+ * tail of real network services.
+ */
+public abstract class SyntheticLatency {
+
+    public static final SyntheticLatency NONE = new SyntheticLatency() {
+        public long nextNanos(Random random) {
+            return 0;
+        }
+
+        public String toString() {
+            return "none";
+        }
+    };
+
+    /** The standard normal quantile of the 99th percentile. */
+    private static final double Z_99 = 2.326;
+
+    /**
+     * @param random the source of randomness.
+     * @return the next delay, in nanoseconds.
+     */
+    public abstract long nextNanos(Random random);
+
+    /**
+     * Sleeps for the next delay.
+     *
+     * @throws InterruptedIOException if interrupted while sleeping, as HTTP transports
+     *                                report it.
+     */
+    public void pause() throws InterruptedIOException {
+        long nanos = nextNanos(ThreadLocalRandom.current());
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during the synthetic latency");
+        }
+    }
+
+    /**
+     * @return a constant delay.
+     */
+    public static SyntheticLatency fixed(final double millis) {
+        final long nanos = toNanos(millis);
+        return new SyntheticLatency() {
+            public long nextNanos(Random random) {
+                return nanos;
+            }
+
+            public String toString() {
+                return "fixed:" + millis;
+            }
+        };
+    }
+
+    /**
+     * @return a delay spread evenly between the bounds.
+     */
+    public static SyntheticLatency uniform(final double minMillis, final double maxMillis) {
+        if (maxMillis < minMillis) {
+            throw new IllegalArgumentException("uniform:" + minMillis + "-" + maxMillis);
+        }
+        final long min = toNanos(minMillis);
+        final long max = toNanos(maxMillis);
+        return new SyntheticLatency() {
+            public long nextNanos(Random random) {
+                return min + (long) (random.nextDouble() * (max - min));
+            }
+
+            public String toString() {
+                return "uniform:" + minMillis + "-" + maxMillis;
+            }
+        };
+    }
+
+    /**
+     * @return a log-normal delay with the given median and 99th percentile.
+     */
+    public static SyntheticLatency logNormal(final double medianMillis, final double p99Millis) {
+        if (medianMillis <= 0 || p99Millis < medianMillis) {
+            throw new IllegalArgumentException("lognormal:" + medianMillis + "," + p99Millis);
+        }
+        final double median = toNanos(medianMillis);
+        final double sigma = Math.log(p99Millis / medianMillis) / Z_99;
+        return new SyntheticLatency() {
+            public long nextNanos(Random random) {
+                return (long) (median * Math.exp(sigma * random.nextGaussian()));
+            }
+
+            public String toString() {
+                return "lognormal:" + medianMillis + "," + p99Millis;
+            }
+        };
+    }
+
+    /**
+     * @param spec a distribution, as described above; null or empty for none.
+     * @return the distribution.
+     * @throws IllegalArgumentException if the distribution is not understood.
+     */
+    public static SyntheticLatency parse(String spec) {
+        if (spec == null || spec.trim().isEmpty() || spec.trim().equals("none")) {
+            return NONE;
+        }
+        String s = spec.trim();
+        int colon = s.indexOf(':');
+        String kind = (colon < 0) ? s : s.substring(0, colon);
+        String args = (colon < 0) ? "" : s.substring(colon + 1);
+        try {
+            if (kind.equals("fixed")) {
+                return fixed(Double.parseDouble(args));
+            } else if (kind.equals("uniform")) {
+                String[] bounds = args.split("-");
+                return uniform(Double.parseDouble(bounds[0]), Double.parseDouble(bounds[1]));
+            } else if (kind.equals("lognormal")) {
+                String[] params = args.split(",");
+                return logNormal(Double.parseDouble(params[0]), Double.parseDouble(params[1]));
+            }
+        } catch (RuntimeException ex) {
+            throw new IllegalArgumentException("Invalid latency: " + spec, ex);
+        }
+        throw new IllegalArgumentException("Invalid latency: " + spec);
+    }
+
+    private static long toNanos(double millis) {
+        return (long) (millis * TimeUnit.MILLISECONDS.toNanos(1));
+    }
+}
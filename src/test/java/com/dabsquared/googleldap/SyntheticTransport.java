@@ -0,0 +1,599 @@
+package com.dabsquared.googleldap;
+
+import com.dabsquared.googleldap.util.TokenBucket;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.GenericData;
+import com.google.api.services.admin.directory.model.Group;
+import com.google.api.services.admin.directory.model.Member;
+import com.google.api.services.admin.directory.model.User;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An HTTP transport answering Admin SDK Directory requests from a {@link SyntheticDirectory}
+ * instead of Google, in process.
+ *
+ * Serves the calls the partition makes, with the same JSON Google sends: users.get,
+ * users.list (query, orderBy, paging), groups.get, groups.list (by customer or userKey),
+ * members.list, and batches of them. Partial responses are honoured for the fields the
+ * partition asks for. Anything else gets a 404.
+ *
+ * For load tests, faults can be injected: a {@link SyntheticLatency} added to every
+ * HTTP exchange, a share of requests failed with a 503 backendError, a share refused
+ * with a 429 rateLimitExceeded, and a quota of requests per second beyond which
+ * requests are refused with a 429 as well. Requests of a batch fail on their own, as
+ * they do with Google.
+ */
+public class SyntheticTransport extends HttpTransport {
+
+    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+    private static final String JSON = "application/json; charset=UTF-8";
+
+    private static final String BATCH_BOUNDARY = "batch_synthetic";
+
+    private static final int DEFAULT_USER_PAGE_SIZE = 100;
+
+    private static final int MAX_USER_PAGE_SIZE = 500;
+
+    private static final int DEFAULT_GROUP_PAGE_SIZE = 200;
+
+    private static final int MAX_GROUP_PAGE_SIZE = 200;
+
+    private static final int DEFAULT_MEMBER_PAGE_SIZE = 200;
+
+    private static final int MAX_MEMBER_PAGE_SIZE = 200;
+
+    private final SyntheticDirectory directory;
+
+    private volatile SyntheticLatency latency = SyntheticLatency.NONE;
+
+    private volatile double errorRate = 0;
+
+    private volatile double quotaErrorRate = 0;
+
+    private volatile TokenBucket quota = null;
+
+    private final AtomicLong injectedErrors = new AtomicLong();
+
+    private final AtomicLong injectedQuotaErrors = new AtomicLong();
+
+    public SyntheticTransport(SyntheticDirectory directory) {
+        this.directory = directory;
+    }
+
+    public SyntheticDirectory getDirectory() {
+        return directory;
+    }
+
+    public SyntheticLatency getLatency() {
+        return latency;
+    }
+
+    /**
+     * @param latency the delay added to every HTTP exchange; a batch is delayed once.
+     */
+    public void setLatency(SyntheticLatency latency) {
+        this.latency = (latency == null) ? SyntheticLatency.NONE : latency;
+    }
+
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    /**
+     * @param errorRate the share of requests, between 0 and 1, failed with a 503.
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    public double getQuotaErrorRate() {
+        return quotaErrorRate;
+    }
+
+    /**
+     * @param quotaErrorRate the share of requests, between 0 and 1, refused with a 429
+     *                       whatever the rate they come at.
+     */
+    public void setQuotaErrorRate(double quotaErrorRate) {
+        this.quotaErrorRate = quotaErrorRate;
+    }
+
+    /**
+     * @param requestsPerSecond the requests allowed per second, each request of a batch
+     *                          counting; the ones beyond are refused with a 429. 0 for
+     *                          no quota.
+     * @param burst the requests allowed at once after a quiet period.
+     */
+    public void setQuota(double requestsPerSecond, int burst) {
+        this.quota = (requestsPerSecond > 0) ? new TokenBucket(requestsPerSecond, burst) : null;
+    }
+
+    /**
+     * @return the number of requests failed with a 503 so far.
+     */
+    public long getInjectedErrorCount() {
+        return injectedErrors.get();
+    }
+
+    /**
+     * @return the number of requests refused with a 429 so far, by the quota or at random.
+     */
+    public long getInjectedQuotaErrorCount() {
+        return injectedQuotaErrors.get();
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) {
+        return new Request(method, url);
+    }
+
+    /**
+     * Answers a request; the whole of the Admin SDK this transport stands in for.
+     *
+     * @param method the HTTP method.
+     * @param url the URL of the request.
+     * @param contentType the type of the body, or null.
+     * @param body the body of the request, empty if none.
+     */
+    protected Response handle(String method, String url, String contentType, byte[] body) throws IOException {
+        GenericUrl u = new GenericUrl(url);
+        List<String> path = u.getPathParts();
+        if (path == null) {
+            return notFound("Not Found");
+        }
+        if ("POST".equals(method) && path.contains("batch")) {
+            return batch(contentType, body);
+        }
+        Response fault = fault();
+        if (fault != null) {
+            return fault;
+        }
+
+        int v1 = path.indexOf("v1");
+        if (!"GET".equals(method) || v1 < 0) {
+            return notFound("Not Found");
+        }
+        List<String> resource = path.subList(v1 + 1, path.size());
+        Map<String, Set<String>> fields = parseFields((String) u.getFirst("fields"));
+
+        if (resource.size() == 1 && resource.get(0).equals("users")) {
+            return listUsers(u, fields);
+        } else if (resource.size() == 2 && resource.get(0).equals("users")) {
+            User user = directory.getUser(resource.get(1));
+            return (user == null) ? notFound("Resource Not Found: userKey") : ok(select(user, fields));
+        } else if (resource.size() == 1 && resource.get(0).equals("groups")) {
+            return listGroups(u, fields);
+        } else if (resource.size() == 2 && resource.get(0).equals("groups")) {
+            Group group = directory.getGroup(resource.get(1));
+            return (group == null) ? notFound("Resource Not Found: groupKey") : ok(select(group, fields));
+        } else if (resource.size() == 3 && resource.get(0).equals("groups") && resource.get(2).equals("members")) {
+            Group group = directory.getGroup(resource.get(1));
+            if (group == null) {
+                return notFound("Resource Not Found: groupKey");
+            }
+            return ok(page(directory.getMembers(group), "members", u,
+                    DEFAULT_MEMBER_PAGE_SIZE, MAX_MEMBER_PAGE_SIZE, fields));
+        }
+        return notFound("Not Found");
+    }
+
+    /**
+     * @return the injected failure of the current request, or null to answer it.
+     */
+    private Response fault() {
+        TokenBucket q = quota;
+        if (q != null && !q.tryAcquire()) {
+            injectedQuotaErrors.incrementAndGet();
+            return error(429, "rateLimitExceeded", "Quota exceeded for quota metric 'Queries'");
+        }
+        double r = ThreadLocalRandom.current().nextDouble();
+        if (r < quotaErrorRate) {
+            injectedQuotaErrors.incrementAndGet();
+            return error(429, "rateLimitExceeded", "Rate Limit Exceeded");
+        }
+        if (r < quotaErrorRate + errorRate) {
+            injectedErrors.incrementAndGet();
+            return error(503, "backendError", "Backend Error");
+        }
+        return null;
+    }
+
+    private Response listUsers(GenericUrl u, Map<String, Set<String>> fields) throws IOException {
+        List<User> users = directory.getUsers();
+        String query = (String) u.getFirst("query");
+        if (query != null) {
+            users = new ArrayList<User>();
+            List<String> terms = terms(query);
+            for (User user : directory.getUsers()) {
+                if (matches(user, terms)) {
+                    users.add(user);
+                }
+            }
+        }
+        String orderBy = (String) u.getFirst("orderBy");
+        if ("givenName".equals(orderBy) || "familyName".equals(orderBy)) {
+            final boolean given = "givenName".equals(orderBy);
+            users = new ArrayList<User>(users);
+            Collections.sort(users, new Comparator<User>() {
+                public int compare(User a, User b) {
+                    String x = given ? a.getName().getGivenName() : a.getName().getFamilyName();
+                    String y = given ? b.getName().getGivenName() : b.getName().getFamilyName();
+                    return x.compareToIgnoreCase(y);
+                }
+            });
+        }
+        return ok(page(users, "users", u, DEFAULT_USER_PAGE_SIZE, MAX_USER_PAGE_SIZE, fields));
+    }
+
+    private Response listGroups(GenericUrl u, Map<String, Set<String>> fields) throws IOException {
+        String userKey = (String) u.getFirst("userKey");
+        List<Group> groups = directory.getGroups();
+        if (userKey != null) {
+            User user = directory.getUser(userKey);
+            if (user == null) {
+                return notFound("Resource Not Found: userKey");
+            }
+            groups = directory.getGroupsOf(user);
+        }
+        return ok(page(groups, "groups", u, DEFAULT_GROUP_PAGE_SIZE, MAX_GROUP_PAGE_SIZE, fields));
+    }
+
+    /**
+     * @return the page of the given items asked for by maxResults and pageToken, the
+     *         token being the offset of the page.
+     */
+    private static GenericJson page(List<? extends GenericData> items, String name, GenericUrl u,
+                                    int defaultPageSize, int maxPageSize, Map<String, Set<String>> fields) {
+        int pageSize = defaultPageSize;
+        Object maxResults = u.getFirst("maxResults");
+        if (maxResults != null) {
+            pageSize = Math.min(maxPageSize, Math.max(1, Integer.parseInt(maxResults.toString())));
+        }
+        int offset = 0;
+        Object pageToken = u.getFirst("pageToken");
+        if (pageToken != null) {
+            offset = Math.max(0, Integer.parseInt(pageToken.toString()));
+        }
+
+        GenericJson page = new GenericJson();
+        int end = Math.min(items.size(), offset + pageSize);
+        if (offset < end && wants(fields, name)) {
+            Map<String, Set<String>> itemFields = (fields == null) ? null : subFields(fields.get(name));
+            List<Object> l = new ArrayList<Object>(end - offset);
+            for (GenericData item : items.subList(offset, end)) {
+                l.add(select(item, itemFields));
+            }
+            page.set(name, l);
+        }
+        if (end < items.size() && wants(fields, "nextPageToken")) {
+            page.set("nextPageToken", String.valueOf(end));
+        }
+        return page;
+    }
+
+    /**
+     * Answers a multipart/mixed batch, each part being a request of its own.
+     */
+    private Response batch(String contentType, byte[] body) throws IOException {
+        String boundary = boundary(contentType);
+        if (boundary == null) {
+            return error(400, "badRequest", "Missing boundary");
+        }
+
+        StringBuilder out = new StringBuilder();
+        String[] parts = new String(body, StandardCharsets.UTF_8).split("--" + boundary);
+        int n = 0;
+        for (String part : parts) {
+            // The embedded request follows the headers of the part
+            int start = part.indexOf("\r\n\r\n");
+            if (start < 0) {
+                continue;
+            }
+            String[] requestLine = part.substring(start + 4).split("\r\n", 2)[0].split(" ");
+            if (requestLine.length < 2) {
+                continue;
+            }
+            Response r = handle(requestLine[0], requestLine[1], null, new byte[0]);
+            out.append("--").append(BATCH_BOUNDARY).append("\r\n")
+                    .append("Content-Type: application/http\r\n")
+                    .append("Content-ID: <response-").append(++n).append(">\r\n\r\n")
+                    .append("HTTP/1.1 ").append(r.statusCode).append(' ').append(r.reason).append("\r\n")
+                    .append("Content-Type: ").append(r.contentType).append("\r\n")
+                    .append("Content-Length: ").append(r.content.length).append("\r\n\r\n")
+                    .append(new String(r.content, StandardCharsets.UTF_8)).append("\r\n");
+        }
+        out.append("--").append(BATCH_BOUNDARY).append("--\r\n");
+        return new Response(200, "OK", "multipart/mixed; boundary=" + BATCH_BOUNDARY,
+                out.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String boundary(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        for (String param : contentType.split(";")) {
+            String p = param.trim();
+            if (p.startsWith("boundary=")) {
+                return p.substring("boundary=".length()).replace("\"", "");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the terms of a users.list query, which are ANDed.
+     */
+    private static List<String> terms(String query) {
+        List<String> terms = new ArrayList<String>();
+        for (String term : query.trim().split(" +")) {
+            if (!term.isEmpty()) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Matches the users.list query terms the partition sends: {@code field:prefix*},
+     * {@code field:value} and {@code field='value'} on email, givenName and familyName.
+     */
+    private static boolean matches(User user, List<String> terms) {
+        for (String term : terms) {
+            int colon = term.indexOf(':');
+            int equals = term.indexOf('=');
+            int sep = (colon < 0) ? equals : (equals < 0) ? colon : Math.min(colon, equals);
+            if (sep < 0) {
+                return false;
+            }
+            String field = term.substring(0, sep);
+            String value = term.substring(sep + 1).replace("'", "").toLowerCase(Locale.ROOT);
+            boolean prefix = value.endsWith("*");
+            if (prefix) {
+                value = value.substring(0, value.length() - 1);
+            }
+
+            List<String> candidates = new ArrayList<String>();
+            if (field.equals("email")) {
+                candidates.add(user.getPrimaryEmail());
+                if (user.getAliases() != null) {
+                    candidates.addAll(user.getAliases());
+                }
+            } else if (field.equals("givenName")) {
+                candidates.add(user.getName().getGivenName());
+            } else if (field.equals("familyName")) {
+                candidates.add(user.getName().getFamilyName());
+            } else {
+                return false;
+            }
+
+            boolean any = false;
+            for (String candidate : candidates) {
+                String c = candidate.toLowerCase(Locale.ROOT);
+                if (prefix ? c.startsWith(value) : c.equals(value)) {
+                    any = true;
+                    break;
+                }
+            }
+            if (!any) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses a field mask such as {@code nextPageToken,users(id,name)}.
+     *
+     * @return the selected fields, mapped to the mask of their own fields, or to null
+     *         when they are selected whole; null if there is no mask.
+     */
+    static Map<String, Set<String>> parseFields(String mask) {
+        if (mask == null) {
+            return null;
+        }
+        Map<String, Set<String>> fields = new HashMap<String, Set<String>>();
+        int depth = 0;
+        int start = 0;
+        String name = null;
+        for (int i = 0; i <= mask.length(); i++) {
+            char c = (i == mask.length()) ? ',' : mask.charAt(i);
+            if (c == '(') {
+                if (depth++ == 0) {
+                    name = mask.substring(start, i).trim();
+                    start = i + 1;
+                }
+            } else if (c == ')') {
+                if (--depth == 0) {
+                    fields.put(name, new LinkedHashSet<String>(split(mask.substring(start, i))));
+                    name = null;
+                    start = i + 1;
+                }
+            } else if (c == ',' && depth == 0) {
+                String field = mask.substring(start, i).trim();
+                if (!field.isEmpty()) {
+                    fields.put(field, null);
+                }
+                start = i + 1;
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * @return the nested mask of a field, one level down, or null for the whole field.
+     */
+    private static Map<String, Set<String>> subFields(Set<String> fields) {
+        if (fields == null) {
+            return null;
+        }
+        Map<String, Set<String>> m = new HashMap<String, Set<String>>();
+        for (String field : fields) {
+            m.put(field, null);
+        }
+        return m;
+    }
+
+    private static List<String> split(String fields) {
+        List<String> l = new ArrayList<String>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i <= fields.length(); i++) {
+            char c = (i == fields.length()) ? ',' : fields.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                String field = fields.substring(start, i).trim();
+                int paren = field.indexOf('(');
+                l.add((paren < 0) ? field : field.substring(0, paren));
+                start = i + 1;
+            }
+        }
+        return l;
+    }
+
+    private static boolean wants(Map<String, Set<String>> fields, String field) {
+        return fields == null || fields.containsKey(field);
+    }
+
+    /**
+     * @return the item with only the fields of the mask, or the item itself without one.
+     */
+    private static GenericData select(GenericData item, Map<String, Set<String>> fields) {
+        if (fields == null) {
+            return item;
+        }
+        GenericJson selected = new GenericJson();
+        for (String field : fields.keySet()) {
+            Object value = item.get(field);
+            if (value != null) {
+                selected.set(field, value);
+            }
+        }
+        return selected;
+    }
+
+    private static Response ok(Object json) throws IOException {
+        return new Response(200, "OK", JSON, JSON_FACTORY.toByteArray(json));
+    }
+
+    private static Response notFound(String message) {
+        return error(404, "notFound", message);
+    }
+
+    /**
+     * @return an error response, with the body the Google client parses into a
+     *         GoogleJsonResponseException.
+     */
+    protected static Response error(int code, String reason, String message) {
+        String body = "{\"error\":{\"errors\":[{\"domain\":\"global\",\"reason\":\"" + reason
+                + "\",\"message\":\"" + message + "\"}],\"code\":" + code + ",\"message\":\"" + message + "\"}}";
+        return new Response(code, reason, JSON, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * A complete response, body included.
+     */
+    protected static class Response {
+        private final int statusCode;
+        private final String reason;
+        private final String contentType;
+        private final byte[] content;
+
+        Response(int statusCode, String reason, String contentType, byte[] content) {
+            this.statusCode = statusCode;
+            this.reason = reason;
+            this.contentType = contentType;
+            this.content = content;
+        }
+    }
+
+    private class Request extends LowLevelHttpRequest {
+        private final String method;
+        private final String url;
+
+        Request(String method, String url) {
+            this.method = method;
+            this.url = url;
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            if (getStreamingContent() != null) {
+                getStreamingContent().writeTo(body);
+            }
+            latency.pause();
+            final Response r = handle(method, url, getContentType(), body.toByteArray());
+            return new LowLevelHttpResponse() {
+                public InputStream getContent() {
+                    return new ByteArrayInputStream(r.content);
+                }
+
+                public String getContentEncoding() {
+                    return null;
+                }
+
+                public long getContentLength() {
+                    return r.content.length;
+                }
+
+                public String getContentType() {
+                    return r.contentType;
+                }
+
+                public String getStatusLine() {
+                    return "HTTP/1.1 " + r.statusCode + " " + r.reason;
+                }
+
+                public int getStatusCode() {
+                    return r.statusCode;
+                }
+
+                public String getReasonPhrase() {
+                    return r.reason;
+                }
+
+                public int getHeaderCount() {
+                    return 0;
+                }
+
+                public String getHeaderName(int index) {
+                    return null;
+                }
+
+                public String getHeaderValue(int index) {
+                    return null;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.dabsquared.googleldap;
+
+/**
+ * Verifies passwords against a {@link SyntheticDirectory} instead of Gmail, for load
+ * tests: every user of the directory has the same password, and each login takes a
+ * {@link SyntheticLatency} on the bounded pool of the {@link ImapVerifier}, so binds
+ * queue and time out as they would against Gmail.
+ */
+public class SyntheticVerifier extends ImapVerifier {
+
+    private final SyntheticDirectory directory;
+
+    private final String password;
+
+    private final SyntheticLatency latency;
+
+    /**
+     * @param directory the users that can bind.
+     * @param password the password of every user.
+     * @param latency the time each login takes.
+     * @param maxConcurrent the maximum number of logins in progress at once.
+     * @param maxPending the maximum number of logins waiting for a free slot.
+     * @param timeout milliseconds after which a bind is failed.
+     */
+    public SyntheticVerifier(SyntheticDirectory directory, String password, SyntheticLatency latency,
+                             int maxConcurrent, int maxPending, long timeout) {
+        super(DEFAULT_HOST, DEFAULT_PORT, maxConcurrent, maxPending, timeout);
+        this.directory = directory;
+        this.password = password;
+        this.latency = latency;
+    }
+
+    /**
+     * There is no connection to warm up.
+     */
+    @Override
+    public void warmUp() {
+    }
+
+    @Override
+    protected boolean login(String user, String password) throws Exception {
+        latency.pause();
+        return directory.getUser(user) != null && this.password.equals(password);
+    }
+}
@@ -0,0 +1,75 @@
+package com.dabsquared.googleldap;
+
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.FilterParser;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+
+/**
+ * The schema of the server, extracted to the temporary directory and loaded once per JVM,
+ * for the tests that need no running server.
+ */
+public final class TestSchema {
+
+    private static SchemaManager schemaManager;
+
+    private TestSchema() {
+    }
+
+    public static synchronized SchemaManager schemaManager() throws Exception {
+        if (schemaManager == null) {
+            File repository = new SchemaCache(new File(System.getProperty("java.io.tmpdir"),
+                    "googleldap-test-schema")).prepare();
+            SchemaManager sm = new DefaultSchemaManager(new LdifSchemaLoader(repository));
+            sm.loadAllEnabled();
+            if (!sm.getErrors().isEmpty()) {
+                throw new IllegalStateException("Unable to load the schema: " + sm.getErrors());
+            }
+            schemaManager = sm;
+        }
+        return schemaManager;
+    }
+
+    /**
+     * @return the filter, with its attributes resolved against the schema.
+     */
+    public static ExprNode filter(String filter) throws Exception {
+        return FilterParser.parse(schemaManager(), filter);
+    }
+
+    /**
+     * @return a session of a directory service that has nothing but the schema, enough to
+     *         build the operation contexts ApacheDS hands to the partition.
+     */
+    public static CoreSession session() throws Exception {
+        final SchemaManager sm = schemaManager();
+        final DirectoryService service = proxy(DirectoryService.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getSchemaManager")) {
+                    return sm;
+                } else if (method.getName().equals("getInterceptors")) {
+                    return Collections.emptyList();
+                }
+                return null;
+            }
+        });
+        return proxy(CoreSession.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return method.getName().equals("getDirectoryService") ? service : null;
+            }
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(TestSchema.class.getClassLoader(), new Class<?>[] {type}, handler));
+    }
+}
@@ -0,0 +1,79 @@
+package com.dabsquared.googleldap;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class UpstreamExecutorTest {
+
+    private static final int MAX_CONCURRENT = 2;
+
+    private final UpstreamExecutor upstream = new UpstreamExecutor(MAX_CONCURRENT, 2000);
+
+    @After
+    public void shutdown() {
+        upstream.shutdown();
+    }
+
+    @Test
+    public void runsCallsMadeFromCallsOnTheSameThread() throws Exception {
+        // As many outer calls as threads, each making an inner call
+        List<Future<String>> outer = new ArrayList<Future<String>>();
+        for (int i = 0; i < MAX_CONCURRENT; i++) {
+            outer.add(upstream.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    final Thread thread = Thread.currentThread();
+                    return upstream.call(new Callable<String>() {
+                        public String call() {
+                            return (Thread.currentThread() == thread) ? "inline" : "elsewhere";
+                        }
+                    });
+                }
+            }));
+        }
+        for (Future<String> f : outer) {
+            assertEquals("inline", f.get(1, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void rethrowsTheExceptionOfAnInnerCall() throws Exception {
+        Future<String> outer = upstream.submit(new Callable<String>() {
+            public String call() throws Exception {
+                try {
+                    return upstream.call(new Callable<String>() {
+                        public String call() throws IOException {
+                            throw new IOException("inner");
+                        }
+                    });
+                } catch (IOException ex) {
+                    return ex.getMessage();
+                }
+            }
+        });
+        assertEquals("inner", outer.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void failsACallThatTimesOut() throws Exception {
+        try {
+            upstream.call(new Callable<String>() {
+                public String call() throws InterruptedException {
+                    Thread.sleep(10000);
+                    return "late";
+                }
+            });
+            fail();
+        } catch (UpstreamExecutor.UnavailableException expected) {
+        }
+    }
+}
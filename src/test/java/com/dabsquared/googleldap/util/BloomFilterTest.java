@@ -0,0 +1,59 @@
+package com.dabsquared.googleldap.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BloomFilterTest {
+
+  private static final int COUNT = 20000;
+
+  @Test
+  public void containsEveryStringAdded() {
+    BloomFilter filter = new BloomFilter(COUNT, 0.01);
+    for (int i = 0; i < COUNT; i++) {
+      filter.put("user" + i);
+    }
+    for (int i = 0; i < COUNT; i++) {
+      assertTrue("user" + i, filter.mightContain("user" + i));
+    }
+    assertEquals(COUNT, filter.getCount());
+  }
+
+  @Test
+  public void containsEveryStringAddedPastItsExpectedInsertions() {
+    BloomFilter filter = new BloomFilter(10, 0.01);
+    for (int i = 0; i < 1000; i++) {
+      filter.put("user" + i);
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertTrue("user" + i, filter.mightContain("user" + i));
+    }
+  }
+
+  @Test
+  public void keepsToItsRateOfFalsePositives() {
+    BloomFilter filter = new BloomFilter(COUNT, 0.01);
+    for (int i = 0; i < COUNT; i++) {
+      filter.put("user" + i);
+    }
+    int falsePositives = 0;
+    for (int i = 0; i < COUNT; i++) {
+      if (filter.mightContain("group" + i)) {
+        falsePositives++;
+      }
+    }
+    // Three times the rate asked for leaves room for an unlucky hash
+    assertTrue(falsePositives + " false positives", falsePositives < COUNT * 0.03);
+  }
+
+  @Test
+  public void containsNothingWhenEmpty() {
+    BloomFilter filter = new BloomFilter(0, 0.01);
+    assertFalse(filter.mightContain(""));
+    assertFalse(filter.mightContain("user0"));
+    assertEquals(0, filter.getCount());
+  }
+}
@@ -0,0 +1,178 @@
+package com.dabsquared.googleldap.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentCacheMapTest {
+
+  /** Every entry weighs 1. */
+  private static final Weigher<String, String> UNIT = new Weigher<String, String>() {
+    public long weigh(String key, String value) {
+      return 1;
+    }
+  };
+
+  /** Weighs an entry by the length of its value. */
+  private static final Weigher<String, String> LENGTH = new Weigher<String, String>() {
+    public long weigh(String key, String value) {
+      return value.length();
+    }
+  };
+
+  private final List<String> m_Stale = new ArrayList<String>();
+
+  private final List<String> m_Expelled = new ArrayList<String>();
+
+  private ConcurrentCacheMap<String, String> m_Cache;
+
+  @Before
+  public void createCache() {
+    m_Cache = new ConcurrentCacheMap<String, String>(1000, ConcurrentCacheMap.NO_EXPIRY, UNIT);
+    m_Cache.setRefreshHandler(new CacheMapRefreshHandler<String, String>() {
+      public void stale(String key, String value) {
+        synchronized (m_Stale) {
+          m_Stale.add(key);
+        }
+      }
+    });
+    m_Cache.setExpelHandler(new ExpelRecorder());
+  }
+
+  @Test
+  public void evictsTheLeastRecentlyUsedEntriesOverItsWeight() {
+    // Two entries per segment
+    long maxWeight = 2L * segments();
+    m_Cache = new ConcurrentCacheMap<String, String>(maxWeight, ConcurrentCacheMap.NO_EXPIRY, UNIT);
+    m_Cache.setExpelHandler(new ExpelRecorder());
+
+    m_Cache.put("kept", "0");
+    for (int i = 0; i < 1000; i++) {
+      m_Cache.put("key" + i, Integer.toString(i));
+      assertEquals("0", m_Cache.get("kept"));
+    }
+    assertEquals("999", m_Cache.get("key999"));
+    assertTrue(m_Cache.getWeight() <= maxWeight);
+    assertEquals(1001 - m_Cache.size(), m_Cache.getEvictionCount());
+    assertEquals(m_Cache.getEvictionCount(), m_Expelled.size());
+  }
+
+  @Test
+  public void weighsEntriesWithItsWeigher() {
+    long maxWeight = 10L * segments();
+    m_Cache = new ConcurrentCacheMap<String, String>(maxWeight, ConcurrentCacheMap.NO_EXPIRY, LENGTH);
+
+    m_Cache.put("a", "12345");
+    m_Cache.put("a", "123");
+    assertEquals(3, m_Cache.getWeight());
+    m_Cache.remove("a");
+    assertEquals(0, m_Cache.getWeight());
+
+    // An entry heavier than its segment is kept, but only until the next one is put
+    m_Cache.put("a", "12345678901234567890");
+    assertEquals("12345678901234567890", m_Cache.get("a"));
+    for (int i = 0; i < 1000; i++) {
+      m_Cache.put("key" + i, "1234567890");
+    }
+    assertNull(m_Cache.get("a"));
+    assertTrue(m_Cache.getWeight() <= maxWeight);
+  }
+
+  @Test
+  public void expiresAnEntryAfterItsTimeToLive() throws Exception {
+    m_Cache.put("a", "1", 1);
+    m_Cache.put("b", "2");
+    Thread.sleep(10);
+
+    assertNull(m_Cache.get("a"));
+    assertEquals("2", m_Cache.get("b"));
+    assertEquals(1, m_Cache.size());
+    assertEquals(1, m_Cache.getExpirationCount());
+    assertEquals(1, m_Cache.getMissCount());
+    assertEquals(1, m_Expelled.size());
+    assertEquals("a", m_Expelled.get(0));
+  }
+
+  @Test
+  public void expiresAStaleEntryWithoutReportingIt() throws Exception {
+    m_Cache.setSoftTtl(1);
+    m_Cache.put("a", "1", 5);
+    Thread.sleep(10);
+
+    assertNull(m_Cache.get("a"));
+    assertEquals(0, m_Stale.size());
+    assertEquals(0, m_Cache.getStaleHitCount());
+  }
+
+  @Test
+  public void servesAStaleEntryUntilItExpires() throws Exception {
+    m_Cache.setSoftTtl(1);
+    m_Cache.put("a", "1", 60000);
+    Thread.sleep(10);
+
+    assertEquals("1", m_Cache.get("a"));
+    assertEquals(1, m_Stale.size());
+    assertEquals(0, m_Cache.getExpirationCount());
+  }
+
+  @Test
+  public void reportsAStaleEntryOnce() throws Exception {
+    m_Cache.setSoftTtl(1);
+    m_Cache.put("a", "1");
+    Thread.sleep(10);
+
+    for (int i = 0; i < 5; i++) {
+      assertEquals("1", m_Cache.get("a"));
+    }
+    assertEquals(1, m_Stale.size());
+    assertEquals(5, m_Cache.getStaleHitCount());
+  }
+
+  @Test
+  public void reportsAStaleEntryAgainOnceItsRefreshIsCancelled() throws Exception {
+    m_Cache.setSoftTtl(1);
+    m_Cache.put("a", "1");
+    Thread.sleep(10);
+
+    m_Cache.get("a");
+    m_Cache.get("a");
+    m_Cache.cancelRefresh("a");
+    m_Cache.get("a");
+    m_Cache.get("a");
+    assertEquals(2, m_Stale.size());
+  }
+
+  @Test
+  public void doesNotReportAFreshEntry() {
+    m_Cache.setSoftTtl(60000);
+    m_Cache.put("a", "1");
+    m_Cache.get("a");
+    m_Cache.cancelRefresh("b");
+    assertEquals(0, m_Stale.size());
+  }
+
+  /**
+   * @return the number of segments of the cache, each of which holds its share of the weight.
+   */
+  private int segments() {
+    return ((Object[]) m_Cache.m_Segments).length;
+  }//segments
+
+  /**
+   * Records the keys of the expelled entries.
+   */
+  private class ExpelRecorder implements CacheMapExpelHandler<String, String> {
+    public void expelled(Map.Entry<String, String> entry) {
+      synchronized (m_Expelled) {
+        m_Expelled.add(entry.getKey());
+      }
+    }
+  }//class ExpelRecorder
+}
@@ -0,0 +1,146 @@
+package com.dabsquared.googleldap.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+
+  private static final int WAITERS = 4;
+
+  private final SingleFlight<String, String> m_Flight = new SingleFlight<String, String>();
+
+  private final AtomicInteger m_Runs = new AtomicInteger();
+
+  private final CountDownLatch m_Started = new CountDownLatch(1);
+
+  private final CountDownLatch m_Release = new CountDownLatch(1);
+
+  private ExecutorService m_Executor;
+
+  @Before
+  public void createExecutor() {
+    m_Executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void shutdownExecutor() {
+    m_Executor.shutdownNow();
+  }
+
+  @Test
+  public void sharesTheResultOfACallInFlight() throws Exception {
+    Future<String> leader = execute("a", call("1", null));
+    List<Future<String>> waiters = waiters("a", call("2", null));
+    m_Release.countDown();
+
+    assertEquals("1", leader.get(5, TimeUnit.SECONDS));
+    for (Future<String> waiter : waiters) {
+      assertEquals("1", waiter.get(5, TimeUnit.SECONDS));
+    }
+    assertEquals(1, m_Runs.get());
+    assertEquals(1, m_Flight.getCallCount());
+    assertEquals(WAITERS, m_Flight.getSharedCount());
+    assertEquals(0, m_Flight.getInFlightCount());
+  }
+
+  @Test
+  public void passesTheFailureOfTheLeaderToItsWaiters() throws Exception {
+    IOException failure = new IOException("backendError");
+    Future<String> leader = execute("a", call(null, failure));
+    List<Future<String>> waiters = waiters("a", call("2", null));
+    m_Release.countDown();
+
+    assertSame(failure, failureOf(leader));
+    for (Future<String> waiter : waiters) {
+      assertSame(failure, failureOf(waiter));
+    }
+    assertEquals(1, m_Runs.get());
+    assertEquals(0, m_Flight.getInFlightCount());
+
+    // Nothing is remembered, the failure included
+    assertEquals("3", m_Flight.execute("a", call("3", null)));
+  }
+
+  @Test
+  public void runsCallsForOtherKeys() throws Exception {
+    Future<String> leader = execute("a", call("1", null));
+    m_Started.await(5, TimeUnit.SECONDS);
+
+    m_Release.countDown();
+    assertEquals("2", m_Flight.execute("b", call("2", null)));
+    assertEquals("1", leader.get(5, TimeUnit.SECONDS));
+    assertEquals(2, m_Runs.get());
+    assertEquals(0, m_Flight.getSharedCount());
+  }
+
+  /**
+   * Starts callers for the key once the call of the leader is in flight, and waits
+   * until they all wait for it.
+   */
+  private List<Future<String>> waiters(String key, Callable<String> call) throws Exception {
+    assertTrue(m_Started.await(5, TimeUnit.SECONDS));
+    List<Future<String>> waiters = new ArrayList<Future<String>>();
+    for (int i = 0; i < WAITERS; i++) {
+      waiters.add(execute(key, call));
+    }
+    long deadline = System.currentTimeMillis() + 5000;
+    while (m_Flight.getSharedCount() < WAITERS && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    assertEquals(WAITERS, m_Flight.getSharedCount());
+    return waiters;
+  }//waiters
+
+  private Future<String> execute(final String key, final Callable<String> call) {
+    return m_Executor.submit(new Callable<String>() {
+      public String call() throws Exception {
+        return m_Flight.execute(key, call);
+      }
+    });
+  }//execute
+
+  /**
+   * @return a call returning the value or throwing the failure, once released.
+   */
+  private Callable<String> call(final String value, final Exception failure) {
+    return new Callable<String>() {
+      public String call() throws Exception {
+        m_Runs.incrementAndGet();
+        m_Started.countDown();
+        m_Release.await();
+        if (failure != null) {
+          throw failure;
+        }
+        return value;
+      }
+    };
+  }//call
+
+  private static Throwable failureOf(Future<String> future) throws Exception {
+    try {
+      future.get(5, TimeUnit.SECONDS);
+    } catch (ExecutionException ex) {
+      return ex.getCause();
+    }
+    fail("Expected the call to fail");
+    return null;
+  }//failureOf
+}
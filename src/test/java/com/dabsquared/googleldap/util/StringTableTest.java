@@ -0,0 +1,70 @@
+package com.dabsquared.googleldap.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StringTableTest {
+
+  private static final int COUNT = 10000;
+
+  @Test
+  public void findsEveryStringAcrossRehashes() {
+    // Grows its slots and arrays many times over
+    StringTable table = new StringTable(1);
+    for (int i = 0; i < COUNT; i++) {
+      assertEquals(i, table.intern("uid" + i));
+    }
+    assertEquals(COUNT, table.size());
+    for (int i = 0; i < COUNT; i++) {
+      assertEquals(i, table.find("uid" + i));
+      assertEquals("uid" + i, table.get(i));
+    }
+    assertEquals(-1, table.find("uid" + COUNT));
+  }
+
+  @Test
+  public void internsAStringOnce() {
+    StringTable table = new StringTable(16);
+    int id = table.intern("alice");
+    for (int i = 0; i < 100; i++) {
+      table.intern("user" + i);
+    }
+    assertEquals(id, table.intern(new String("alice")));
+    assertEquals(101, table.size());
+  }
+
+  @Test
+  public void keepsEmptyAndNonAsciiStrings() {
+    StringTable table = new StringTable(16);
+    int empty = table.intern("");
+    int accented = table.intern("Zo\u00eb \u00c5ngstr\u00f6m");
+    int cjk = table.intern("\u5c71\u7530");
+    assertEquals("", table.get(empty));
+    assertEquals("Zo\u00eb \u00c5ngstr\u00f6m", table.get(accented));
+    assertEquals("\u5c71\u7530", table.get(cjk));
+    assertEquals(accented, table.find("Zo\u00eb \u00c5ngstr\u00f6m"));
+    assertEquals(-1, table.find("Zoe Angstrom"));
+  }
+
+  @Test
+  public void findsEveryStringOnceTrimmed() {
+    StringTable table = new StringTable(COUNT);
+    for (int i = 0; i < 1000; i++) {
+      table.intern("group" + i);
+    }
+    long before = table.getMemoryUsage();
+    table.trim();
+    assertTrue(table.getMemoryUsage() < before);
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i, table.find("group" + i));
+      assertEquals("group" + i, table.get(i));
+    }
+
+    // And can still grow
+    assertEquals(1000, table.intern("group1000"));
+    assertEquals(1000, table.find("group1000"));
+    assertEquals(999, table.find("group999"));
+  }
+}
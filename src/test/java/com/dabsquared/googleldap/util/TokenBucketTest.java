@@ -0,0 +1,71 @@
+package com.dabsquared.googleldap.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+
+  @Test
+  public void startsFull() {
+    TokenBucket bucket = new TokenBucket(1, 5);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(bucket.tryAcquire());
+    }
+    assertFalse(bucket.tryAcquire());
+  }
+
+  @Test
+  public void refillsAtItsRate() throws Exception {
+    TokenBucket bucket = new TokenBucket(100, 1);
+    assertTrue(bucket.tryAcquire());
+    assertFalse(bucket.tryAcquire());
+    Thread.sleep(30);
+    assertTrue(bucket.tryAcquire());
+  }
+
+  @Test
+  public void refillsNoMoreThanItsBurst() throws Exception {
+    TokenBucket bucket = new TokenBucket(1000, 3);
+    Thread.sleep(20);
+    int taken = 0;
+    while (bucket.tryAcquire()) {
+      taken++;
+    }
+    // One more may have been added while they were taken
+    assertTrue(taken + " taken", taken >= 3 && taken <= 4);
+  }
+
+  @Test
+  public void makesCallersOverTheBurstWait() throws Exception {
+    TokenBucket bucket = new TokenBucket(100, 1);
+    assertEquals(0, bucket.reserve(1));
+
+    // In debt by one permit, paid off in 10ms, then by two
+    long first = bucket.reserve(1);
+    long second = bucket.reserve(1);
+    assertTrue(first > TimeUnit.MILLISECONDS.toNanos(5) && first <= TimeUnit.MILLISECONDS.toNanos(10));
+    assertTrue(second > first + TimeUnit.MILLISECONDS.toNanos(5));
+  }
+
+  @Test
+  public void keepsToItsRateOverTime() throws Exception {
+    TokenBucket bucket = new TokenBucket(200, 1);
+    long start = System.nanoTime();
+    for (int i = 0; i < 21; i++) {
+      bucket.acquire();
+    }
+    long elapsed = System.nanoTime() - start;
+    // The first permit is there already, the 20 others take 100ms
+    assertTrue(elapsed + "ns", elapsed >= TimeUnit.MILLISECONDS.toNanos(95));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsANonPositiveRate() {
+    new TokenBucket(0, 1);
+  }
+}